@@ -7,16 +7,26 @@
  */
 package org.openmrs.module.clientregistry;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.commons.lang.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openmrs.module.clientregistry.api.sync.SyncOverflowPolicy;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.module.clientregistry.providers.FhirCRConstants;
+import org.openmrs.module.fhir2.FhirConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
- * Contains module's config.
+ * Contains module's config. Global properties are read once into an immutable snapshot that is
+ * rebuilt after {@link #refresh()}, so the sync and read paths don't hit the database for them.
  */
 @Component
 public class ClientRegistryConfig {
@@ -39,34 +49,44 @@ public class ClientRegistryConfig {
 	@Value("${CLIENTREGISTRY_IDENTIFIERROOT:}")
 	private String identifierRoot;
 	
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+	
+	private final AtomicLong generation = new AtomicLong();
+	
 	public boolean clientRegistryConnectionEnabled() {
 		return StringUtils.isNotBlank(getClientRegistryServerUrl());
 	}
 	
+	/**
+	 * @return the url of the client registry's FHIR server, from the global property of the same name
+	 *         as the runtime property if it is set, as it can be changed without a restart
+	 */
 	public String getClientRegistryServerUrl() {
-		return serverUrl;
+		return StringUtils.defaultIfBlank(getSnapshot().serverUrl, serverUrl);
+	}
+	
+	/**
+	 * Marks the cached global property values as stale, they are read again on next use. Called
+	 * whenever one of the module's global properties changes.
+	 */
+	public void refresh() {
+		generation.incrementAndGet();
 	}
 	
 	public String getClientRegistryGetPatientEndpoint() {
-		String globalPropPatientEndpoint = administrationService
-		        .getGlobalProperty(ClientRegistryConstants.GP_FHIR_CLIENT_REGISTRY_GET_PATIENT_ENDPOINT);
-		
-		// default to Patient/$ihe-pix if patient endpoint is not defined in config
-		return (globalPropPatientEndpoint == null || globalPropPatientEndpoint.isEmpty()) ? String.format("Patient/%s",
-		    FhirCRConstants.IHE_PIX_OPERATION) : globalPropPatientEndpoint;
+		return getSnapshot().getPatientEndpoint;
 	}
 	
 	public String getClientRegistryDefaultPatientIdentifierSystem() {
-		return administrationService
-		        .getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_DEFAULT_PATIENT_IDENTIFIER_SYSTEM);
+		return getSnapshot().defaultPatientIdentifierSystem;
 	}
 	
 	public String getClientRegistryUserName() {
-		return username;
+		return StringUtils.defaultIfBlank(getSnapshot().username, username);
 	}
 	
 	public String getClientRegistryPassword() {
-		return password;
+		return StringUtils.defaultIfBlank(getSnapshot().password, password);
 	}
 	
 	public String getClientRegistryIdentifierRoot() {
@@ -74,6 +94,528 @@ public class ClientRegistryConfig {
 	}
 	
 	public String getClientRegistryTransactionMethod() {
-		return administrationService.getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_TRANSACTION_METHOD);
+		return getSnapshot().transactionMethod;
+	}
+	
+	/**
+	 * @return the URL of the extension each configured person attribute type is pushed as, keyed by
+	 *         the attribute type uuid, in configuration order
+	 */
+	public Map<String, String> getExtensionUrlsByAttributeTypeUuid() {
+		return getSnapshot().extensionUrlsByAttributeTypeUuid;
+	}
+	
+	/**
+	 * @return the uuid of the person attribute type fhir2 maps to a patient's telecom
+	 */
+	public String getContactPointAttributeTypeUuid() {
+		return getSnapshot().contactPointAttributeTypeUuid;
+	}
+	
+	/**
+	 * @return the maximum number of outbox entries the sync worker pushes per drain cycle
+	 */
+	public int getSyncBatchSize() {
+		return getSnapshot().syncBatchSize;
+	}
+	
+	/**
+	 * @return the number of seconds to wait before retrying a failed push to the client registry
+	 */
+	public int getSyncRetryInterval() {
+		return getSnapshot().syncRetryInterval;
+	}
+	
+	/**
+	 * @return the number of milliseconds the sync worker waits for more patient events to fill a
+	 *         bundle before pushing
+	 */
+	public int getSyncBatchWindow() {
+		return getSnapshot().syncBatchWindow;
+	}
+	
+	/**
+	 * @return the number of milliseconds a patient event waits in the sync outbox before it is pushed,
+	 *         so that the events following it are pushed along with it; 0 pushes every event right away
+	 */
+	public int getSyncQuietWindow() {
+		return getSnapshot().syncQuietWindow;
+	}
+	
+	/**
+	 * @return the type of Bundle patient pushes are sent in, either batch (the default) or
+	 *         transaction
+	 */
+	public Bundle.BundleType getSyncBundleType() {
+		return getSnapshot().syncBundleType;
+	}
+	
+	/**
+	 * @return the number of threads pushing patients to the client registry in parallel
+	 */
+	public int getSyncWorkerCount() {
+		return getSnapshot().syncWorkerCount;
+	}
+	
+	/**
+	 * @return the number of push tasks that may wait for each sync worker
+	 */
+	public int getSyncQueueCapacity() {
+		return getSnapshot().syncQueueCapacity;
+	}
+	
+	/**
+	 * @return what to do with outbox entries when no sync worker can take them, SPILL by default
+	 */
+	public SyncOverflowPolicy getSyncOverflowPolicy() {
+		return getSnapshot().syncOverflowPolicy;
+	}
+	
+	/**
+	 * @return whether updates of already pushed patients are sent as JSON Patches, false by default
+	 */
+	public boolean isSyncPatchUpdates() {
+		return getSnapshot().syncPatchUpdates;
+	}
+	
+	/**
+	 * @return the number of failed pushes after which an outbox entry is moved to the dead letters
+	 */
+	public int getSyncMaxAttempts() {
+		return getSnapshot().syncMaxAttempts;
+	}
+	
+	/**
+	 * @return the number of days pushed outbox entries are kept before they are purged, 0 if they are
+	 *         kept for good
+	 */
+	public int getSyncOutboxRetention() {
+		return getSnapshot().syncOutboxRetention;
+	}
+	
+	/**
+	 * @return the number of times a client registry call is tried when it fails with a transient error
+	 */
+	public int getRetryMaxAttempts() {
+		return getSnapshot().retryMaxAttempts;
+	}
+	
+	/**
+	 * @return the number of milliseconds the backoff before the first retry is capped at, doubling
+	 *         for every further retry
+	 */
+	public int getRetryBaseDelay() {
+		return getSnapshot().retryBaseDelay;
+	}
+	
+	/**
+	 * @return the maximum number of milliseconds to back off between retries
+	 */
+	public int getRetryMaxDelay() {
+		return getSnapshot().retryMaxDelay;
+	}
+	
+	/**
+	 * @return the number of consecutive transient failures that open the circuit breaker
+	 */
+	public int getCircuitFailureThreshold() {
+		return getSnapshot().circuitFailureThreshold;
+	}
+	
+	/**
+	 * @return the number of seconds calls to the client registry fail fast once the circuit breaker
+	 *         opened
+	 */
+	public int getCircuitOpenDuration() {
+		return getSnapshot().circuitOpenDuration;
+	}
+	
+	/**
+	 * @return the number of threads a backfill pushes patients to the client registry on
+	 */
+	public int getBackfillWorkerCount() {
+		return getSnapshot().backfillWorkerCount;
+	}
+	
+	/**
+	 * @return the number of minutes between reconciliations with the client registry, 0 if disabled
+	 */
+	public int getReconcileInterval() {
+		return getSnapshot().reconcileInterval;
+	}
+	
+	/**
+	 * @return the maximum number of client registry patients kept in memory, 0 if not cached
+	 */
+	public int getPatientCacheSize() {
+		return getSnapshot().patientCacheSize;
+	}
+	
+	/**
+	 * @return the number of seconds a cached client registry patient is served without revalidating
+	 *         it
+	 */
+	public int getPatientCacheTtl() {
+		return getSnapshot().patientCacheTtl;
+	}
+	
+	/**
+	 * @return the maximum number of $ihe-pix cross-references kept in memory, 0 if not cached
+	 */
+	public int getPixCacheSize() {
+		return getSnapshot().pixCacheSize;
+	}
+	
+	/**
+	 * @return the number of seconds a cached $ihe-pix cross-reference is used
+	 */
+	public int getPixCacheTtl() {
+		return getSnapshot().pixCacheTtl;
+	}
+	
+	/**
+	 * @return the maximum number of client registry searches whose results are kept in memory, 0 if
+	 *         not cached
+	 */
+	public int getSearchCacheSize() {
+		return getSnapshot().searchCacheSize;
+	}
+	
+	/**
+	 * @return the number of seconds the cached results of a client registry search are used
+	 */
+	public int getSearchCacheTtl() {
+		return getSnapshot().searchCacheTtl;
+	}
+	
+	/**
+	 * @return the maximum number of kilobytes of patients kept in memory for cached client registry
+	 *         searches, 0 for no maximum
+	 */
+	public int getSearchCacheMemory() {
+		return getSnapshot().searchCacheMemory;
+	}
+	
+	/**
+	 * @return the maximum number of patients fetched with one client registry search by a batch read
+	 */
+	public int getBatchReadChunkSize() {
+		return getSnapshot().batchReadChunkSize;
+	}
+	
+	/**
+	 * @return the number of minutes between two polls of the client registry for the shadow index, 0
+	 *         if the shadow index is disabled
+	 */
+	public int getShadowIndexInterval() {
+		return getSnapshot().shadowIndexInterval;
+	}
+	
+	/**
+	 * @return the number of minutes since its last poll the shadow index is used to answer lookups
+	 */
+	public int getShadowIndexMaxAge() {
+		return getSnapshot().shadowIndexMaxAge;
+	}
+	
+	/**
+	 * @return the maximum number of candidates a fuzzy search answered from the shadow index returns,
+	 *         0 if fuzzy searches always go to the client registry
+	 */
+	public int getFuzzySearchLimit() {
+		return getSnapshot().fuzzySearchLimit;
+	}
+	
+	/**
+	 * @return the number of milliseconds a federated search waits for the client registry's results
+	 */
+	public int getFederatedSearchTimeout() {
+		return getSnapshot().federatedSearchTimeout;
+	}
+	
+	/**
+	 * @return the number of threads calling the client registry in parallel with the requests of
+	 *         federated searches and batch reads
+	 */
+	public int getAsyncWorkerCount() {
+		return getSnapshot().asyncWorkerCount;
+	}
+	
+	/**
+	 * @return the number of kilobytes of patients a request may read from client registry search
+	 *         results, 0 for no limit
+	 */
+	public int getSearchMemoryCeiling() {
+		return getSnapshot().searchMemoryCeiling;
+	}
+	
+	/**
+	 * @return the maximum number of connections open to the client registry at once
+	 */
+	public int getHttpMaxConnections() {
+		return getSnapshot().httpMaxConnections;
+	}
+	
+	/**
+	 * @return the maximum number of connections open to one host of the client registry at once
+	 */
+	public int getHttpMaxConnectionsPerRoute() {
+		return getSnapshot().httpMaxConnectionsPerRoute;
+	}
+	
+	/**
+	 * @return the number of milliseconds to wait for a connection to the client registry to be
+	 *         established, 0 for no limit
+	 */
+	public int getHttpConnectTimeout() {
+		return getSnapshot().httpConnectTimeout;
+	}
+	
+	/**
+	 * @return the number of milliseconds to wait for data from the client registry, 0 for no limit
+	 */
+	public int getHttpReadTimeout() {
+		return getSnapshot().httpReadTimeout;
+	}
+	
+	/**
+	 * @return the number of milliseconds a request waits for a free connection to the client
+	 *         registry, 0 for no limit
+	 */
+	public int getHttpRequestTimeout() {
+		return getSnapshot().httpRequestTimeout;
+	}
+	
+	/**
+	 * @return the number of milliseconds a connection to the client registry is kept open while unused
+	 */
+	public int getHttpIdleTimeout() {
+		return getSnapshot().httpIdleTimeout;
+	}
+	
+	private Snapshot getSnapshot() {
+		long currentGeneration = generation.get();
+		Snapshot current = snapshot.get();
+		if (current == null || current.generation != currentGeneration) {
+			// a snapshot loaded while a refresh happened carries the old generation and is loaded again
+			current = new Snapshot(this, currentGeneration);
+			snapshot.set(current);
+		}
+		return current;
+	}
+	
+	private int getIntegerGlobalProperty(String property, int defaultValue) {
+		String value = administrationService.getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * The module's global properties, parsed once.
+	 */
+	private static final class Snapshot {
+		
+		private final long generation;
+		
+		private final String serverUrl;
+		
+		private final String username;
+		
+		private final String password;
+		
+		private final String getPatientEndpoint;
+		
+		private final String defaultPatientIdentifierSystem;
+		
+		private final String transactionMethod;
+		
+		private final Map<String, String> extensionUrlsByAttributeTypeUuid;
+		
+		private final String contactPointAttributeTypeUuid;
+		
+		private final int syncBatchSize;
+		
+		private final int syncRetryInterval;
+		
+		private final int syncBatchWindow;
+		
+		private final int syncQuietWindow;
+		
+		private final Bundle.BundleType syncBundleType;
+		
+		private final int syncWorkerCount;
+		
+		private final int syncQueueCapacity;
+		
+		private final SyncOverflowPolicy syncOverflowPolicy;
+		
+		private final boolean syncPatchUpdates;
+		
+		private final int syncMaxAttempts;
+		
+		private final int syncOutboxRetention;
+		
+		private final int retryMaxAttempts;
+		
+		private final int retryBaseDelay;
+		
+		private final int retryMaxDelay;
+		
+		private final int circuitFailureThreshold;
+		
+		private final int circuitOpenDuration;
+		
+		private final int backfillWorkerCount;
+		
+		private final int reconcileInterval;
+		
+		private final int patientCacheSize;
+		
+		private final int patientCacheTtl;
+		
+		private final int pixCacheSize;
+		
+		private final int pixCacheTtl;
+		
+		private final int searchCacheSize;
+		
+		private final int searchCacheTtl;
+		
+		private final int searchCacheMemory;
+		
+		private final int batchReadChunkSize;
+		
+		private final int shadowIndexInterval;
+		
+		private final int shadowIndexMaxAge;
+		
+		private final int fuzzySearchLimit;
+		
+		private final int federatedSearchTimeout;
+		
+		private final int asyncWorkerCount;
+		
+		private final int searchMemoryCeiling;
+		
+		private final int httpMaxConnections;
+		
+		private final int httpMaxConnectionsPerRoute;
+		
+		private final int httpConnectTimeout;
+		
+		private final int httpReadTimeout;
+		
+		private final int httpRequestTimeout;
+		
+		private final int httpIdleTimeout;
+		
+		private Snapshot(ClientRegistryConfig config, long generation) {
+			this.generation = generation;
+			AdministrationService administrationService = config.administrationService;
+			serverUrl = administrationService.getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_SERVER_URL);
+			username = administrationService.getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_USER_NAME);
+			password = administrationService.getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_PASSWORD);
+			String patientEndpoint = administrationService
+			        .getGlobalProperty(ClientRegistryConstants.GP_FHIR_CLIENT_REGISTRY_GET_PATIENT_ENDPOINT);
+			// default to Patient/$ihe-pix if patient endpoint is not defined in config
+			getPatientEndpoint = (patientEndpoint == null || patientEndpoint.isEmpty()) ? String.format("Patient/%s",
+			    FhirCRConstants.IHE_PIX_OPERATION) : patientEndpoint;
+			defaultPatientIdentifierSystem = administrationService
+			        .getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_DEFAULT_PATIENT_IDENTIFIER_SYSTEM);
+			transactionMethod = administrationService
+			        .getGlobalProperty(ClientRegistryConstants.GP_CLIENT_REGISTRY_TRANSACTION_METHOD);
+			
+			Map<String, String> extensionUrls = new LinkedHashMap<>();
+			String uuidAndExtensionUrls = administrationService
+			        .getGlobalProperty(ClientRegistryConstants.GP_EXTENSION_UUID_EXTENSION_URLS);
+			if (StringUtils.isNotBlank(uuidAndExtensionUrls)) {
+				for (String pair : uuidAndExtensionUrls.split(",")) {
+					String[] uuidAndExtension = pair.trim().split("\\|");
+					if (uuidAndExtension.length == 2) {
+						extensionUrls.put(uuidAndExtension[0].trim(), uuidAndExtension[1].trim());
+					}
+				}
+			}
+			extensionUrlsByAttributeTypeUuid = Collections.unmodifiableMap(extensionUrls);
+			contactPointAttributeTypeUuid = administrationService
+			        .getGlobalProperty(FhirConstants.PERSON_CONTACT_POINT_ATTRIBUTE_TYPE);
+			
+			syncBatchSize = config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_BATCH_SIZE, 50);
+			syncRetryInterval = config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_RETRY_INTERVAL, 60);
+			syncBatchWindow = config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_BATCH_WINDOW, 1000);
+			syncQuietWindow = config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_QUIET_WINDOW, 1000);
+			String bundleType = administrationService.getGlobalProperty(ClientRegistryConstants.GP_SYNC_BUNDLE_TYPE);
+			syncBundleType = "transaction".equalsIgnoreCase(StringUtils.trim(bundleType)) ? Bundle.BundleType.TRANSACTION
+			        : Bundle.BundleType.BATCH;
+			syncWorkerCount = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_WORKER_COUNT, 4));
+			syncQueueCapacity = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_QUEUE_CAPACITY, 100));
+			String policy = administrationService.getGlobalProperty(ClientRegistryConstants.GP_SYNC_OVERFLOW_POLICY);
+			syncOverflowPolicy = "block".equalsIgnoreCase(StringUtils.trim(policy)) ? SyncOverflowPolicy.BLOCK
+			        : SyncOverflowPolicy.SPILL;
+			syncPatchUpdates = Boolean.parseBoolean(StringUtils.trim(administrationService
+			        .getGlobalProperty(ClientRegistryConstants.GP_SYNC_PATCH_UPDATES)));
+			syncMaxAttempts = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_MAX_ATTEMPTS, 10));
+			syncOutboxRetention = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SYNC_OUTBOX_RETENTION, 7));
+			retryMaxAttempts = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_RETRY_MAX_ATTEMPTS, 3));
+			retryBaseDelay = Math.max(0, config.getIntegerGlobalProperty(ClientRegistryConstants.GP_RETRY_BASE_DELAY, 200));
+			retryMaxDelay = Math.max(0, config.getIntegerGlobalProperty(ClientRegistryConstants.GP_RETRY_MAX_DELAY, 5000));
+			circuitFailureThreshold = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_CIRCUIT_FAILURE_THRESHOLD, 5));
+			circuitOpenDuration = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_CIRCUIT_OPEN_DURATION, 30));
+			backfillWorkerCount = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_BACKFILL_WORKER_COUNT, 4));
+			reconcileInterval = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_RECONCILE_INTERVAL, 60));
+			patientCacheSize = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_PATIENT_CACHE_SIZE, 1000));
+			patientCacheTtl = Math.max(0, config.getIntegerGlobalProperty(ClientRegistryConstants.GP_PATIENT_CACHE_TTL, 60));
+			pixCacheSize = Math.max(0, config.getIntegerGlobalProperty(ClientRegistryConstants.GP_PIX_CACHE_SIZE, 1000));
+			pixCacheTtl = Math.max(0, config.getIntegerGlobalProperty(ClientRegistryConstants.GP_PIX_CACHE_TTL, 300));
+			searchCacheSize = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SEARCH_CACHE_SIZE, 100));
+			searchCacheTtl = Math.max(0, config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SEARCH_CACHE_TTL, 30));
+			searchCacheMemory = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SEARCH_CACHE_MEMORY, 16384));
+			batchReadChunkSize = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_BATCH_READ_CHUNK_SIZE, 50));
+			shadowIndexInterval = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SHADOW_INDEX_INTERVAL, 0));
+			shadowIndexMaxAge = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SHADOW_INDEX_MAX_AGE, 15));
+			fuzzySearchLimit = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_FUZZY_SEARCH_LIMIT, 0));
+			federatedSearchTimeout = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_FEDERATED_SEARCH_TIMEOUT, 2000));
+			asyncWorkerCount = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_ASYNC_WORKER_COUNT, 4));
+			searchMemoryCeiling = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_SEARCH_MEMORY_CEILING, 16384));
+			httpMaxConnections = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_HTTP_MAX_CONNECTIONS, 50));
+			httpMaxConnectionsPerRoute = Math.max(1,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_HTTP_MAX_CONNECTIONS_PER_ROUTE, 50));
+			httpConnectTimeout = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_HTTP_CONNECT_TIMEOUT, 10000));
+			httpReadTimeout = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_HTTP_READ_TIMEOUT, 10000));
+			httpRequestTimeout = Math.max(0,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_HTTP_REQUEST_TIMEOUT, 10000));
+			httpIdleTimeout = Math.max(1000,
+			    config.getIntegerGlobalProperty(ClientRegistryConstants.GP_HTTP_IDLE_TIMEOUT, 30000));
+		}
 	}
 }
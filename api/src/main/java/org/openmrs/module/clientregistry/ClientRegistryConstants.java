@@ -20,14 +20,110 @@ public class ClientRegistryConstants {
 	
 	public static final String GP_CLIENT_REGISTRY_TRANSACTION_METHOD = "clientregistry.transactionMethod";
 	
+	public static final String GP_SYNC_BATCH_SIZE = "clientregistry.syncBatchSize";
+	
+	public static final String GP_SYNC_RETRY_INTERVAL = "clientregistry.syncRetryInterval";
+	
+	public static final String GP_SYNC_BATCH_WINDOW = "clientregistry.syncBatchWindow";
+	
+	public static final String GP_SYNC_BUNDLE_TYPE = "clientregistry.syncBundleType";
+	
+	public static final String GP_SYNC_QUIET_WINDOW = "clientregistry.syncQuietWindow";
+	
+	public static final String GP_SYNC_WORKER_COUNT = "clientregistry.syncWorkerCount";
+	
+	public static final String GP_SYNC_QUEUE_CAPACITY = "clientregistry.syncQueueCapacity";
+	
+	public static final String GP_SYNC_OVERFLOW_POLICY = "clientregistry.syncOverflowPolicy";
+	
+	public static final String GP_SYNC_PATCH_UPDATES = "clientregistry.syncPatchUpdates";
+	
+	public static final String GP_SYNC_MAX_ATTEMPTS = "clientregistry.syncMaxAttempts";
+	
+	public static final String GP_SYNC_OUTBOX_RETENTION = "clientregistry.syncOutboxRetention";
+	
+	public static final String GP_RETRY_MAX_ATTEMPTS = "clientregistry.retryMaxAttempts";
+	
+	public static final String GP_RETRY_BASE_DELAY = "clientregistry.retryBaseDelay";
+	
+	public static final String GP_RETRY_MAX_DELAY = "clientregistry.retryMaxDelay";
+	
+	public static final String GP_CIRCUIT_FAILURE_THRESHOLD = "clientregistry.circuitFailureThreshold";
+	
+	public static final String GP_CIRCUIT_OPEN_DURATION = "clientregistry.circuitOpenDuration";
+	
+	public static final String GP_BACKFILL_WORKER_COUNT = "clientregistry.backfillWorkerCount";
+	
+	public static final String GP_RECONCILE_INTERVAL = "clientregistry.reconcileInterval";
+	
+	public static final String GP_PATIENT_CACHE_SIZE = "clientregistry.patientCacheSize";
+	
+	public static final String GP_PATIENT_CACHE_TTL = "clientregistry.patientCacheTtl";
+	
+	public static final String GP_PIX_CACHE_SIZE = "clientregistry.pixCacheSize";
+	
+	public static final String GP_PIX_CACHE_TTL = "clientregistry.pixCacheTtl";
+	
+	public static final String GP_SEARCH_CACHE_SIZE = "clientregistry.searchCacheSize";
+	
+	public static final String GP_SEARCH_CACHE_TTL = "clientregistry.searchCacheTtl";
+	
+	public static final String GP_SEARCH_CACHE_MEMORY = "clientregistry.searchCacheMemory";
+	
+	public static final String GP_BATCH_READ_CHUNK_SIZE = "clientregistry.batchReadChunkSize";
+	
+	public static final String GP_SHADOW_INDEX_INTERVAL = "clientregistry.shadowIndexInterval";
+	
+	public static final String GP_SHADOW_INDEX_MAX_AGE = "clientregistry.shadowIndexMaxAge";
+	
+	public static final String GP_FUZZY_SEARCH_LIMIT = "clientregistry.fuzzySearchLimit";
+	
+	public static final String GP_FEDERATED_SEARCH_TIMEOUT = "clientregistry.federatedSearchTimeout";
+	
+	public static final String GP_ASYNC_WORKER_COUNT = "clientregistry.asyncWorkerCount";
+	
+	public static final String GP_SEARCH_MEMORY_CEILING = "clientregistry.searchMemoryCeiling";
+	
+	public static final String GP_HTTP_MAX_CONNECTIONS = "clientregistry.httpMaxConnections";
+	
+	public static final String GP_HTTP_MAX_CONNECTIONS_PER_ROUTE = "clientregistry.httpMaxConnectionsPerRoute";
+	
+	public static final String GP_HTTP_CONNECT_TIMEOUT = "clientregistry.httpConnectTimeout";
+	
+	public static final String GP_HTTP_READ_TIMEOUT = "clientregistry.httpReadTimeout";
+	
+	public static final String GP_HTTP_REQUEST_TIMEOUT = "clientregistry.httpRequestTimeout";
+	
+	public static final String GP_HTTP_IDLE_TIMEOUT = "clientregistry.httpIdleTimeout";
+	
 	public static final String UPDATE_MESSAGE_DESTINATION = "topic://UPDATED:org.openmrs.Patient";
 	
+	public static final String PURGE_MESSAGE_DESTINATION = "topic://PURGED:org.openmrs.Patient";
+	
 	public static final String CR_FHIR_OPERATION = "$cr";
 	
 	public static final String CR_FHIR_SEARCH_OPERATION = "$cr-search";
 	
+	public static final String CR_FHIR_BATCH_OPERATION = "$cr-batch";
+	
+	public static final String CR_FHIR_FEDERATED_SEARCH_OPERATION = "$cr-federated-search";
+	
+	public static final String CR_FHIR_PROXY_OPERATION = "$cr-proxy";
+	
+	public static final String CR_FHIR_SEARCH_PROXY_OPERATION = "$cr-search-proxy";
+	
 	public static final String CR_FHIR_UPDATE_OPERATION = "$cr-update";
 	
 	public static final String CR_FHIR_DELETE_OPERATION = "$cr-delete";
 	
+	public static final String CR_FHIR_METRICS_OPERATION = "$cr-metrics";
+	
+	public static final String CR_FHIR_SYNC_REPLAY_OPERATION = "$cr-sync-replay";
+	
+	public static final String CR_FHIR_BACKFILL_OPERATION = "$cr-backfill";
+	
+	public static final String CR_FHIR_BACKFILL_STOP_OPERATION = "$cr-backfill-stop";
+	
+	public static final String CR_FHIR_BACKFILL_STATUS_OPERATION = "$cr-backfill-status";
+	
 }
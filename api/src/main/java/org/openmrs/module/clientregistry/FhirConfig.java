@@ -1,10 +1,11 @@
 package org.openmrs.module.clientregistry;
 
-import ca.uhn.fhir.context.FhirContext;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import org.openmrs.module.clientregistry.api.ClientRegistryClientHolder;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -12,21 +13,32 @@ import org.springframework.context.annotation.Configuration;
 public class FhirConfig {
 	
 	@Autowired
-	private ClientRegistryConfig config;
-	
-	@Autowired
-	@Qualifier("fhirR4")
-	private FhirContext fhirContext;
+	private ClientRegistryClientHolder clientHolder;
 	
+	/**
+	 * The client registry FHIR client. Every call goes to the holder's current client, so that the
+	 * client can be rebuilt when the configuration changes without the beans using it noticing.
+	 */
 	@Bean(name = "clientRegistryFhirClient")
 	public IGenericClient getFhirClient() throws Exception {
-		IGenericClient fhirClient = fhirContext.newRestfulGenericClient(config.getClientRegistryServerUrl());
-		if (!config.getClientRegistryUserName().isEmpty()) {
-			BasicAuthInterceptor authInterceptor = new BasicAuthInterceptor(config.getClientRegistryUserName(),
-			        config.getClientRegistryPassword());
-			fhirClient.registerInterceptor(authInterceptor);
-		}
-		return fhirClient;
+		return (IGenericClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+		    new Class<?>[] { IGenericClient.class }, (proxy, method, args) -> {
+			    switch (method.getName()) {
+				    case "equals":
+					    return proxy == args[0];
+				    case "hashCode":
+					    return System.identityHashCode(proxy);
+				    case "toString":
+					    return "clientRegistryFhirClient";
+				    default:
+					    try {
+						    return method.invoke(clientHolder.getClient(), args);
+					    }
+					    catch (InvocationTargetException e) {
+						    throw e.getCause();
+					    }
+			    }
+		    });
 	}
 	
 }
@@ -1,5 +1,6 @@
 package org.openmrs.module.clientregistry.api;
 
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
 import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
@@ -12,6 +13,15 @@ public interface CRPatientService {
 	 */
 	Patient getPatientById(String id);
 	
+	/**
+	 * Queries many patients by ID at once
+	 * 
+	 * @param ids the ids of the patients
+	 * @return a batch-response bundle with one entry per id, in the order given; the entries of ids
+	 *         not found have a 404 response and no patient
+	 */
+	Bundle getPatientsByIds(List<String> ids);
+	
 	/**
 	 * Queries patients through a PIXm manager using native IDs.
 	 * 
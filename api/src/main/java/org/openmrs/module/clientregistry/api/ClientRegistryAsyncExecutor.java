@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Calls the client registry in parallel with the requesting thread on a fixed number of daemon
+ * threads fed through a bounded queue. When the queue is full, or the executor is stopped, a task is
+ * run in the calling thread instead, so a burst of requests never starts more threads than
+ * configured. Cancelling the future of a task drops it if it has not started yet and interrupts the
+ * thread running it otherwise.
+ */
+@Component
+public class ClientRegistryAsyncExecutor {
+	
+	private static final int QUEUE_CAPACITY_PER_WORKER = 4;
+	
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+	
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private volatile boolean isRunning = false;
+	
+	private volatile BlockingQueue<Runnable> workQueue;
+	
+	private final List<Thread> workers = new ArrayList<>();
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	/**
+	 * Starts the configured number of worker threads, if not already started.
+	 * 
+	 * @param daemonToken the module's daemon token the workers run under
+	 */
+	public synchronized void start(DaemonToken daemonToken) {
+		if (isRunning) {
+			return;
+		}
+		
+		isRunning = true;
+		int workerCount = config.getAsyncWorkerCount();
+		BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(workerCount * QUEUE_CAPACITY_PER_WORKER);
+		workQueue = queue;
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(startWorker(() -> runWorker(queue), daemonToken));
+		}
+		log.info(String.format("Started %d client registry async workers", workerCount));
+	}
+	
+	/**
+	 * Stops the workers once they finished the task they are busy with, waiting a bounded time for
+	 * them. Tasks still queued are run by the thread stopping the executor, so that no future is left
+	 * incomplete.
+	 */
+	public synchronized void stop() {
+		if (!isRunning) {
+			return;
+		}
+		
+		isRunning = false;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+		for (Thread worker : workers) {
+			try {
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		workers.clear();
+		List<Runnable> queued = new ArrayList<>();
+		workQueue.drainTo(queued);
+		workQueue = null;
+		queued.forEach(Runnable::run);
+	}
+	
+	/**
+	 * Runs a task in one of the workers.
+	 * 
+	 * @param task the task
+	 * @return the result of the task; cancelling it, with or without interrupting, stops the task as
+	 *         described on the class
+	 */
+	public <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		AtomicReference<Thread> runner = new AtomicReference<>();
+		Runnable work = () -> {
+			// a task cancelled while queued is dropped
+			if (result.isDone()) {
+				return;
+			}
+			runner.set(Thread.currentThread());
+			try {
+				result.complete(task.get());
+			}
+			catch (RuntimeException | Error e) {
+				result.completeExceptionally(e);
+			}
+			finally {
+				runner.set(null);
+			}
+		};
+		result.whenComplete((value, e) -> {
+			Thread thread = runner.get();
+			if (result.isCancelled() && thread != null) {
+				thread.interrupt();
+			}
+		});
+		
+		BlockingQueue<Runnable> queue = workQueue;
+		if (!isRunning || queue == null || !queue.offer(work)) {
+			work.run();
+		} else if (!isRunning && queue.remove(work)) {
+			// queued after stop() drained the queue, no worker is left to run it
+			work.run();
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the thread a worker was started in
+	 */
+	Thread startWorker(Runnable worker, DaemonToken daemonToken) {
+		return Daemon.runInDaemonThread(worker, daemonToken);
+	}
+	
+	private void runWorker(BlockingQueue<Runnable> queue) {
+		// a worker that outlived a restart of the executor must not pick up tasks from the new queue
+		while (isRunning && queue == workQueue) {
+			Runnable task;
+			try {
+				task = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			
+			if (task == null) {
+				continue;
+			}
+			
+			try {
+				task.run();
+			}
+			finally {
+				// an interrupt meant for a cancelled task must not stop the worker
+				Thread.interrupted();
+				Context.clearSession();
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.pool.PoolStats;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.cache.CRPatientCache;
+import org.openmrs.module.clientregistry.api.cache.CRSearchCache;
+import org.openmrs.module.clientregistry.api.cache.CRShadowIndex;
+import org.openmrs.module.clientregistry.api.cache.PixCrossReferenceCache;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.sync.PatientSyncProcessor;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+
+/**
+ * Holds the FHIR client the module calls the client registry with, built from the server url,
+ * credentials and HTTP settings of the module's configuration. When one of them changes, a new
+ * client is built and warmed up in the background, with connections opened and the client
+ * registry's capability statement fetched, before it is swapped in. Requests started with the old
+ * client are left to finish before its connections are closed, so a change needs no restart and
+ * drops no request. When the server url changes, whatever the module knows about the old client
+ * registry is forgotten: its cached patients, searches and cross-references, the shadow index, its
+ * support for patch updates and the fingerprints of the patients pushed to it.
+ */
+@Component
+public class ClientRegistryClientHolder implements DisposableBean {
+	
+	private static final int WARM_CONNECTIONS = 4;
+	
+	/**
+	 * How long a replaced client is kept at least, for requests that got it just before the swap.
+	 */
+	private static final long DRAIN_GRACE = 1000;
+	
+	private static final long DRAIN_TIMEOUT = 60000;
+	
+	private static final long DRAIN_POLL_INTERVAL = 100;
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	@Autowired
+	@Qualifier("fhirR4")
+	private FhirContext fhirContext;
+	
+	@Autowired
+	private CRPatientCache patientCache;
+	
+	@Autowired
+	private CRSearchCache searchCache;
+	
+	@Autowired
+	private PixCrossReferenceCache pixCache;
+	
+	@Autowired
+	private CRShadowIndex shadowIndex;
+	
+	@Autowired
+	private PatientSyncProcessor syncProcessor;
+	
+	@Autowired
+	private SyncFingerprintDao fingerprintDao;
+	
+	private final Object lock = new Object();
+	
+	private volatile ClientRegistryClient current;
+	
+	/**
+	 * The settings of the newest client built, which may still be warming up.
+	 */
+	private List<Object> latestSettings;
+	
+	/**
+	 * @return the current client, built on first use
+	 */
+	public IGenericClient getClient() {
+		return getCurrent().client;
+	}
+	
+	/**
+	 * @return the url of the client registry the current client calls
+	 */
+	public String getServerUrl() {
+		return getCurrent().serverUrl;
+	}
+	
+	/**
+	 * Creates a GET request made through the current client's connections and with its credentials,
+	 * for responses read without the FHIR client.
+	 * 
+	 * @param url the absolute url
+	 * @return the request
+	 */
+	public IHttpRequest createGetRequest(String url) {
+		ClientRegistryClient client = getCurrent();
+		IHttpRequest request = client.transport.getClientFactory()
+		        .getHttpClient(new StringBuilder(url), null, null, RequestTypeEnum.GET, null)
+		        .createGetRequest(fhirContext, EncodingEnum.JSON);
+		if (client.authInterceptor != null) {
+			client.authInterceptor.interceptRequest(request);
+		}
+		return request;
+	}
+	
+	/**
+	 * Builds a new client in the background if the settings the current one was built from changed.
+	 * Requests keep using the current client until the new one is warmed up. Called whenever one of
+	 * the module's global properties changes.
+	 * 
+	 * @param daemonToken the module's daemon token the new client is warmed up and swapped in under,
+	 *            null if the module has not started yet, in which case the calling thread does it
+	 */
+	public void refresh(DaemonToken daemonToken) {
+		ClientRegistryClient next;
+		synchronized (lock) {
+			if (current == null) {
+				// not built yet, the first use builds it with the new settings
+				return;
+			}
+			List<Object> settings = getSettings();
+			if (settings.equals(latestSettings)) {
+				return;
+			}
+			latestSettings = settings;
+			
+			// built in the calling thread, which can read the module's configuration
+			next = new ClientRegistryClient(settings);
+		}
+		
+		Runnable swap = () -> {
+			try {
+				warmAndSwap(next);
+			}
+			finally {
+				Context.clearSession();
+			}
+		};
+		if (daemonToken != null) {
+			startSwap(swap, daemonToken);
+		} else {
+			swap.run();
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		synchronized (lock) {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return the thread the new client is warmed up and swapped in
+	 */
+	Thread startSwap(Runnable swap, DaemonToken daemonToken) {
+		return Daemon.runInDaemonThread(swap, daemonToken);
+	}
+	
+	private ClientRegistryClient getCurrent() {
+		ClientRegistryClient client = current;
+		if (client == null) {
+			synchronized (lock) {
+				if (current == null) {
+					latestSettings = getSettings();
+					current = new ClientRegistryClient(latestSettings);
+					metrics.setGauge(ClientRegistryMetrics.HTTP_POOL_LEASED, () -> getPoolStats().getLeased());
+					metrics.setGauge(ClientRegistryMetrics.HTTP_POOL_AVAILABLE, () -> getPoolStats().getAvailable());
+					metrics.setGauge(ClientRegistryMetrics.HTTP_POOL_PENDING, () -> getPoolStats().getPending());
+					metrics.setGauge(ClientRegistryMetrics.HTTP_POOL_MAX, () -> getPoolStats().getMax());
+				}
+				client = current;
+			}
+		}
+		return client;
+	}
+	
+	private PoolStats getPoolStats() {
+		ClientRegistryClient client = current;
+		if (client == null) {
+			// destroyed, the gauges outlive the client
+			return new PoolStats(0, 0, 0, 0);
+		}
+		return client.transport.getConnectionManager().getTotalStats();
+	}
+	
+	private List<Object> getSettings() {
+		return Arrays.asList(config.getClientRegistryServerUrl(), config.getClientRegistryUserName(),
+		    config.getClientRegistryPassword(), config.getHttpMaxConnections(), config.getHttpMaxConnectionsPerRoute(),
+		    config.getHttpConnectTimeout(), config.getHttpReadTimeout(), config.getHttpRequestTimeout(),
+		    config.getHttpIdleTimeout());
+	}
+	
+	private void warmAndSwap(ClientRegistryClient next) {
+		// without a url the client registry is disabled and there is nothing to connect to
+		if (StringUtils.isNotBlank(next.serverUrl)) {
+			try {
+				int opened = next.transport.openConnections(next.serverUrl, WARM_CONNECTIONS);
+				next.client.capabilities().ofType(CapabilityStatement.class).execute();
+				log.info("Warmed up a new client registry client for " + next.serverUrl + " with " + opened
+				        + " connections");
+			}
+			catch (Exception e) {
+				log.warn("Failed to warm up the new client registry client for " + next.serverUrl + ", using it cold", e);
+			}
+		}
+		
+		ClientRegistryClient previous;
+		synchronized (lock) {
+			if (latestSettings != next.settings || current == null) {
+				// superseded by a newer change while warming up, or shut down
+				next.close();
+				return;
+			}
+			previous = current;
+			current = next;
+		}
+		metrics.increment(ClientRegistryMetrics.CR_CLIENT_SWAPS);
+		
+		boolean serverChanged = !StringUtils.equals(previous.serverUrl, next.serverUrl);
+		if (serverChanged) {
+			forgetServerState();
+		}
+		drain(previous);
+		if (serverChanged) {
+			// only once the old client is drained, so that no push to the old client registry finishing late
+			// records a fingerprint the new one never saw
+			forgetPushedPatients();
+		}
+	}
+	
+	/**
+	 * Forgets what was read from, or learned about, the old client registry.
+	 */
+	private void forgetServerState() {
+		log.info("Client registry server url changed, clearing what was known about the previous one");
+		patientCache.invalidateAll();
+		searchCache.invalidateAll();
+		pixCache.invalidateAll();
+		syncProcessor.resetPatchSupport();
+		try {
+			shadowIndex.reset();
+		}
+		catch (Exception e) {
+			log.error("Failed to reset the client registry shadow index", e);
+		}
+	}
+	
+	/**
+	 * Forgets the patients pushed to the old client registry, so that their next push to the new one
+	 * is a full update rather than skipped as unchanged or sent as a patch.
+	 */
+	private void forgetPushedPatients() {
+		try {
+			fingerprintDao.deleteAllFingerprints();
+		}
+		catch (Exception e) {
+			log.error("Failed to forget the patients pushed to the previous client registry", e);
+		}
+	}
+	
+	/**
+	 * Waits for the requests still using a replaced client to finish, then closes it.
+	 */
+	private void drain(ClientRegistryClient client) {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		try {
+			Thread.sleep(DRAIN_GRACE);
+			while (client.transport.getConnectionManager().getTotalStats().getLeased() > 0
+			        && System.currentTimeMillis() < deadline) {
+				Thread.sleep(DRAIN_POLL_INTERVAL);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		client.close();
+	}
+	
+	/**
+	 * A FHIR client with its connection pool.
+	 */
+	private class ClientRegistryClient {
+		
+		private final List<Object> settings;
+		
+		private final String serverUrl;
+		
+		private final ClientRegistryHttpTransport transport;
+		
+		private final IGenericClient client;
+		
+		private final BasicAuthInterceptor authInterceptor;
+		
+		private ClientRegistryClient(List<Object> settings) {
+			this.settings = settings;
+			serverUrl = config.getClientRegistryServerUrl();
+			transport = new ClientRegistryHttpTransport(fhirContext, config, metrics);
+			client = transport.getClientFactory().newGenericClient(serverUrl);
+			if (StringUtils.isNotEmpty(config.getClientRegistryUserName())) {
+				authInterceptor = new BasicAuthInterceptor(config.getClientRegistryUserName(),
+				        config.getClientRegistryPassword());
+				client.registerInterceptor(authInterceptor);
+			} else {
+				authInterceptor = null;
+			}
+		}
+		
+		private void close() {
+			try {
+				transport.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the connections of a client registry client", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Guards every call to the client registry. Calls failing with a transient error (connection
+ * problems, timeouts, 408, 429 and 502-504 responses) are retried with jittered exponential backoff.
+ * Consecutive transient failures open a circuit breaker, after which calls fail fast with a
+ * {@link ClientRegistryUnavailableException} until the configured open duration has passed; then a
+ * single trial call decides whether the circuit closes again.
+ */
+@Component
+public class ClientRegistryGuard {
+	
+	private static final Set<Integer> TRANSIENT_STATUSES = new HashSet<>(Arrays.asList(408, 429, 502, 503, 504));
+	
+	private enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private State state = State.CLOSED;
+	
+	private int consecutiveFailures = 0;
+	
+	private long openedAt;
+	
+	private boolean trialInFlight = false;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	/**
+	 * Runs a call to the client registry, retrying it on transient failures.
+	 * 
+	 * @param retryable whether the call may be repeated; calls that could create a resource twice
+	 *            (POSTs) should not be
+	 * @param call the call
+	 * @return the result of the call
+	 * @throws ClientRegistryUnavailableException if the circuit breaker is open
+	 */
+	public <T> T execute(boolean retryable, Supplier<T> call) {
+		int maxAttempts = retryable ? config.getRetryMaxAttempts() : 1;
+		for (int attempt = 1;; attempt++) {
+			if (!tryAcquire()) {
+				metrics.increment(ClientRegistryMetrics.CR_CALLS_REJECTED);
+				throw new ClientRegistryUnavailableException(
+				        "The client registry is unavailable, calls are suspended until it recovers");
+			}
+			
+			try {
+				T result = call.get();
+				onSuccess();
+				return result;
+			}
+			catch (RuntimeException e) {
+				if (!isTransient(e)) {
+					// the client registry answered, so it is up even if it did not like the request
+					onSuccess();
+					throw e;
+				}
+				
+				onFailure();
+				if (attempt >= maxAttempts) {
+					throw e;
+				}
+				
+				metrics.increment(ClientRegistryMetrics.CR_CALLS_RETRIED);
+				log.debug(String.format("Client registry call failed with %s, retrying", e.getMessage()));
+				try {
+					Thread.sleep(getBackoff(attempt));
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs a call to the client registry that returns nothing, see {@link #execute(boolean, Supplier)}.
+	 */
+	public void run(boolean retryable, Runnable call) {
+		execute(retryable, () -> {
+			call.run();
+			return null;
+		});
+	}
+	
+	/**
+	 * @return true while the circuit breaker rejects calls, i.e. it is open and the open duration has
+	 *         not passed yet
+	 */
+	public synchronized boolean isOpen() {
+		return state == State.OPEN && System.currentTimeMillis() - openedAt < getOpenDurationMillis();
+	}
+	
+	private synchronized boolean tryAcquire() {
+		if (state == State.OPEN && !isOpen()) {
+			state = State.HALF_OPEN;
+		}
+		
+		switch (state) {
+			case CLOSED:
+				return true;
+			case HALF_OPEN:
+				// only one trial call at a time decides whether the client registry is back
+				if (trialInFlight) {
+					return false;
+				}
+				trialInFlight = true;
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	private synchronized void onSuccess() {
+		if (state != State.CLOSED) {
+			log.info("Client registry is reachable again, closing the circuit");
+		}
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+	
+	private synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= config.getCircuitFailureThreshold()) {
+			if (state != State.OPEN) {
+				log.warn(String.format("Client registry failed %d times in a row, suspending calls for %d seconds",
+				    consecutiveFailures, config.getCircuitOpenDuration()));
+				metrics.increment(ClientRegistryMetrics.CR_CIRCUIT_OPENED);
+			}
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			trialInFlight = false;
+		}
+	}
+	
+	private long getOpenDurationMillis() {
+		return TimeUnit.SECONDS.toMillis(config.getCircuitOpenDuration());
+	}
+	
+	private long getBackoff(int attempt) {
+		// full jitter: a random delay up to the exponentially growing cap spreads out retrying callers
+		long cap = Math.min(config.getRetryMaxDelay(), (long) config.getRetryBaseDelay() << Math.min(attempt - 1, 20));
+		return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+	
+	private boolean isTransient(RuntimeException e) {
+		if (e instanceof FhirClientConnectionException) {
+			// HAPI also reports responses it could not parse this way
+			return !(e.getCause() instanceof DataFormatException);
+		}
+		return e instanceof BaseServerResponseException
+		        && TRANSIENT_STATUSES.contains(((BaseServerResponseException) e).getStatusCode());
+	}
+}
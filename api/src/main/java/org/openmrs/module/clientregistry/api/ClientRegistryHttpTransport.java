@@ -0,0 +1,183 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+
+/**
+ * The pool of HTTP connections to the client registry, sized and timed out as the module's
+ * clientregistry.http* global properties say, and the FHIR client factory making requests through
+ * it. The factory is the module's own, the FHIR context's factory is shared with the rest of
+ * OpenMRS. Connections left unused for the idle timeout are closed in the background, and the time
+ * requests wait for a connection is counted in {@link ClientRegistryMetrics}.
+ */
+public class ClientRegistryHttpTransport implements Closeable {
+	
+	private final MeteredConnectionManager connectionManager;
+	
+	private final CloseableHttpClient httpClient;
+	
+	private final ApacheRestfulClientFactory clientFactory;
+	
+	private final int connectTimeout;
+	
+	private final int requestTimeout;
+	
+	private final long idleTimeout;
+	
+	public ClientRegistryHttpTransport(FhirContext fhirContext, ClientRegistryConfig config, ClientRegistryMetrics metrics) {
+		connectionManager = new MeteredConnectionManager(metrics);
+		connectionManager.setMaxTotal(config.getHttpMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(Math.min(config.getHttpMaxConnectionsPerRoute(),
+		    config.getHttpMaxConnections()));
+		
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(config.getHttpConnectTimeout())
+		        .setSocketTimeout(config.getHttpReadTimeout())
+		        .setConnectionRequestTimeout(config.getHttpRequestTimeout()).build();
+		connectTimeout = config.getHttpConnectTimeout();
+		requestTimeout = config.getHttpRequestTimeout();
+		idleTimeout = config.getHttpIdleTimeout();
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig)
+		        .setKeepAliveStrategy((response, context) -> {
+			        // the client registry may ask to keep connections for less, but not for longer
+			        long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			        return keepAlive < 0 ? idleTimeout : Math.min(keepAlive, idleTimeout);
+		        }).evictExpiredConnections().evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+		        .disableCookieManagement().build();
+		
+		clientFactory = new ApacheRestfulClientFactory(fhirContext);
+		clientFactory.setHttpClient(httpClient);
+	}
+	
+	/**
+	 * @return the factory of FHIR clients and HTTP requests using the pool
+	 */
+	public IRestfulClientFactory getClientFactory() {
+		return clientFactory;
+	}
+	
+	/**
+	 * Opens connections to a server ahead of the requests to it, leaving them in the pool for the
+	 * requests to use.
+	 * 
+	 * @param url the url of the server
+	 * @param count the number of connections to open, at most the maximum number of connections to one
+	 *            host
+	 * @return the number of connections open to the server
+	 * @throws IOException if a connection cannot be opened
+	 */
+	public int openConnections(String url, int count) throws IOException, InterruptedException, ExecutionException {
+		HttpHost target = URIUtils.extractHost(URI.create(url));
+		if (target == null) {
+			throw new IOException("Cannot connect to " + url);
+		}
+		// the route the client takes to the server, for requests to find the connections in the pool
+		HttpRoute route = new HttpRoute(new HttpHost(target.getHostName(),
+		        DefaultSchemePortResolver.INSTANCE.resolve(target), target.getSchemeName()), null,
+		        "https".equalsIgnoreCase(target.getSchemeName()));
+		
+		List<HttpClientConnection> connections = new ArrayList<>();
+		try {
+			for (int i = 0; i < Math.min(count, connectionManager.getDefaultMaxPerRoute()); i++) {
+				HttpClientConnection connection = connectionManager.requestConnection(route, null).get(requestTimeout,
+				    TimeUnit.MILLISECONDS);
+				connections.add(connection);
+				if (!connection.isOpen()) {
+					HttpClientContext context = HttpClientContext.create();
+					connectionManager.connect(connection, route, connectTimeout, context);
+					connectionManager.routeComplete(connection, route, context);
+				}
+			}
+		}
+		finally {
+			for (HttpClientConnection connection : connections) {
+				connectionManager.releaseConnection(connection, null, idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		return connections.size();
+	}
+	
+	PoolingHttpClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+	
+	/**
+	 * Closes the pool and its connections, requests still using them fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+	}
+	
+	/**
+	 * A connection pool counting how long each request waits for a connection.
+	 */
+	private static class MeteredConnectionManager extends PoolingHttpClientConnectionManager {
+		
+		private final ClientRegistryMetrics metrics;
+		
+		private MeteredConnectionManager(ClientRegistryMetrics metrics) {
+			this.metrics = metrics;
+		}
+		
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			ConnectionRequest request = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+				
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit unit) throws InterruptedException,
+				        ExecutionException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						return request.get(timeout, unit);
+					}
+					catch (ConnectionPoolTimeoutException e) {
+						metrics.increment(ClientRegistryMetrics.HTTP_LEASE_TIMEOUTS);
+						throw e;
+					}
+					finally {
+						metrics.increment(ClientRegistryMetrics.HTTP_LEASES);
+						metrics.add(ClientRegistryMetrics.HTTP_LEASE_WAIT_MILLIS,
+						    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					}
+				}
+				
+				@Override
+				public boolean cancel() {
+					return request.cancel();
+				}
+			};
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package org.openmrs.module.clientregistry.api;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -13,14 +15,21 @@ import org.openmrs.module.DaemonToken;
 import org.openmrs.module.clientregistry.ClientRegistryConfig;
 import org.openmrs.module.clientregistry.ClientRegistryConstants;
 import org.openmrs.module.clientregistry.ClientRegistryTransactionType;
+import org.openmrs.module.clientregistry.api.cache.CRShadowIndex;
 import org.openmrs.module.clientregistry.api.event.PatientCreateUpdateListener;
 import org.openmrs.module.clientregistry.api.impl.FhirCRPatientServiceImpl;
+import org.openmrs.module.clientregistry.api.sync.PatientBackfill;
+import org.openmrs.module.clientregistry.api.sync.PatientReconciler;
+import org.openmrs.module.clientregistry.api.sync.PatientSyncWorker;
+import org.openmrs.module.fhir2.FhirConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
 public class ClientRegistryManager implements GlobalPropertyListener {
 	
+	private static final String MODULE_PROPERTY_PREFIX = "clientregistry.";
+	
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
 	
 	private Log log = LogFactory.getLog(this.getClass());
@@ -33,20 +42,48 @@ public class ClientRegistryManager implements GlobalPropertyListener {
 	@Autowired
 	private FhirCRPatientServiceImpl fhirPatientService;
 	
+	@Autowired
+	private PatientSyncWorker syncWorker;
+	
+	@Autowired
+	private PatientBackfill patientBackfill;
+	
+	@Autowired
+	private PatientReconciler patientReconciler;
+	
+	@Autowired
+	private CRShadowIndex shadowIndex;
+	
 	@Autowired
 	private ClientRegistryConfig clientRegistryConfig;
 	
+	@Autowired
+	private ClientRegistryClientHolder clientHolder;
+	
+	@Autowired
+	private ClientRegistryAsyncExecutor asyncExecutor;
+	
 	public void setDaemonToken(DaemonToken daemonToken) {
 		this.daemonToken = daemonToken;
 	}
 	
 	@Override
 	public boolean supportsPropertyName(String propertyName) {
-		return ClientRegistryConstants.GP_CLIENT_REGISTRY_SERVER_URL.equals(propertyName);
+		return ClientRegistryConstants.GP_CLIENT_REGISTRY_SERVER_URL.equals(propertyName)
+		        || ClientRegistryConstants.GP_CLIENT_REGISTRY_USER_NAME.equals(propertyName)
+		        || ClientRegistryConstants.GP_CLIENT_REGISTRY_PASSWORD.equals(propertyName)
+		        || FhirConstants.PERSON_CONTACT_POINT_ATTRIBUTE_TYPE.equals(propertyName)
+		        || StringUtils.startsWith(propertyName, MODULE_PROPERTY_PREFIX);
 	}
 	
 	@Override
 	public void globalPropertyChanged(GlobalProperty newValue) {
+		clientRegistryConfig.refresh();
+		clientHolder.refresh(daemonToken);
+		if (!ClientRegistryConstants.GP_CLIENT_REGISTRY_SERVER_URL.equals(newValue.getProperty())) {
+			return;
+		}
+		
 		try {
 			log.trace(String.format("Notified of change to property: %s", newValue.getProperty()));
 			if (StringUtils.isNotBlank((String) newValue.getValue())) {
@@ -63,19 +100,28 @@ public class ClientRegistryManager implements GlobalPropertyListener {
 	
 	@Override
 	public void globalPropertyDeleted(String propertyName) {
-		disableClientRegistry();
+		clientRegistryConfig.refresh();
+		clientHolder.refresh(daemonToken);
+		if (ClientRegistryConstants.GP_CLIENT_REGISTRY_SERVER_URL.equals(propertyName)) {
+			disableClientRegistry();
+		}
 	}
 	
 	public void enableClientRegistry() {
 		log.info("Enabling Client Registry!");
 		
-		if (daemonToken != null) {
-			patientListener.setDaemonToken(daemonToken);
-		}
-		
 		if (!isRunning.get()) {
 			Event.subscribe(Patient.class, Event.Action.CREATED.toString(), patientListener);
 			Event.subscribe(Patient.class, Event.Action.UPDATED.toString(), patientListener);
+			Event.subscribe(Patient.class, Event.Action.PURGED.toString(), patientListener);
+		}
+		
+		if (daemonToken != null) {
+			asyncExecutor.start(daemonToken);
+			syncWorker.start(daemonToken);
+			patientBackfill.resume(daemonToken);
+			patientReconciler.start(daemonToken);
+			shadowIndex.start(daemonToken);
 		}
 		
 		isRunning.set(true);
@@ -87,11 +133,46 @@ public class ClientRegistryManager implements GlobalPropertyListener {
 		if (isRunning.get()) {
 			Event.unsubscribe(Patient.class, Event.Action.CREATED, patientListener);
 			Event.unsubscribe(Patient.class, Event.Action.UPDATED, patientListener);
+			Event.unsubscribe(Patient.class, Event.Action.PURGED, patientListener);
 		}
 		
+		patientBackfill.shutdown();
+		patientReconciler.stop();
+		shadowIndex.stop();
+		syncWorker.stop();
+		asyncExecutor.stop();
+		
 		isRunning.set(false);
 	}
 	
+	/**
+	 * Starts pushing the patients already in OpenMRS to the client registry.
+	 * 
+	 * @param restart whether to push all patients even if an earlier backfill did not finish
+	 * @return true if the backfill was started, false if the client registry is disabled or a
+	 *         backfill is running already
+	 * @see PatientBackfill#start(DaemonToken, boolean)
+	 */
+	public boolean startBackfill(boolean restart) {
+		if (!isRunning.get() || daemonToken == null) {
+			return false;
+		}
+		return patientBackfill.start(daemonToken, restart);
+	}
+	
+	/**
+	 * Runs a task in a daemon thread of the module, so that it can call the client registry in
+	 * parallel with the calling thread and still read the module's configuration.
+	 * 
+	 * @param task the task
+	 * @return the result of the task; while the client registry is disabled, or when all workers are
+	 *         busy, the task is run in the calling thread
+	 * @see ClientRegistryAsyncExecutor#supplyAsync(Supplier)
+	 */
+	public <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+		return asyncExecutor.supplyAsync(task);
+	}
+	
 	/**
 	 * Determine the appropriate PatientService class based off of the client registry transaction
 	 * type configuration
@@ -0,0 +1,137 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory counters describing the module's traffic with the client registry since startup, and
+ * gauges describing its current state.
+ */
+@Component
+public class ClientRegistryMetrics {
+	
+	public static final String SYNC_EVENTS_RECEIVED = "sync.events.received";
+	
+	public static final String SYNC_EVENTS_COALESCED = "sync.events.coalesced";
+	
+	public static final String SYNC_PATIENTS_PUSHED = "sync.patients.pushed";
+	
+	public static final String SYNC_PATIENTS_UNCHANGED = "sync.patients.unchanged";
+	
+	public static final String SYNC_PUSHES_FAILED = "sync.pushes.failed";
+	
+	public static final String SYNC_REQUESTS = "sync.requests";
+	
+	public static final String SYNC_TASKS_SPILLED = "sync.tasks.spilled";
+	
+	public static final String SYNC_DEAD_LETTERED = "sync.deadLettered";
+	
+	public static final String RECONCILE_PATIENTS_CHECKED = "reconcile.patients.checked";
+	
+	public static final String RECONCILE_PATIENTS_DRIFTED = "reconcile.patients.drifted";
+	
+	public static final String CACHE_PATIENT_HITS = "cache.patient.hits";
+	
+	public static final String CACHE_PATIENT_MISSES = "cache.patient.misses";
+	
+	public static final String CACHE_PATIENT_REVALIDATED = "cache.patient.revalidated";
+	
+	public static final String CACHE_PATIENT_REFRESHED = "cache.patient.refreshed";
+	
+	public static final String CACHE_PIX_HITS = "cache.pix.hits";
+	
+	public static final String CACHE_PIX_MISSES = "cache.pix.misses";
+	
+	public static final String CACHE_SEARCH_HITS = "cache.search.hits";
+	
+	public static final String CACHE_SEARCH_MISSES = "cache.search.misses";
+	
+	public static final String SHADOW_PATIENTS_INDEXED = "shadow.patients.indexed";
+	
+	public static final String SHADOW_LOOKUPS_ANSWERED = "shadow.lookups.answered";
+	
+	public static final String SHADOW_LOOKUPS_FALLBACK = "shadow.lookups.fallback";
+	
+	public static final String CR_CALLS_RETRIED = "cr.calls.retried";
+	
+	public static final String CR_CALLS_REJECTED = "cr.calls.rejected";
+	
+	public static final String CR_CIRCUIT_OPENED = "cr.circuit.opened";
+	
+	public static final String CR_CALLS_COALESCED = "cr.calls.coalesced";
+	
+	public static final String CR_CLIENT_SWAPS = "cr.client.swaps";
+	
+	public static final String FEDERATED_SEARCH_PARTIAL = "federated.search.partial";
+	
+	public static final String PASSTHROUGH_REQUESTS = "passthrough.requests";
+	
+	public static final String HTTP_LEASES = "http.leases";
+	
+	public static final String HTTP_LEASE_WAIT_MILLIS = "http.lease.waitMillis";
+	
+	public static final String HTTP_LEASE_TIMEOUTS = "http.lease.timeouts";
+	
+	public static final String HTTP_POOL_LEASED = "http.pool.leased";
+	
+	public static final String HTTP_POOL_AVAILABLE = "http.pool.available";
+	
+	public static final String HTTP_POOL_PENDING = "http.pool.pending";
+	
+	public static final String HTTP_POOL_MAX = "http.pool.max";
+	
+	private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	
+	public void increment(String name) {
+		add(name, 1);
+	}
+	
+	public void add(String name, long delta) {
+		counters.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+	}
+	
+	public long get(String name) {
+		LongSupplier gauge = gauges.get(name);
+		if (gauge != null) {
+			return gauge.getAsLong();
+		}
+		AtomicLong counter = counters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+	
+	/**
+	 * Registers a value that is read whenever the metrics are, e.g. the size of a pool, replacing the
+	 * gauge registered under the name before.
+	 * 
+	 * @param name the name of the gauge
+	 * @param gauge reads the current value
+	 */
+	public void setGauge(String name, LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+	
+	/**
+	 * @return the current value of every counter and gauge, sorted by name
+	 */
+	public SortedMap<String, Long> getSnapshot() {
+		SortedMap<String, Long> snapshot = new TreeMap<>();
+		counters.forEach((name, counter) -> snapshot.put(name, counter.get()));
+		gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+		return snapshot;
+	}
+}
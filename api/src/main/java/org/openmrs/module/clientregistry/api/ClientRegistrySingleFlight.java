@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collapses identical client registry requests made at the same time into one: the first caller
+ * makes the call and every caller asking for the same key while it is in flight waits for it and
+ * gets its result, or its exception. Nothing is kept once the call is done, so requests made after
+ * it go to the client registry again.
+ */
+@Component
+public class ClientRegistrySingleFlight {
+	
+	private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	/**
+	 * @param key identifies the request, requests with the same key must have the same result
+	 * @param call makes the request
+	 * @return the result of the request, shared with every caller that asked for the same key while
+	 *         it was in flight
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Supplier<T> call) {
+		CompletableFuture<Object> flight = new CompletableFuture<>();
+		CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+		if (leader != null) {
+			metrics.increment(ClientRegistryMetrics.CR_CALLS_COALESCED);
+			return (T) await(leader);
+		}
+		
+		try {
+			T result = call.get();
+			flight.complete(result);
+			return result;
+		}
+		catch (RuntimeException | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(key, flight);
+		}
+	}
+	
+	private Object await(CompletableFuture<Object> leader) {
+		try {
+			return leader.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ClientRegistryUnavailableException("Interrupted while waiting for the client registry");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api;
+
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * Thrown instead of calling the client registry while it is considered down, so that callers fail
+ * fast rather than waiting for the HTTP timeout. Reported to FHIR clients as 503 Service
+ * Unavailable.
+ */
+public class ClientRegistryUnavailableException extends UnclassifiedServerFailureException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public ClientRegistryUnavailableException(String message) {
+		super(503, message);
+	}
+}
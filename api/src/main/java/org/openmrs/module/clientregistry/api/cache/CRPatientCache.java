@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.cache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Patients read from the client registry, keyed by their client registry id. A cached patient is
+ * served as it is for the configured time to live; after that it has to be revalidated against
+ * the client registry before it is served again.
+ */
+@Component
+public class CRPatientCache {
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	private final LruCache<String, Patient> patients = new LruCache<>(() -> config.getPatientCacheSize());
+	
+	public boolean isEnabled() {
+		return patients.isEnabled();
+	}
+	
+	/**
+	 * @param id the client registry id of the patient
+	 * @return the cached entry of the patient, or null if it is not cached
+	 */
+	public LruCache.Entry<Patient> get(String id) {
+		return patients.get(id);
+	}
+	
+	/**
+	 * @param entry a cached entry
+	 * @return whether the entry is older than the configured time to live
+	 */
+	public boolean isStale(LruCache.Entry<Patient> entry) {
+		return entry.isOlderThan(TimeUnit.SECONDS.toMillis(config.getPatientCacheTtl()));
+	}
+	
+	/**
+	 * Caches a patient read from the client registry, or confirmed unchanged by it.
+	 * 
+	 * @param id the client registry id of the patient
+	 * @param patient the patient
+	 */
+	public void put(String id, Patient patient) {
+		patients.put(id, patient);
+	}
+	
+	/**
+	 * @param id the client registry id of the patient to forget
+	 */
+	public void invalidate(String id) {
+		patients.remove(id);
+	}
+	
+	/**
+	 * Forgets OpenMRS patients that were pushed to the client registry, whatever id the client
+	 * registry knows them by.
+	 * 
+	 * @param uuids the uuids of the OpenMRS patients
+	 */
+	public void invalidatePatients(Collection<String> uuids) {
+		if (uuids.isEmpty() || patients.size() == 0) {
+			return;
+		}
+		
+		String identifierPrefix = config.getClientRegistryIdentifierRoot() + "/";
+		Set<String> internalIds = new HashSet<>();
+		uuids.forEach(uuid -> internalIds.add(identifierPrefix + uuid));
+		patients.removeIf(patient -> patient.getIdentifier().stream().anyMatch(identifier -> isInternalId(identifier)
+		        && internalIds.contains(identifier.getValue())));
+	}
+	
+	/**
+	 * Forgets every patient.
+	 */
+	public void invalidateAll() {
+		patients.clear();
+	}
+	
+	private boolean isInternalId(Identifier identifier) {
+		return ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM.equals(identifier.getSystem());
+	}
+}
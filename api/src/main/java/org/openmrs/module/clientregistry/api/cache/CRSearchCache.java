@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.cache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Identifier;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.search.CRSearchBundleProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * The results of client registry patient searches, keyed by the canonical key of their criteria so
+ * that a search repeated while its criteria are being refined is answered without asking the client
+ * registry. Results expire after the configured time to live. The cache is bounded both by the
+ * number of searches and by the size of the patients they hold, estimated from the JSON the patients
+ * were read from; the size of a search grows as further pages are fetched and is estimated again on
+ * every put. Pushing a new patient, or one whose demographics changed, drops every result, as any
+ * search may find it now; pushing any other change drops the results the patient appears in.
+ */
+@Component
+public class CRSearchCache {
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	private final LruCache<String, IBundleProvider> searches = new LruCache<>(() -> config.getSearchCacheSize(),
+	        () -> config.getSearchCacheMemory() * 1024L, CRSearchCache::getEncodedSize);
+	
+	public boolean isEnabled() {
+		return searches.isEnabled();
+	}
+	
+	/**
+	 * @param key the canonical key of the search
+	 * @return the results of the search, or null if not cached or expired
+	 */
+	public IBundleProvider get(String key) {
+		LruCache.Entry<IBundleProvider> entry = searches.get(key);
+		if (entry == null || entry.isOlderThan(TimeUnit.SECONDS.toMillis(config.getSearchCacheTtl()))) {
+			return null;
+		}
+		return entry.getValue();
+	}
+	
+	/**
+	 * @param key the canonical key of the search
+	 * @param results the results of the search
+	 */
+	public void put(String key, IBundleProvider results) {
+		searches.put(key, results);
+	}
+	
+	/**
+	 * Drops the results of the searches that found one of the pushed patients, recognised by their
+	 * identifiers, among the pages fetched so far. Only for pushes that leave the patients'
+	 * demographics as they were, other pushes have to {@link #invalidateAll()}.
+	 * 
+	 * @param identifiers the identifiers of the pushed patients
+	 */
+	public void invalidatePatients(Collection<Identifier> identifiers) {
+		if (identifiers.isEmpty() || searches.size() == 0) {
+			return;
+		}
+		
+		Set<String> pushed = new HashSet<>();
+		for (Identifier identifier : identifiers) {
+			pushed.add(toKey(identifier));
+		}
+		// looked through outside the cache's lock, a provider may be busy fetching a page
+		for (IBundleProvider results : searches.values()) {
+			if (results instanceof CRSearchBundleProvider && ((CRSearchBundleProvider) results)
+			        .hasPatient(patient -> patient.getIdentifier().stream().anyMatch(id -> pushed.contains(toKey(id))))) {
+				searches.removeIf(value -> value == results);
+			}
+		}
+	}
+	
+	/**
+	 * Drops the results of every search.
+	 */
+	public void invalidateAll() {
+		searches.clear();
+	}
+	
+	private static long getEncodedSize(IBundleProvider results) {
+		return results instanceof CRSearchBundleProvider ? ((CRSearchBundleProvider) results).getEncodedSize() : 0;
+	}
+	
+	private static String toKey(Identifier identifier) {
+		return StringUtils.trimToEmpty(identifier.getSystem()) + "|" + StringUtils.trimToEmpty(identifier.getValue());
+	}
+}
@@ -0,0 +1,452 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.db.ShadowPatientDao;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.model.ShadowIdentifier;
+import org.openmrs.module.clientregistry.api.model.ShadowPatient;
+import org.openmrs.module.clientregistry.api.search.PatientSearchCriteriaBuilder;
+import org.openmrs.module.clientregistry.api.search.PhoneticBlockingIndex;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * A local shadow index of the client registry's patients holding their identifiers, the golden
+ * record they are linked to and a few demographics, so that identifiers can be resolved without a
+ * round trip to the client registry. The index is kept fresh by polling the client registry for
+ * patients changed since the last poll; lookups are only answered from it while the last poll is
+ * recent enough, and with patients limited to the indexed fields, tagged as subsetted.
+ */
+@Component
+public class CRShadowIndex {
+	
+	static final String CHECKPOINT_WATERMARK = "shadowIndex.watermark";
+	
+	/**
+	 * How far each poll looks back before the watermark, covering clock skew with the client registry
+	 * and changes that were not committed yet when the last poll started.
+	 */
+	private static final long WATERMARK_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+	
+	private static final String SUBSETTED_CODE = "SUBSETTED";
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	
+	private final Object monitor = new Object();
+	
+	/**
+	 * Whether the index has to be cleared before the next poll, as the client registry it was loaded
+	 * from was replaced.
+	 */
+	private final AtomicBoolean resetRequested = new AtomicBoolean(false);
+	
+	/**
+	 * When the last successful poll started, 0 if the index was never loaded.
+	 */
+	private volatile long lastPolled = 0;
+	
+	/**
+	 * The phonetic blocking index of the patients in the shadow index, null until the first poll.
+	 */
+	private volatile PhoneticBlockingIndex blockingIndex;
+	
+	@Autowired
+	private ShadowPatientDao shadowPatientDao;
+	
+	@Autowired
+	private SyncCheckpointDao checkpointDao;
+	
+	@Autowired
+	private PatientSearchCriteriaBuilder criteriaBuilder;
+	
+	@Autowired
+	private ClientRegistryGuard guard;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	@Qualifier("clientRegistryFhirClient")
+	private IGenericClient client;
+	
+	/**
+	 * Starts polling the client registry every configured interval in a daemon thread, if not
+	 * already started.
+	 * 
+	 * @param daemonToken the module's daemon token
+	 */
+	public void start(DaemonToken daemonToken) {
+		if (isRunning.compareAndSet(false, true)) {
+			Daemon.runInDaemonThread(this::pollLoop, daemonToken);
+		}
+	}
+	
+	/**
+	 * Stops polling once the running poll is done. Lookups are answered from the index until it gets
+	 * too old.
+	 */
+	public void stop() {
+		if (isRunning.compareAndSet(true, false)) {
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Has the next poll, started right away, forget every patient in the index and the watermark and
+	 * load every patient of the client registry again. A running poll stops at its next page without
+	 * moving the watermark. Lookups go to the client registry from now until the next poll is done.
+	 */
+	public void reset() {
+		resetRequested.set(true);
+		lastPolled = 0;
+		blockingIndex = null;
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return whether the index is enabled and was polled recently enough to answer lookups
+	 */
+	public boolean isFresh() {
+		return config.getShadowIndexInterval() > 0 && lastPolled > 0
+		        && System.currentTimeMillis() - lastPolled <= TimeUnit.MINUTES.toMillis(config.getShadowIndexMaxAge());
+	}
+	
+	/**
+	 * @param system the system of the identifier, or null for any system
+	 * @param values the values of the identifier, any of which may match
+	 * @return the patients having one of the identifiers, or null if the index is not fresh or has
+	 *         none of them and the client registry has to be asked
+	 */
+	public List<Patient> getPatientsByIdentifier(String system, Collection<String> values) {
+		if (!isFresh()) {
+			return null;
+		}
+		return answer(shadowPatientDao.getPatientsByIdentifier(system, values));
+	}
+	
+	/**
+	 * Resolves a source identifier the way the client registry's $ihe-pix operation does: to the
+	 * patients linked to the same golden record as the patients having the identifier.
+	 * 
+	 * @param system the system of the source identifier
+	 * @param value the value of the source identifier
+	 * @param targetSystems if not empty, only patients with an identifier in one of these systems are
+	 *            returned
+	 * @return the cross-referenced patients, or null if the index is not fresh or does not have the
+	 *         identifier and the client registry has to be asked
+	 */
+	public List<Patient> getCrossReferencedPatients(String system, String value, Collection<String> targetSystems) {
+		if (!isFresh()) {
+			return null;
+		}
+		
+		List<ShadowPatient> sources = shadowPatientDao.getPatientsByIdentifier(StringUtils.trimToNull(system),
+		    Collections.singleton(value));
+		if (sources.isEmpty()) {
+			return answer(sources);
+		}
+		
+		Set<String> goldenIds = sources.stream()
+		        .map(source -> source.getGoldenId() != null ? source.getGoldenId() : source.getCrId())
+		        .collect(Collectors.toSet());
+		List<ShadowPatient> linked = shadowPatientDao.getLinkedPatients(goldenIds).stream()
+		        .filter(patient -> targetSystems.isEmpty() || patient.getIdentifiers().stream()
+		                .anyMatch(identifier -> targetSystems.contains(identifier.getSystem())))
+		        .collect(Collectors.toList());
+		return answer(linked);
+	}
+	
+	/**
+	 * Finds the candidates of a fuzzy search by name and birth year in the phonetic blocking index.
+	 * 
+	 * @param familyName the family name searched for, may be null
+	 * @param givenName the given name searched for, may be null
+	 * @param birthYear the birth year searched for
+	 * @param gender the FHIR administrative gender searched for, null for any
+	 * @return the candidates, best first, or null if the index is not fresh, fuzzy searches are not
+	 *         answered from it or it has no candidate and the client registry has to be asked
+	 * @see PhoneticBlockingIndex#findCandidates(String, String, int, String, int)
+	 */
+	public List<Patient> getFuzzyCandidates(String familyName, String givenName, int birthYear, String gender) {
+		PhoneticBlockingIndex index = blockingIndex;
+		int limit = config.getFuzzySearchLimit();
+		if (limit == 0 || index == null || !isFresh()) {
+			return null;
+		}
+		
+		List<String> crIds = index.findCandidates(familyName, givenName, birthYear, gender, limit);
+		Map<String, ShadowPatient> patients = shadowPatientDao.getPatients(crIds).stream()
+		        .collect(Collectors.toMap(ShadowPatient::getCrId, Function.identity()));
+		return answer(crIds.stream().map(patients::get).filter(Objects::nonNull).collect(Collectors.toList()));
+	}
+	
+	private List<Patient> answer(List<ShadowPatient> patients) {
+		if (patients.isEmpty()) {
+			// maybe registered since the last poll
+			metrics.increment(ClientRegistryMetrics.SHADOW_LOOKUPS_FALLBACK);
+			return null;
+		}
+		metrics.increment(ClientRegistryMetrics.SHADOW_LOOKUPS_ANSWERED);
+		return patients.stream().map(this::toFhirPatient).collect(Collectors.toList());
+	}
+	
+	private void pollLoop() {
+		log.info("Client registry shadow index started");
+		try {
+			// an index reset while stopped is only fresh again once the next poll reloaded it
+			if (!resetRequested.get()) {
+				lastPolled = NumberUtils.toLong(checkpointDao.getCheckpoint(CHECKPOINT_WATERMARK));
+			}
+		}
+		catch (Exception e) {
+			log.error("Failed to read the client registry shadow index watermark", e);
+		}
+		
+		while (isRunning.get()) {
+			try {
+				// the interval is read again after every wait, so the index can be turned on and off
+				if (config.getShadowIndexInterval() > 0 && !guard.isOpen()) {
+					poll();
+				}
+				synchronized (monitor) {
+					// a reset during the poll is polled for right away
+					if (isRunning.get() && !resetRequested.get()) {
+						monitor.wait(TimeUnit.MINUTES.toMillis(Math.max(1, config.getShadowIndexInterval())));
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (Exception e) {
+				log.error("Failed to poll the client registry for the shadow index", e);
+				try {
+					synchronized (monitor) {
+						monitor.wait(TimeUnit.MINUTES.toMillis(1));
+					}
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			finally {
+				Context.clearSession();
+			}
+		}
+		log.info("Client registry shadow index stopped");
+	}
+	
+	/**
+	 * Records the patients changed in the client registry since the last poll in the index, then
+	 * moves the watermark to the start of this poll. The first poll, and the first one after a
+	 * {@link #reset()}, loads every patient.
+	 * 
+	 * @return the number of patients recorded
+	 */
+	int poll() {
+		if (resetRequested.getAndSet(false)) {
+			lastPolled = 0;
+			blockingIndex = null;
+			shadowPatientDao.deleteAllPatients();
+			checkpointDao.deleteCheckpoint(CHECKPOINT_WATERMARK);
+			log.info("Cleared the client registry shadow index");
+		}
+		
+		long pollStarted = System.currentTimeMillis();
+		String watermark = checkpointDao.getCheckpoint(CHECKPOINT_WATERMARK);
+		List<ICriterion<?>> criteria = new ArrayList<>();
+		if (watermark != null) {
+			PatientSearchParams searchParams = new PatientSearchParams();
+			searchParams.setLastUpdated(new DateRangeParam(
+			        new DateParam(ParamPrefixEnum.GREATERTHAN, new Date(NumberUtils.toLong(watermark) - WATERMARK_OVERLAP_MILLIS))));
+			criteria.addAll(criteriaBuilder.buildCriteria(searchParams));
+		}
+		
+		Bundle page = guard.execute(true, () -> {
+			IQuery<IBaseBundle> query = client.search().forResource(Patient.class);
+			for (int i = 0; i < criteria.size(); i++) {
+				if (i == 0) {
+					query.where(criteria.get(i));
+				} else {
+					query.and(criteria.get(i));
+				}
+			}
+			return query.count(config.getSyncBatchSize()).returnBundle(Bundle.class).execute();
+		});
+		int indexed = 0;
+		while (page != null) {
+			if (resetRequested.get()) {
+				log.info("Client registry shadow index reset while polling, polling again");
+				return indexed;
+			}
+			
+			List<ShadowPatient> patients = page.getEntry().stream().map(Bundle.BundleEntryComponent::getResource)
+			        .filter(resource -> resource instanceof Patient).map(resource -> toShadowPatient((Patient) resource))
+			        .collect(Collectors.toList());
+			shadowPatientDao.savePatients(patients);
+			Context.clearSession();
+			PhoneticBlockingIndex index = blockingIndex;
+			if (index != null) {
+				patients.forEach(patient -> addToBlockingIndex(index, patient));
+			}
+			indexed += patients.size();
+			metrics.add(ClientRegistryMetrics.SHADOW_PATIENTS_INDEXED, patients.size());
+			
+			Bundle current = page;
+			page = current.getLink(Bundle.LINK_NEXT) == null ? null
+			        : guard.execute(true, () -> client.loadPage().next(current).execute());
+		}
+		
+		if (blockingIndex == null || blockingIndex.needsCompaction()) {
+			buildBlockingIndex();
+		}
+		if (resetRequested.get()) {
+			return indexed;
+		}
+		checkpointDao.saveCheckpoint(CHECKPOINT_WATERMARK, String.valueOf(pollStarted));
+		lastPolled = pollStarted;
+		log.info(String.format("Polled the client registry for the shadow index, %d patients indexed", indexed));
+		return indexed;
+	}
+	
+	/**
+	 * Builds the phonetic blocking index again from all the patients in the shadow index, and swaps it
+	 * in once built.
+	 */
+	private void buildBlockingIndex() {
+		PhoneticBlockingIndex index = new PhoneticBlockingIndex();
+		int batchSize = config.getSyncBatchSize();
+		List<ShadowPatient> patients;
+		int first = 0;
+		do {
+			patients = shadowPatientDao.getPatients(first, batchSize);
+			patients.forEach(patient -> addToBlockingIndex(index, patient));
+			Context.clearSession();
+			first += patients.size();
+		} while (patients.size() == batchSize);
+		blockingIndex = index;
+		log.info(String.format("Built the phonetic blocking index of %d shadow index patients", index.size()));
+	}
+	
+	private static void addToBlockingIndex(PhoneticBlockingIndex index, ShadowPatient patient) {
+		index.add(patient.getCrId(), patient.getFamilyName(), patient.getGivenName(), patient.getBirthdate(),
+		    patient.getGender());
+	}
+	
+	ShadowPatient toShadowPatient(Patient patient) {
+		ShadowPatient shadow = new ShadowPatient();
+		shadow.setCrId(patient.getIdElement().getIdPart());
+		shadow.setLastUpdated(patient.getMeta().getLastUpdated());
+		shadow.setGender(patient.hasGender() ? patient.getGender().toCode() : null);
+		shadow.setBirthdate(patient.getBirthDate());
+		if (patient.hasName()) {
+			HumanName name = patient.getNameFirstRep();
+			shadow.setFamilyName(StringUtils.abbreviate(name.getFamily(), 255));
+			shadow.setGivenName(StringUtils.abbreviate(
+			    name.getGiven().stream().map(PrimitiveType::getValue).collect(Collectors.joining(" ")), 255));
+		}
+		// records matched to a golden record refer to it
+		patient.getLink().stream()
+		        .filter(link -> link.getType() == Patient.LinkType.REFER || link.getType() == Patient.LinkType.REPLACEDBY)
+		        .map(link -> link.getOther().getReferenceElement().getIdPart()).filter(StringUtils::isNotBlank).findFirst()
+		        .ifPresent(shadow::setGoldenId);
+		Set<ShadowIdentifier> identifiers = new LinkedHashSet<>();
+		for (Identifier identifier : patient.getIdentifier()) {
+			if (StringUtils.isNotBlank(identifier.getValue())) {
+				identifiers.add(new ShadowIdentifier(identifier.getSystem(), identifier.getValue()));
+			}
+		}
+		shadow.getIdentifiers().addAll(identifiers);
+		return shadow;
+	}
+	
+	Patient toFhirPatient(ShadowPatient shadow) {
+		Patient patient = new Patient();
+		patient.setId(shadow.getCrId());
+		patient.getMeta().setLastUpdated(shadow.getLastUpdated()).addTag(SUBSETTED_SYSTEM, SUBSETTED_CODE, "subsetted");
+		for (ShadowIdentifier identifier : shadow.getIdentifiers()) {
+			patient.addIdentifier().setSystem(identifier.getSystem()).setValue(identifier.getValue());
+		}
+		if (shadow.getFamilyName() != null || shadow.getGivenName() != null) {
+			HumanName name = patient.addName().setFamily(shadow.getFamilyName());
+			if (shadow.getGivenName() != null) {
+				for (String given : shadow.getGivenName().split(" ")) {
+					name.addGiven(given);
+				}
+			}
+		}
+		if (shadow.getGender() != null) {
+			try {
+				patient.setGender(Enumerations.AdministrativeGender.fromCode(shadow.getGender()));
+			}
+			catch (FHIRException e) {
+				log.debug("Ignoring unknown gender " + shadow.getGender());
+			}
+		}
+		patient.setBirthDate(shadow.getBirthdate());
+		if (shadow.getGoldenId() != null) {
+			patient.addLink().setType(Patient.LinkType.REFER).setOther(new Reference("Patient/" + shadow.getGoldenId()));
+		}
+		return patient;
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * A thread-safe in-memory cache holding at most a configured number of values, evicting the least
+ * recently used one when full. A cache may also be bounded by the total weight of its values, e.g.
+ * their estimated size in memory. Values remember when they were cached, so callers can decide when
+ * they are too old to be used as they are.
+ * 
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class LruCache<K, V> {
+	
+	private final IntSupplier maxSize;
+	
+	private final LongSupplier maxWeight;
+	
+	private final ToLongFunction<V> weigher;
+	
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	
+	/**
+	 * @param maxSize supplies the maximum number of values, read on every put so that it can be
+	 *            changed while the cache is in use; 0 or less disables the cache
+	 */
+	public LruCache(IntSupplier maxSize) {
+		this(maxSize, () -> 0, value -> 0);
+	}
+	
+	/**
+	 * @param maxSize supplies the maximum number of values, read on every put so that it can be
+	 *            changed while the cache is in use; 0 or less disables the cache
+	 * @param maxWeight supplies the maximum total weight of the values, read on every put; 0 or less
+	 *            for no maximum
+	 * @param weigher the weight of a value, asked again on every put as values may grow while cached
+	 */
+	public LruCache(IntSupplier maxSize, LongSupplier maxWeight, ToLongFunction<V> weigher) {
+		this.maxSize = maxSize;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+	
+	/**
+	 * @param key the key
+	 * @return the cached entry, or null if there is none
+	 */
+	public synchronized Entry<V> get(K key) {
+		return entries.get(key);
+	}
+	
+	/**
+	 * Caches a value, replacing any earlier one, and evicts the least recently used values the cache
+	 * has no room for.
+	 * 
+	 * @param key the key
+	 * @param value the value
+	 */
+	public synchronized void put(K key, V value) {
+		int max = maxSize.getAsInt();
+		if (max <= 0) {
+			entries.clear();
+			return;
+		}
+		
+		entries.put(key, new Entry<>(value, System.currentTimeMillis()));
+		Iterator<K> leastRecentlyUsed = entries.keySet().iterator();
+		while (entries.size() > max) {
+			leastRecentlyUsed.next();
+			leastRecentlyUsed.remove();
+		}
+		
+		long maxTotalWeight = maxWeight.getAsLong();
+		if (maxTotalWeight <= 0) {
+			return;
+		}
+		long weight = entries.values().stream().mapToLong(entry -> weigher.applyAsLong(entry.getValue())).sum();
+		// a value heavier than the whole cache is evicted too
+		Iterator<Entry<V>> leastRecentlyUsedValues = entries.values().iterator();
+		while (weight > maxTotalWeight && leastRecentlyUsedValues.hasNext()) {
+			weight -= weigher.applyAsLong(leastRecentlyUsedValues.next().getValue());
+			leastRecentlyUsedValues.remove();
+		}
+	}
+	
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+	
+	/**
+	 * @param filter the condition for the values to remove
+	 */
+	public synchronized void removeIf(Predicate<V> filter) {
+		entries.values().removeIf(entry -> filter.test(entry.getValue()));
+	}
+	
+	/**
+	 * @param filter the condition for the keys of the values to remove
+	 */
+	public synchronized void removeKeysIf(Predicate<K> filter) {
+		entries.keySet().removeIf(filter);
+	}
+	
+	/**
+	 * @return the values currently in the cache, from least to most recently used
+	 */
+	public synchronized List<V> values() {
+		return entries.values().stream().map(Entry::getValue).collect(Collectors.toList());
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return whether the cache holds any values at its current maximum size
+	 */
+	public boolean isEnabled() {
+		return maxSize.getAsInt() > 0;
+	}
+	
+	/**
+	 * A cached value with the time it was cached.
+	 * 
+	 * @param <V> the type of the value
+	 */
+	public static final class Entry<V> {
+		
+		private final V value;
+		
+		private final long timestamp;
+		
+		private Entry(V value, long timestamp) {
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+		
+		public V getValue() {
+			return value;
+		}
+		
+		/**
+		 * @param millis an age in milliseconds
+		 * @return whether the value was cached longer ago than the given age
+		 */
+		public boolean isOlderThan(long millis) {
+			return System.currentTimeMillis() - timestamp > millis;
+		}
+	}
+}
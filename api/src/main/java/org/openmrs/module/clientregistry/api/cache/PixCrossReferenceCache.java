@@ -0,0 +1,113 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Value;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Identifier;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * The client registry ids the $ihe-pix operation cross-referenced source identifiers to, so that
+ * repeated lookups of the same identifier skip the operation. Cross-references expire after the
+ * configured time to live and are dropped as soon as the sync pushes a patient carrying the source
+ * identifier.
+ */
+@Component
+public class PixCrossReferenceCache {
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	private final LruCache<Key, List<String>> crossReferences = new LruCache<>(() -> config.getPixCacheSize());
+	
+	/**
+	 * @param sourceSystem the system of the source identifier
+	 * @param sourceIdentifier the value of the source identifier
+	 * @param targetSystems the target systems the lookup was restricted to, in any order
+	 * @return the client registry ids the identifier was cross-referenced to, or null if not cached
+	 *         or expired
+	 */
+	public List<String> get(String sourceSystem, String sourceIdentifier, Collection<String> targetSystems) {
+		LruCache.Entry<List<String>> entry = crossReferences.get(new Key(sourceSystem, sourceIdentifier, targetSystems));
+		if (entry == null || entry.isOlderThan(TimeUnit.SECONDS.toMillis(config.getPixCacheTtl()))) {
+			return null;
+		}
+		return entry.getValue();
+	}
+	
+	/**
+	 * @param sourceSystem the system of the source identifier
+	 * @param sourceIdentifier the value of the source identifier
+	 * @param targetSystems the target systems the lookup was restricted to, in any order
+	 * @param crIds the client registry ids the identifier was cross-referenced to
+	 */
+	public void put(String sourceSystem, String sourceIdentifier, Collection<String> targetSystems, List<String> crIds) {
+		crossReferences.put(new Key(sourceSystem, sourceIdentifier, targetSystems),
+		    Collections.unmodifiableList(new ArrayList<>(crIds)));
+	}
+	
+	/**
+	 * Drops the cross-references of every source identifier of pushed patients, whatever target
+	 * systems they were looked up for.
+	 * 
+	 * @param identifiers the identifiers of the pushed patients
+	 */
+	public void invalidate(Collection<Identifier> identifiers) {
+		if (identifiers.isEmpty() || crossReferences.size() == 0) {
+			return;
+		}
+		
+		Set<String> pushed = new HashSet<>();
+		Set<String> pushedValues = new HashSet<>();
+		for (Identifier identifier : identifiers) {
+			pushed.add(toSourceIdentifier(identifier.getSystem(), identifier.getValue()));
+			pushedValues.add(StringUtils.trimToEmpty(identifier.getValue()));
+		}
+		// a lookup without a source system matches the identifier value in any system
+		crossReferences.removeKeysIf(key -> key.getSystem().isEmpty() ? pushedValues.contains(key.getValue())
+		        : pushed.contains(toSourceIdentifier(key.getSystem(), key.getValue())));
+	}
+	
+	/**
+	 * Drops the cross-references of every source identifier.
+	 */
+	public void invalidateAll() {
+		crossReferences.clear();
+	}
+	
+	private static String toSourceIdentifier(String system, String value) {
+		return StringUtils.trimToEmpty(system) + "|" + StringUtils.trimToEmpty(value);
+	}
+	
+	@Value
+	private static class Key {
+		
+		String system;
+		
+		String value;
+		
+		Set<String> targetSystems;
+		
+		Key(String system, String value, Collection<String> targetSystems) {
+			this.system = StringUtils.trimToEmpty(system);
+			this.value = StringUtils.trimToEmpty(value);
+			this.targetSystems = targetSystems == null ? Collections.emptySet() : new HashSet<>(targetSystems);
+		}
+	}
+}
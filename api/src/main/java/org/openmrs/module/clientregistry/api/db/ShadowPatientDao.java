@@ -0,0 +1,57 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.openmrs.module.clientregistry.api.model.ShadowPatient;
+
+/**
+ * Persistence for the local shadow index of client registry patients.
+ */
+public interface ShadowPatientDao {
+	
+	/**
+	 * @param system the system of the identifier, or null for any system
+	 * @param values the values of the identifier, any of which may match
+	 * @return the patients having one of the identifiers
+	 */
+	List<ShadowPatient> getPatientsByIdentifier(String system, Collection<String> values);
+	
+	/**
+	 * @param goldenIds the client registry ids of golden records
+	 * @return the patients that are one of the golden records or are linked to one of them
+	 */
+	List<ShadowPatient> getLinkedPatients(Collection<String> goldenIds);
+	
+	/**
+	 * @param crIds the client registry ids of patients
+	 * @return the patients with these ids, in no particular order
+	 */
+	List<ShadowPatient> getPatients(Collection<String> crIds);
+	
+	/**
+	 * @param firstResult the index of the first patient to return, ordered by client registry id
+	 * @param maxResults the maximum number of patients to return
+	 * @return a page of all the patients in the index
+	 */
+	List<ShadowPatient> getPatients(int firstResult, int maxResults);
+	
+	/**
+	 * Records patients as the client registry returned them, replacing what was recorded before.
+	 * 
+	 * @param patients the patients
+	 */
+	void savePatients(Collection<ShadowPatient> patients);
+	
+	/**
+	 * Removes every patient from the index.
+	 */
+	void deleteAllPatients();
+}
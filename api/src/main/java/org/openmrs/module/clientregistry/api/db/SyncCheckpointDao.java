@@ -0,0 +1,35 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db;
+
+/**
+ * Persistence for the checkpoints of long-running sync jobs.
+ */
+public interface SyncCheckpointDao {
+	
+	/**
+	 * @param name the name of the checkpoint
+	 * @return the value last saved for the checkpoint, or null if there is none
+	 */
+	String getCheckpoint(String name);
+	
+	/**
+	 * Saves a checkpoint, replacing its earlier value.
+	 * 
+	 * @param name the name of the checkpoint
+	 * @param value the value to save
+	 */
+	void saveCheckpoint(String name, String value);
+	
+	/**
+	 * Removes a checkpoint, if it exists.
+	 * 
+	 * @param name the name of the checkpoint
+	 */
+	void deleteCheckpoint(String name);
+}
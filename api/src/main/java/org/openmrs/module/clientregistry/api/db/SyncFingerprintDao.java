@@ -0,0 +1,44 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+
+/**
+ * Persistence for the fingerprints of the patients last pushed to the client registry.
+ */
+public interface SyncFingerprintDao {
+	
+	/**
+	 * @param patientUuids the uuids of the patients
+	 * @return the fingerprint last pushed for each of the patients that has one, keyed by uuid
+	 */
+	Map<String, SyncFingerprint> getFingerprints(Collection<String> patientUuids);
+	
+	/**
+	 * Records the fingerprints of patients the client registry accepted, replacing any earlier ones.
+	 * 
+	 * @param fingerprints the fingerprints
+	 */
+	void saveFingerprints(Collection<SyncFingerprint> fingerprints);
+	
+	/**
+	 * Forgets what was last pushed for patients, so that their next push is a full update.
+	 * 
+	 * @param patientUuids the uuids of the patients
+	 */
+	void deleteFingerprints(Collection<String> patientUuids);
+	
+	/**
+	 * Forgets what was last pushed for every patient, so that no push is skipped or sent as a patch.
+	 */
+	void deleteAllFingerprints();
+}
@@ -0,0 +1,69 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+
+/**
+ * Persistence for the patient sync outbox.
+ */
+public interface SyncOutboxDao {
+	
+	/**
+	 * Saves a new or changed outbox entry.
+	 * 
+	 * @param entry the entry to save
+	 * @return the saved entry
+	 */
+	SyncOutboxEntry saveEntry(SyncOutboxEntry entry);
+	
+	/**
+	 * Gets pending entries that are due for a push, oldest first. An entry is held back while an
+	 * earlier pending entry for the same patient failed, until that entry was retried successfully or
+	 * given up on, or is still waiting out its quiet window, so that events for a patient always reach
+	 * the client registry in the order they were recorded.
+	 * 
+	 * @param maxResults the maximum number of entries to return
+	 * @return the entries to push
+	 */
+	List<SyncOutboxEntry> getDueEntries(int maxResults);
+	
+	/**
+	 * Gets the pending entries of the given patients that were not attempted yet, whether or not they
+	 * are due, oldest first.
+	 * 
+	 * @param patientUuids the uuids of the patients
+	 * @return the entries of the patients
+	 */
+	List<SyncOutboxEntry> getUnattemptedEntries(Collection<String> patientUuids);
+	
+	/**
+	 * @return the earliest time a pending entry that is not due yet falls due, or null if there is none
+	 */
+	Date getNextAttempt();
+	
+	/**
+	 * Moves dead entries back to pending, with their attempts reset, so that they are pushed again.
+	 * 
+	 * @param patientUuid the uuid of the patient whose entries to replay, or null for all entries
+	 * @return the number of entries replayed
+	 */
+	int replayDeadEntries(String patientUuid);
+	
+	/**
+	 * Deletes the entries pushed before a given time.
+	 * 
+	 * @param processedBefore the time the entries must have been pushed before
+	 * @return the number of entries deleted
+	 */
+	int purgeDoneEntries(Date processedBefore);
+}
@@ -0,0 +1,69 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.openmrs.Patient;
+
+/**
+ * Loads the OpenMRS patients pushed to the client registry.
+ */
+public interface SyncPatientDao {
+	
+	/**
+	 * Gets patients with everything the client registry representation is built from (names,
+	 * addresses, identifiers and attributes) loaded, with one query per collection for the whole
+	 * batch. Voided patients are left out, they are deleted from the client registry rather than
+	 * pushed.
+	 * 
+	 * @param uuids the uuids of the patients
+	 * @return the patients found that are not voided, in no particular order
+	 */
+	List<Patient> getPatientsForSync(Collection<String> uuids);
+	
+	/**
+	 * Gets the next page of patients in patient id order, starting after a given patient id, so that
+	 * all patients can be walked through without the cost of an offset growing with every page.
+	 * Voided patients are left out.
+	 * 
+	 * @param patientId the patient id to start after, 0 to start with the first patient
+	 * @param maxResults the maximum number of patients to return
+	 * @return the uuids of the patients found keyed by patient id, in patient id order
+	 */
+	Map<Integer, String> getPatientUuidsAfter(int patientId, int maxResults);
+	
+	/**
+	 * @param patientId the patient id to start after, 0 to count all patients
+	 * @return the number of patients {@link #getPatientUuidsAfter(int, int)} walks through starting
+	 *         after the given patient id
+	 */
+	long countPatientsAfter(int patientId);
+	
+	/**
+	 * Gets the patients created or changed after a given date. A patient counts as changed when its
+	 * person or patient record or any of its names, addresses, identifiers or attributes was created,
+	 * changed or voided. Every
+	 * table is asked on its own, by an indexed date column, so that only the changed rows are read.
+	 * The ids may include persons that are not patients.
+	 * 
+	 * @param since the date to get changes after
+	 * @return the ids of the patients found, in patient id order
+	 */
+	SortedSet<Integer> getPatientIdsChangedSince(Date since);
+	
+	/**
+	 * @param patientIds the ids of patients
+	 * @return the uuids of the patients found keyed by patient id, in patient id order
+	 */
+	Map<Integer, String> getPatientUuids(Collection<Integer> patientIds);
+}
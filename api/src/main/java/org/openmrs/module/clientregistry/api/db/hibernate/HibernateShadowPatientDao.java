@@ -0,0 +1,124 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db.hibernate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.hibernate.Query;
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.clientregistry.api.db.ShadowPatientDao;
+import org.openmrs.module.clientregistry.api.model.ShadowPatient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository("clientRegistryShadowPatientDao")
+@Transactional
+public class HibernateShadowPatientDao implements ShadowPatientDao {
+	
+	@Autowired
+	@Qualifier("dbSessionFactory")
+	private DbSessionFactory sessionFactory;
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<ShadowPatient> getPatientsByIdentifier(String system, Collection<String> values) {
+		if (values.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		Query query = sessionFactory.getCurrentSession().createQuery(
+		    "select distinct p from ShadowPatient p join p.identifiers i where i.value in (:values)"
+		            + (system == null ? "" : " and i.system = :system"));
+		query.setParameterList("values", values);
+		if (system != null) {
+			query.setParameter("system", system);
+		}
+		return query.list();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<ShadowPatient> getLinkedPatients(Collection<String> goldenIds) {
+		if (goldenIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return sessionFactory.getCurrentSession()
+		        .createQuery("from ShadowPatient p where p.crId in (:ids) or p.goldenId in (:ids)")
+		        .setParameterList("ids", goldenIds).list();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<ShadowPatient> getPatients(Collection<String> crIds) {
+		if (crIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return sessionFactory.getCurrentSession().createQuery("from ShadowPatient p where p.crId in (:ids)")
+		        .setParameterList("ids", crIds).list();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<ShadowPatient> getPatients(int firstResult, int maxResults) {
+		return sessionFactory.getCurrentSession().createQuery("from ShadowPatient p order by p.crId")
+		        .setFirstResult(firstResult).setMaxResults(maxResults).list();
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public void savePatients(Collection<ShadowPatient> patients) {
+		if (patients.isEmpty()) {
+			return;
+		}
+		
+		DbSession session = sessionFactory.getCurrentSession();
+		List<String> crIds = patients.stream().map(ShadowPatient::getCrId).collect(Collectors.toList());
+		Map<String, ShadowPatient> existing = new HashMap<>();
+		for (ShadowPatient patient : (List<ShadowPatient>) session
+		        .createQuery("from ShadowPatient p where p.crId in (:ids)").setParameterList("ids", crIds).list()) {
+			existing.put(patient.getCrId(), patient);
+		}
+		
+		for (ShadowPatient patient : patients) {
+			// the client registry id is an assigned id, so new patients are saved and loaded ones are just changed
+			ShadowPatient persisted = existing.get(patient.getCrId());
+			if (persisted == null) {
+				session.save(patient);
+			} else {
+				persisted.setGoldenId(patient.getGoldenId());
+				persisted.setFamilyName(patient.getFamilyName());
+				persisted.setGivenName(patient.getGivenName());
+				persisted.setGender(patient.getGender());
+				persisted.setBirthdate(patient.getBirthdate());
+				persisted.setLastUpdated(patient.getLastUpdated());
+				persisted.getIdentifiers().clear();
+				persisted.getIdentifiers().addAll(patient.getIdentifiers());
+			}
+		}
+	}
+	
+	@Override
+	public void deleteAllPatients() {
+		DbSession session = sessionFactory.getCurrentSession();
+		// bulk deletes do not cascade to the identifier collection table
+		session.createSQLQuery("delete from clientregistry_shadow_identifier").executeUpdate();
+		session.createQuery("delete from ShadowPatient").executeUpdate();
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db.hibernate;
+
+import java.util.Date;
+
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.model.SyncCheckpoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository("clientRegistrySyncCheckpointDao")
+@Transactional
+public class HibernateSyncCheckpointDao implements SyncCheckpointDao {
+	
+	@Autowired
+	@Qualifier("dbSessionFactory")
+	private DbSessionFactory sessionFactory;
+	
+	@Override
+	@Transactional(readOnly = true)
+	public String getCheckpoint(String name) {
+		SyncCheckpoint checkpoint = (SyncCheckpoint) sessionFactory.getCurrentSession().get(SyncCheckpoint.class, name);
+		return checkpoint == null ? null : checkpoint.getValue();
+	}
+	
+	@Override
+	public void saveCheckpoint(String name, String value) {
+		DbSession session = sessionFactory.getCurrentSession();
+		// the name is an assigned id, so a new checkpoint is saved and a loaded one is just changed
+		SyncCheckpoint checkpoint = (SyncCheckpoint) session.get(SyncCheckpoint.class, name);
+		if (checkpoint == null) {
+			checkpoint = new SyncCheckpoint();
+			checkpoint.setName(name);
+			checkpoint.setValue(value);
+			checkpoint.setDateUpdated(new Date());
+			session.save(checkpoint);
+		} else {
+			checkpoint.setValue(value);
+			checkpoint.setDateUpdated(new Date());
+		}
+	}
+	
+	@Override
+	public void deleteCheckpoint(String name) {
+		sessionFactory.getCurrentSession().createQuery("delete from SyncCheckpoint c where c.name = :name")
+		        .setParameter("name", name).executeUpdate();
+	}
+}
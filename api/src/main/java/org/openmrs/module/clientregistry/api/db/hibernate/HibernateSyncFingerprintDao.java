@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db.hibernate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository("clientRegistrySyncFingerprintDao")
+@Transactional
+public class HibernateSyncFingerprintDao implements SyncFingerprintDao {
+	
+	@Autowired
+	@Qualifier("dbSessionFactory")
+	private DbSessionFactory sessionFactory;
+	
+	@Override
+	@Transactional(readOnly = true)
+	public Map<String, SyncFingerprint> getFingerprints(Collection<String> patientUuids) {
+		Map<String, SyncFingerprint> fingerprints = new HashMap<>();
+		for (SyncFingerprint fingerprint : getEntities(sessionFactory.getCurrentSession(), patientUuids)) {
+			fingerprints.put(fingerprint.getPatientUuid(), fingerprint);
+		}
+		return fingerprints;
+	}
+	
+	@Override
+	public void saveFingerprints(Collection<SyncFingerprint> fingerprints) {
+		DbSession session = sessionFactory.getCurrentSession();
+		Map<String, SyncFingerprint> existing = new HashMap<>();
+		List<String> patientUuids = fingerprints.stream().map(SyncFingerprint::getPatientUuid).collect(Collectors.toList());
+		for (SyncFingerprint fingerprint : getEntities(session, patientUuids)) {
+			existing.put(fingerprint.getPatientUuid(), fingerprint);
+		}
+		
+		Date now = new Date();
+		for (SyncFingerprint fingerprint : fingerprints) {
+			// the uuid is an assigned id, so new fingerprints are saved and loaded ones are just changed
+			SyncFingerprint persisted = existing.get(fingerprint.getPatientUuid());
+			if (persisted == null) {
+				fingerprint.setDateSent(now);
+				session.save(fingerprint);
+			} else {
+				persisted.setFingerprint(fingerprint.getFingerprint());
+				persisted.setPayload(fingerprint.getPayload());
+				persisted.setDemographicsFingerprint(fingerprint.getDemographicsFingerprint());
+				persisted.setVersionId(fingerprint.getVersionId());
+				persisted.setDateSent(now);
+			}
+		}
+	}
+	
+	@Override
+	public void deleteFingerprints(Collection<String> patientUuids) {
+		if (patientUuids.isEmpty()) {
+			return;
+		}
+		sessionFactory.getCurrentSession().createQuery("delete from SyncFingerprint f where f.patientUuid in (:uuids)")
+		        .setParameterList("uuids", patientUuids).executeUpdate();
+	}
+	
+	@Override
+	public void deleteAllFingerprints() {
+		sessionFactory.getCurrentSession().createQuery("delete from SyncFingerprint").executeUpdate();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<SyncFingerprint> getEntities(DbSession session, Collection<String> patientUuids) {
+		if (patientUuids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return session.createQuery("from SyncFingerprint f where f.patientUuid in (:uuids)")
+		        .setParameterList("uuids", patientUuids).list();
+	}
+}
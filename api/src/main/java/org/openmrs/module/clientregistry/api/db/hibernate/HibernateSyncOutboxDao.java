@@ -0,0 +1,95 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db.hibernate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Query;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository("clientRegistrySyncOutboxDao")
+@Transactional
+public class HibernateSyncOutboxDao implements SyncOutboxDao {
+	
+	@Autowired
+	@Qualifier("dbSessionFactory")
+	private DbSessionFactory sessionFactory;
+	
+	@Override
+	public SyncOutboxEntry saveEntry(SyncOutboxEntry entry) {
+		sessionFactory.getCurrentSession().saveOrUpdate(entry);
+		return entry;
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<SyncOutboxEntry> getDueEntries(int maxResults) {
+		return sessionFactory.getCurrentSession()
+		        .createQuery("from SyncOutboxEntry e where e.status = :pending"
+		                + " and (e.nextAttempt is null or e.nextAttempt <= :now)"
+		                + " and not exists (from SyncOutboxEntry earlier where earlier.patientUuid = e.patientUuid"
+		                + " and earlier.status = :pending and earlier.id < e.id"
+		                + " and (earlier.attempts > 0 or earlier.nextAttempt > :now))"
+		                + " order by e.id")
+		        .setParameter("pending", SyncOutboxEntry.Status.PENDING).setParameter("now", new Date())
+		        .setMaxResults(maxResults).list();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<SyncOutboxEntry> getUnattemptedEntries(Collection<String> patientUuids) {
+		if (patientUuids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return sessionFactory.getCurrentSession()
+		        .createQuery("from SyncOutboxEntry e where e.status = :pending and e.attempts = 0"
+		                + " and e.patientUuid in (:patientUuids) order by e.id")
+		        .setParameter("pending", SyncOutboxEntry.Status.PENDING).setParameterList("patientUuids", patientUuids)
+		        .list();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public Date getNextAttempt() {
+		return (Date) sessionFactory.getCurrentSession()
+		        .createQuery("select min(e.nextAttempt) from SyncOutboxEntry e where e.status = :pending"
+		                + " and e.nextAttempt > :now")
+		        .setParameter("pending", SyncOutboxEntry.Status.PENDING).setParameter("now", new Date()).uniqueResult();
+	}
+	
+	@Override
+	public int replayDeadEntries(String patientUuid) {
+		Query query = sessionFactory.getCurrentSession()
+		        .createQuery("update SyncOutboxEntry set status = :pending, attempts = 0, nextAttempt = null"
+		                + " where status = :dead" + (patientUuid == null ? "" : " and patientUuid = :patientUuid"))
+		        .setParameter("pending", SyncOutboxEntry.Status.PENDING).setParameter("dead", SyncOutboxEntry.Status.DEAD);
+		if (patientUuid != null) {
+			query.setParameter("patientUuid", patientUuid);
+		}
+		return query.executeUpdate();
+	}
+	
+	@Override
+	public int purgeDoneEntries(Date processedBefore) {
+		return sessionFactory.getCurrentSession()
+		        .createQuery("delete from SyncOutboxEntry where status = :done and dateProcessed < :processedBefore")
+		        .setParameter("done", SyncOutboxEntry.Status.DONE).setParameter("processedBefore", processedBefore)
+		        .executeUpdate();
+	}
+}
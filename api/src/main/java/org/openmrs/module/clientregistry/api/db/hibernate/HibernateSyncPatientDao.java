@@ -0,0 +1,129 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.db.hibernate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.openmrs.Patient;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository("clientRegistrySyncPatientDao")
+@Transactional(readOnly = true)
+public class HibernateSyncPatientDao implements SyncPatientDao {
+	
+	@Autowired
+	@Qualifier("dbSessionFactory")
+	private DbSessionFactory sessionFactory;
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Patient> getPatientsForSync(Collection<String> uuids) {
+		if (uuids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		// one query per collection rather than a single one joining them all, whose rows would multiply
+		// names by addresses by identifiers by attributes; the later queries return the patients the
+		// session already holds and only fill in their collection
+		List<Patient> patients = sessionFactory.getCurrentSession()
+		        .createQuery("select distinct p from Patient p left join fetch p.names where p.uuid in (:uuids)"
+		                + " and p.voided = false")
+		        .setParameterList("uuids", uuids).list();
+		if (patients.isEmpty()) {
+			return patients;
+		}
+		
+		String[] collectionQueries = {
+		        "select distinct p from Patient p left join fetch p.addresses where p in (:patients)",
+		        "select distinct p from Patient p left join fetch p.identifiers i left join fetch i.identifierType"
+		                + " where p in (:patients)",
+		        "select distinct p from Patient p left join fetch p.attributes a left join fetch a.attributeType"
+		                + " where p in (:patients)" };
+		for (String query : collectionQueries) {
+			sessionFactory.getCurrentSession().createQuery(query).setParameterList("patients", patients).list();
+		}
+		return patients;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getPatientUuidsAfter(int patientId, int maxResults) {
+		List<Object[]> rows = sessionFactory.getCurrentSession()
+		        .createQuery("select p.patientId, p.uuid from Patient p where p.patientId > :patientId"
+		                + " and p.voided = false order by p.patientId")
+		        .setParameter("patientId", patientId).setMaxResults(maxResults).list();
+		Map<Integer, String> uuids = new LinkedHashMap<>();
+		for (Object[] row : rows) {
+			uuids.put((Integer) row[0], (String) row[1]);
+		}
+		return uuids;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public SortedSet<Integer> getPatientIdsChangedSince(Date since) {
+		// one range query per indexed date column rather than one query OR-ing them, which no index can
+		// serve; demographic edits stamp the person row and may leave the patient row alone, so both are
+		// asked; voiding goes through a save that stamps date_changed, except for attributes, which have
+		// no date_changed and are voided and replaced rather than changed
+		String[] queries = { "select p.patientId from Patient p where p.personDateCreated > :since",
+		        "select p.patientId from Patient p where p.personDateChanged > :since",
+		        "select p.patientId from Patient p where p.dateCreated > :since",
+		        "select p.patientId from Patient p where p.dateChanged > :since",
+		        "select n.person.personId from PersonName n where n.dateCreated > :since",
+		        "select n.person.personId from PersonName n where n.dateChanged > :since",
+		        "select a.person.personId from PersonAddress a where a.dateCreated > :since",
+		        "select a.person.personId from PersonAddress a where a.dateChanged > :since",
+		        "select i.patient.patientId from PatientIdentifier i where i.dateCreated > :since",
+		        "select i.patient.patientId from PatientIdentifier i where i.dateChanged > :since",
+		        "select pa.person.personId from PersonAttribute pa where pa.dateCreated > :since",
+		        "select pa.person.personId from PersonAttribute pa where pa.dateVoided > :since" };
+		SortedSet<Integer> patientIds = new TreeSet<>();
+		for (String query : queries) {
+			patientIds.addAll(sessionFactory.getCurrentSession().createQuery(query).setParameter("since", since).list());
+		}
+		return patientIds;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getPatientUuids(Collection<Integer> patientIds) {
+		if (patientIds.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		
+		List<Object[]> rows = sessionFactory.getCurrentSession()
+		        .createQuery("select p.patientId, p.uuid from Patient p where p.patientId in (:patientIds)"
+		                + " order by p.patientId")
+		        .setParameterList("patientIds", patientIds).list();
+		Map<Integer, String> uuids = new LinkedHashMap<>();
+		for (Object[] row : rows) {
+			uuids.put((Integer) row[0], (String) row[1]);
+		}
+		return uuids;
+	}
+	
+	@Override
+	public long countPatientsAfter(int patientId) {
+		return (Long) sessionFactory.getCurrentSession()
+		        .createQuery("select count(p) from Patient p where p.patientId > :patientId and p.voided = false")
+		        .setParameter("patientId", patientId).uniqueResult();
+	}
+}
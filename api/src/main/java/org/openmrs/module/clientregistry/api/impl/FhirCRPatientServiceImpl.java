@@ -1,18 +1,43 @@
 package org.openmrs.module.clientregistry.api.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
 import org.openmrs.module.clientregistry.api.CRPatientService;
+import org.openmrs.module.clientregistry.api.ClientRegistryManager;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.ClientRegistrySingleFlight;
+import org.openmrs.module.clientregistry.api.cache.CRPatientCache;
+import org.openmrs.module.clientregistry.api.cache.CRSearchCache;
+import org.openmrs.module.clientregistry.api.cache.CRShadowIndex;
+import org.openmrs.module.clientregistry.api.cache.LruCache;
+import org.openmrs.module.clientregistry.api.cache.PixCrossReferenceCache;
 import org.openmrs.module.clientregistry.api.search.CRSearchBundleProvider;
+import org.openmrs.module.clientregistry.api.search.CRSearchClient;
 import org.openmrs.module.clientregistry.api.search.PatientSearchCriteriaBuilder;
 import org.openmrs.module.clientregistry.providers.FhirCRConstants;
 import org.openmrs.module.fhir2.FhirConstants;
@@ -25,15 +50,28 @@ import org.springframework.stereotype.Component;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.ICriterionInternal;
 import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInputAndPartialOutput;
-import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.StringClientParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 
+import static lombok.AccessLevel.PACKAGE;
+
 @Component
+@Setter(PACKAGE)
 public class FhirCRPatientServiceImpl implements CRPatientService {
 
+	/**
+	 * Keeps the ids of a batch read chunk short enough for the URL length limits of common servers
+	 */
+	private static final int MAX_CHUNK_ID_LENGTH = 1500;
+
+	private static final Set<String> FUZZY_SEARCH_PARAMETERS = new HashSet<>(Arrays.asList(Patient.SP_FAMILY,
+			Patient.SP_GIVEN, Patient.SP_NAME, Patient.SP_BIRTHDATE, Patient.SP_GENDER));
+
+	private static final Pattern BIRTH_YEAR = Pattern.compile("(?:eq)?(\\d{4})(?:-\\d{2}(?:-\\d{2})?)?");
+
 	@Autowired
 	@Qualifier("clientRegistryFhirClient")
 	private IGenericClient fhirClient;
@@ -44,87 +82,389 @@ public class FhirCRPatientServiceImpl implements CRPatientService {
 	@Autowired
 	private FhirGlobalPropertyService globalPropertyService;
 
+	@Autowired
+	private ClientRegistryGuard guard;
+
+	@Autowired
+	private CRPatientCache patientCache;
+
+	@Autowired
+	private PixCrossReferenceCache pixCache;
+
+	@Autowired
+	private CRSearchCache searchCache;
+
+	@Autowired
+	private ClientRegistryMetrics metrics;
+
+	@Autowired
+	private ClientRegistrySingleFlight singleFlight;
+
+	@Autowired
+	private ClientRegistryConfig config;
+
+	@Autowired
+	private ClientRegistryManager clientRegistryManager;
+
+	@Autowired
+	private CRShadowIndex shadowIndex;
+
+	@Autowired
+	private CRSearchClient searchClient;
+
 	@Override
 	public Patient getPatientById(String id) {
 		if (StringUtils.isBlank(id)) {
 			return null;
 		}
-		return fhirClient.read().resource(Patient.class).withId(id).execute();
+		if (!patientCache.isEnabled()) {
+			// callers sharing a coalesced read must not see each other's changes
+			return readPatient(id, null).copy();
+		}
+
+		LruCache.Entry<Patient> cached = patientCache.get(id);
+		if (cached != null && !patientCache.isStale(cached)) {
+			metrics.increment(ClientRegistryMetrics.CACHE_PATIENT_HITS);
+			return cached.getValue().copy();
+		}
+
+		String version = cached == null ? null : cached.getValue().getMeta().getVersionId();
+		Patient patient;
+		if (version == null) {
+			metrics.increment(ClientRegistryMetrics.CACHE_PATIENT_MISSES);
+			patient = readPatient(id, null);
+		} else {
+			patient = readPatient(id, version);
+			if (patient == null) {
+				metrics.increment(ClientRegistryMetrics.CACHE_PATIENT_REVALIDATED);
+				patient = cached.getValue();
+			} else {
+				metrics.increment(ClientRegistryMetrics.CACHE_PATIENT_REFRESHED);
+			}
+		}
+
+		patientCache.put(id, patient);
+		return patient.copy();
 	}
 
 	@Override
-	public IBundleProvider getPatientsByPIX(String sourceIdentifier, String sourceIdentifierSystem,
-			List<String> targetSystems) {
-		// construct request to external FHIR $ihe-pix endpoint
-		IOperationUntypedWithInputAndPartialOutput<Parameters> identifiersRequest = fhirClient.operation()
-				.onType(FhirConstants.PATIENT).named(FhirCRConstants.IHE_PIX_OPERATION)
-				.withSearchParameter(Parameters.class,
-						FhirCRConstants.SOURCE_IDENTIFIER, new TokenParam(sourceIdentifierSystem, sourceIdentifier));
-
-		if (!targetSystems.isEmpty()) {
-			identifiersRequest.andSearchParameter(FhirCRConstants.TARGET_SYSTEM,
-					new StringParam(String.join(",", targetSystems)));
+	public Bundle getPatientsByIds(List<String> ids) {
+		Map<String, Patient> patients = new HashMap<>();
+		List<String> misses = new ArrayList<>();
+		for (String id : new LinkedHashSet<>(ids)) {
+			LruCache.Entry<Patient> cached = patientCache.isEnabled() ? patientCache.get(id) : null;
+			if (cached != null && !patientCache.isStale(cached)) {
+				metrics.increment(ClientRegistryMetrics.CACHE_PATIENT_HITS);
+				patients.put(id, cached.getValue().copy());
+			} else {
+				misses.add(id);
+			}
+		}
+		if (patientCache.isEnabled()) {
+			metrics.add(ClientRegistryMetrics.CACHE_PATIENT_MISSES, misses.size());
 		}
 
-		Parameters crMatchingParams = identifiersRequest.useHttpGet().execute();
-		List<String> crIdentifiers = crMatchingParams.getParameter().stream()
-				.filter(param -> Objects.equals(param.getName(), "targetId"))
-				.map(param -> ((Reference) param.getValue()).getReference()).collect(Collectors.toList());
+		// the first chunk is fetched by the calling thread while the others are fetched in parallel
+		List<List<String>> chunks = getChunks(misses);
+		List<CompletableFuture<List<IBaseResource>>> pending = new ArrayList<>();
+		for (List<String> chunk : chunks.subList(Math.min(1, chunks.size()), chunks.size())) {
+			pending.add(clientRegistryManager.supplyAsync(() -> fetchPatients(chunk)));
+		}
+		List<IBaseResource> fetched = new ArrayList<>();
+		if (!chunks.isEmpty()) {
+			fetched.addAll(fetchPatients(chunks.get(0)));
+		}
+		for (CompletableFuture<List<IBaseResource>> chunk : pending) {
+			try {
+				fetched.addAll(chunk.join());
+			}
+			catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+		}
+		for (IBaseResource resource : fetched) {
+			Patient patient = (Patient) resource;
+			String id = patient.getIdElement().getIdPart();
+			patientCache.put(id, patient);
+			patients.put(id, patient.copy());
+		}
 
-		if (crIdentifiers.isEmpty()) {
-			return new CRSearchBundleProvider(Collections.emptyList());
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.BATCHRESPONSE);
+		for (String id : ids) {
+			Bundle.BundleEntryComponent entry = bundle.addEntry();
+			Patient patient = patients.get(id);
+			if (patient != null) {
+				// each entry gets its own copy, an id may be asked for more than once
+				entry.setResource(patient.copy()).getResponse().setStatus("200 OK");
+			} else {
+				OperationOutcome outcome = new OperationOutcome();
+				outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+						.setCode(OperationOutcome.IssueType.NOTFOUND)
+						.setDiagnostics("Could not find patient with Id " + id);
+				entry.getResponse().setStatus("404 Not Found").setLocation(FhirConstants.PATIENT + "/" + id)
+						.setOutcome(outcome);
+			}
 		}
+		return bundle;
+	}
 
-		Bundle patientBundle = fhirClient.search().forResource(Patient.class)
-				.where(new StringClientParam(Patient.SP_RES_ID).matches().values(crIdentifiers))
-				.count(globalPropertyService.getGlobalProperty(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE, 10))
-				.returnBundle(Bundle.class)
-				.execute();
+	@Override
+	public IBundleProvider getPatientsByPIX(String sourceIdentifier, String sourceIdentifierSystem,
+			List<String> targetSystems) {
+		// both steps are coalesced together, a burst of lookups makes one $ihe-pix call and one search
+		String key = "pix:" + StringUtils.trimToEmpty(sourceIdentifierSystem) + "|"
+				+ StringUtils.trimToEmpty(sourceIdentifier) + ":" + new TreeSet<>(targetSystems);
+		return singleFlight.execute(key, () -> {
+			List<Patient> indexed = shadowIndex.getCrossReferencedPatients(sourceIdentifierSystem, sourceIdentifier,
+					targetSystems);
+			if (indexed != null) {
+				return new CRSearchBundleProvider(indexed);
+			}
+
+			List<String> crIdentifiers = getCrossReferences(sourceIdentifier, sourceIdentifierSystem, targetSystems);
+			if (crIdentifiers.isEmpty()) {
+				return new CRSearchBundleProvider(Collections.emptyList());
+			}
 
-		return new CRSearchBundleProvider(parseCRPatientSearchResults(patientBundle));
+			List<ICriterion<?>> criteria = Collections
+					.singletonList(new StringClientParam(Patient.SP_RES_ID).matches().values(crIdentifiers));
+			int pageSize = globalPropertyService.getGlobalProperty(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE, 10);
+			Bundle patientBundle = guard.execute(true, () -> searchClient.search(criteria, pageSize));
 
+			return new CRSearchBundleProvider(patientBundle, pageSize, this::loadPage);
+		});
 	}
 
 	@Override
 	public IBundleProvider searchPatients(PatientSearchParams patientSearchParams) {
 		List<ICriterion<?>> criterions = criteriaBuilder.buildCriteria(patientSearchParams);
-		IQuery<IBaseBundle> query = fhirClient.search().forResource(Patient.class);
+		List<Patient> indexed = searchShadowIndex(criterions);
+		if (indexed == null) {
+			indexed = searchBlockingIndex(criterions);
+		}
+		if (indexed != null) {
+			return new CRSearchBundleProvider(indexed);
+		}
 
-		for (int i = 0; i < criterions.size(); i++) {
-			ICriterion<?> criterion = criterions.get(i);
-			if (i == 0) {
-				query.where(criterion);
-			} else {
-				query.and(criterion);
+		int pageSize = globalPropertyService.getGlobalProperty(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE, 10);
+
+		String cacheKey = criteriaBuilder.getCanonicalKey(criterions, fhirClient.getFhirContext());
+		if (cacheKey == null) {
+			Bundle patientBundle = guard.execute(true, () -> searchClient.search(criterions, pageSize));
+			return new CRSearchBundleProvider(patientBundle, pageSize, this::loadPage);
+		}
+
+		// the page size is part of the key, results paged differently are not interchangeable
+		String key = cacheKey + "#" + pageSize;
+		if (searchCache.isEnabled()) {
+			IBundleProvider cached = searchCache.get(key);
+			if (cached != null) {
+				metrics.increment(ClientRegistryMetrics.CACHE_SEARCH_HITS);
+				return cached;
+			}
+			metrics.increment(ClientRegistryMetrics.CACHE_SEARCH_MISSES);
+		}
+
+		return singleFlight.execute("search:" + key, () -> {
+			Bundle patientBundle = guard.execute(true, () -> searchClient.search(criterions, pageSize));
+			IBundleProvider results = new CRSearchBundleProvider(patientBundle, pageSize, this::loadPage);
+			searchCache.put(key, results);
+			return results;
+		});
+	}
+
+	/**
+	 * Answers a search by identifiers alone from the shadow index.
+	 * 
+	 * @param criterions the criteria of the search
+	 * @return the patients found, or null if the search has to go to the client registry
+	 */
+	private List<Patient> searchShadowIndex(List<ICriterion<?>> criterions) {
+		if (criterions.size() != 1 || !(criterions.get(0) instanceof ICriterionInternal)) {
+			return null;
+		}
+		ICriterionInternal criterion = (ICriterionInternal) criterions.get(0);
+		if (!Patient.SP_IDENTIFIER.equals(criterion.getParameterName())) {
+			return null;
+		}
+		// values with escaped commas or bars are left to the client registry
+		String value = criterion.getParameterValue(fhirClient.getFhirContext());
+		if (StringUtils.isBlank(value) || value.contains("\\")) {
+			return null;
+		}
+
+		String system = null;
+		List<String> values = new ArrayList<>();
+		for (String token : value.split(",")) {
+			int separator = token.indexOf('|');
+			String tokenSystem = separator < 0 ? null : StringUtils.trimToNull(token.substring(0, separator));
+			if (!values.isEmpty() && !Objects.equals(system, tokenSystem)) {
+				return null;
+			}
+			system = tokenSystem;
+			values.add(separator < 0 ? token : token.substring(separator + 1));
+		}
+		return shadowIndex.getPatientsByIdentifier(system, values);
+	}
+
+	/**
+	 * Answers a fuzzy search by names and birthdate, and optionally gender, from the phonetic blocking
+	 * index of the shadow index.
+	 *
+	 * @param criterions the criteria of the search
+	 * @return the candidates found, best first, or null if the search has to go to the client registry
+	 */
+	private List<Patient> searchBlockingIndex(List<ICriterion<?>> criterions) {
+		Map<String, String> values = new HashMap<>();
+		for (ICriterion<?> criterion : criterions) {
+			if (!(criterion instanceof ICriterionInternal)) {
+				return null;
+			}
+			String name = ((ICriterionInternal) criterion).getParameterName();
+			String value = ((ICriterionInternal) criterion).getParameterValue(fhirClient.getFhirContext());
+			if (!FUZZY_SEARCH_PARAMETERS.contains(name) || StringUtils.isBlank(value) || value.contains(",")
+					|| values.put(name, value) != null) {
+				return null;
 			}
 		}
-		query.count(globalPropertyService.getGlobalProperty(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE, 10));
 
-		Bundle patientBundle = query.returnBundle(Bundle.class).execute();
-		return new CRSearchBundleProvider(parseCRPatientSearchResults(patientBundle));
+		Matcher birthYear = BIRTH_YEAR.matcher(StringUtils.defaultString(values.get(Patient.SP_BIRTHDATE)));
+		if (!birthYear.matches()) {
+			return null;
+		}
+		String familyName = values.get(Patient.SP_FAMILY);
+		String givenName = values.get(Patient.SP_GIVEN);
+		String name = StringUtils.normalizeSpace(values.get(Patient.SP_NAME));
+		if (name != null) {
+			if (familyName != null || givenName != null) {
+				return null;
+			}
+			givenName = StringUtils.substringBefore(name, " ");
+			familyName = StringUtils.substringAfterLast(name, " ");
+			if (familyName.isEmpty()) {
+				// a single name may be either one
+				familyName = name;
+			}
+		}
+		if (familyName == null && givenName == null) {
+			return null;
+		}
+		return shadowIndex.getFuzzyCandidates(familyName, givenName, Integer.parseInt(birthYear.group(1)),
+				values.get(Patient.SP_GENDER));
 	}
 
 	@Override
 	public Patient createPatient(Patient patient) {
-		return (Patient) fhirClient.create().resource(patient).execute().getResource();
+		searchCache.invalidateAll();
+		// not retried, a create that reached the client registry before failing would be repeated
+		return (Patient) guard.execute(false, () -> fhirClient.create().resource(patient).execute()).getResource();
 	}
 
 	@Override
 	public Patient updatePatient(Patient patient) {
-		return (Patient) fhirClient.update().resource(patient).execute().getResource();
+		patientCache.invalidate(patient.getIdElement().getIdPart());
+		searchCache.invalidateAll();
+		return (Patient) guard.execute(true, () -> fhirClient.update().resource(patient).execute()).getResource();
 	}
 
 	@Override
 	public void purgePatient(Patient patient) {
-		fhirClient.delete().resource(patient).execute();
+		patientCache.invalidate(patient.getIdElement().getIdPart());
+		searchCache.invalidateAll();
+		guard.execute(true, () -> fhirClient.delete().resource(patient).execute());
+	}
+
+	/**
+	 * Reads a patient from the Client Registry, sharing the read with concurrent reads of the same
+	 * patient. Given the version of a cached copy, the patient is only sent again if it changed
+	 * since, otherwise null is returned.
+	 */
+	private Patient readPatient(String id, String version) {
+		if (version == null) {
+			return singleFlight.execute("read:" + id,
+					() -> guard.execute(true, () -> fhirClient.read().resource(Patient.class).withId(id).execute()));
+		}
+		// a stale patient is only sent again if its version changed, otherwise the response is a 304
+		return singleFlight.execute("read:" + id + "@" + version, () -> guard.execute(true, () -> fhirClient.read()
+				.resource(Patient.class).withId(id).ifVersionMatches(version).returnNull().execute()));
+	}
+
+	private List<String> getCrossReferences(String sourceIdentifier, String sourceIdentifierSystem,
+			List<String> targetSystems) {
+		List<String> crIdentifiers = pixCache.get(sourceIdentifierSystem, sourceIdentifier, targetSystems);
+		if (crIdentifiers != null) {
+			metrics.increment(ClientRegistryMetrics.CACHE_PIX_HITS);
+			return crIdentifiers;
+		}
+
+		metrics.increment(ClientRegistryMetrics.CACHE_PIX_MISSES);
+		crIdentifiers = fetchCrossReferences(sourceIdentifier, sourceIdentifierSystem, targetSystems);
+		// no match is not cached, the patient may be registered any moment
+		if (!crIdentifiers.isEmpty()) {
+			pixCache.put(sourceIdentifierSystem, sourceIdentifier, targetSystems, crIdentifiers);
+		}
+		return crIdentifiers;
+	}
+
+	private List<String> fetchCrossReferences(String sourceIdentifier, String sourceIdentifierSystem,
+			List<String> targetSystems) {
+		// construct request to external FHIR $ihe-pix endpoint
+		IOperationUntypedWithInputAndPartialOutput<Parameters> identifiersRequest = fhirClient.operation()
+				.onType(FhirConstants.PATIENT).named(FhirCRConstants.IHE_PIX_OPERATION)
+				.withSearchParameter(Parameters.class,
+						FhirCRConstants.SOURCE_IDENTIFIER, new TokenParam(sourceIdentifierSystem, sourceIdentifier));
+
+		if (!targetSystems.isEmpty()) {
+			identifiersRequest.andSearchParameter(FhirCRConstants.TARGET_SYSTEM,
+					new StringParam(String.join(",", targetSystems)));
+		}
+
+		Parameters crMatchingParams = guard.execute(true, () -> identifiersRequest.useHttpGet().execute());
+		return crMatchingParams.getParameter().stream()
+				.filter(param -> Objects.equals(param.getName(), "targetId"))
+				.map(param -> ((Reference) param.getValue()).getReference()).collect(Collectors.toList());
+	}
+
+	/**
+	 * Splits the ids of a batch read into chunks fetched with one search each, limited both in
+	 * number of ids and in length
+	 */
+	private List<List<String>> getChunks(List<String> ids) {
+		int chunkSize = config.getBatchReadChunkSize();
+		List<List<String>> chunks = new ArrayList<>();
+		List<String> chunk = new ArrayList<>();
+		int length = 0;
+		for (String id : ids) {
+			if (!chunk.isEmpty() && (chunk.size() == chunkSize || length + id.length() + 1 > MAX_CHUNK_ID_LENGTH)) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>();
+				length = 0;
+			}
+			chunk.add(id);
+			length += id.length() + 1;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Fetches the patients with the given ids from the Client Registry, following the next links
+	 * should it page them
+	 */
+	private List<IBaseResource> fetchPatients(List<String> ids) {
+		List<ICriterion<?>> criteria = Collections
+				.singletonList(new StringClientParam(Patient.SP_RES_ID).matches().values(ids));
+		Bundle patientBundle = guard.execute(true, () -> searchClient.search(criteria, ids.size()));
+		return new CRSearchBundleProvider(patientBundle, ids.size(), this::loadPage).getResources(0, Integer.MAX_VALUE);
 	}
 
 	/**
-	 * Filter and parse out fhir patients from Client Registry Patient Search
-	 * results
+	 * Fetches a further page of Client Registry search results by its url
 	 */
-	private List<Patient> parseCRPatientSearchResults(Bundle patientBundle) {
-		return patientBundle.getEntry().stream().filter(entry -> entry.getResource().hasType(FhirConstants.PATIENT))
-				.map(entry -> (Patient) entry.getResource()).collect(Collectors.toList());
+	private Bundle loadPage(String url) {
+		return guard.execute(true, () -> searchClient.loadPage(url));
 	}
 }
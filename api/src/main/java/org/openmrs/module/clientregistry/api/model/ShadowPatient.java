@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A client registry patient as kept in the local shadow index: its identifiers, the golden record
+ * it is linked to and a few demographics, enough to resolve identifiers without asking the client
+ * registry.
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "clientregistry_shadow_patient")
+public class ShadowPatient implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Id
+	@Column(name = "cr_id", length = 64, nullable = false)
+	private String crId;
+	
+	/**
+	 * The client registry id of the golden record the patient is linked to, null if not linked.
+	 */
+	@Column(name = "golden_id", length = 64)
+	private String goldenId;
+	
+	@Column(name = "family_name")
+	private String familyName;
+	
+	@Column(name = "given_name")
+	private String givenName;
+	
+	@Column(name = "gender", length = 20)
+	private String gender;
+	
+	@Temporal(TemporalType.DATE)
+	@Column(name = "birthdate")
+	private Date birthdate;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "last_updated")
+	private Date lastUpdated;
+	
+	@ElementCollection(fetch = FetchType.EAGER)
+	@CollectionTable(name = "clientregistry_shadow_identifier", joinColumns = @JoinColumn(name = "cr_id"))
+	private List<ShadowIdentifier> identifiers = new ArrayList<>();
+}
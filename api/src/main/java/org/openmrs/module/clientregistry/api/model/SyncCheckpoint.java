@@ -0,0 +1,45 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A named position of a long-running sync job, e.g. the last patient a backfill got through, so
+ * that the job can pick up where it left off after OpenMRS restarts.
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "clientregistry_sync_checkpoint")
+public class SyncCheckpoint implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Id
+	@Column(name = "name", length = 100, nullable = false)
+	private String name;
+	
+	@Column(name = "value", length = 255)
+	private String value;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "date_updated", nullable = false)
+	private Date dateUpdated;
+}
@@ -0,0 +1,64 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A fingerprint of the last representation of a patient the client registry accepted, used to skip
+ * pushes that would not change anything in the client registry. When patch updates are enabled the
+ * representation itself is kept too, as the base the next update is diffed against, with the
+ * version the client registry gave the patient, which a patch only applies to. A second
+ * fingerprint covers only the patient's demographics, telling whether a push may change which
+ * client registry searches find the patient.
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "clientregistry_sync_fingerprint")
+public class SyncFingerprint implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Id
+	@Column(name = "patient_uuid", length = 38, nullable = false)
+	private String patientUuid;
+	
+	@Column(name = "fingerprint", length = 64, nullable = false)
+	private String fingerprint;
+	
+	@Column(name = "payload")
+	private String payload;
+	
+	@Column(name = "demographics_fingerprint", length = 64)
+	private String demographicsFingerprint;
+	
+	@Column(name = "version_id", length = 64)
+	private String versionId;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "date_sent", nullable = false)
+	private Date dateSent;
+	
+	public SyncFingerprint(String patientUuid, String fingerprint, String payload) {
+		this.patientUuid = patientUuid;
+		this.fingerprint = fingerprint;
+		this.payload = payload;
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.openmrs.event.Event;
+
+/**
+ * A patient event waiting to be pushed to the client registry. Entries are written when a patient
+ * CREATED/UPDATED event is received and drained by the sync worker, so that nothing is lost if the
+ * client registry is unavailable or OpenMRS restarts before the push happens.
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "clientregistry_sync_outbox")
+public class SyncOutboxEntry implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public enum Status {
+		PENDING,
+		DONE,
+		/**
+		 * Failed more often than allowed, left for an admin to replay.
+		 */
+		DEAD
+	}
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "sync_outbox_id")
+	private Integer id;
+	
+	@Column(name = "patient_uuid", length = 38, nullable = false)
+	private String patientUuid;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "event_action", length = 50, nullable = false)
+	private Event.Action eventAction;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", length = 50, nullable = false)
+	private Status status = Status.PENDING;
+	
+	@Column(name = "attempts", nullable = false)
+	private Integer attempts = 0;
+	
+	@Column(name = "last_error", length = 1024)
+	private String lastError;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "date_created", nullable = false)
+	private Date dateCreated;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "next_attempt")
+	private Date nextAttempt;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "date_processed")
+	private Date dateProcessed;
+	
+	public SyncOutboxEntry(String patientUuid, Event.Action eventAction) {
+		this.patientUuid = patientUuid;
+		this.eventAction = eventAction;
+		this.dateCreated = new Date();
+	}
+}
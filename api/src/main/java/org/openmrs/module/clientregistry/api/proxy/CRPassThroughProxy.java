@@ -0,0 +1,206 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.search.CRSearchClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Streams client registry responses to FHIR clients as they arrive, without parsing them into
+ * resources and encoding them again. Search results are copied JSON token by JSON token, only
+ * rewriting the bundle's paging links so that clients page through this server; anything else is
+ * copied byte for byte. Either way only a few kilobytes of the response are held at a time. The
+ * caches, the shadow index and the request coalescing are bypassed. Error responses of the client
+ * registry are reported the way the other operations report them.
+ */
+@Component
+public class CRPassThroughProxy {
+	
+	/**
+	 * The parameter carrying the client registry paging link a client follows, relative to the client
+	 * registry's base URL.
+	 */
+	public static final String PAGE_PARAMETER = "_crpage";
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	private static final Set<String> SEARCH_PARAMETERS = new HashSet<>(Arrays.asList(Patient.SP_NAME,
+	    Patient.SP_GIVEN, Patient.SP_FAMILY, Patient.SP_IDENTIFIER, Patient.SP_GENDER, Patient.SP_BIRTHDATE,
+	    Patient.SP_DEATH_DATE, Patient.SP_DECEASED, Patient.SP_ADDRESS_CITY, Patient.SP_ADDRESS_STATE,
+	    Patient.SP_ADDRESS_POSTALCODE, Patient.SP_ADDRESS_COUNTRY, Patient.SP_RES_ID, Constants.PARAM_LASTUPDATED,
+	    Constants.PARAM_COUNT, Constants.PARAM_SORT));
+	
+	/**
+	 * Paging links relative to the client registry's base URL: a search or a page of a search.
+	 */
+	private static final Pattern PAGE_LINK = Pattern.compile("(Patient)?\\?[^#]*");
+	
+	private final JsonFactory jsonFactory = new JsonFactory();
+	
+	@Autowired
+	private CRSearchClient searchClient;
+	
+	@Autowired
+	private ClientRegistryGuard guard;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	/**
+	 * Streams the results of a client registry patient search.
+	 * 
+	 * @param parameters the search parameters of the request; a page of earlier results is requested
+	 *            with {@link #PAGE_PARAMETER} alone
+	 * @param serverBase the base URL of this server, which the paging links are rewritten to
+	 * @param response the response to stream the results to
+	 * @throws IOException if the results cannot be read or written
+	 */
+	public void search(Map<String, String[]> parameters, String serverBase, HttpServletResponse response)
+	        throws IOException {
+		String crBase = searchClient.getBaseUrl();
+		String[] page = parameters.get(PAGE_PARAMETER);
+		String url;
+		if (page != null && page.length > 0) {
+			if (!PAGE_LINK.matcher(page[0]).matches()) {
+				throw new InvalidRequestException("Invalid " + PAGE_PARAMETER + " parameter");
+			}
+			url = page[0].startsWith("?") ? crBase + page[0] : crBase + "/" + page[0];
+		} else {
+			url = crBase + "/Patient?" + toQueryString(parameters);
+		}
+		
+		String pageBase = serverBase + "/Patient/" + ClientRegistryConstants.CR_FHIR_SEARCH_PROXY_OPERATION + "?"
+		        + PAGE_PARAMETER + "=";
+		stream(url, response, (in, out) -> copyRewritingLinks(in, out, crBase, pageBase));
+	}
+	
+	/**
+	 * Streams a client registry patient.
+	 * 
+	 * @param id the client registry id of the patient
+	 * @param response the response to stream the patient to
+	 * @throws IOException if the patient cannot be read or written
+	 */
+	public void read(String id, HttpServletResponse response) throws IOException {
+		String crBase = searchClient.getBaseUrl();
+		stream(crBase + "/Patient/" + encode(id), response, CRPassThroughProxy::copy);
+	}
+	
+	private void stream(String url, HttpServletResponse response, BodyCopier copier) throws IOException {
+		metrics.increment(ClientRegistryMetrics.PASSTHROUGH_REQUESTS);
+		IHttpResponse crResponse = guard.execute(true, () -> searchClient.get(url));
+		try {
+			response.setStatus(crResponse.getStatus());
+			response.setContentType(Constants.CT_FHIR_JSON_NEW);
+			response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+			try (InputStream in = crResponse.readEntity()) {
+				if (in == null) {
+					return;
+				}
+				OutputStream out = response.getOutputStream();
+				copier.copy(in, out);
+				out.flush();
+			}
+		}
+		finally {
+			crResponse.close();
+		}
+	}
+	
+	/**
+	 * Copies a search result bundle, rewriting its paging links to the client registry into links to
+	 * this server's pass-through search.
+	 */
+	void copyRewritingLinks(InputStream in, OutputStream out, String crBase, String pageBase) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(in);
+		        JsonGenerator generator = jsonFactory.createGenerator(out)) {
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			while (parser.nextToken() != null) {
+				if (parser.currentToken() == JsonToken.VALUE_STRING && isBundleLinkUrl(parser.getParsingContext())) {
+					generator.writeString(rewriteLink(parser.getText(), crBase, pageBase));
+				} else {
+					generator.copyCurrentEvent(parser);
+				}
+			}
+		}
+	}
+	
+	private static boolean isBundleLinkUrl(JsonStreamContext context) {
+		JsonStreamContext links = context.getParent();
+		JsonStreamContext bundle = links == null ? null : links.getParent();
+		return context.inObject() && "url".equals(context.getCurrentName()) && links.inArray() && bundle != null
+		        && bundle.inObject() && "link".equals(bundle.getCurrentName()) && bundle.getParent().inRoot();
+	}
+	
+	private static String rewriteLink(String link, String crBase, String pageBase) throws IOException {
+		if (!link.startsWith(crBase)) {
+			return link;
+		}
+		String relative = StringUtils.removeStart(link.substring(crBase.length()), "/");
+		return PAGE_LINK.matcher(relative).matches() ? pageBase + encode(relative) : link;
+	}
+	
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+			out.write(buffer, 0, read);
+		}
+	}
+	
+	private static String toQueryString(Map<String, String[]> parameters) throws UnsupportedEncodingException {
+		StringJoiner query = new StringJoiner("&");
+		for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+			// modifiers like :exact are passed on
+			if (!SEARCH_PARAMETERS.contains(StringUtils.substringBefore(parameter.getKey(), ":"))) {
+				continue;
+			}
+			for (String value : parameter.getValue()) {
+				query.add(encode(parameter.getKey()) + "=" + encode(value));
+			}
+		}
+		return query.toString();
+	}
+	
+	private static String encode(String value) throws UnsupportedEncodingException {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+	}
+	
+	private interface BodyCopier {
+		
+		void copy(InputStream in, OutputStream out) throws IOException;
+	}
+}
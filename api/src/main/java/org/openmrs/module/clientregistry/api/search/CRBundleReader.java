@@ -0,0 +1,173 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a client registry search result bundle from its JSON one token at a time. Only the bundle's
+ * type, total and links and the Patient entries are read; other entries, e.g. OperationOutcomes or
+ * included resources, are skipped without being built. Each Patient is parsed on its own from its
+ * part of the JSON and handed to a consumer, so the whole bundle is never held at once.
+ */
+public class CRBundleReader {
+	
+	private static final String RESOURCE_TYPE = "resourceType";
+	
+	private static final String PATIENT = "Patient";
+	
+	private final JsonFactory jsonFactory = new JsonFactory();
+	
+	private final FhirContext fhirContext;
+	
+	private final long maxBytes;
+	
+	private long readBytes = 0;
+	
+	/**
+	 * @param fhirContext the context the patients are parsed with
+	 * @param maxBytes the maximum number of bytes of patient JSON read, 0 for no maximum
+	 */
+	public CRBundleReader(FhirContext fhirContext, long maxBytes) {
+		this.fhirContext = fhirContext;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @param in the JSON of the bundle
+	 * @param consumer takes the patients of the bundle, one at a time
+	 * @return the bundle without its entries
+	 * @throws InternalErrorException if the patients read by this reader exceed its maximum number of
+	 *             bytes
+	 */
+	public Bundle read(InputStream in, Consumer<Patient> consumer) throws IOException {
+		Bundle bundle = new Bundle();
+		try (JsonParser parser = jsonFactory.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("The client registry did not return a JSON bundle");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("type".equals(field) && value == JsonToken.VALUE_STRING) {
+					bundle.setType(Bundle.BundleType.fromCode(parser.getText()));
+				} else if ("total".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+					bundle.setTotal(parser.getIntValue());
+				} else if ("link".equals(field) && value == JsonToken.START_ARRAY) {
+					readLinks(parser, bundle);
+				} else if ("entry".equals(field) && value == JsonToken.START_ARRAY) {
+					readEntries(parser, consumer);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return bundle;
+	}
+	
+	/**
+	 * @return the number of bytes of patient JSON read so far
+	 */
+	public long getReadBytes() {
+		return readBytes;
+	}
+	
+	private void readLinks(JsonParser parser, Bundle bundle) throws IOException {
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			Bundle.BundleLinkComponent link = bundle.addLink();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("relation".equals(field)) {
+					link.setRelation(parser.getText());
+				} else if ("url".equals(field)) {
+					link.setUrl(parser.getText());
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+	
+	private void readEntries(JsonParser parser, Consumer<Patient> consumer) throws IOException {
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				if (parser.nextToken() == JsonToken.START_OBJECT && "resource".equals(field)) {
+					Patient patient = readPatient(parser);
+					if (patient != null) {
+						consumer.accept(patient);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the resource the parser is at the start of.
+	 * 
+	 * @return the resource if it is a patient, null if it is not
+	 */
+	private Patient readPatient(JsonParser parser) throws IOException {
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		String resourceType = null;
+		try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+			generator.writeStartObject();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				if (RESOURCE_TYPE.equals(parser.getCurrentName())) {
+					parser.nextToken();
+					resourceType = parser.getText();
+					if (!PATIENT.equals(resourceType)) {
+						skipRest(parser);
+						return null;
+					}
+					generator.writeStringField(RESOURCE_TYPE, resourceType);
+				} else {
+					generator.copyCurrentStructure(parser);
+				}
+				generator.flush();
+				checkSize(json.size());
+			}
+			generator.writeEndObject();
+		}
+		
+		if (!PATIENT.equals(resourceType)) {
+			return null;
+		}
+		readBytes += json.size();
+		return fhirContext.newJsonParser().parseResource(Patient.class, new ByteArrayInputStream(json.toByteArray()));
+	}
+	
+	private void checkSize(long resourceBytes) {
+		if (maxBytes > 0 && readBytes + resourceBytes > maxBytes) {
+			throw new InternalErrorException("The client registry results exceed the " + maxBytes / 1024
+			        + " KB a request may read, ask for fewer patients per page");
+		}
+	}
+	
+	/**
+	 * Skips the rest of the object the parser is in.
+	 */
+	private static void skipRest(JsonParser parser) throws IOException {
+		for (JsonToken token = parser.nextToken(); token != JsonToken.END_OBJECT; token = parser.nextToken()) {
+			if (token == null) {
+				throw new IOException("Unexpected end of the client registry bundle");
+			}
+			parser.skipChildren();
+		}
+	}
+}
@@ -1,16 +1,249 @@
 package org.openmrs.module.clientregistry.api.search;
 
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.module.clientregistry.api.cache.LruCache;
 
-import ca.uhn.fhir.rest.server.SimpleBundleProvider;
-
-public class CRSearchBundleProvider extends SimpleBundleProvider implements Serializable {
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 
+/**
+ * The patients found by a client registry search. Only the first page comes with the search; the
+ * pages a client asks for after that are fetched from the client registry when they are needed,
+ * directly by their offset when the client registry's next links carry one and by following the
+ * next links otherwise. A few fetched pages are kept for clients paging back and forth. Not
+ * serializable, as it holds on to the client registry connection the pages are fetched through.
+ */
+public class CRSearchBundleProvider implements IBundleProvider {
+	
+	private static final int MAX_CACHED_PAGES = 5;
+	
+	private static final Pattern OFFSET_PARAMETER = Pattern.compile("([?&](?:_getpagesoffset|_offset)=)(\\d+)");
+	
+	private final String uuid = UUID.randomUUID().toString();
+	
+	private final InstantType published = InstantType.withCurrentTime();
+	
+	private final List<IBaseResource> firstPage;
+	
+	private final long firstPageEncodedSize;
+	
+	private final Integer total;
+	
+	/**
+	 * The number of patients per page, as asked of the client registry. The pages are located by it
+	 * rather than by the size of the first page, which falls short of it when the client registry
+	 * returns other resources alongside the patients.
+	 */
+	private final int pageSize;
+	
+	/**
+	 * The urls of the pages known so far, keyed by page index.
+	 */
+	private final Map<Integer, String> pageUrls = new HashMap<>();
+	
+	/**
+	 * A next link the url of any page can be made from by changing its offset, null if the client
+	 * registry does not page by offset.
+	 */
+	private final String offsetUrl;
+	
+	private final Function<String, Bundle> pageLoader;
+	
+	private final LruCache<Integer, Page> pages = new LruCache<>(() -> MAX_CACHED_PAGES);
+	
 	public CRSearchBundleProvider(List<? extends IBaseResource> patientList) {
-		super(patientList);
+		firstPage = Collections.unmodifiableList(new ArrayList<>(patientList));
+		firstPageEncodedSize = 0;
+		total = firstPage.size();
+		pageSize = Math.max(1, firstPage.size());
+		offsetUrl = null;
+		pageLoader = null;
+	}
+	
+	/**
+	 * @param firstPage the first page of the search results
+	 * @param pageSize the number of patients per page the search asked the client registry for
+	 * @param pageLoader fetches a page of the search results from the client registry by its url
+	 */
+	public CRSearchBundleProvider(Bundle firstPage, int pageSize, Function<String, Bundle> pageLoader) {
+		this.firstPage = getPatients(firstPage);
+		firstPageEncodedSize = getEncodedSize(firstPage);
+		this.pageLoader = pageLoader;
+		String nextUrl = getNextUrl(firstPage);
+		this.pageSize = Math.max(1, pageSize);
+		if (firstPage.hasTotal()) {
+			total = firstPage.getTotal();
+		} else {
+			// without a total the size is only known when there is nothing beyond the first page
+			total = nextUrl == null ? this.firstPage.size() : null;
+		}
+		if (nextUrl != null) {
+			pageUrls.put(1, nextUrl);
+		}
+		offsetUrl = nextUrl != null && OFFSET_PARAMETER.matcher(nextUrl).find() ? nextUrl : null;
+	}
+	
+	@Override
+	public IPrimitiveType<Date> getPublished() {
+		return published;
+	}
+	
+	@Override
+	public synchronized List<IBaseResource> getResources(int fromIndex, int toIndex) {
+		List<IBaseResource> resources = new ArrayList<>();
+		for (int index = fromIndex / pageSize; index * pageSize < toIndex; index++) {
+			List<IBaseResource> page = getPage(index);
+			if (page == null) {
+				break;
+			}
+			
+			int pageStart = index * pageSize;
+			int from = Math.max(0, fromIndex - pageStart);
+			int to = Math.min(page.size(), toIndex - pageStart);
+			if (from < to) {
+				resources.addAll(page.subList(from, to));
+			}
+			if (page.size() < pageSize) {
+				break;
+			}
+		}
+		return resources;
+	}
+	
+	@Override
+	public String getUuid() {
+		return uuid;
+	}
+	
+	@Override
+	public Integer preferredPageSize() {
+		return pageSize;
+	}
+	
+	@Override
+	public Integer size() {
+		return total;
+	}
+	
+	/**
+	 * Looks through the pages fetched so far, without fetching any further ones.
+	 * 
+	 * @param filter the condition for a patient
+	 * @return true if one of the patients fetched so far meets the condition
+	 */
+	public boolean hasPatient(Predicate<Patient> filter) {
+		List<List<IBaseResource>> fetched = pages.values().stream().map(Page::getPatients).collect(Collectors.toList());
+		fetched.add(firstPage);
+		return fetched.stream().flatMap(List::stream).map(Patient.class::cast).anyMatch(filter);
+	}
+	
+	/**
+	 * @return the number of bytes of patient JSON the pages held so far were read from, an estimate
+	 *         of the memory they take; 0 for patients not read from the client registry
+	 */
+	public long getEncodedSize() {
+		return firstPageEncodedSize + pages.values().stream().mapToLong(Page::getEncodedSize).sum();
+	}
+	
+	private List<IBaseResource> getPage(int index) {
+		if (index == 0) {
+			return firstPage;
+		}
+		
+		LruCache.Entry<Page> cached = pages.get(index);
+		if (cached != null) {
+			return cached.getValue().getPatients();
+		}
+		
+		String url = getPageUrl(index);
+		if (url == null) {
+			return null;
+		}
+		
+		Bundle bundle = pageLoader.apply(url);
+		String nextUrl = getNextUrl(bundle);
+		if (nextUrl != null) {
+			pageUrls.put(index + 1, nextUrl);
+		}
+		List<IBaseResource> page = getPatients(bundle);
+		pages.put(index, new Page(page, getEncodedSize(bundle)));
+		return page;
+	}
+	
+	private String getPageUrl(int index) {
+		String url = pageUrls.get(index);
+		if (url != null || pageLoader == null) {
+			return url;
+		}
+		
+		if (offsetUrl != null) {
+			Matcher matcher = OFFSET_PARAMETER.matcher(offsetUrl);
+			matcher.find();
+			return offsetUrl.substring(0, matcher.start(2)) + index * pageSize + offsetUrl.substring(matcher.end(2));
+		}
+		
+		// without offsets the only way to a page is through the next links of the pages before it
+		int known = pageUrls.keySet().stream().filter(i -> i < index).max(Integer::compare).orElse(0);
+		for (int i = known; i < index; i++) {
+			List<IBaseResource> page = getPage(i);
+			if (page == null || !pageUrls.containsKey(i + 1)) {
+				return null;
+			}
+		}
+		return pageUrls.get(index);
+	}
+	
+	private static List<IBaseResource> getPatients(Bundle bundle) {
+		return Collections.unmodifiableList(bundle.getEntry().stream().map(Bundle.BundleEntryComponent::getResource)
+				.filter(resource -> resource instanceof Patient).collect(Collectors.toList()));
+	}
+	
+	private static String getNextUrl(Bundle bundle) {
+		Bundle.BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+		return next == null ? null : next.getUrl();
+	}
+	
+	private static long getEncodedSize(Bundle bundle) {
+		Object encodedSize = bundle.getUserData(CRSearchClient.ENCODED_SIZE);
+		return encodedSize instanceof Long ? (Long) encodedSize : 0;
+	}
+	
+	/**
+	 * A fetched page with the number of bytes its patients were read from.
+	 */
+	private static final class Page {
+		
+		private final List<IBaseResource> patients;
+		
+		private final long encodedSize;
+		
+		private Page(List<IBaseResource> patients, long encodedSize) {
+			this.patients = patients;
+			this.encodedSize = encodedSize;
+		}
+		
+		List<IBaseResource> getPatients() {
+			return patients;
+		}
+		
+		long getEncodedSize() {
+			return encodedSize;
+		}
 	}
-
 }
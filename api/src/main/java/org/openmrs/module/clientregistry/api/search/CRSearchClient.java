@@ -0,0 +1,135 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.StringJoiner;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryClientHolder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.ICriterionInternal;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Searches the client registry for patients, reading the results with a {@link CRBundleReader}
+ * rather than having the FHIR client parse the whole bundle. Requests are made through the
+ * {@link ClientRegistryClientHolder}'s current client, so they share its connection pool and
+ * credentials.
+ */
+@Component
+public class CRSearchClient {
+	
+	/**
+	 * The user data key of the number of bytes of patient JSON a page was read from, an estimate of
+	 * the memory its patients take.
+	 */
+	public static final String ENCODED_SIZE = "clientregistry.encodedSize";
+	
+	@Autowired
+	@Qualifier("clientRegistryFhirClient")
+	private IGenericClient fhirClient;
+	
+	@Autowired
+	private ClientRegistryClientHolder clientHolder;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	/**
+	 * @param criteria the criteria of the search, as built by {@link PatientSearchCriteriaBuilder}
+	 * @param count the number of patients per page
+	 * @return the first page of results, with only its Patient entries
+	 */
+	public Bundle search(List<ICriterion<?>> criteria, int count) {
+		StringJoiner query = new StringJoiner("&");
+		for (ICriterion<?> criterion : criteria) {
+			ICriterionInternal internal = (ICriterionInternal) criterion;
+			query.add(encode(internal.getParameterName()) + "="
+			        + encode(internal.getParameterValue(fhirClient.getFhirContext())));
+		}
+		query.add(Constants.PARAM_COUNT + "=" + count);
+		return loadPage(getBaseUrl() + "/Patient?" + query);
+	}
+	
+	/**
+	 * @param url the url of a page of results, as linked to by the client registry
+	 * @return the page of results, with only its Patient entries and their {@link #ENCODED_SIZE}
+	 */
+	public Bundle loadPage(String url) {
+		IHttpResponse response = get(url);
+		try (InputStream in = response.readEntity()) {
+			CRBundleReader reader = new CRBundleReader(fhirClient.getFhirContext(),
+			        config.getSearchMemoryCeiling() * 1024L);
+			Bundle bundle = new Bundle();
+			Bundle page = reader.read(in, patient -> bundle.addEntry().setResource(patient));
+			bundle.setType(page.getType()).setLink(page.getLink());
+			if (page.hasTotal()) {
+				bundle.setTotal(page.getTotal());
+			}
+			bundle.setUserData(ENCODED_SIZE, reader.getReadBytes());
+			return bundle;
+		}
+		catch (IOException e) {
+			throw new FhirClientConnectionException(e);
+		}
+		finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Makes a GET request to the client registry. Responses with an error status are thrown the way
+	 * the FHIR client throws them.
+	 * 
+	 * @param url the absolute url
+	 * @return the response, which the caller has to close
+	 */
+	public IHttpResponse get(String url) {
+		IHttpRequest request = clientHolder.createGetRequest(url);
+		IHttpResponse response;
+		try {
+			response = request.execute();
+		}
+		catch (IOException e) {
+			throw new FhirClientConnectionException(e);
+		}
+		if (response.getStatus() >= 400) {
+			int status = response.getStatus();
+			String statusInfo = response.getStatusInfo();
+			response.close();
+			throw BaseServerResponseException.newInstance(status, statusInfo);
+		}
+		return response;
+	}
+	
+	/**
+	 * @return the base url of the client registry, without trailing slash
+	 */
+	public String getBaseUrl() {
+		return StringUtils.removeEnd(clientHolder.getServerUrl(), "/");
+	}
+	
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
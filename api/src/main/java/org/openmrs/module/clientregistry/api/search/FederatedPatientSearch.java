@@ -0,0 +1,152 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.clientregistry.api.CRPatientService;
+import org.openmrs.module.clientregistry.api.ClientRegistryManager;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.FhirPatientService;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Searches OpenMRS and the client registry for patients at the same time. The client registry is
+ * searched in a daemon thread while OpenMRS is searched in the calling thread, with the privileges
+ * of the user searching. Client registry patients that are OpenMRS patients found by the same search,
+ * or linked to the same golden record as one, are left out, as are all but the first patient linked
+ * to any one golden record. When the client registry does not answer within the configured time or
+ * fails, only the OpenMRS patients are returned and the response is flagged as partial.
+ */
+@Component
+public class FederatedPatientSearch {
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	@Autowired
+	private FhirPatientService localPatientService;
+	
+	@Autowired
+	private CRPatientService crService;
+	
+	@Autowired
+	private ClientRegistryManager clientRegistryManager;
+	
+	@Autowired
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	/**
+	 * @param searchParams the search
+	 * @return a searchset bundle with the first page of OpenMRS patients followed by the first page of
+	 *         client registry patients, and an OperationOutcome entry if the client registry results are
+	 *         missing
+	 */
+	public Bundle search(PatientSearchParams searchParams) {
+		long deadline = System.currentTimeMillis() + config.getFederatedSearchTimeout();
+		int pageSize = globalPropertyService.getGlobalProperty(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE, 10);
+		CompletableFuture<List<IBaseResource>> crSearch = clientRegistryManager
+		        .supplyAsync(() -> crService.searchPatients(searchParams).getResources(0, pageSize));
+		List<IBaseResource> localPatients = localPatientService.searchForPatients(searchParams).getResources(0, pageSize);
+		
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		Set<String> localUuids = new HashSet<>();
+		for (IBaseResource patient : localPatients) {
+			localUuids.add(patient.getIdElement().getIdPart());
+			addEntry(bundle, (Resource) patient, Bundle.SearchEntryMode.MATCH);
+		}
+		
+		List<IBaseResource> crPatients;
+		try {
+			crPatients = crSearch.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			// don't keep a worker busy with results nobody waits for anymore
+			crSearch.cancel(true);
+			return partial(bundle, "The client registry did not answer within " + config.getFederatedSearchTimeout()
+			        + " ms, only OpenMRS patients are returned");
+		}
+		catch (ExecutionException e) {
+			log.warn("Client registry search of a federated search failed", e.getCause());
+			return partial(bundle, "The client registry search failed, only OpenMRS patients are returned: "
+			        + e.getCause().getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return partial(bundle, "The client registry search was interrupted, only OpenMRS patients are returned");
+		}
+		
+		String identifierRoot = config.getClientRegistryIdentifierRoot() + "/";
+		Set<String> seenGoldenIds = new HashSet<>();
+		for (IBaseResource resource : crPatients) {
+			if (localUuids.contains(getOpenmrsUuid((Patient) resource, identifierRoot))) {
+				seenGoldenIds.add(getGoldenId((Patient) resource));
+			}
+		}
+		for (IBaseResource resource : crPatients) {
+			if (seenGoldenIds.add(getGoldenId((Patient) resource))) {
+				addEntry(bundle, (Resource) resource, Bundle.SearchEntryMode.MATCH);
+			}
+		}
+		return bundle;
+	}
+	
+	private Bundle partial(Bundle bundle, String diagnostics) {
+		metrics.increment(ClientRegistryMetrics.FEDERATED_SEARCH_PARTIAL);
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING)
+		        .setCode(OperationOutcome.IssueType.INCOMPLETE).setDiagnostics(diagnostics);
+		addEntry(bundle, outcome, Bundle.SearchEntryMode.OUTCOME);
+		return bundle;
+	}
+	
+	private static void addEntry(Bundle bundle, Resource resource, Bundle.SearchEntryMode mode) {
+		bundle.addEntry().setResource(resource).getSearch().setMode(mode);
+	}
+	
+	/**
+	 * @return the uuid of the OpenMRS patient a client registry patient was pushed from by this
+	 *         OpenMRS, or null if it was not
+	 */
+	private static String getOpenmrsUuid(Patient patient, String identifierRoot) {
+		return patient.getIdentifier().stream()
+		        .filter(identifier -> ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM.equals(identifier.getSystem()))
+		        .map(identifier -> StringUtils.defaultString(identifier.getValue()))
+		        .filter(value -> value.startsWith(identifierRoot)).map(value -> value.substring(identifierRoot.length()))
+		        .findFirst().orElse(null);
+	}
+	
+	/**
+	 * @return the id of the golden record a client registry patient is linked to, or its own id if it
+	 *         is not linked to one
+	 */
+	private static String getGoldenId(Patient patient) {
+		return patient.getLink().stream()
+		        .filter(link -> link.getType() == Patient.LinkType.REFER || link.getType() == Patient.LinkType.REPLACEDBY)
+		        .map(link -> link.getOther().getReferenceElement().getIdPart()).filter(StringUtils::isNotBlank)
+		        .findFirst().orElse(patient.getIdElement().getIdPart());
+	}
+}
@@ -4,10 +4,14 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.commons.lang3.StringUtils;
@@ -16,7 +20,9 @@ import org.openmrs.module.fhir2.FhirConstants;
 import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
 import org.openmrs.module.fhir2.api.search.param.PropParam;
 import org.springframework.stereotype.Component;
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.ICriterionInternal;
 import ca.uhn.fhir.rest.gclient.StringClientParam;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
 import ca.uhn.fhir.rest.param.DateParam;
@@ -44,6 +50,18 @@ public class PatientSearchCriteriaBuilder {
 		customPropertyToFhirMap.put("_lastUpdated.property", "_lastUpdated");
 	}
 	
+	/**
+	 * Parameters whose values are matched case-sensitively by the client registry.
+	 */
+	private static final Set<String> caseSensitiveParams = new TreeSet<>(
+	        Arrays.asList(Patient.SP_IDENTIFIER, Patient.SP_RES_ID));
+	
+	private static final Pattern VALUE_SEPARATOR = Pattern.compile("(?<!\\\\),");
+	
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	
+	private static final Pattern EQUALS_DATE = Pattern.compile("^eq(?=\\d)");
+	
 	public List<ICriterion<?>> buildCriteria(PatientSearchParams patientSearchParams) {
         return patientSearchParams.toSearchParameterMap().getParameters().stream().map(entry -> {
             List<PropParam<?>> params = entry.getValue();
@@ -67,6 +85,38 @@ public class PatientSearchCriteriaBuilder {
         }).flatMap(Collection::stream).filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList());
     }
 	
+	/**
+	 * Canonicalizes criteria built by {@link #buildCriteria(PatientSearchParams)} into a key that is
+	 * the same for every search the client registry answers the same way: the order of parameters
+	 * and of the alternative values of a parameter doesn't matter, repeated parameters and values
+	 * count once, whitespace is collapsed, values not matched case-sensitively are lower-cased and a
+	 * date without prefix is the same as one with the eq prefix.
+	 * 
+	 * @param criteria the criteria of a search
+	 * @param fhirContext the context the criteria are encoded with
+	 * @return the canonical key of the search, or null if a criterion cannot be canonicalized
+	 */
+	public String getCanonicalKey(List<ICriterion<?>> criteria, FhirContext fhirContext) {
+		Set<String> params = new TreeSet<>();
+		for (ICriterion<?> criterion : criteria) {
+			if (!(criterion instanceof ICriterionInternal)) {
+				return null;
+			}
+			
+			String name = StringUtils.trimToEmpty(((ICriterionInternal) criterion).getParameterName());
+			String value = ((ICriterionInternal) criterion).getParameterValue(fhirContext);
+			boolean caseSensitive = name.endsWith(":exact") || caseSensitiveParams.contains(name);
+			Set<String> values = new TreeSet<>();
+			for (String alternative : VALUE_SEPARATOR.split(StringUtils.defaultString(value), -1)) {
+				String normalized = WHITESPACE.matcher(alternative.trim()).replaceAll(" ");
+				normalized = EQUALS_DATE.matcher(normalized).replaceFirst("");
+				values.add(caseSensitive ? normalized : normalized.toLowerCase(Locale.ROOT));
+			}
+			params.add(name + "=" + String.join(",", values));
+		}
+		return String.join("&", params);
+	}
+	
 	private List<Optional<ICriterion<?>>> processParamsEntry(List<PropParam<?>> params,
             Function<PropParam<?>, List<Optional<ICriterion<?>>>> handler) {
         return params.stream().map(handler).flatMap(Collection::stream).collect(Collectors.toList());
@@ -83,7 +133,7 @@ public class PatientSearchCriteriaBuilder {
             return Arrays.asList(Optional.empty());
         }
         String paramName = getFhirParamName(param);
-        
+
         return extractStringParams((StringAndListParam) param.getParam()).stream()
                 .map(stringParam -> createCriterionFromStringParam(paramName, stringParam)).collect(Collectors.toList());
     }
@@ -113,7 +163,7 @@ public class PatientSearchCriteriaBuilder {
         Map<String, List<TokenParam>> identifierTokens = extractTokenParamsBySystem((TokenAndListParam) param.getParam());
         List<Optional<ICriterion<?>>> criterions = identifierTokens.entrySet().stream()
                 .map(e -> createIdentifierCriterion(e.getKey(), e.getValue())).collect(Collectors.toList());
-        
+
         return criterions;
     }
 	
@@ -121,7 +171,7 @@ public class PatientSearchCriteriaBuilder {
         DateRangeParam dateRangeParam = (DateRangeParam) param.getParam();
         DateParam lower = dateRangeParam.getLowerBound();
         DateParam upper = dateRangeParam.getUpperBound();
-        
+
         return Stream.of(hasDistinctRanges(lower, upper) ? new DateParam[] { lower, upper } : new DateParam[] { lower })
                 .filter(Objects::nonNull).map(dateParam -> {
                     String prefix = dateParam.getPrefix() != null ? dateParam.getPrefix().getValue() : "eq";
@@ -159,7 +209,7 @@ public class PatientSearchCriteriaBuilder {
             return Optional.empty();
         }
         List<String> identifiers = identifierTokens.stream().map(TokenParam::getValue).collect(Collectors.toList());
-        
+
         ICriterion<?> criterion;
         if (StringUtils.isNotBlank(system)) {
             criterion = Patient.IDENTIFIER.exactly().systemAndValues(system, identifiers);
@@ -0,0 +1,328 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An in-memory index finding the client registry patients whose names sound like the names searched
+ * for and who were born around the same year, to rank fuzzy search candidates without asking the
+ * client registry. Patients are blocked by the Double Metaphone codes of their family name and first
+ * given name combined with their birth year; a block only holds the ordinals of its patients in an
+ * int array and the patients' ids are kept together in one byte array, so a patient takes about 60
+ * bytes and a million patients fit in well under 100 MB.
+ * <p>
+ * A patient indexed again gets a new ordinal and its old one is marked dead, so the index grows with
+ * updates until it is built again, see {@link #needsCompaction()}.
+ */
+public class PhoneticBlockingIndex {
+	
+	private static final int GIVEN_FIELD = 1 << 20;
+	
+	/**
+	 * Birth years are kept as their offset from this year, patients born before it have an unknown
+	 * birth year.
+	 */
+	private static final int FIRST_YEAR = 1850;
+	
+	private static final int UNKNOWN_YEAR = 0;
+	
+	private static final int MAX_YEAR_CODE = (1 << 11) - 1;
+	
+	private static final int YEAR_TOLERANCE = 1;
+	
+	private final DoubleMetaphone metaphone = new DoubleMetaphone();
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	private final Map<Integer, Postings> blocks = new HashMap<>();
+	
+	private final BitSet dead = new BitSet();
+	
+	/**
+	 * The number of ordinals given so far, dead ones included.
+	 */
+	private int ordinals = 0;
+	
+	private byte[] ids = new byte[1024];
+	
+	/**
+	 * The id of the patient with ordinal o is in {@link #ids} from idOffsets[o] to idOffsets[o + 1].
+	 */
+	private int[] idOffsets = new int[65];
+	
+	private short[] yearCodes = new short[64];
+	
+	private byte[] genders = new byte[64];
+	
+	/**
+	 * An open addressing table of the live ordinals by patient id, each slot holding an ordinal + 1 or
+	 * 0 when free.
+	 */
+	private int[] idTable = new int[128];
+	
+	/**
+	 * Adds a patient to the index, replacing what was indexed for it before.
+	 * 
+	 * @param crId the client registry id of the patient
+	 * @param familyName the family name of the patient
+	 * @param givenName the given names of the patient
+	 * @param birthdate the birthdate of the patient
+	 * @param gender the FHIR administrative gender of the patient
+	 */
+	public void add(String crId, String familyName, String givenName, Date birthdate, String gender) {
+		byte[] id = crId.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = findSlot(id);
+			if (idTable[slot] != 0) {
+				dead.set(idTable[slot] - 1);
+			}
+			
+			int ordinal = append(id, toYearCode(birthdate), toGenderCode(gender));
+			idTable[slot] = ordinal + 1;
+			for (int key : getBlockKeys(familyName, givenName, yearCodes[ordinal])) {
+				blocks.computeIfAbsent(key, k -> new Postings()).add(ordinal);
+			}
+			if (ordinals * 2 > idTable.length) {
+				rehash(idTable.length * 2);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Finds the patients with a family or given name sounding like the ones searched for, born within
+	 * a year of the birth year searched for or with an unknown birth year. Patients matching both
+	 * names rank before those matching one, and those born in the year searched for before the others.
+	 * 
+	 * @param familyName the family name searched for, may be null
+	 * @param givenName the given name searched for, may be null
+	 * @param birthYear the birth year searched for
+	 * @param gender the FHIR administrative gender searched for, null for any
+	 * @param limit the maximum number of candidates to return
+	 * @return the client registry ids of the candidates, best first
+	 */
+	public List<String> findCandidates(String familyName, String givenName, int birthYear, String gender, int limit) {
+		int yearCode = toYearCode(birthYear);
+		byte genderCode = toGenderCode(gender);
+		int[] years = yearCode == UNKNOWN_YEAR ? new int[] { UNKNOWN_YEAR }
+		        : new int[] { yearCode, yearCode - YEAR_TOLERANCE, yearCode + YEAR_TOLERANCE, UNKNOWN_YEAR };
+		
+		lock.readLock().lock();
+		try {
+			Map<Integer, Integer> scores = new HashMap<>();
+			for (int year : years) {
+				if (year < 0 || year > MAX_YEAR_CODE) {
+					continue;
+				}
+				for (int key : getBlockKeys(familyName, givenName, year)) {
+					Postings postings = blocks.get(key);
+					if (postings == null) {
+						continue;
+					}
+					
+					int nameScore = (key & GIVEN_FIELD) != 0 ? 2 : 4;
+					for (int i = 0; i < postings.size; i++) {
+						int ordinal = postings.ordinals[i];
+						if (dead.get(ordinal) || genderCode != 0 && genders[ordinal] != 0 && genders[ordinal] != genderCode) {
+							continue;
+						}
+						int yearScore = yearCodes[ordinal] == yearCode && yearCode != UNKNOWN_YEAR ? 1 : 0;
+						scores.merge(ordinal, nameScore | yearScore, (a, b) -> a | b);
+					}
+				}
+			}
+			
+			return scores.entrySet().stream()
+			        .sorted(Map.Entry.<Integer, Integer> comparingByValue(Comparator.reverseOrder())
+			                .thenComparing(Map.Entry.comparingByKey()))
+			        .limit(limit).map(entry -> getId(entry.getKey())).collect(Collectors.toList());
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of patients in the index
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return ordinals - dead.cardinality();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return whether more than a quarter of the ordinals are dead and the index should be built again
+	 */
+	public boolean needsCompaction() {
+		lock.readLock().lock();
+		try {
+			return dead.cardinality() * 4 > ordinals;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private int append(byte[] id, int yearCode, byte genderCode) {
+		int ordinal = ordinals++;
+		if (ordinal == yearCodes.length) {
+			int capacity = yearCodes.length * 2;
+			yearCodes = Arrays.copyOf(yearCodes, capacity);
+			genders = Arrays.copyOf(genders, capacity);
+			idOffsets = Arrays.copyOf(idOffsets, capacity + 1);
+		}
+		int start = idOffsets[ordinal];
+		if (start + id.length > ids.length) {
+			ids = Arrays.copyOf(ids, Math.max(ids.length * 2, start + id.length));
+		}
+		System.arraycopy(id, 0, ids, start, id.length);
+		idOffsets[ordinal + 1] = start + id.length;
+		yearCodes[ordinal] = (short) yearCode;
+		genders[ordinal] = genderCode;
+		return ordinal;
+	}
+	
+	private String getId(int ordinal) {
+		return new String(ids, idOffsets[ordinal], idOffsets[ordinal + 1] - idOffsets[ordinal], StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return the slot of the patient with the id, or the free slot it would take
+	 */
+	private int findSlot(byte[] id) {
+		int mask = idTable.length - 1;
+		for (int slot = Arrays.hashCode(id) & mask;; slot = (slot + 1) & mask) {
+			int ordinal = idTable[slot] - 1;
+			if (ordinal < 0 || hasId(ordinal, id)) {
+				return slot;
+			}
+		}
+	}
+	
+	private boolean hasId(int ordinal, byte[] id) {
+		int start = idOffsets[ordinal];
+		if (idOffsets[ordinal + 1] - start != id.length) {
+			return false;
+		}
+		for (int i = 0; i < id.length; i++) {
+			if (ids[start + i] != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void rehash(int capacity) {
+		int[] live = Arrays.stream(idTable).filter(entry -> entry != 0).toArray();
+		idTable = new int[capacity];
+		for (int entry : live) {
+			idTable[findSlot(Arrays.copyOfRange(ids, idOffsets[entry - 1], idOffsets[entry]))] = entry;
+		}
+	}
+	
+	private List<Integer> getBlockKeys(String familyName, String givenName, int yearCode) {
+		List<Integer> keys = new ArrayList<>();
+		for (String code : getCodes(familyName)) {
+			keys.add(yearCode << 21 | pack(code));
+		}
+		for (String code : getCodes(StringUtils.substringBefore(StringUtils.trimToEmpty(givenName), " "))) {
+			keys.add(yearCode << 21 | GIVEN_FIELD | pack(code));
+		}
+		return keys;
+	}
+	
+	private List<String> getCodes(String name) {
+		List<String> codes = new ArrayList<>(2);
+		String letters = StringUtils.stripAccents(StringUtils.defaultString(name)).replaceAll("[^A-Za-z]", "");
+		if (letters.isEmpty()) {
+			return codes;
+		}
+		String primary = metaphone.doubleMetaphone(letters);
+		String alternate = metaphone.doubleMetaphone(letters, true);
+		if (StringUtils.isNotEmpty(primary)) {
+			codes.add(primary);
+		}
+		if (StringUtils.isNotEmpty(alternate) && !alternate.equals(primary)) {
+			codes.add(alternate);
+		}
+		return codes;
+	}
+	
+	/**
+	 * Packs a Double Metaphone code of up to 4 characters, each one of A to Z or 0, in 20 bits.
+	 */
+	private static int pack(String code) {
+		int packed = 0;
+		for (int i = 0; i < Math.min(4, code.length()); i++) {
+			char c = code.charAt(i);
+			packed = packed << 5 | (c == '0' ? 27 : c - 'A' + 1);
+		}
+		return packed;
+	}
+	
+	private static int toYearCode(Date birthdate) {
+		if (birthdate == null) {
+			return UNKNOWN_YEAR;
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(birthdate);
+		return toYearCode(calendar.get(Calendar.YEAR));
+	}
+	
+	private static int toYearCode(int year) {
+		int code = year - FIRST_YEAR + 1;
+		return code > 0 && code <= MAX_YEAR_CODE ? code : UNKNOWN_YEAR;
+	}
+	
+	private static byte toGenderCode(String gender) {
+		switch (StringUtils.defaultString(gender)) {
+			case "male":
+				return 1;
+			case "female":
+				return 2;
+			case "other":
+				return 3;
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * The ordinals of the patients in a block, in a growing int array.
+	 */
+	private static class Postings {
+		
+		private int[] ordinals = new int[4];
+		
+		private int size = 0;
+		
+		private void add(int ordinal) {
+			if (size == ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, size + (size >> 1) + 1);
+			}
+			ordinals[size++] = ordinal;
+		}
+	}
+}
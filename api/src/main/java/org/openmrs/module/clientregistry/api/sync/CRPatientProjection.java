@@ -0,0 +1,285 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.fhir2.api.FhirPatientIdentifierSystemService;
+import org.openmrs.module.fhir2.api.translators.BirthDateTranslator;
+import org.openmrs.module.fhir2.api.translators.PersonAddressTranslator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the FHIR Patient pushed to the client registry straight from an OpenMRS patient, covering
+ * only what the client registry matches and links on: names, gender, birth and death, addresses,
+ * telecom, identifiers and the configured attribute extensions. Unlike the fhir2 patient translator
+ * it works on the already loaded patient without further queries, so its cost does not grow with
+ * the number of configured extensions. Addresses and the birth date are handed to the fhir2
+ * translators for them, which need no queries either, so that they carry the address extensions
+ * and the lowered precision of estimated birth dates just as fhir2 maps them.
+ */
+@Component
+public class CRPatientProjection {
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	private FhirPatientIdentifierSystemService identifierSystemService;
+	
+	@Autowired
+	private PersonAddressTranslator addressTranslator;
+	
+	@Autowired
+	private BirthDateTranslator birthDateTranslator;
+	
+	@Autowired
+	@Qualifier("fhirR4")
+	private FhirContext fhirContext;
+	
+	/**
+	 * @param openmrsPatient the patient, with its names, addresses, identifiers and attributes
+	 *            loaded
+	 * @return the patient as pushed to the client registry
+	 */
+	public Patient toCRPatient(org.openmrs.Patient openmrsPatient) {
+		return toCRPatient(openmrsPatient, getIdentifierSystems(Collections.singleton(openmrsPatient)));
+	}
+	
+	/**
+	 * Looks up the system url of every identifier type the patients use, each one once, so that a
+	 * batch of patients is projected without a lookup per identifier.
+	 * 
+	 * @param openmrsPatients the patients, with their identifiers loaded
+	 * @return the system urls, keyed by identifier type uuid; types without one are left out
+	 */
+	public Map<String, String> getIdentifierSystems(Collection<org.openmrs.Patient> openmrsPatients) {
+		Map<String, String> identifierSystems = new HashMap<>();
+		Map<String, PatientIdentifierType> identifierTypes = new HashMap<>();
+		for (org.openmrs.Patient openmrsPatient : openmrsPatients) {
+			for (PatientIdentifier identifier : openmrsPatient.getActiveIdentifiers()) {
+				identifierTypes.putIfAbsent(identifier.getIdentifierType().getUuid(), identifier.getIdentifierType());
+			}
+		}
+		identifierTypes.forEach((uuid, identifierType) -> {
+			String system = identifierSystemService.getUrlByPatientIdentifierType(identifierType);
+			if (StringUtils.isNotBlank(system)) {
+				identifierSystems.put(uuid, system);
+			}
+		});
+		return identifierSystems;
+	}
+	
+	/**
+	 * @param openmrsPatient the patient, with its names, addresses, identifiers and attributes
+	 *            loaded
+	 * @param identifierSystems the system urls of the patient's identifier types, as returned by
+	 *            {@link #getIdentifierSystems(Collection)}
+	 * @return the patient as pushed to the client registry
+	 */
+	public Patient toCRPatient(org.openmrs.Patient openmrsPatient, Map<String, String> identifierSystems) {
+		Patient patient = new Patient();
+		patient.setActive(!Boolean.TRUE.equals(openmrsPatient.getVoided()));
+		
+		for (PersonName name : openmrsPatient.getNames()) {
+			if (!Boolean.TRUE.equals(name.getVoided())) {
+				patient.addName(toHumanName(name));
+			}
+		}
+		patient.getNameFirstRep().setUse(HumanName.NameUse.OFFICIAL);
+		
+		patient.setGender(toGender(openmrsPatient.getGender()));
+		if (openmrsPatient.getBirthdate() != null) {
+			patient.setBirthDateElement(birthDateTranslator.toFhirResource(openmrsPatient));
+		}
+		if (Boolean.TRUE.equals(openmrsPatient.getDead())) {
+			patient.setDeceased(openmrsPatient.getDeathDate() != null ? new DateTimeType(openmrsPatient.getDeathDate())
+			        : new BooleanType(true));
+		}
+		
+		for (PersonAddress address : openmrsPatient.getAddresses()) {
+			if (!Boolean.TRUE.equals(address.getVoided())) {
+				patient.addAddress(addressTranslator.toFhirResource(address));
+			}
+		}
+		
+		Map<String, PersonAttribute> attributesByTypeUuid = new HashMap<>();
+		for (PersonAttribute attribute : openmrsPatient.getActiveAttributes()) {
+			attributesByTypeUuid.putIfAbsent(attribute.getAttributeType().getUuid(), attribute);
+		}
+		
+		PersonAttribute contactPoint = attributesByTypeUuid.get(config.getContactPointAttributeTypeUuid());
+		if (contactPoint != null) {
+			patient.addTelecom().setValue(contactPoint.getValue()).setSystem(ContactPoint.ContactPointSystem.PHONE)
+			        .setUse(ContactPoint.ContactPointUse.MOBILE).setId(contactPoint.getUuid());
+		}
+		
+		for (PatientIdentifier identifier : openmrsPatient.getActiveIdentifiers()) {
+			patient.addIdentifier(toIdentifier(identifier, identifierSystems));
+		}
+		Identifier openmrsUniqueId = new Identifier().setSystem(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM)
+		        .setValue(String.format("%s/%s", config.getClientRegistryIdentifierRoot(), openmrsPatient.getUuid()))
+		        .setUse(Identifier.IdentifierUse.OFFICIAL);
+		patient.addIdentifier(openmrsUniqueId);
+		
+		patient.setId(openmrsUniqueId.getValue());
+		
+		for (Map.Entry<String, String> extensionUrl : config.getExtensionUrlsByAttributeTypeUuid().entrySet()) {
+			Extension extension = new Extension().setUrl(extensionUrl.getValue());
+			PersonAttribute attribute = attributesByTypeUuid.get(extensionUrl.getKey());
+			if (attribute != null) {
+				extension.setValue(new StringType(attribute.toString()));
+			}
+			patient.addExtension(extension);
+		}
+		return patient;
+	}
+	
+	/**
+	 * Strips a patient stored in the client registry down to the elements
+	 * {@link #toCRPatient(org.openmrs.Patient)} builds, so that it can be compared with what was
+	 * pushed. Elements the client registry adds or maintains itself, such as links to the golden
+	 * record, its own identifiers or other extensions, are left out.
+	 * 
+	 * @param patient the patient as stored in the client registry
+	 * @param openmrsId the id the patient was pushed with
+	 * @return a new patient with only the projected elements
+	 */
+	public Patient toProjectedElements(Patient patient, String openmrsId) {
+		Patient projected = new Patient();
+		if (patient.hasActive()) {
+			projected.setActiveElement(patient.getActiveElement().copy());
+		}
+		patient.getName().forEach(name -> projected.addName(name.copy()));
+		if (patient.hasGender()) {
+			projected.setGenderElement(patient.getGenderElement().copy());
+		}
+		if (patient.hasBirthDate()) {
+			projected.setBirthDateElement(patient.getBirthDateElement().copy());
+		}
+		if (patient.hasDeceased()) {
+			projected.setDeceased(patient.getDeceased().copy());
+		}
+		patient.getAddress().forEach(address -> projected.addAddress(address.copy()));
+		patient.getTelecom().forEach(telecom -> projected.addTelecom(telecom.copy()));
+		
+		// the projected identifiers carry the uuid of their OpenMRS identifier, apart from the OpenMRS id
+		for (Identifier identifier : patient.getIdentifier()) {
+			boolean isOpenmrsId = ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM.equals(identifier.getSystem())
+			        && openmrsId.equals(identifier.getValue());
+			if (isOpenmrsId || identifier.hasId()) {
+				projected.addIdentifier(identifier.copy());
+			}
+		}
+		projected.setId(openmrsId);
+		
+		Collection<String> extensionUrls = config.getExtensionUrlsByAttributeTypeUuid().values();
+		for (Extension extension : patient.getExtension()) {
+			if (extensionUrls.contains(extension.getUrl())) {
+				projected.addExtension(extension.copy());
+			}
+		}
+		return projected;
+	}
+	
+	/**
+	 * @param patient a patient as built by {@link #toCRPatient(org.openmrs.Patient)}
+	 * @return the JSON encoding of the patient as sent to the client registry
+	 */
+	public String encode(Patient patient) {
+		return fhirContext.newJsonParser().encodeResourceToString(patient);
+	}
+	
+	/**
+	 * @param encodedPatient a patient as encoded by {@link #encode(Patient)}
+	 * @return a SHA-256 hash of the encoding, equal for patients the client registry would store the
+	 *         same way
+	 */
+	public String fingerprint(String encodedPatient) {
+		return DigestUtils.sha256Hex(encodedPatient);
+	}
+	
+	/**
+	 * @param patient a patient as built by {@link #toCRPatient(org.openmrs.Patient)}
+	 * @return a SHA-256 hash of the patient's demographics, i.e. everything but its extensions, which
+	 *         client registry searches do not match on
+	 */
+	public String fingerprintDemographics(Patient patient) {
+		Patient demographics = patient.copy();
+		demographics.setExtension(null);
+		return fingerprint(encode(demographics));
+	}
+	
+	private HumanName toHumanName(PersonName name) {
+		HumanName humanName = new HumanName().setFamily(name.getFamilyName());
+		humanName.setId(name.getUuid());
+		if (StringUtils.isNotBlank(name.getGivenName())) {
+			humanName.addGiven(name.getGivenName());
+		}
+		if (StringUtils.isNotBlank(name.getMiddleName())) {
+			humanName.addGiven(name.getMiddleName());
+		}
+		if (StringUtils.isNotBlank(name.getPrefix())) {
+			humanName.addPrefix(name.getPrefix());
+		}
+		if (StringUtils.isNotBlank(name.getFamilyNameSuffix())) {
+			humanName.addSuffix(name.getFamilyNameSuffix());
+		}
+		return humanName;
+	}
+	
+	private Identifier toIdentifier(PatientIdentifier identifier, Map<String, String> identifierSystems) {
+		Identifier fhirIdentifier = new Identifier().setValue(identifier.getIdentifier())
+		        .setUse(Boolean.TRUE.equals(identifier.getPreferred()) ? Identifier.IdentifierUse.OFFICIAL
+		                : Identifier.IdentifierUse.USUAL)
+		        .setType(new CodeableConcept().setText(identifier.getIdentifierType().getName()));
+		fhirIdentifier.setId(identifier.getUuid());
+		fhirIdentifier.setSystem(identifierSystems.get(identifier.getIdentifierType().getUuid()));
+		return fhirIdentifier;
+	}
+	
+	private Enumerations.AdministrativeGender toGender(String gender) {
+		switch (StringUtils.upperCase(StringUtils.trimToEmpty(gender))) {
+			case "M":
+				return Enumerations.AdministrativeGender.MALE;
+			case "F":
+				return Enumerations.AdministrativeGender.FEMALE;
+			case "O":
+				return Enumerations.AdministrativeGender.OTHER;
+			case "U":
+				return Enumerations.AdministrativeGender.UNKNOWN;
+			default:
+				return null;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * Creates JSON Patches (RFC 6902) between two JSON encodings of a FHIR resource. Top-level elements
+ * that differ are replaced, except arrays, which are diffed element by element: elements are matched
+ * up by their element id, which the projection sets from the uuid of the OpenMRS object, or by their
+ * content when they have none, so that changing one of a patient's names only replaces that name.
+ * An array is still replaced as a whole when its elements cannot be matched up, or when that makes
+ * the smaller patch.
+ */
+final class JsonPatchDiff {
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	
+	// identify the resource rather than being part of its content
+	private static final Set<String> IGNORED_ELEMENTS = new HashSet<>(Arrays.asList("resourceType", "id", "meta"));
+	
+	private JsonPatchDiff() {
+	}
+	
+	/**
+	 * @param base the JSON encoding of the resource as last sent
+	 * @param target the JSON encoding of the resource as it should be
+	 * @return a JSON Patch turning base into target, or null if they have the same content
+	 * @throws IOException if either is not a JSON object
+	 */
+	static String diff(String base, String target) throws IOException {
+		JsonNode baseNode = MAPPER.readTree(base);
+		JsonNode targetNode = MAPPER.readTree(target);
+		if (!baseNode.isObject() || !targetNode.isObject()) {
+			throw new IOException("Only JSON objects can be diffed");
+		}
+		
+		ArrayNode operations = MAPPER.createArrayNode();
+		for (Iterator<String> names = baseNode.fieldNames(); names.hasNext();) {
+			String name = names.next();
+			if (!IGNORED_ELEMENTS.contains(name) && !targetNode.has(name)) {
+				operations.addObject().put("op", "remove").put("path", toPath(name));
+			}
+		}
+		for (Iterator<String> names = targetNode.fieldNames(); names.hasNext();) {
+			String name = names.next();
+			if (IGNORED_ELEMENTS.contains(name)) {
+				continue;
+			}
+			
+			JsonNode baseValue = baseNode.get(name);
+			JsonNode targetValue = targetNode.get(name);
+			if (baseValue == null) {
+				operations.addObject().put("op", "add").put("path", toPath(name)).set("value", targetValue);
+			} else if (!baseValue.equals(targetValue)) {
+				ArrayNode elementOperations = baseValue.isArray() && targetValue.isArray()
+				        ? diffArray(toPath(name), (ArrayNode) baseValue, (ArrayNode) targetValue)
+				        : null;
+				ArrayNode replacement = MAPPER.createArrayNode();
+				replacement.addObject().put("op", "replace").put("path", toPath(name)).set("value", targetValue);
+				operations.addAll(elementOperations != null
+				        && elementOperations.toString().length() < replacement.toString().length() ? elementOperations
+				                : replacement);
+			}
+		}
+		return operations.size() == 0 ? null : MAPPER.writeValueAsString(operations);
+	}
+	
+	/**
+	 * Diffs two arrays element by element. The operations apply one after the other, so each index
+	 * refers to the array as left by the operations before it: elements gone from the target are
+	 * removed, then every position of the target is filled by moving the matching element there,
+	 * adding new ones, and replacing the ones whose content changed.
+	 * 
+	 * @return the operations, or null if the elements cannot be matched up
+	 */
+	private static ArrayNode diffArray(String path, ArrayNode base, ArrayNode target) {
+		List<String> baseKeys = getKeys(base);
+		List<String> targetKeys = getKeys(target);
+		if (baseKeys == null || targetKeys == null) {
+			return null;
+		}
+		
+		ArrayNode operations = MAPPER.createArrayNode();
+		List<String> keys = new ArrayList<>(baseKeys);
+		List<JsonNode> elements = new ArrayList<>();
+		base.forEach(elements::add);
+		Set<String> targetKeySet = new HashSet<>(targetKeys);
+		for (int i = keys.size() - 1; i >= 0; i--) {
+			if (!targetKeySet.contains(keys.get(i))) {
+				operations.addObject().put("op", "remove").put("path", path + "/" + i);
+				keys.remove(i);
+				elements.remove(i);
+			}
+		}
+		
+		for (int i = 0; i < targetKeys.size(); i++) {
+			JsonNode element = target.get(i);
+			// the positions before i already hold their target elements, so a match is at i or after it
+			int index = keys.indexOf(targetKeys.get(i));
+			if (index < 0) {
+				operations.addObject().put("op", "add").put("path", path + "/" + i).set("value", element);
+				keys.add(i, targetKeys.get(i));
+				elements.add(i, element);
+				continue;
+			}
+			
+			if (index != i) {
+				operations.addObject().put("op", "move").put("from", path + "/" + index).put("path", path + "/" + i);
+				keys.add(i, keys.remove(index));
+				elements.add(i, elements.remove(index));
+			}
+			if (!elements.get(i).equals(element)) {
+				operations.addObject().put("op", "replace").put("path", path + "/" + i).set("value", element);
+			}
+		}
+		return operations;
+	}
+	
+	/**
+	 * @return the key of every element of an array, its element id or else its content, or null if
+	 *         two elements have the same key
+	 */
+	private static List<String> getKeys(ArrayNode array) {
+		List<String> keys = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		for (JsonNode element : array) {
+			JsonNode id = element.get("id");
+			String key = id != null && id.isTextual() ? "id:" + id.asText() : "content:" + element.toString();
+			if (!seen.add(key)) {
+				return null;
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+	
+	private static String toPath(String name) {
+		return "/" + name.replace("~", "~0").replace("/", "~1");
+	}
+}
@@ -0,0 +1,446 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Value;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.Event;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryUnavailableException;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pushes the patients that existed before the client registry was connected, which no patient event
+ * would ever push. Patients are read in patient id order one page at a time and pushed in Bundles on
+ * the configured number of threads, built the same way as by the event driven sync. The patient id
+ * up to which every page went through is saved as a checkpoint, so a backfill interrupted by a
+ * restart carries on from there. Patients the client registry rejects are left to the sync outbox,
+ * which retries them like any other failed push.
+ */
+@Component
+public class PatientBackfill {
+	
+	static final String CHECKPOINT_LAST_PATIENT_ID = "patientBackfill.lastPatientId";
+	
+	static final String CHECKPOINT_STATE = "patientBackfill.state";
+	
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+	
+	public enum State {
+		IDLE,
+		RUNNING,
+		STOPPED,
+		COMPLETED,
+		FAILED
+	}
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private volatile Run run;
+	
+	@Autowired
+	private SyncPatientDao patientDao;
+	
+	@Autowired
+	private SyncCheckpointDao checkpointDao;
+	
+	@Autowired
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Autowired
+	private SyncOutboxDao outboxDao;
+	
+	@Autowired
+	private PatientSyncProcessor processor;
+	
+	@Autowired
+	private PatientSyncWorker syncWorker;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	/**
+	 * Starts a backfill in a daemon thread, unless one is running. A backfill that was stopped or
+	 * failed is resumed from its checkpoint, otherwise all patients are pushed.
+	 * 
+	 * @param daemonToken the module's daemon token
+	 * @param restart whether to push all patients even if an earlier backfill did not finish
+	 * @return true if the backfill was started, false if one is running already
+	 */
+	public synchronized boolean start(DaemonToken daemonToken, boolean restart) {
+		if (run != null && !run.finished) {
+			return false;
+		}
+		
+		int startAfter = 0;
+		if (!restart && !State.COMPLETED.name().equals(checkpointDao.getCheckpoint(CHECKPOINT_STATE))) {
+			startAfter = NumberUtils.toInt(checkpointDao.getCheckpoint(CHECKPOINT_LAST_PATIENT_ID));
+		}
+		checkpointDao.saveCheckpoint(CHECKPOINT_LAST_PATIENT_ID, String.valueOf(startAfter));
+		checkpointDao.saveCheckpoint(CHECKPOINT_STATE, State.RUNNING.name());
+		
+		Run newRun = new Run(startAfter, patientDao.countPatientsAfter(startAfter));
+		run = newRun;
+		Daemon.runInDaemonThread(() -> backfill(newRun, daemonToken), daemonToken);
+		return true;
+	}
+	
+	/**
+	 * Resumes a backfill that was still running when the module was last stopped.
+	 * 
+	 * @param daemonToken the module's daemon token
+	 */
+	public void resume(DaemonToken daemonToken) {
+		if (State.RUNNING.name().equals(checkpointDao.getCheckpoint(CHECKPOINT_STATE)) && start(daemonToken, false)) {
+			log.info("Resumed the client registry backfill interrupted by the last shutdown");
+		}
+	}
+	
+	/**
+	 * Stops the running backfill once the pages being pushed are done. It is resumed from its
+	 * checkpoint by the next {@link #start(DaemonToken, boolean)}.
+	 */
+	public void stop() {
+		stop(false);
+	}
+	
+	/**
+	 * Stops the running backfill like {@link #stop()}, but has it resumed by the next
+	 * {@link #resume(DaemonToken)}.
+	 */
+	public void shutdown() {
+		stop(true);
+	}
+	
+	/**
+	 * @return the progress of the running backfill, or of the last one since startup
+	 */
+	public Progress getProgress() {
+		Run current = run;
+		if (current == null) {
+			return new Progress(State.IDLE, 0, 0, 0, 0, null, 0, null);
+		}
+		
+		long processed = current.processed.get();
+		long elapsed = Math.max(1, (current.finished ? current.dateFinished : System.currentTimeMillis()) - current.dateStarted);
+		double throughput = processed * 1000.0 / elapsed;
+		Long eta = null;
+		if (!current.finished && throughput > 0) {
+			eta = (long) (Math.max(0, current.total - processed) / throughput);
+		}
+		return new Progress(current.state, current.total, processed, current.failed.get(), current.lastPatientId,
+		        new Date(current.dateStarted), throughput, eta);
+	}
+	
+	private void stop(boolean resumable) {
+		Run current = run;
+		if (current != null && !current.finished) {
+			current.resumable = resumable;
+			current.stopping = true;
+		}
+	}
+	
+	private void backfill(Run run, DaemonToken daemonToken) {
+		log.info(String.format("Backfilling %d patients to the client registry, starting after patient %d", run.total,
+		    run.lastPatientId));
+		int workerCount = config.getBackfillWorkerCount();
+		BlockingQueue<Page> pages = new ArrayBlockingQueue<>(workerCount);
+		List<Thread> workers = new ArrayList<>(workerCount);
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(Daemon.runInDaemonThread(() -> runWorker(run, pages), daemonToken));
+		}
+		
+		try {
+			int batchSize = config.getSyncBatchSize();
+			int lastPatientId = run.lastPatientId;
+			while (!run.stopping) {
+				Map<Integer, String> uuids = patientDao.getPatientUuidsAfter(lastPatientId, batchSize);
+				Context.clearSession();
+				if (uuids.isEmpty()) {
+					break;
+				}
+				
+				for (Integer patientId : uuids.keySet()) {
+					lastPatientId = patientId;
+				}
+				Page page = new Page(new ArrayList<>(uuids.values()), lastPatientId);
+				run.add(page);
+				while (!run.stopping && !pages.offer(page, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+					// waiting for a worker to take a page
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			run.stopping = true;
+		}
+		catch (Exception e) {
+			log.error("Failed to read the patients to backfill to the client registry", e);
+			run.fail();
+		}
+		
+		// workers finish the pages they took and exit once no pages are left or the backfill stops
+		run.exhausted = true;
+		for (Thread worker : workers) {
+			try {
+				if (worker != null) {
+					worker.join();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		finish(run);
+	}
+	
+	private void runWorker(Run run, BlockingQueue<Page> pages) {
+		while (!run.stopping) {
+			Page page;
+			try {
+				page = pages.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			
+			if (page == null) {
+				if (run.exhausted) {
+					return;
+				}
+				continue;
+			}
+			
+			try {
+				push(run, page);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Exception e) {
+				log.error("Failed to backfill a page of patients to the client registry", e);
+				run.fail();
+			}
+			finally {
+				Context.clearSession();
+			}
+		}
+	}
+	
+	/**
+	 * Pushes a page of patients and moves the checkpoint past every page that is done. While the
+	 * client registry is unavailable the page is retried rather than handed to the outbox.
+	 */
+	void push(Run run, Page page) throws InterruptedException {
+		// patients this module never pushed are created, the others were created by an earlier push
+		Set<String> pushedBefore = fingerprintDao.getFingerprints(page.uuids).keySet();
+		Map<String, Event.Action> patients = new LinkedHashMap<>();
+		for (String uuid : page.uuids) {
+			patients.put(uuid, pushedBefore.contains(uuid) ? Event.Action.UPDATED : Event.Action.CREATED);
+		}
+		
+		Map<String, String> failures = null;
+		while (failures == null) {
+			if (run.stopping) {
+				return;
+			}
+			
+			try {
+				failures = processor.processBatch(patients);
+			}
+			catch (ClientRegistryUnavailableException e) {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, config.getCircuitOpenDuration())));
+			}
+		}
+		
+		for (String uuid : failures.keySet()) {
+			outboxDao.saveEntry(new SyncOutboxEntry(uuid, patients.get(uuid)));
+		}
+		if (!failures.isEmpty()) {
+			syncWorker.wakeUp();
+		}
+		
+		run.processed.addAndGet(page.uuids.size());
+		run.failed.addAndGet(failures.size());
+		synchronized (run) {
+			Integer checkpoint = run.complete(page);
+			if (checkpoint != null) {
+				checkpointDao.saveCheckpoint(CHECKPOINT_LAST_PATIENT_ID, String.valueOf(checkpoint));
+			}
+		}
+	}
+	
+	private void finish(Run run) {
+		State state;
+		String persistedState;
+		if (run.state == State.FAILED) {
+			state = State.FAILED;
+			persistedState = State.FAILED.name();
+		} else if (run.stopping) {
+			state = State.STOPPED;
+			persistedState = run.resumable ? State.RUNNING.name() : State.STOPPED.name();
+		} else {
+			state = State.COMPLETED;
+			persistedState = State.COMPLETED.name();
+		}
+		
+		try {
+			checkpointDao.saveCheckpoint(CHECKPOINT_STATE, persistedState);
+		}
+		catch (Exception e) {
+			log.error("Failed to save the state of the client registry backfill", e);
+		}
+		run.dateFinished = System.currentTimeMillis();
+		run.state = state;
+		run.finished = true;
+		log.info(String.format("Client registry backfill %s after %d patients, %d of which were left to the outbox",
+		    state.name().toLowerCase(), run.processed.get(), run.failed.get()));
+	}
+	
+	/**
+	 * The progress of a backfill.
+	 */
+	@Value
+	public static class Progress {
+		
+		State state;
+		
+		/**
+		 * The number of patients the backfill set out to push.
+		 */
+		long total;
+		
+		long processed;
+		
+		/**
+		 * The number of processed patients the client registry did not accept, left to the outbox.
+		 */
+		long failed;
+		
+		/**
+		 * The patient id the backfill resumes after.
+		 */
+		int lastPatientId;
+		
+		Date dateStarted;
+		
+		/**
+		 * Processed patients per second.
+		 */
+		double throughput;
+		
+		/**
+		 * The estimated number of seconds until the backfill is done, null if unknown.
+		 */
+		Long eta;
+	}
+	
+	/**
+	 * A page of patients pushed together.
+	 */
+	static final class Page {
+		
+		private final List<String> uuids;
+		
+		private final int lastPatientId;
+		
+		private boolean done;
+		
+		Page(List<String> uuids, int lastPatientId) {
+			this.uuids = uuids;
+			this.lastPatientId = lastPatientId;
+		}
+	}
+	
+	/**
+	 * The state of one backfill. Pages are pushed in parallel and finish in any order, so the
+	 * checkpoint only moves past pages that are done along with every page before them.
+	 */
+	static final class Run {
+		
+		private final long total;
+		
+		private final long dateStarted = System.currentTimeMillis();
+		
+		private final AtomicLong processed = new AtomicLong();
+		
+		private final AtomicLong failed = new AtomicLong();
+		
+		private final Deque<Page> pending = new ArrayDeque<>();
+		
+		private volatile int lastPatientId;
+		
+		private volatile State state = State.RUNNING;
+		
+		private volatile boolean stopping;
+		
+		private volatile boolean resumable;
+		
+		private volatile boolean exhausted;
+		
+		private volatile boolean finished;
+		
+		private volatile long dateFinished;
+		
+		Run(int startAfter, long total) {
+			this.lastPatientId = startAfter;
+			this.total = total;
+		}
+		
+		synchronized void add(Page page) {
+			pending.add(page);
+		}
+		
+		/**
+		 * @return the new checkpoint, or null if it did not move
+		 */
+		synchronized Integer complete(Page page) {
+			page.done = true;
+			Integer checkpoint = null;
+			while (!pending.isEmpty() && pending.peek().done) {
+				checkpoint = pending.poll().lastPatientId;
+			}
+			if (checkpoint != null) {
+				lastPatientId = checkpoint;
+			}
+			return checkpoint;
+		}
+		
+		void fail() {
+			state = State.FAILED;
+			stopping = true;
+		}
+	}
+}
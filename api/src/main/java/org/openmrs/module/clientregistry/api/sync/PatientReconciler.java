@@ -0,0 +1,307 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.Event;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.openmrs.module.clientregistry.api.search.PatientSearchCriteriaBuilder;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically finds patients whose representation in the client registry drifted from OpenMRS,
+ * through missed events, pushes that never succeeded or edits made directly in the client registry,
+ * and records them in the sync outbox to be pushed again. Only patients changed on either side since
+ * the last reconciliation are compared, so a run costs as much as the amount of change rather than
+ * the size of the registry.
+ */
+@Component
+public class PatientReconciler {
+	
+	static final String CHECKPOINT_WATERMARK = "reconciliation.watermark";
+	
+	/**
+	 * How far each run looks back before the watermark, covering clock skew with the client registry
+	 * and transactions that were not committed yet when the last run started. Patients seen twice
+	 * are in sync by then and cost only a comparison.
+	 */
+	private static final long WATERMARK_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	
+	private final Object monitor = new Object();
+	
+	@Autowired
+	private SyncPatientDao patientDao;
+	
+	@Autowired
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Autowired
+	private SyncCheckpointDao checkpointDao;
+	
+	@Autowired
+	private SyncOutboxDao outboxDao;
+	
+	@Autowired
+	private CRPatientProjection projection;
+	
+	@Autowired
+	private PatientSyncWorker syncWorker;
+	
+	@Autowired
+	private PatientSearchCriteriaBuilder criteriaBuilder;
+	
+	@Autowired
+	private ClientRegistryGuard guard;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	@Qualifier("clientRegistryFhirClient")
+	private IGenericClient client;
+	
+	/**
+	 * Starts reconciling every configured interval in a daemon thread, if not already started.
+	 * 
+	 * @param daemonToken the module's daemon token
+	 */
+	public void start(DaemonToken daemonToken) {
+		if (isRunning.compareAndSet(false, true)) {
+			Daemon.runInDaemonThread(this::reconcileLoop, daemonToken);
+		}
+	}
+	
+	/**
+	 * Stops reconciling once the running reconciliation is done.
+	 */
+	public void stop() {
+		if (isRunning.compareAndSet(true, false)) {
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+	
+	private void reconcileLoop() {
+		log.info("Client registry reconciliation started");
+		while (isRunning.get()) {
+			try {
+				synchronized (monitor) {
+					monitor.wait(TimeUnit.MINUTES.toMillis(Math.max(1, config.getReconcileInterval())));
+				}
+				// the interval is read again after every wait, so reconciliation can be turned on and off
+				if (isRunning.get() && config.getReconcileInterval() > 0 && !guard.isOpen()) {
+					reconcile();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (Exception e) {
+				log.error("Failed to reconcile patients with the client registry", e);
+			}
+			finally {
+				Context.clearSession();
+			}
+		}
+		log.info("Client registry reconciliation stopped");
+	}
+	
+	/**
+	 * Records the patients changed in OpenMRS or in the client registry since the last run that
+	 * differ from what was last pushed in the sync outbox, then moves the watermark to the start of
+	 * this run. The first run only sets the watermark, patients that existed before are pushed by a
+	 * backfill.
+	 * 
+	 * @return the number of patients recorded for a push
+	 */
+	int reconcile() {
+		long runStarted = System.currentTimeMillis();
+		String watermark = checkpointDao.getCheckpoint(CHECKPOINT_WATERMARK);
+		if (watermark == null) {
+			checkpointDao.saveCheckpoint(CHECKPOINT_WATERMARK, String.valueOf(runStarted));
+			return 0;
+		}
+		
+		Date since = new Date(NumberUtils.toLong(watermark) - WATERMARK_OVERLAP_MILLIS);
+		Map<String, Event.Action> drifted = new LinkedHashMap<>();
+		reconcileLocalChanges(since, drifted);
+		reconcileRegistryChanges(since, drifted);
+		
+		for (Map.Entry<String, Event.Action> patient : drifted.entrySet()) {
+			outboxDao.saveEntry(new SyncOutboxEntry(patient.getKey(), patient.getValue()));
+		}
+		if (!drifted.isEmpty()) {
+			syncWorker.wakeUp();
+		}
+		metrics.add(ClientRegistryMetrics.RECONCILE_PATIENTS_DRIFTED, drifted.size());
+		checkpointDao.saveCheckpoint(CHECKPOINT_WATERMARK, String.valueOf(runStarted));
+		log.info(String.format("Reconciled patients changed since %s with the client registry, %d drifted", since,
+		    drifted.size()));
+		return drifted.size();
+	}
+	
+	/**
+	 * Compares the current representation of every patient changed in OpenMRS with the fingerprint
+	 * of what was last pushed, catching changes whose event was missed or whose push never went
+	 * through. Pushed patients that were voided or purged since are recorded to be deleted from the
+	 * client registry.
+	 */
+	private void reconcileLocalChanges(Date since, Map<String, Event.Action> drifted) {
+		List<Integer> patientIds = new ArrayList<>(patientDao.getPatientIdsChangedSince(since));
+		int batchSize = config.getSyncBatchSize();
+		for (int start = 0; start < patientIds.size(); start += batchSize) {
+			Map<Integer, String> uuids = patientDao
+			        .getPatientUuids(patientIds.subList(start, Math.min(start + batchSize, patientIds.size())));
+			if (uuids.isEmpty()) {
+				continue;
+			}
+			
+			Map<String, SyncFingerprint> fingerprints = fingerprintDao.getFingerprints(uuids.values());
+			List<org.openmrs.Patient> patients = patientDao.getPatientsForSync(uuids.values());
+			Map<String, String> identifierSystems = projection.getIdentifierSystems(patients);
+			for (org.openmrs.Patient patient : patients) {
+				SyncFingerprint last = fingerprints.get(patient.getUuid());
+				String fingerprint = projection
+				        .fingerprint(projection.encode(projection.toCRPatient(patient, identifierSystems)));
+				if (last == null) {
+					drifted.putIfAbsent(patient.getUuid(), Event.Action.CREATED);
+				} else if (!last.getFingerprint().equals(fingerprint)) {
+					drifted.putIfAbsent(patient.getUuid(), Event.Action.UPDATED);
+				}
+			}
+			Set<String> syncable = patients.stream().map(org.openmrs.Patient::getUuid).collect(Collectors.toSet());
+			for (String uuid : uuids.values()) {
+				if (!syncable.contains(uuid) && fingerprints.containsKey(uuid)) {
+					drifted.putIfAbsent(uuid, Event.Action.PURGED);
+				}
+			}
+			metrics.add(ClientRegistryMetrics.RECONCILE_PATIENTS_CHECKED, uuids.size());
+			Context.clearSession();
+		}
+	}
+	
+	/**
+	 * Compares every patient of this OpenMRS instance changed in the client registry with the
+	 * fingerprint of what was last pushed. Changes made by the module's own pushes are recognised by
+	 * their time and left alone; patients edited in the client registry have their fingerprint
+	 * dropped, so that they are overwritten with a full update rather than skipped or patched.
+	 */
+	private void reconcileRegistryChanges(Date since, Map<String, Event.Action> drifted) {
+		String identifierPrefix = config.getClientRegistryIdentifierRoot() + "/";
+		PatientSearchParams searchParams = new PatientSearchParams();
+		searchParams.setLastUpdated(new DateRangeParam(new DateParam(ParamPrefixEnum.GREATERTHAN, since)));
+		List<ICriterion<?>> criteria = new ArrayList<>();
+		criteria.add(Patient.IDENTIFIER.hasSystemWithAnyCode(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM));
+		criteria.addAll(criteriaBuilder.buildCriteria(searchParams));
+		
+		Bundle page = guard.execute(true, () -> {
+			IQuery<IBaseBundle> query = client.search().forResource(Patient.class).where(criteria.get(0));
+			criteria.subList(1, criteria.size()).forEach(query::and);
+			return query.count(config.getSyncBatchSize()).returnBundle(Bundle.class).execute();
+		});
+		while (page != null) {
+			Map<String, Patient> patientsByUuid = new LinkedHashMap<>();
+			for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+				if (entry.getResource() instanceof Patient) {
+					Patient patient = (Patient) entry.getResource();
+					String uuid = getOpenmrsUuid(patient, identifierPrefix);
+					if (uuid != null) {
+						patientsByUuid.put(uuid, patient);
+					}
+				}
+			}
+			
+			Map<String, SyncFingerprint> fingerprints = fingerprintDao.getFingerprints(patientsByUuid.keySet());
+			List<String> edited = new ArrayList<>();
+			for (Map.Entry<String, Patient> patient : patientsByUuid.entrySet()) {
+				SyncFingerprint last = fingerprints.get(patient.getKey());
+				// patients without a fingerprint were not pushed by the sync, they are left to a backfill
+				if (last != null && isEditedInRegistry(patient.getValue(), identifierPrefix + patient.getKey(), last)) {
+					edited.add(patient.getKey());
+					drifted.put(patient.getKey(), Event.Action.UPDATED);
+				}
+			}
+			fingerprintDao.deleteFingerprints(edited);
+			metrics.add(ClientRegistryMetrics.RECONCILE_PATIENTS_CHECKED, patientsByUuid.size());
+			
+			Bundle current = page;
+			page = current.getLink(Bundle.LINK_NEXT) == null ? null
+			        : guard.execute(true, () -> client.loadPage().next(current).execute());
+		}
+	}
+	
+	private boolean isEditedInRegistry(Patient patient, String openmrsId, SyncFingerprint last) {
+		Date lastUpdated = patient.getMeta().getLastUpdated();
+		if (lastUpdated != null && last.getDateSent() != null
+		        && lastUpdated.getTime() <= last.getDateSent().getTime() + WATERMARK_OVERLAP_MILLIS) {
+			// changed by the module's own push
+			return false;
+		}
+		
+		// compared the way the module pushed it, without what the client registry adds when storing it
+		Patient pushed = projection.toProjectedElements(patient, openmrsId);
+		return !last.getFingerprint().equals(projection.fingerprint(projection.encode(pushed)));
+	}
+	
+	private String getOpenmrsUuid(Patient patient, String identifierPrefix) {
+		for (Identifier identifier : patient.getIdentifier()) {
+			if (ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM.equals(identifier.getSystem())
+			        && StringUtils.startsWith(identifier.getValue(), identifierPrefix)) {
+				return identifier.getValue().substring(identifierPrefix.length());
+			}
+		}
+		return null;
+	}
+}
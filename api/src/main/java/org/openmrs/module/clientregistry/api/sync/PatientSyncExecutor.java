@@ -0,0 +1,181 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pushes patients to the client registry on a fixed number of lanes, each a daemon thread fed
+ * through its own bounded queue. Work is assigned to a lane by hashing the patient uuid, so the
+ * pushes for one patient run one after the other in the order they were submitted while different
+ * patients are pushed in parallel. What happens when a lane's queue is full is decided by the
+ * configured {@link SyncOverflowPolicy}.
+ */
+@Component
+public class PatientSyncExecutor {
+	
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+	
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private volatile boolean isRunning = false;
+	
+	private volatile List<BlockingQueue<Runnable>> lanes = Collections.emptyList();
+	
+	private final List<Thread> workers = new ArrayList<>();
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	/**
+	 * Starts one worker thread per configured lane, if not already started.
+	 * 
+	 * @param daemonToken the module's daemon token the workers run under
+	 */
+	public synchronized void start(DaemonToken daemonToken) {
+		if (isRunning) {
+			return;
+		}
+		
+		isRunning = true;
+		int laneCount = config.getSyncWorkerCount();
+		List<BlockingQueue<Runnable>> newLanes = new ArrayList<>(laneCount);
+		for (int i = 0; i < laneCount; i++) {
+			newLanes.add(new ArrayBlockingQueue<>(config.getSyncQueueCapacity()));
+		}
+		// published before the workers start, a worker not finding its lane among them exits right away
+		lanes = Collections.unmodifiableList(newLanes);
+		for (BlockingQueue<Runnable> lane : newLanes) {
+			workers.add(startWorker(() -> runWorker(lane), daemonToken));
+		}
+		log.info(String.format("Started %d client registry sync lanes", laneCount));
+	}
+	
+	/**
+	 * Stops the workers once they finished the push they are busy with, waiting a bounded time for
+	 * them. Tasks still queued are dropped; the outbox entries they were pushing stay pending.
+	 */
+	public synchronized void stop() {
+		if (!isRunning) {
+			return;
+		}
+		
+		isRunning = false;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+		for (Thread worker : workers) {
+			try {
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		workers.clear();
+		lanes.forEach(BlockingQueue::clear);
+		lanes = Collections.emptyList();
+	}
+	
+	/**
+	 * @param patientUuid the uuid of a patient
+	 * @return the lane all pushes for the patient must be submitted to, or -1 if the executor is
+	 *         stopped
+	 */
+	public int getLane(String patientUuid) {
+		int laneCount = lanes.size();
+		return laneCount == 0 ? -1 : Math.floorMod(patientUuid.hashCode(), laneCount);
+	}
+	
+	/**
+	 * Queues a push task on a lane.
+	 * 
+	 * @param lane the lane, as returned by {@link #getLane(String)} for the patients in the task
+	 * @param task the task to run
+	 * @return true if the task was queued, false if the executor is stopped or the lane is full and
+	 *         the overflow policy is {@link SyncOverflowPolicy#SPILL}
+	 * @throws InterruptedException if interrupted while waiting for space in the lane
+	 */
+	public boolean submit(int lane, Runnable task) throws InterruptedException {
+		List<BlockingQueue<Runnable>> currentLanes = lanes;
+		if (!isRunning || lane < 0 || lane >= currentLanes.size()) {
+			return false;
+		}
+		
+		BlockingQueue<Runnable> workQueue = currentLanes.get(lane);
+		if (config.getSyncOverflowPolicy() == SyncOverflowPolicy.BLOCK) {
+			while (isRunning) {
+				if (workQueue.offer(task, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		if (!workQueue.offer(task)) {
+			metrics.increment(ClientRegistryMetrics.SYNC_TASKS_SPILLED);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the thread the worker of a lane was started in
+	 */
+	Thread startWorker(Runnable worker, DaemonToken daemonToken) {
+		return Daemon.runInDaemonThread(worker, daemonToken);
+	}
+	
+	private void runWorker(BlockingQueue<Runnable> lane) {
+		// a worker that outlived a restart of the executor must not pick up tasks from the new lanes
+		while (isRunning && lanes.contains(lane)) {
+			Runnable task;
+			try {
+				task = lane.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			
+			if (task == null) {
+				continue;
+			}
+			
+			try {
+				task.run();
+			}
+			catch (Exception e) {
+				log.error("Client registry sync task failed", e);
+			}
+			finally {
+				// workers keep their session for their whole life, so don't let it accumulate patients
+				Context.clearSession();
+			}
+		}
+	}
+}
@@ -0,0 +1,519 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.ClientRegistryUnavailableException;
+import org.openmrs.module.clientregistry.api.cache.CRPatientCache;
+import org.openmrs.module.clientregistry.api.cache.CRSearchCache;
+import org.openmrs.module.clientregistry.api.cache.PixCrossReferenceCache;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the client registry representation of an OpenMRS patient and pushes it to the client
+ * registry. Updates can be sent as JSON Patches against the last pushed representation when
+ * enabled and advertised by the client registry. A patch only applies to the version of the patient
+ * the last push created in the client registry; when the patient changed there since, or the client
+ * registry rejects the patch, a full update is sent instead. Patients voided or purged in OpenMRS
+ * since they were pushed are deleted from the client registry.
+ */
+@Component
+public class PatientSyncProcessor {
+	
+	private static final String JSON_PATCH_CONTENT_TYPE = "application/json-patch+json";
+	
+	private static final Set<Integer> PATCH_UNSUPPORTED_STATUSES = new HashSet<>(Arrays.asList(405, 415, 501));
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private volatile Boolean patchSupported;
+	
+	@Autowired
+	private SyncPatientDao patientDao;
+	
+	@Autowired
+	private CRPatientProjection projection;
+	
+	@Autowired
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	@Autowired
+	private ClientRegistryGuard guard;
+	
+	@Autowired
+	private CRPatientCache patientCache;
+	
+	@Autowired
+	private PixCrossReferenceCache pixCache;
+	
+	@Autowired
+	private CRSearchCache searchCache;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	@Qualifier("clientRegistryFhirClient")
+	private IGenericClient client;
+	
+	/**
+	 * Pushes the current state of a patient to the client registry, unless it is unchanged since the
+	 * last push the client registry accepted.
+	 * 
+	 * @param uuid the uuid of the OpenMRS patient
+	 * @param action the event that triggered the push; CREATED patients are created in the client
+	 *            registry, anything else is updated
+	 */
+	public void process(String uuid, Event.Action action) {
+		log.debug(String.format("Handling patient %s", uuid));
+		
+		List<org.openmrs.Patient> openmrsPatients = patientDao.getPatientsForSync(Collections.singleton(uuid));
+		if (openmrsPatients.isEmpty()) {
+			remove(uuid);
+			return;
+		}
+		
+		SyncFingerprint fingerprint;
+		try {
+			Patient patient = projection.toCRPatient(openmrsPatients.get(0));
+			String encoded = projection.encode(patient);
+			fingerprint = new SyncFingerprint(uuid, projection.fingerprint(encoded), getPatchBase(encoded));
+			fingerprint.setDemographicsFingerprint(projection.fingerprintDemographics(patient));
+			SyncFingerprint last = fingerprintDao.getFingerprints(Collections.singleton(uuid)).get(uuid);
+			if (last != null && last.getFingerprint().equals(fingerprint.getFingerprint())) {
+				log.debug(String.format("Patient %s is unchanged in the client registry, skipping", uuid));
+				metrics.increment(ClientRegistryMetrics.SYNC_PATIENTS_UNCHANGED);
+				return;
+			}
+			
+			metrics.increment(ClientRegistryMetrics.SYNC_REQUESTS);
+			String patch = action != Event.Action.CREATED ? createPatch(last, encoded) : null;
+			try {
+				MethodOutcome outcome = patch != null ? pushPatch(patient, patch, last.getVersionId()) : null;
+				if (outcome == null) {
+					outcome = push(patient, action);
+				}
+				fingerprint.setVersionId(getVersionId(outcome));
+			}
+			finally {
+				// even a failed push may have reached the client registry
+				patientCache.invalidatePatients(Collections.singleton(uuid));
+				pixCache.invalidate(patient.getIdentifier());
+				if (action == Event.Action.CREATED || isDemographicsChanged(last, fingerprint)) {
+					searchCache.invalidateAll();
+				} else {
+					searchCache.invalidatePatients(patient.getIdentifier());
+				}
+			}
+		}
+		catch (ClientRegistryUnavailableException e) {
+			throw e;
+		}
+		catch (RuntimeException e) {
+			metrics.increment(ClientRegistryMetrics.SYNC_PUSHES_FAILED);
+			throw e;
+		}
+		
+		metrics.increment(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED);
+		fingerprintDao.saveFingerprints(Collections.singleton(fingerprint));
+	}
+	
+	/**
+	 * Pushes the current state of several patients to the client registry in a single Bundle of the
+	 * configured type (batch or transaction), one entry per patient. Patients unchanged since the
+	 * last push the client registry accepted are left out, patients voided or purged since their last
+	 * push are deleted.
+	 * 
+	 * @param patients the uuids of the OpenMRS patients, in push order, with the event that
+	 *            triggered each push
+	 * @return the error message for every patient that could not be pushed, keyed by uuid; empty if
+	 *         all pushes succeeded
+	 */
+	public Map<String, String> processBatch(Map<String, Event.Action> patients) {
+		Map<String, String> failures = new LinkedHashMap<>();
+		Bundle bundle = new Bundle().setType(config.getSyncBundleType());
+		Map<String, org.openmrs.Patient> openmrsPatients = patientDao.getPatientsForSync(patients.keySet()).stream()
+		        .collect(Collectors.toMap(org.openmrs.Patient::getUuid, Function.identity()));
+		Map<String, String> identifierSystems = projection.getIdentifierSystems(openmrsPatients.values());
+		Map<String, SyncFingerprint> lastFingerprints = fingerprintDao.getFingerprints(patients.keySet());
+		Map<String, SyncFingerprint> bundledFingerprints = new LinkedHashMap<>();
+		Map<String, Patient> bundledPatients = new LinkedHashMap<>();
+		List<Identifier> bundledIdentifiers = new ArrayList<>();
+		List<String> bundledUuids = new ArrayList<>();
+		Set<String> removedUuids = new HashSet<>();
+		boolean demographicsChanged = false;
+		
+		for (Map.Entry<String, Event.Action> entry : patients.entrySet()) {
+			String uuid = entry.getKey();
+			try {
+				org.openmrs.Patient openmrsPatient = openmrsPatients.get(uuid);
+				if (openmrsPatient == null) {
+					// a patient never pushed has nothing to delete in the client registry
+					if (lastFingerprints.containsKey(uuid)) {
+						bundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE)
+						        .setUrl(FhirConstants.PATIENT + "/" + uuid);
+						bundledUuids.add(uuid);
+						removedUuids.add(uuid);
+					}
+					continue;
+				}
+				Patient patient = projection.toCRPatient(openmrsPatient, identifierSystems);
+				String encoded = projection.encode(patient);
+				SyncFingerprint fingerprint = new SyncFingerprint(uuid, projection.fingerprint(encoded),
+				        getPatchBase(encoded));
+				fingerprint.setDemographicsFingerprint(projection.fingerprintDemographics(patient));
+				SyncFingerprint last = lastFingerprints.get(uuid);
+				if (last != null && last.getFingerprint().equals(fingerprint.getFingerprint())) {
+					metrics.increment(ClientRegistryMetrics.SYNC_PATIENTS_UNCHANGED);
+					continue;
+				}
+				
+				String patientUrl = FhirConstants.PATIENT + "/" + patient.getIdElement().getIdPart();
+				String patch = entry.getValue() != Event.Action.CREATED ? createPatch(last, encoded) : null;
+				if (patch != null) {
+					bundle.addEntry().setResource(new Binary().setContentType(JSON_PATCH_CONTENT_TYPE)
+					        .setData(patch.getBytes(StandardCharsets.UTF_8))).getRequest()
+					        .setMethod(Bundle.HTTPVerb.PATCH).setUrl(patientUrl).setIfMatch(toETag(last.getVersionId()));
+				} else if (entry.getValue() != Event.Action.CREATED) {
+					bundle.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(patientUrl);
+				} else {
+					bundle.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.POST)
+					        .setUrl(FhirConstants.PATIENT);
+				}
+				bundledUuids.add(uuid);
+				bundledFingerprints.put(uuid, fingerprint);
+				bundledPatients.put(uuid, patient);
+				bundledIdentifiers.addAll(patient.getIdentifier());
+				demographicsChanged |= entry.getValue() == Event.Action.CREATED || isDemographicsChanged(last, fingerprint);
+			}
+			catch (Exception e) {
+				log.error(String.format("Failed to build patient %s for the client registry", uuid), e);
+				failures.put(uuid, e.getMessage());
+			}
+		}
+		
+		if (!bundle.hasEntry()) {
+			metrics.add(ClientRegistryMetrics.SYNC_PUSHES_FAILED, failures.size());
+			return failures;
+		}
+		
+		metrics.increment(ClientRegistryMetrics.SYNC_REQUESTS);
+		try {
+			List<String> rejectedPatches = sendBundle(bundle, bundledUuids, bundledFingerprints, failures);
+			if (!rejectedPatches.isEmpty()) {
+				// each patient whose patch was rejected is updated in full, in a bundle of their own
+				Bundle fullUpdates = new Bundle().setType(config.getSyncBundleType());
+				for (String uuid : rejectedPatches) {
+					Patient patient = bundledPatients.get(uuid);
+					fullUpdates.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+					        .setUrl(FhirConstants.PATIENT + "/" + patient.getIdElement().getIdPart());
+				}
+				metrics.increment(ClientRegistryMetrics.SYNC_REQUESTS);
+				sendBundle(fullUpdates, rejectedPatches, bundledFingerprints, failures);
+			}
+		}
+		finally {
+			patientCache.invalidatePatients(bundledUuids);
+			pixCache.invalidate(bundledIdentifiers);
+			if (!removedUuids.isEmpty()) {
+				// the identifiers of deleted patients are not known anymore
+				pixCache.invalidateAll();
+			}
+			if (demographicsChanged || !removedUuids.isEmpty()) {
+				searchCache.invalidateAll();
+			} else {
+				searchCache.invalidatePatients(bundledIdentifiers);
+			}
+		}
+		
+		bundledFingerprints.keySet().removeAll(failures.keySet());
+		removedUuids.removeAll(failures.keySet());
+		metrics.add(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED, bundledFingerprints.size() + removedUuids.size());
+		metrics.add(ClientRegistryMetrics.SYNC_PUSHES_FAILED, failures.size());
+		if (!bundledFingerprints.isEmpty()) {
+			fingerprintDao.saveFingerprints(bundledFingerprints.values());
+		}
+		fingerprintDao.deleteFingerprints(removedUuids);
+		return failures;
+	}
+	
+	/**
+	 * Deletes a patient that was voided or purged in OpenMRS from the client registry, if it was
+	 * pushed there, and forgets what was last pushed for it so that a patient restored later is pushed
+	 * in full.
+	 */
+	private void remove(String uuid) {
+		if (fingerprintDao.getFingerprints(Collections.singleton(uuid)).isEmpty()) {
+			log.debug(String.format("Patient %s is gone and was never pushed, nothing to delete", uuid));
+			return;
+		}
+		
+		metrics.increment(ClientRegistryMetrics.SYNC_REQUESTS);
+		try {
+			guard.run(true, () -> client.delete().resourceById(FhirConstants.PATIENT, uuid).execute());
+		}
+		catch (ResourceNotFoundException | ResourceGoneException e) {
+			log.debug(String.format("Patient %s was already deleted from the client registry", uuid));
+		}
+		catch (ClientRegistryUnavailableException e) {
+			throw e;
+		}
+		catch (RuntimeException e) {
+			metrics.increment(ClientRegistryMetrics.SYNC_PUSHES_FAILED);
+			throw e;
+		}
+		finally {
+			patientCache.invalidatePatients(Collections.singleton(uuid));
+			// the identifiers of the patient are not known anymore
+			pixCache.invalidateAll();
+			searchCache.invalidateAll();
+		}
+		
+		metrics.increment(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED);
+		fingerprintDao.deleteFingerprints(Collections.singleton(uuid));
+	}
+	
+	/**
+	 * Sends a bundle with one entry per patient and records the outcome of every entry: the version
+	 * of the patient the client registry now holds, or why the entry failed.
+	 * 
+	 * @param bundle the bundle
+	 * @param uuids the uuids of the patients of the bundle entries, in entry order
+	 * @param fingerprints the fingerprints of the patients pushed, keyed by uuid, given their version
+	 * @param failures the error messages of the patients whose entry failed, keyed by uuid
+	 * @return the uuids of the patients whose patch the client registry rejected, who have to be
+	 *         updated in full
+	 */
+	private List<String> sendBundle(Bundle bundle, List<String> uuids, Map<String, SyncFingerprint> fingerprints,
+	        Map<String, String> failures) {
+		List<Bundle.BundleEntryComponent> responseEntries;
+		try {
+			// a bundle creating patients is not repeated, its creates are retried from the outbox
+			boolean retryable = bundle.getEntry().stream()
+			        .noneMatch(entry -> entry.getRequest().getMethod() == Bundle.HTTPVerb.POST);
+			responseEntries = guard.execute(retryable, () -> client.transaction().withBundle(bundle).execute()).getEntry();
+		}
+		catch (ClientRegistryUnavailableException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			log.error(String.format("Failed to push a bundle of %d patients to the client registry", uuids.size()), e);
+			uuids.forEach(uuid -> failures.put(uuid, e.getMessage()));
+			return Collections.emptyList();
+		}
+		
+		List<String> rejectedPatches = new ArrayList<>();
+		for (int i = 0; i < uuids.size(); i++) {
+			String uuid = uuids.get(i);
+			// the client registry may leave out the response entries of failed requests
+			Bundle.BundleEntryResponseComponent response = i < responseEntries.size()
+			        ? responseEntries.get(i).getResponse() : null;
+			String status = response != null ? StringUtils.trim(response.getStatus()) : null;
+			int statusCode = NumberUtils.toInt(StringUtils.substringBefore(status, " "));
+			if (StringUtils.startsWith(status, "2")) {
+				SyncFingerprint fingerprint = fingerprints.get(uuid);
+				if (fingerprint != null) {
+					fingerprint.setVersionId(getVersionId(response));
+				}
+			} else if (bundle.getEntry().get(i).getRequest().getMethod() == Bundle.HTTPVerb.PATCH
+			        && isPatchRejected(statusCode)) {
+				rejectedPatches.add(uuid);
+			} else {
+				failures.put(uuid, String.format("Client registry responded with status '%s' to the bundle entry", status));
+			}
+		}
+		return rejectedPatches;
+	}
+	
+	private MethodOutcome push(Patient patient, Event.Action action) {
+		if (action != Event.Action.CREATED) {
+			return guard.execute(true, () -> client.update().resource(patient).execute());
+		}
+		
+		try {
+			// not retried here, a failed create is retried from the outbox
+			return guard.execute(false, () -> client.create().resource(patient).execute());
+		}
+		catch (FhirClientConnectionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DataFormatException) {
+				// just warn if the CR responds with unsupported data format
+				log.warn(e.getMessage());
+				return null;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param versionId the version of the patient the patch was made against
+	 * @return the outcome of the patch, or null if the client registry rejected it and the patient
+	 *         must be updated in full
+	 */
+	private MethodOutcome pushPatch(Patient patient, String patch, String versionId) {
+		try {
+			IdType id = new IdType(FhirConstants.PATIENT, patient.getIdElement().getIdPart());
+			return guard.execute(true, () -> client.patch().withBody(patch).withId(id)
+			        .withAdditionalHeader(Constants.HEADER_IF_MATCH, toETag(versionId)).execute());
+		}
+		catch (BaseServerResponseException e) {
+			if (!isPatchRejected(e.getStatusCode())) {
+				throw e;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * @param statusCode the status the client registry responded to a patch with
+	 * @return whether the patch was rejected in a way a full update gets around: the patient changed
+	 *         in the client registry since the version the patch was made against, or the client
+	 *         registry does not support patches after all, in which case no further patches are sent
+	 */
+	private boolean isPatchRejected(int statusCode) {
+		if (statusCode == PreconditionFailedException.STATUS_CODE) {
+			log.info("Patient changed in the client registry since its last push, sending a full update");
+			return true;
+		}
+		if (PATCH_UNSUPPORTED_STATUSES.contains(statusCode)) {
+			log.warn(String.format("Client registry rejected a patch with status %d, sending full updates from now on",
+			    statusCode));
+			patchSupported = false;
+			return true;
+		}
+		return false;
+	}
+	
+	private static String getVersionId(MethodOutcome outcome) {
+		return outcome != null && outcome.getId() != null ? outcome.getId().getVersionIdPart() : null;
+	}
+	
+	/**
+	 * @return the version of the patient, read from the ETag of the response or else from its
+	 *         location, null if the client registry gave neither
+	 */
+	private static String getVersionId(Bundle.BundleEntryResponseComponent response) {
+		if (response.hasEtag()) {
+			return StringUtils.strip(StringUtils.removeStart(response.getEtag(), "W/"), "\"");
+		}
+		return response.hasLocation() ? new IdType(response.getLocation()).getVersionIdPart() : null;
+	}
+	
+	private static String toETag(String versionId) {
+		return "W/\"" + versionId + "\"";
+	}
+	
+	/**
+	 * @return whether a patient's demographics may differ from those of its last push, in which case
+	 *         searches that did not find the patient before may find it now
+	 */
+	private static boolean isDemographicsChanged(SyncFingerprint last, SyncFingerprint fingerprint) {
+		return last == null || last.getDemographicsFingerprint() == null
+		        || !last.getDemographicsFingerprint().equals(fingerprint.getDemographicsFingerprint());
+	}
+	
+	/**
+	 * @return the encoding to keep as the base of the next patch, null if patch updates are disabled
+	 */
+	private String getPatchBase(String encoded) {
+		return config.isSyncPatchUpdates() ? encoded : null;
+	}
+	
+	/**
+	 * @return a JSON Patch from the last pushed representation of a patient to its current one, or
+	 *         null if the patient has to be updated in full, e.g. as the version of the patient the
+	 *         patch would be made against is not known
+	 */
+	private String createPatch(SyncFingerprint last, String encoded) {
+		if (!config.isSyncPatchUpdates() || last == null || last.getPayload() == null || last.getVersionId() == null
+		        || !isPatchSupported()) {
+			return null;
+		}
+		
+		try {
+			return JsonPatchDiff.diff(last.getPayload(), encoded);
+		}
+		catch (IOException e) {
+			log.warn(String.format("Failed to diff patient %s, sending a full update", last.getPatientUuid()), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Forgets whether the client registry accepts patch updates, so that it is asked again before the
+	 * next patch.
+	 */
+	public void resetPatchSupport() {
+		patchSupported = null;
+	}
+	
+	private boolean isPatchSupported() {
+		Boolean supported = patchSupported;
+		if (supported == null) {
+			try {
+				CapabilityStatement capabilities = guard.execute(true,
+				    () -> client.capabilities().ofType(CapabilityStatement.class).execute());
+				supported = capabilities.getRest().stream().flatMap(rest -> rest.getResource().stream())
+				        .filter(resource -> FhirConstants.PATIENT.equals(resource.getType()))
+				        .flatMap(resource -> resource.getInteraction().stream())
+				        .anyMatch(interaction -> interaction.getCode() == CapabilityStatement.TypeRestfulInteraction.PATCH);
+				patchSupported = supported;
+			}
+			catch (Exception e) {
+				// asked again on the next update
+				log.warn("Failed to read the client registry capability statement, sending a full update", e);
+				return false;
+			}
+		}
+		return supported;
+	}
+}
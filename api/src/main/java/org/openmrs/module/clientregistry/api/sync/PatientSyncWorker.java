@@ -0,0 +1,443 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.Event;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.ClientRegistryUnavailableException;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drains the patient sync outbox: hands due entries to the {@link PatientSyncExecutor} lane of their
+ * patient, whose worker pushes them to the client registry in Bundles and marks them done. The
+ * entries recorded for a patient while its first entry waited out the quiet window are pushed along
+ * with it. Entries that fail stay in the outbox and are retried one at a time after the configured
+ * retry interval, holding back the later entries of their patient until then, so events can be
+ * recorded as fast as the database accepts them and pushed as fast as the client registry accepts
+ * them. Entries failing more often than configured are moved to the dead letters,
+ * from where admins can replay them. Entries marked done are purged once they are older than the
+ * configured retention.
+ */
+@Component
+public class PatientSyncWorker {
+	
+	private static final int MAX_ERROR_LENGTH = 1024;
+	
+	private static final long PURGE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	
+	private final Object monitor = new Object();
+	
+	private int signalledEntries = 0;
+	
+	private final Set<Integer> inFlightEntries = ConcurrentHashMap.newKeySet();
+	
+	private Thread drainThread;
+	
+	private long lastPurge = 0;
+	
+	@Autowired
+	private SyncOutboxDao outboxDao;
+	
+	@Autowired
+	private PatientSyncProcessor processor;
+	
+	@Autowired
+	private PatientSyncExecutor executor;
+	
+	@Autowired
+	private ClientRegistryConfig config;
+	
+	@Autowired
+	private ClientRegistryGuard guard;
+	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	/**
+	 * Starts draining the outbox in a daemon thread, if not already started.
+	 * 
+	 * @param daemonToken the module's daemon token
+	 */
+	public synchronized void start(DaemonToken daemonToken) {
+		if (drainThread != null && drainThread.isAlive()) {
+			// a stop was interrupted before the old loop exited
+			log.warn("Client registry sync worker not started, the previous drain loop is still running");
+			return;
+		}
+		if (isRunning.compareAndSet(false, true)) {
+			inFlightEntries.clear();
+			executor.start(daemonToken);
+			drainThread = Daemon.runInDaemonThread(this::drainLoop, daemonToken);
+		}
+	}
+	
+	/**
+	 * Stops draining the outbox once the pushes currently running are done, and waits for the drain
+	 * loop to exit, so that a start right after cannot run a second loop next to it. Entries left in
+	 * the outbox are picked up after the next start.
+	 */
+	public synchronized void stop() {
+		if (isRunning.compareAndSet(true, false)) {
+			wakeUp();
+			// stopped first, a drain waiting for room in a full lane gives up once the executor is stopped
+			executor.stop();
+			if (drainThread != null) {
+				try {
+					drainThread.join();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				drainThread = null;
+			}
+		}
+	}
+	
+	/**
+	 * Signals that a new entry was added to the outbox.
+	 */
+	public void wakeUp() {
+		synchronized (monitor) {
+			signalledEntries++;
+			monitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * Moves dead letters back into the outbox so that they are pushed again.
+	 * 
+	 * @param patientUuid the uuid of the patient whose dead letters to replay, or null for all
+	 * @return the number of outbox entries replayed
+	 */
+	public int replayDeadLetters(String patientUuid) {
+		int replayed = outboxDao.replayDeadEntries(patientUuid);
+		if (replayed > 0) {
+			wakeUp();
+		}
+		return replayed;
+	}
+	
+	private void drainLoop() {
+		log.info("Client registry sync worker started");
+		while (isRunning.get()) {
+			try {
+				purgeDoneEntries();
+				if (drain() == 0) {
+					waitForWork();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (Exception e) {
+				log.error("Failed to drain the client registry sync outbox", e);
+				try {
+					waitForWork();
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		log.info("Client registry sync worker stopped");
+	}
+	
+	/**
+	 * Hands the due entries of the outbox to the lanes of their patients.
+	 * 
+	 * @return the number of entries handed over
+	 * @throws InterruptedException if interrupted while waiting for room in a full lane
+	 */
+	int drain() throws InterruptedException {
+		if (guard.isOpen()) {
+			// nothing would get through, leave the entries in the outbox until the client registry is back
+			return 0;
+		}
+		
+		int batchSize = config.getSyncBatchSize();
+		// taken before the query: an entry whose push finishes meanwhile is skipped until the next cycle
+		// rather than risking it being read back as pending and pushed twice
+		Set<Integer> busyEntries = new HashSet<>(inFlightEntries);
+		List<SyncOutboxEntry> entries = outboxDao.getDueEntries(batchSize * config.getSyncWorkerCount());
+		
+		// every push for a patient goes through the same lane, which runs its tasks one at a time in the
+		// order they were submitted, so events for a patient reach the client registry in the order they
+		// happened while other lanes push other patients in parallel
+		Map<Integer, Map<String, List<SyncOutboxEntry>>> entriesByLane = new LinkedHashMap<>();
+		Set<String> busyPatients = new HashSet<>();
+		for (SyncOutboxEntry entry : entries) {
+			if (busyEntries.contains(entry.getId()) || busyPatients.contains(entry.getPatientUuid())) {
+				// the entries behind one still being pushed wait for its outcome, which holds them back in
+				// the outbox should it fail
+				busyPatients.add(entry.getPatientUuid());
+				continue;
+			}
+			
+			int lane = executor.getLane(entry.getPatientUuid());
+			if (lane < 0) {
+				return 0;
+			}
+			entriesByLane.computeIfAbsent(lane, key -> new LinkedHashMap<>())
+			        .computeIfAbsent(entry.getPatientUuid(), uuid -> new ArrayList<>()).add(entry);
+		}
+		addFollowingEntries(entriesByLane.values(), entries, busyEntries);
+		// the entries are handed to the sync workers, which save them in their own sessions
+		Context.clearSession();
+		
+		int dispatched = 0;
+		for (Map.Entry<Integer, Map<String, List<SyncOutboxEntry>>> lane : entriesByLane.entrySet()) {
+			for (List<SyncOutboxEntry> task : getTasks(lane.getValue().values(), batchSize)) {
+				Set<Integer> ids = task.stream().map(SyncOutboxEntry::getId).collect(Collectors.toSet());
+				inFlightEntries.addAll(ids);
+				if (!executor.submit(lane.getKey(), () -> push(task, ids))) {
+					// the lane is full, its remaining entries stay in the outbox for a later cycle
+					inFlightEntries.removeAll(ids);
+					break;
+				}
+				dispatched += task.size();
+			}
+		}
+		return dispatched;
+	}
+	
+	/**
+	 * Deletes the entries pushed longer ago than the configured retention, at most once an hour.
+	 */
+	void purgeDoneEntries() {
+		int retention = config.getSyncOutboxRetention();
+		long now = System.currentTimeMillis();
+		if (retention == 0 || now - lastPurge < PURGE_INTERVAL_MILLIS) {
+			return;
+		}
+		
+		lastPurge = now;
+		int purged = outboxDao.purgeDoneEntries(new Date(now - TimeUnit.DAYS.toMillis(retention)));
+		if (purged > 0) {
+			log.info(String.format("Purged %d pushed entries from the client registry sync outbox", purged));
+		}
+	}
+	
+	/**
+	 * Adds the entries recorded for a patient after its due entries, which are still waiting out their
+	 * quiet window or held back behind a failed entry being retried, so that they are pushed along with
+	 * the due ones rather than in pushes of their own.
+	 */
+	private void addFollowingEntries(Collection<Map<String, List<SyncOutboxEntry>>> entriesByPatient,
+	        List<SyncOutboxEntry> dueEntries, Set<Integer> busyEntries) {
+		Map<String, List<SyncOutboxEntry>> patients = new LinkedHashMap<>();
+		entriesByPatient.forEach(patients::putAll);
+		if (patients.isEmpty()) {
+			return;
+		}
+		
+		Set<Integer> dueIds = dueEntries.stream().map(SyncOutboxEntry::getId).collect(Collectors.toSet());
+		for (SyncOutboxEntry entry : outboxDao.getUnattemptedEntries(patients.keySet())) {
+			if (!dueIds.contains(entry.getId()) && !busyEntries.contains(entry.getId())) {
+				patients.get(entry.getPatientUuid()).add(entry);
+			}
+		}
+		patients.values().forEach(patientEntries -> patientEntries.sort(Comparator.comparing(SyncOutboxEntry::getId)));
+	}
+	
+	/**
+	 * Splits the entries of the patients in one lane into push tasks: patients that failed before are
+	 * retried one at a time, the rest are pushed in bundles.
+	 */
+	private List<List<SyncOutboxEntry>> getTasks(Collection<List<SyncOutboxEntry>> entriesByPatient, int batchSize) {
+		List<List<SyncOutboxEntry>> tasks = new ArrayList<>();
+		List<SyncOutboxEntry> bundle = new ArrayList<>();
+		int bundledPatients = 0;
+		for (List<SyncOutboxEntry> patientEntries : entriesByPatient) {
+			if (patientEntries.stream().anyMatch(entry -> entry.getAttempts() > 0)) {
+				tasks.add(patientEntries);
+				continue;
+			}
+			
+			bundle.addAll(patientEntries);
+			if (++bundledPatients == batchSize) {
+				tasks.add(bundle);
+				bundle = new ArrayList<>();
+				bundledPatients = 0;
+			}
+		}
+		if (!bundle.isEmpty()) {
+			tasks.add(bundle);
+		}
+		return tasks;
+	}
+	
+	private void push(List<SyncOutboxEntry> entries, Set<Integer> entryIds) {
+		try {
+			// the current state of a patient is pushed, so the entries following the first one of a patient
+			// are done along with it: a CREATED followed by UPDATEDs is one create
+			Set<String> pushedPatients = new HashSet<>();
+			Set<String> failedPatients = new HashSet<>();
+			List<SyncOutboxEntry> sequential = entries;
+			if (entries.stream().allMatch(entry -> entry.getAttempts() == 0)) {
+				Map<String, List<SyncOutboxEntry>> ready = new LinkedHashMap<>();
+				entries.forEach(entry -> ready.computeIfAbsent(entry.getPatientUuid(), uuid -> new ArrayList<>()).add(entry));
+				
+				if (ready.size() > 1) {
+					Map<String, Event.Action> batch = new LinkedHashMap<>();
+					ready.forEach((uuid, patientEntries) -> batch.put(uuid, patientEntries.get(0).getEventAction()));
+					Map<String, String> failures;
+					try {
+						failures = processor.processBatch(batch);
+					}
+					catch (ClientRegistryUnavailableException e) {
+						// not the patients' fault, they stay pending without using up an attempt
+						return;
+					}
+					for (Map.Entry<String, List<SyncOutboxEntry>> patient : ready.entrySet()) {
+						if (failures.containsKey(patient.getKey())) {
+							// the entries following the failed one stay pending until it was retried
+							complete(patient.getValue().get(0), failures.get(patient.getKey()), true);
+						} else {
+							completeAll(patient.getValue());
+						}
+					}
+					sequential = Collections.emptyList();
+				} else {
+					sequential = ready.values().stream().flatMap(List::stream).collect(Collectors.toList());
+				}
+			}
+			
+			for (SyncOutboxEntry entry : sequential) {
+				// an entry behind a failed one of its patient must not overtake it, it stays pending until the
+				// failed one was retried
+				if (failedPatients.contains(entry.getPatientUuid())) {
+					continue;
+				}
+				if (pushedPatients.contains(entry.getPatientUuid())) {
+					complete(entry, null, false);
+					metrics.increment(ClientRegistryMetrics.SYNC_EVENTS_COALESCED);
+					continue;
+				}
+				
+				try {
+					processor.process(entry.getPatientUuid(), entry.getEventAction());
+					complete(entry, null, false);
+					pushedPatients.add(entry.getPatientUuid());
+				}
+				catch (ClientRegistryUnavailableException e) {
+					// not the patient's fault, it and the entries behind it stay pending without using up an attempt
+					return;
+				}
+				catch (Exception e) {
+					log.error(String.format("Failed to push patient %s to the client registry", entry.getPatientUuid()), e);
+					complete(entry, e.getMessage(), true);
+					// once given up on, the later entries of the patient push its current state and may go ahead
+					if (entry.getStatus() == SyncOutboxEntry.Status.PENDING) {
+						failedPatients.add(entry.getPatientUuid());
+					}
+				}
+			}
+		}
+		finally {
+			inFlightEntries.removeAll(entryIds);
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+	
+	private void completeAll(List<SyncOutboxEntry> patientEntries) {
+		patientEntries.forEach(entry -> complete(entry, null, false));
+		metrics.add(ClientRegistryMetrics.SYNC_EVENTS_COALESCED, patientEntries.size() - 1);
+	}
+	
+	private void complete(SyncOutboxEntry entry, String error, boolean failed) {
+		if (failed) {
+			entry.setAttempts(entry.getAttempts() + 1);
+			entry.setLastError(StringUtils.abbreviate(String.valueOf(error), MAX_ERROR_LENGTH));
+			if (entry.getAttempts() >= config.getSyncMaxAttempts()) {
+				log.warn(String.format("Giving up on pushing patient %s after %d attempts, moving it to the dead letters",
+				    entry.getPatientUuid(), entry.getAttempts()));
+				entry.setStatus(SyncOutboxEntry.Status.DEAD);
+				metrics.increment(ClientRegistryMetrics.SYNC_DEAD_LETTERED);
+			} else {
+				entry.setNextAttempt(
+				    new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getSyncRetryInterval())));
+			}
+		} else {
+			entry.setStatus(SyncOutboxEntry.Status.DONE);
+			entry.setDateProcessed(new Date());
+		}
+		outboxDao.saveEntry(entry);
+	}
+	
+	private void waitForWork() throws InterruptedException {
+		long timeout = TimeUnit.SECONDS.toMillis(config.getSyncRetryInterval());
+		Date nextAttempt = getNextAttempt();
+		if (nextAttempt != null) {
+			// wake up when the next entry waiting out its quiet window or retry interval falls due
+			timeout = Math.max(1, Math.min(timeout, nextAttempt.getTime() - System.currentTimeMillis()));
+		}
+		
+		synchronized (monitor) {
+			if (signalledEntries == 0 && isRunning.get()) {
+				monitor.wait(timeout);
+			}
+			
+			// give a burst of events the batch window to fill up a bundle
+			long deadline = System.currentTimeMillis() + config.getSyncBatchWindow();
+			int batchSize = config.getSyncBatchSize();
+			while (signalledEntries > 0 && signalledEntries < batchSize && isRunning.get()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				monitor.wait(remaining);
+			}
+			signalledEntries = 0;
+		}
+	}
+	
+	private Date getNextAttempt() {
+		try {
+			return outboxDao.getNextAttempt();
+		}
+		catch (Exception e) {
+			log.error("Failed to look up when the next client registry sync outbox entry falls due", e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * OpenMRS is also distributed under the terms of the Healthcare Disclaimer located at
+ * http://openmrs.org/license. Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the
+ * OpenMRS graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.clientregistry.api.sync;
+
+/**
+ * What the sync pipeline does with outbox entries when the queue of a {@link PatientSyncExecutor}
+ * lane is full.
+ */
+public enum SyncOverflowPolicy {
+	/**
+	 * Wait until the lane's worker frees up space in the queue.
+	 */
+	BLOCK,
+	/**
+	 * Leave the entries in the outbox, they are picked up again once the lane has room.
+	 */
+	SPILL
+}
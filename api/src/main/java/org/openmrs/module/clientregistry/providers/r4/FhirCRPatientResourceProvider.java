@@ -12,8 +12,15 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.Setter;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DecimalType;
 import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
@@ -22,21 +29,31 @@ import ca.uhn.fhir.rest.annotation.Sort;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.clientregistry.ClientRegistryConfig;
 import org.openmrs.module.clientregistry.ClientRegistryConstants;
 import org.openmrs.module.clientregistry.api.CRPatientService;
+import org.openmrs.module.clientregistry.api.ClientRegistryManager;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.proxy.CRPassThroughProxy;
+import org.openmrs.module.clientregistry.api.search.FederatedPatientSearch;
+import org.openmrs.module.clientregistry.api.sync.PatientBackfill;
+import org.openmrs.module.clientregistry.api.sync.PatientSyncWorker;
 import org.openmrs.module.clientregistry.providers.FhirCRConstants;
 import org.openmrs.module.fhir2.api.annotations.R4Provider;
 import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
 import org.openmrs.module.fhir2.providers.util.FhirProviderUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
 import static lombok.AccessLevel.PACKAGE;
 
 @Component("crPatientFhirR4ResourceProvider")
@@ -47,6 +64,24 @@ public class FhirCRPatientResourceProvider implements IResourceProvider {
 	@Autowired
 	private CRPatientService crService;
 	
+	@Autowired
+	private ClientRegistryMetrics metrics;
+	
+	@Autowired
+	private PatientSyncWorker syncWorker;
+	
+	@Autowired
+	private ClientRegistryManager clientRegistryManager;
+	
+	@Autowired
+	private PatientBackfill patientBackfill;
+	
+	@Autowired
+	private FederatedPatientSearch federatedSearch;
+	
+	@Autowired
+	private CRPassThroughProxy passThroughProxy;
+	
 	@Override
 	public Class<? extends IBaseResource> getResourceType() {
 		return Patient.class;
@@ -61,6 +96,40 @@ public class FhirCRPatientResourceProvider implements IResourceProvider {
 		return patient;
 	}
 	
+	/**
+	 * FHIR endpoint reading many patients from the client registry in one call. Example request: GET
+	 * [fhirbase]/Patient/$cr-batch?id=1,2&id=3
+	 * 
+	 * @param ids the client registry ids of the patients, repeated or comma separated
+	 * @return a batch-response bundle with one entry per id, in the order given; the entries of ids
+	 *         not found have a 404 response and no patient
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_BATCH_OPERATION, idempotent = true)
+	public Bundle getPatientsByIds(
+	        @OperationParam(name = "id", max = OperationParam.MAX_UNLIMITED) List<StringType> ids) {
+		List<String> patientIds = ids == null ? Collections.emptyList()
+		        : ids.stream().filter(Objects::nonNull).map(StringType::getValue).filter(Objects::nonNull)
+		                .flatMap(value -> Arrays.stream(value.split(","))).map(String::trim).filter(id -> !id.isEmpty())
+		                .collect(Collectors.toList());
+		if (patientIds.isEmpty()) {
+			throw new InvalidRequestException("id must be specified");
+		}
+		return crService.getPatientsByIds(patientIds);
+	}
+	
+	/**
+	 * FHIR endpoint streaming a patient from the client registry as it returns it, see
+	 * {@link CRPassThroughProxy}. Example request: GET [fhirbase]/Patient/1/$cr-proxy
+	 * 
+	 * @param id the client registry id of the patient
+	 * @param response the response the patient is streamed to
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_PROXY_OPERATION, idempotent = true, manualResponse = true)
+	public void getPatientByIdPassThrough(@IdParam @Nonnull IdType id, HttpServletResponse response)
+	        throws IOException {
+		passThroughProxy.read(id.getIdPart(), response);
+	}
+	
 	@Operation(name = ClientRegistryConstants.CR_FHIR_OPERATION)
 	public MethodOutcome createPatient(@ResourceParam Patient patient) {
 		Patient createdPatient = crService.createPatient(patient);
@@ -141,4 +210,133 @@ public class FhirCRPatientResourceProvider implements IResourceProvider {
 		return crService.searchPatients(new PatientSearchParams(name, given, family, identifier, gender, birthDate,
 		        deathDate, deceased, city, state, postalCode, country, id, lastUpdated, sort, null));
 	}
+	
+	/**
+	 * FHIR endpoint streaming the results of a client registry search as the client registry returns
+	 * them, taking the parameters of $cr-search, see {@link CRPassThroughProxy}. The paging links of
+	 * the results point back to this endpoint. Example request: GET
+	 * [fhirbase]/Patient/$cr-search-proxy?family=doe
+	 * 
+	 * @param requestDetails the request, whose parameters are passed on to the client registry
+	 * @param response the response the results are streamed to
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_SEARCH_PROXY_OPERATION, idempotent = true, manualResponse = true)
+	public void searchPatientsPassThrough(RequestDetails requestDetails, HttpServletResponse response)
+	        throws IOException {
+		passThroughProxy.search(requestDetails.getParameters(), requestDetails.getFhirServerBase(), response);
+	}
+	
+	/**
+	 * FHIR endpoint searching OpenMRS and the client registry for patients at the same time, with the
+	 * parameters of $cr-search. Example request: GET [fhirbase]/Patient/$cr-federated-search?family=doe
+	 * 
+	 * @return a searchset bundle with the OpenMRS patients followed by the client registry patients
+	 *         that are not the same; if the client registry did not answer in time, only the OpenMRS
+	 *         patients and an OperationOutcome entry with an incomplete issue
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_FEDERATED_SEARCH_OPERATION, idempotent = true)
+	public Bundle searchPatientsFederated(@OperationParam(name = Patient.SP_NAME) StringAndListParam name,
+	        @OperationParam(name = Patient.SP_GIVEN) StringAndListParam given,
+	        @OperationParam(name = Patient.SP_FAMILY) StringAndListParam family,
+	        @OperationParam(name = Patient.SP_IDENTIFIER) TokenAndListParam identifier,
+	        @OperationParam(name = Patient.SP_GENDER) TokenAndListParam gender,
+	        @OperationParam(name = Patient.SP_BIRTHDATE) DateRangeParam birthDate,
+	        @OperationParam(name = Patient.SP_DEATH_DATE) DateRangeParam deathDate,
+	        @OperationParam(name = Patient.SP_DECEASED) TokenAndListParam deceased,
+	        @OperationParam(name = Patient.SP_ADDRESS_CITY) StringAndListParam city,
+	        @OperationParam(name = Patient.SP_ADDRESS_STATE) StringAndListParam state,
+	        @OperationParam(name = Patient.SP_ADDRESS_POSTALCODE) StringAndListParam postalCode,
+	        @OperationParam(name = Patient.SP_ADDRESS_COUNTRY) StringAndListParam country,
+	        @OperationParam(name = Patient.SP_RES_ID) TokenAndListParam id,
+	        @OperationParam(name = "_lastUpdated") DateRangeParam lastUpdated, @Sort SortSpec sort) {
+		return federatedSearch.search(new PatientSearchParams(name, given, family, identifier, gender, birthDate,
+		        deathDate, deceased, city, state, postalCode, country, id, lastUpdated, sort, null));
+	}
+	
+	/**
+	 * FHIR endpoint exposing the module's client registry counters, e.g. how many patient pushes the
+	 * sync pipeline saved. Example request: GET [fhirbase]/Patient/$cr-metrics
+	 * 
+	 * @return a Parameters resource with one parameter per counter
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_METRICS_OPERATION, idempotent = true)
+	public Parameters getMetrics() {
+		Context.requirePrivilege(ClientRegistryConfig.MODULE_PRIVILEGE);
+		Parameters parameters = new Parameters();
+		metrics.getSnapshot().forEach(
+		    (name, value) -> parameters.addParameter().setName(name).setValue(new DecimalType(value)));
+		return parameters;
+	}
+	
+	/**
+	 * FHIR endpoint pushing patients whose sync gave up after too many failures again. Example
+	 * request: POST [fhirbase]/Patient/$cr-sync-replay[?patient=uuid]
+	 * 
+	 * @param patientUuid (optional) the uuid of the patient to replay, all patients if omitted
+	 * @return a Parameters resource with the number of replayed patient events
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_SYNC_REPLAY_OPERATION)
+	public Parameters replayDeadLetters(@OperationParam(name = "patient") StringParam patientUuid) {
+		Context.requirePrivilege(ClientRegistryConfig.MODULE_PRIVILEGE);
+		int replayed = syncWorker.replayDeadLetters(patientUuid == null ? null : patientUuid.getValue());
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("replayed").setValue(new DecimalType(replayed));
+		return parameters;
+	}
+	
+	/**
+	 * FHIR endpoint starting to push the patients already in OpenMRS to the client registry, resuming
+	 * a backfill that did not finish. Example request: POST [fhirbase]/Patient/$cr-backfill[?restart=true]
+	 * 
+	 * @param restart (optional) whether to push all patients even if an earlier backfill did not
+	 *            finish
+	 * @return a Parameters resource telling whether the backfill was started, with its progress
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_BACKFILL_OPERATION)
+	public Parameters startBackfill(@OperationParam(name = "restart") BooleanType restart) {
+		Context.requirePrivilege(ClientRegistryConfig.MODULE_PRIVILEGE);
+		boolean started = clientRegistryManager.startBackfill(restart != null && restart.booleanValue());
+		Parameters parameters = getBackfillProgress();
+		parameters.addParameter().setName("started").setValue(new BooleanType(started));
+		return parameters;
+	}
+	
+	/**
+	 * FHIR endpoint stopping the running backfill, which can be resumed later. Example request: POST
+	 * [fhirbase]/Patient/$cr-backfill-stop
+	 * 
+	 * @return a Parameters resource with the progress of the backfill
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_BACKFILL_STOP_OPERATION)
+	public Parameters stopBackfill() {
+		Context.requirePrivilege(ClientRegistryConfig.MODULE_PRIVILEGE);
+		patientBackfill.stop();
+		return getBackfillProgress();
+	}
+	
+	/**
+	 * FHIR endpoint reporting the progress of the running or last backfill, including its throughput
+	 * and estimated seconds to completion. Example request: GET [fhirbase]/Patient/$cr-backfill-status
+	 * 
+	 * @return a Parameters resource with the progress of the backfill
+	 */
+	@Operation(name = ClientRegistryConstants.CR_FHIR_BACKFILL_STATUS_OPERATION, idempotent = true)
+	public Parameters getBackfillProgress() {
+		Context.requirePrivilege(ClientRegistryConfig.MODULE_PRIVILEGE);
+		PatientBackfill.Progress progress = patientBackfill.getProgress();
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("state").setValue(new CodeType(progress.getState().name().toLowerCase()));
+		parameters.addParameter().setName("total").setValue(new DecimalType(progress.getTotal()));
+		parameters.addParameter().setName("processed").setValue(new DecimalType(progress.getProcessed()));
+		parameters.addParameter().setName("failed").setValue(new DecimalType(progress.getFailed()));
+		parameters.addParameter().setName("lastPatientId").setValue(new DecimalType(progress.getLastPatientId()));
+		parameters.addParameter().setName("throughput").setValue(new DecimalType(progress.getThroughput()));
+		if (progress.getDateStarted() != null) {
+			parameters.addParameter().setName("dateStarted").setValue(new DateTimeType(progress.getDateStarted()));
+		}
+		if (progress.getEta() != null) {
+			parameters.addParameter().setName("eta").setValue(new DecimalType(progress.getEta()));
+		}
+		return parameters;
+	}
 }
@@ -0,0 +1,62 @@
+package org.openmrs.module.clientregistry;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.clientregistry.api.sync.SyncOverflowPolicy;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientRegistryConfigTest {
+	
+	@Mock
+	private AdministrationService administrationService;
+	
+	@InjectMocks
+	private ClientRegistryConfig config;
+	
+	@Test
+	public void getSyncBatchSize_shouldReadGlobalPropertyOnlyOnceUntilRefreshed() {
+		when(administrationService.getGlobalProperty(ClientRegistryConstants.GP_SYNC_BATCH_SIZE)).thenReturn("20");
+		
+		assertThat(config.getSyncBatchSize(), equalTo(20));
+		assertThat(config.getSyncBatchSize(), equalTo(20));
+		verify(administrationService).getGlobalProperty(ClientRegistryConstants.GP_SYNC_BATCH_SIZE);
+		
+		when(administrationService.getGlobalProperty(ClientRegistryConstants.GP_SYNC_BATCH_SIZE)).thenReturn("30");
+		config.refresh();
+		
+		assertThat(config.getSyncBatchSize(), equalTo(30));
+		verify(administrationService, times(2)).getGlobalProperty(ClientRegistryConstants.GP_SYNC_BATCH_SIZE);
+	}
+	
+	@Test
+	public void getSnapshot_shouldFallBackToDefaultsForMissingOrInvalidValues() {
+		when(administrationService.getGlobalProperty(ClientRegistryConstants.GP_SYNC_WORKER_COUNT)).thenReturn("many");
+		
+		assertThat(config.getSyncWorkerCount(), equalTo(4));
+		assertThat(config.getSyncOverflowPolicy(), equalTo(SyncOverflowPolicy.SPILL));
+		assertThat(config.getClientRegistryGetPatientEndpoint(), equalTo("Patient/$ihe-pix"));
+	}
+	
+	@Test
+	public void getExtensionUrlsByAttributeTypeUuid_shouldParseConfiguredPairsInOrder() {
+		when(administrationService.getGlobalProperty(ClientRegistryConstants.GP_EXTENSION_UUID_EXTENSION_URLS))
+		        .thenReturn(" b2c38640-2603-4629-aebd-3b54f33f1e3a|http://example.org/phone , broken,"
+		                + "8d8718c2-c2cc-11de-8d13-0010c6dffd0f|http://example.org/birthplace");
+		
+		assertThat(config.getExtensionUrlsByAttributeTypeUuid().keySet(),
+		    contains("b2c38640-2603-4629-aebd-3b54f33f1e3a", "8d8718c2-c2cc-11de-8d13-0010c6dffd0f"));
+		assertThat(config.getExtensionUrlsByAttributeTypeUuid().get("8d8718c2-c2cc-11de-8d13-0010c6dffd0f"),
+		    equalTo("http://example.org/birthplace"));
+	}
+}
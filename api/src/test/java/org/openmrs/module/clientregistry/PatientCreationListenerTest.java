@@ -1,16 +1,126 @@
 package org.openmrs.module.clientregistry;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jms.Destination;
+import javax.jms.MapMessage;
+
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.event.PatientCreateUpdateListener;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.openmrs.module.clientregistry.api.sync.PatientSyncWorker;
 
+@RunWith(MockitoJUnitRunner.class)
 public class PatientCreationListenerTest {
 	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	@Mock
+	private SyncOutboxDao outboxDao;
+	
+	@Mock
+	private PatientSyncWorker syncWorker;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@Mock
+	private MapMessage message;
+	
+	@Mock
+	private Destination destination;
+	
+	@InjectMocks
+	private PatientCreateUpdateListener listener;
+	
 	@Before
 	public void setUp() throws Exception {
+		when(message.getString("uuid")).thenReturn(PATIENT_UUID);
+		when(message.getJMSDestination()).thenReturn(destination);
+	}
+	
+	@Test
+	public void onMessage_shouldRecordCreatedPatientInOutbox() {
+		when(destination.toString()).thenReturn("topic://CREATED:org.openmrs.Patient");
+		
+		listener.onMessage(message);
+		
+		ArgumentCaptor<SyncOutboxEntry> captor = ArgumentCaptor.forClass(SyncOutboxEntry.class);
+		verify(outboxDao).saveEntry(captor.capture());
+		assertThat(captor.getValue().getPatientUuid(), equalTo(PATIENT_UUID));
+		assertThat(captor.getValue().getEventAction(), equalTo(Event.Action.CREATED));
+		assertThat(captor.getValue().getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		assertThat(captor.getValue().getNextAttempt(), nullValue());
+		verify(syncWorker).wakeUp();
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_EVENTS_RECEIVED), equalTo(1L));
+	}
+	
+	@Test
+	public void onMessage_shouldRecordTheEventAsDueAfterTheQuietWindow() {
+		when(destination.toString()).thenReturn(ClientRegistryConstants.UPDATE_MESSAGE_DESTINATION);
+		when(config.getSyncQuietWindow()).thenReturn(60000);
+		long before = System.currentTimeMillis();
+		
+		listener.onMessage(message);
+		
+		// recorded right away, so that nothing is lost if OpenMRS goes down during the quiet window
+		ArgumentCaptor<SyncOutboxEntry> captor = ArgumentCaptor.forClass(SyncOutboxEntry.class);
+		verify(outboxDao).saveEntry(captor.capture());
+		assertThat(captor.getValue().getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		assertThat(captor.getValue().getNextAttempt().getTime(), greaterThanOrEqualTo(before + 60000));
+		verify(syncWorker).wakeUp();
+	}
+	
+	@Test
+	public void onMessage_shouldRecordUpdatedPatientInOutbox() {
+		when(destination.toString()).thenReturn(ClientRegistryConstants.UPDATE_MESSAGE_DESTINATION);
+		
+		listener.onMessage(message);
+		
+		ArgumentCaptor<SyncOutboxEntry> captor = ArgumentCaptor.forClass(SyncOutboxEntry.class);
+		verify(outboxDao).saveEntry(captor.capture());
+		assertThat(captor.getValue().getEventAction(), equalTo(Event.Action.UPDATED));
+	}
+	
+	@Test
+	public void onMessage_shouldRecordPurgedPatientInOutbox() {
+		when(destination.toString()).thenReturn(ClientRegistryConstants.PURGE_MESSAGE_DESTINATION);
+		
+		listener.onMessage(message);
+		
+		ArgumentCaptor<SyncOutboxEntry> captor = ArgumentCaptor.forClass(SyncOutboxEntry.class);
+		verify(outboxDao).saveEntry(captor.capture());
+		assertThat(captor.getValue().getEventAction(), equalTo(Event.Action.PURGED));
 	}
 	
 	@Test
-	public void onMessage() {
+	public void onMessage_shouldIgnoreMessagesWithoutPatientUuid() throws Exception {
+		when(message.getString("uuid")).thenReturn(" ");
+		
+		listener.onMessage(message);
+		
+		verify(outboxDao, never()).saveEntry(any(SyncOutboxEntry.class));
+		verify(syncWorker, never()).wakeUp();
 	}
 	
 }
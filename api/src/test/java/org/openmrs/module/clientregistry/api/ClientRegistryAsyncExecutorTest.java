@@ -0,0 +1,147 @@
+package org.openmrs.module.clientregistry.api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientRegistryAsyncExecutorTest {
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@InjectMocks
+	private ClientRegistryAsyncExecutor executor = new ClientRegistryAsyncExecutor() {
+		
+		@Override
+		Thread startWorker(Runnable worker, DaemonToken daemonToken) {
+			Thread thread = new Thread(worker);
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+	};
+	
+	private final CountDownLatch blockerStarted = new CountDownLatch(1);
+	
+	private final CountDownLatch blockerReleased = new CountDownLatch(1);
+	
+	@Before
+	public void setup() {
+		when(config.getAsyncWorkerCount()).thenReturn(1);
+	}
+	
+	@After
+	public void tearDown() {
+		blockerReleased.countDown();
+		executor.stop();
+	}
+	
+	@Test
+	public void supplyAsync_shouldRunTheTaskInAWorker() throws Exception {
+		executor.start(null);
+		
+		Thread runner = executor.supplyAsync(Thread::currentThread).get(10, TimeUnit.SECONDS);
+		
+		assertThat(runner, not(sameInstance(Thread.currentThread())));
+	}
+	
+	@Test
+	public void supplyAsync_shouldRunTheTaskInTheCallingThreadWhenStopped() {
+		CompletableFuture<Thread> runner = executor.supplyAsync(Thread::currentThread);
+		
+		assertThat(runner.getNow(null), sameInstance(Thread.currentThread()));
+	}
+	
+	@Test
+	public void supplyAsync_shouldRunTheTaskInTheCallingThreadWhenTheQueueIsFull() throws InterruptedException {
+		executor.start(null);
+		givenBusyWorker();
+		List<CompletableFuture<Thread>> queued = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			queued.add(executor.supplyAsync(Thread::currentThread));
+		}
+		
+		CompletableFuture<Thread> runner = executor.supplyAsync(Thread::currentThread);
+		
+		assertThat(runner.getNow(null), sameInstance(Thread.currentThread()));
+		assertThat(queued.stream().anyMatch(CompletableFuture::isDone), equalTo(false));
+	}
+	
+	@Test
+	public void supplyAsync_shouldInterruptTheTaskWhenItsFutureIsCancelled() throws InterruptedException {
+		executor.start(null);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		CompletableFuture<Void> result = executor.supplyAsync(() -> {
+			started.countDown();
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+			}
+			catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			return null;
+		});
+		assertThat(started.await(10, TimeUnit.SECONDS), equalTo(true));
+		
+		result.cancel(true);
+		
+		assertThat(interrupted.await(10, TimeUnit.SECONDS), equalTo(true));
+		assertThat(executor.supplyAsync(() -> "next").join(), equalTo("next"));
+	}
+	
+	@Test
+	public void supplyAsync_shouldDropAQueuedTaskWhenItsFutureIsCancelled() throws Exception {
+		executor.start(null);
+		givenBusyWorker();
+		AtomicBoolean ran = new AtomicBoolean(false);
+		CompletableFuture<Void> result = executor.supplyAsync(() -> {
+			ran.set(true);
+			return null;
+		});
+		CompletableFuture<String> next = executor.supplyAsync(() -> "next");
+		
+		result.cancel(true);
+		blockerReleased.countDown();
+		
+		assertThat(next.get(10, TimeUnit.SECONDS), equalTo("next"));
+		assertThat(ran.get(), equalTo(false));
+	}
+	
+	/**
+	 * Keeps the only worker busy until the blocker is released, so that tasks stay queued.
+	 */
+	private void givenBusyWorker() throws InterruptedException {
+		executor.supplyAsync(() -> {
+			blockerStarted.countDown();
+			try {
+				blockerReleased.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		});
+		assertThat(blockerStarted.await(10, TimeUnit.SECONDS), equalTo(true));
+	}
+}
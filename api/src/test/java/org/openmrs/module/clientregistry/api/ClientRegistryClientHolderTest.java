@@ -0,0 +1,179 @@
+package org.openmrs.module.clientregistry.api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.cache.CRPatientCache;
+import org.openmrs.module.clientregistry.api.cache.CRSearchCache;
+import org.openmrs.module.clientregistry.api.cache.CRShadowIndex;
+import org.openmrs.module.clientregistry.api.cache.PixCrossReferenceCache;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.sync.PatientSyncProcessor;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientRegistryClientHolderTest {
+	
+	// nothing listens on port 1, so warming up fails fast
+	private static final String SERVER_URL = "http://localhost:1/fhir";
+	
+	private static final String OTHER_SERVER_URL = "http://127.0.0.1:1/fhir";
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@Spy
+	private FhirContext fhirContext = FhirContext.forR4();
+	
+	@Mock
+	private CRPatientCache patientCache;
+	
+	@Mock
+	private CRSearchCache searchCache;
+	
+	@Mock
+	private PixCrossReferenceCache pixCache;
+	
+	@Mock
+	private CRShadowIndex shadowIndex;
+	
+	@Mock
+	private PatientSyncProcessor syncProcessor;
+	
+	@Mock
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Mock
+	private DaemonToken daemonToken;
+	
+	@InjectMocks
+	private ClientRegistryClientHolder clientHolder = new ClientRegistryClientHolder() {
+		
+		@Override
+		Thread startSwap(Runnable swap, DaemonToken daemonToken) {
+			Thread thread = new Thread(swap);
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+	};
+	
+	@Before
+	public void setup() {
+		when(config.getClientRegistryServerUrl()).thenReturn(SERVER_URL);
+		when(config.getClientRegistryUserName()).thenReturn("");
+		when(config.getClientRegistryPassword()).thenReturn("");
+		when(config.getHttpMaxConnections()).thenReturn(4);
+		when(config.getHttpMaxConnectionsPerRoute()).thenReturn(4);
+		when(config.getHttpConnectTimeout()).thenReturn(1000);
+		when(config.getHttpReadTimeout()).thenReturn(1000);
+		when(config.getHttpRequestTimeout()).thenReturn(1000);
+		when(config.getHttpIdleTimeout()).thenReturn(30000);
+	}
+	
+	@After
+	public void tearDown() {
+		clientHolder.destroy();
+	}
+	
+	@Test
+	public void refresh_shouldKeepTheClientWhenItsSettingsDidNotChange() {
+		IGenericClient client = clientHolder.getClient();
+		when(config.getSyncBatchSize()).thenReturn(10);
+		
+		clientHolder.refresh(daemonToken);
+		
+		assertThat(clientHolder.getClient(), sameInstance(client));
+		assertThat(metrics.get(ClientRegistryMetrics.HTTP_POOL_MAX), equalTo(4L));
+		verify(shadowIndex, never()).reset();
+	}
+	
+	@Test
+	public void refresh_shouldSwapInANewClientWhenTheServerUrlChanges() throws Exception {
+		IGenericClient client = clientHolder.getClient();
+		when(config.getClientRegistryServerUrl()).thenReturn(OTHER_SERVER_URL);
+		
+		clientHolder.refresh(daemonToken);
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (metrics.get(ClientRegistryMetrics.CR_CLIENT_SWAPS) == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(metrics.get(ClientRegistryMetrics.CR_CLIENT_SWAPS), equalTo(1L));
+		assertThat(clientHolder.getClient(), not(sameInstance(client)));
+		assertThat(clientHolder.getServerUrl(), equalTo(OTHER_SERVER_URL));
+	}
+	
+	@Test
+	public void refresh_shouldForgetThePreviousClientRegistryWhenTheServerUrlChanges() {
+		clientHolder.getClient();
+		when(config.getClientRegistryServerUrl()).thenReturn(OTHER_SERVER_URL);
+		
+		clientHolder.refresh(daemonToken);
+		
+		verify(patientCache, timeout(10000)).invalidateAll();
+		verify(searchCache, timeout(10000)).invalidateAll();
+		verify(pixCache, timeout(10000)).invalidateAll();
+		verify(syncProcessor, timeout(10000)).resetPatchSupport();
+		verify(shadowIndex, timeout(10000)).reset();
+		// after the old client was drained, which takes at least a second
+		verify(fingerprintDao, timeout(10000)).deleteAllFingerprints();
+	}
+	
+	@Test
+	public void refresh_shouldKeepWhatIsKnownAboutTheClientRegistryWhenOnlyTheCredentialsChange() throws Exception {
+		clientHolder.getClient();
+		when(config.getClientRegistryUserName()).thenReturn("admin");
+		
+		clientHolder.refresh(daemonToken);
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (metrics.get(ClientRegistryMetrics.CR_CLIENT_SWAPS) == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(metrics.get(ClientRegistryMetrics.CR_CLIENT_SWAPS), equalTo(1L));
+		verify(shadowIndex, never()).reset();
+		verify(fingerprintDao, never()).deleteAllFingerprints();
+	}
+	
+	@Test
+	public void getSnapshot_shouldReportAnEmptyPoolOnceDestroyed() {
+		clientHolder.getClient();
+		
+		clientHolder.destroy();
+		
+		assertThat(metrics.getSnapshot().get(ClientRegistryMetrics.HTTP_POOL_LEASED), equalTo(0L));
+		assertThat(metrics.getSnapshot().get(ClientRegistryMetrics.HTTP_POOL_MAX), equalTo(0L));
+	}
+	
+	@Test
+	public void createGetRequest_shouldAddTheCredentialsOfTheClient() {
+		when(config.getClientRegistryUserName()).thenReturn("admin");
+		when(config.getClientRegistryPassword()).thenReturn("secret");
+		
+		assertThat(clientHolder.createGetRequest(SERVER_URL + "/Patient").getAllHeaders()
+		        .get(Constants.HEADER_AUTHORIZATION), contains("Basic YWRtaW46c2VjcmV0"));
+	}
+}
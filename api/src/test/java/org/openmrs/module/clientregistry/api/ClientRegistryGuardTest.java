@@ -0,0 +1,134 @@
+package org.openmrs.module.clientregistry.api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientRegistryGuardTest {
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private ClientRegistryGuard guard;
+	
+	@Before
+	public void setup() {
+		when(config.getRetryMaxAttempts()).thenReturn(3);
+		when(config.getRetryBaseDelay()).thenReturn(0);
+		when(config.getRetryMaxDelay()).thenReturn(0);
+		when(config.getCircuitFailureThreshold()).thenReturn(5);
+		when(config.getCircuitOpenDuration()).thenReturn(30);
+	}
+	
+	@Test
+	public void execute_shouldRetryTransientFailures() {
+		AtomicInteger calls = new AtomicInteger();
+		
+		String result = guard.execute(true, () -> {
+			if (calls.incrementAndGet() < 3) {
+				throw new FhirClientConnectionException("Connection refused");
+			}
+			return "ok";
+		});
+		
+		assertThat(result, equalTo("ok"));
+		assertThat(calls.get(), equalTo(3));
+		assertThat(metrics.get(ClientRegistryMetrics.CR_CALLS_RETRIED), equalTo(2L));
+	}
+	
+	@Test
+	public void execute_shouldNotRetryCallsThatAreNotRetryable() {
+		AtomicInteger calls = new AtomicInteger();
+		
+		try {
+			guard.execute(false, () -> {
+				calls.incrementAndGet();
+				throw new FhirClientConnectionException("Connection refused");
+			});
+			fail();
+		}
+		catch (FhirClientConnectionException e) {
+			assertThat(calls.get(), equalTo(1));
+		}
+	}
+	
+	@Test
+	public void execute_shouldNotRetryErrorsReportedByTheClientRegistry() {
+		AtomicInteger calls = new AtomicInteger();
+		
+		try {
+			guard.execute(true, () -> {
+				calls.incrementAndGet();
+				throw new ResourceNotFoundException("Patient/1");
+			});
+			fail();
+		}
+		catch (ResourceNotFoundException e) {
+			assertThat(calls.get(), equalTo(1));
+		}
+	}
+	
+	@Test
+	public void execute_shouldFailFastOnceTheCircuitIsOpen() {
+		when(config.getRetryMaxAttempts()).thenReturn(1);
+		AtomicInteger calls = new AtomicInteger();
+		for (int i = 0; i < 5; i++) {
+			try {
+				guard.execute(true, () -> {
+					calls.incrementAndGet();
+					throw new FhirClientConnectionException("Connection refused");
+				});
+			}
+			catch (FhirClientConnectionException e) {
+				// expected
+			}
+		}
+		
+		try {
+			guard.execute(true, calls::incrementAndGet);
+			fail();
+		}
+		catch (ClientRegistryUnavailableException e) {
+			assertThat(calls.get(), equalTo(5));
+			assertThat(guard.isOpen(), equalTo(true));
+			assertThat(metrics.get(ClientRegistryMetrics.CR_CIRCUIT_OPENED), equalTo(1L));
+		}
+	}
+	
+	@Test
+	public void execute_shouldCloseTheCircuitWhenTheTrialCallSucceeds() {
+		when(config.getRetryMaxAttempts()).thenReturn(1);
+		when(config.getCircuitFailureThreshold()).thenReturn(1);
+		when(config.getCircuitOpenDuration()).thenReturn(0);
+		try {
+			guard.execute(true, () -> {
+				throw new FhirClientConnectionException("Connection refused");
+			});
+		}
+		catch (FhirClientConnectionException e) {
+			// expected
+		}
+		
+		assertThat(guard.execute(true, () -> "ok"), equalTo("ok"));
+		assertThat(guard.isOpen(), equalTo(false));
+	}
+}
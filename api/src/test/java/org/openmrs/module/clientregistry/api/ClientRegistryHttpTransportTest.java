@@ -0,0 +1,86 @@
+package org.openmrs.module.clientregistry.api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientRegistryHttpTransportTest {
+	
+	private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("cr", 3000));
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	private FhirContext fhirContext = FhirContext.forR4();
+	
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	private ClientRegistryHttpTransport transport;
+	
+	@Before
+	public void setup() {
+		when(config.getHttpMaxConnections()).thenReturn(4);
+		when(config.getHttpMaxConnectionsPerRoute()).thenReturn(1);
+		when(config.getHttpConnectTimeout()).thenReturn(1000);
+		when(config.getHttpReadTimeout()).thenReturn(1000);
+		when(config.getHttpRequestTimeout()).thenReturn(1000);
+		when(config.getHttpIdleTimeout()).thenReturn(30000);
+		transport = new ClientRegistryHttpTransport(fhirContext, config, metrics);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		transport.close();
+	}
+	
+	@Test
+	public void shouldSizeThePoolFromTheConfig() {
+		assertThat(transport.getConnectionManager().getMaxTotal(), equalTo(4));
+		assertThat(transport.getConnectionManager().getDefaultMaxPerRoute(), equalTo(1));
+		assertThat(transport.getConnectionManager().getTotalStats().getMax(), equalTo(4));
+	}
+	
+	@Test
+	public void shouldNotChangeTheClientFactoryOfTheSharedFhirContext() {
+		assertThat(transport.getClientFactory(), not(sameInstance(fhirContext.getRestfulClientFactory())));
+	}
+	
+	@Test
+	public void shouldCountLeasesAndLeaseTimeouts() throws Exception {
+		HttpClientConnection connection = transport.getConnectionManager().requestConnection(ROUTE, null).get(1,
+		    TimeUnit.SECONDS);
+		assertThat(transport.getConnectionManager().getTotalStats().getLeased(), equalTo(1));
+		
+		try {
+			transport.getConnectionManager().requestConnection(ROUTE, null).get(10, TimeUnit.MILLISECONDS);
+			fail();
+		}
+		catch (ConnectionPoolTimeoutException e) {
+			// the only connection of the route is leased
+		}
+		
+		assertThat(metrics.get(ClientRegistryMetrics.HTTP_LEASES), equalTo(2L));
+		assertThat(metrics.get(ClientRegistryMetrics.HTTP_LEASE_TIMEOUTS), equalTo(1L));
+		transport.getConnectionManager().releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+		assertThat(transport.getConnectionManager().getTotalStats().getLeased(), equalTo(0));
+	}
+}
@@ -0,0 +1,91 @@
+package org.openmrs.module.clientregistry.api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientRegistrySingleFlightTest {
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private ClientRegistrySingleFlight singleFlight;
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void execute_shouldShareTheCallInFlightWithIdenticalRequests() throws Exception {
+		CountDownLatch callStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		Object result = new Object();
+		
+		Future<Object> leader = executor.submit(() -> singleFlight.execute("read:1", () -> {
+			calls.incrementAndGet();
+			callStarted.countDown();
+			await(release);
+			return result;
+		}));
+		callStarted.await(5, TimeUnit.SECONDS);
+		Future<Object> follower = executor.submit(() -> singleFlight.execute("read:1", () -> {
+			calls.incrementAndGet();
+			return new Object();
+		}));
+		while (metrics.get(ClientRegistryMetrics.CR_CALLS_COALESCED) == 0) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		
+		assertThat(leader.get(5, TimeUnit.SECONDS), sameInstance(result));
+		assertThat(follower.get(5, TimeUnit.SECONDS), sameInstance(result));
+		assertThat(calls.get(), equalTo(1));
+	}
+	
+	@Test
+	public void execute_shouldCallAgainOnceTheCallInFlightIsDone() {
+		AtomicInteger calls = new AtomicInteger();
+		
+		singleFlight.execute("read:1", calls::incrementAndGet);
+		singleFlight.execute("read:1", calls::incrementAndGet);
+		
+		assertThat(calls.get(), equalTo(2));
+		assertThat(metrics.get(ClientRegistryMetrics.CR_CALLS_COALESCED), equalTo(0L));
+	}
+	
+	@Test(expected = ClientRegistryUnavailableException.class)
+	public void execute_shouldPassOnTheFailureOfTheCall() {
+		singleFlight.execute("read:1", () -> {
+			throw new ClientRegistryUnavailableException("down");
+		});
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.openmrs.module.clientregistry.api.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.search.CRSearchBundleProvider;
+import org.openmrs.module.clientregistry.api.search.CRSearchClient;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CRSearchCacheTest {
+	
+	private static final String SYSTEM = "http://openmrs.org/identifier/national-id";
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@InjectMocks
+	private CRSearchCache cache;
+	
+	@Before
+	public void setup() {
+		when(config.getSearchCacheSize()).thenReturn(10);
+		when(config.getSearchCacheTtl()).thenReturn(30);
+	}
+	
+	@Test
+	public void invalidatePatients_shouldDropOnlyTheSearchesThatFoundAPushedPatient() {
+		CRSearchBundleProvider smiths = results("123");
+		CRSearchBundleProvider does = results("456");
+		cache.put("family=smith", smiths);
+		cache.put("family=doe", does);
+		
+		cache.invalidatePatients(Collections.singletonList(new Identifier().setSystem(SYSTEM).setValue("123")));
+		
+		assertThat(cache.get("family=smith"), nullValue());
+		assertThat(cache.get("family=doe"), equalTo(does));
+	}
+	
+	@Test
+	public void put_shouldDropTheLeastRecentlyUsedSearchesWhenTheirPatientsTakeTooMuchMemory() {
+		when(config.getSearchCacheMemory()).thenReturn(1);
+		CRSearchBundleProvider smiths = results("123", 600L);
+		CRSearchBundleProvider does = results("456", 600L);
+		cache.put("family=smith", smiths);
+		
+		cache.put("family=doe", does);
+		
+		assertThat(cache.get("family=smith"), nullValue());
+		assertThat(cache.get("family=doe"), equalTo(does));
+	}
+	
+	@Test
+	public void invalidatePatients_shouldMatchTheIdentifierSystemToo() {
+		CRSearchBundleProvider smiths = results("123");
+		cache.put("family=smith", smiths);
+		
+		cache.invalidatePatients(
+		    Collections.singletonList(new Identifier().setSystem("http://openmrs.org/other").setValue("123")));
+		
+		assertThat(cache.get("family=smith"), equalTo(smiths));
+	}
+	
+	private static CRSearchBundleProvider results(String identifier) {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem(SYSTEM).setValue(identifier);
+		return new CRSearchBundleProvider(Collections.singletonList(patient));
+	}
+	
+	private static CRSearchBundleProvider results(String identifier, long encodedSize) {
+		Bundle page = new Bundle();
+		page.addEntry().setResource(new Patient().addIdentifier(new Identifier().setSystem(SYSTEM).setValue(identifier)));
+		page.setUserData(CRSearchClient.ENCODED_SIZE, encodedSize);
+		return new CRSearchBundleProvider(page, 1, url -> null);
+	}
+}
@@ -0,0 +1,220 @@
+package org.openmrs.module.clientregistry.api.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.db.ShadowPatientDao;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.model.ShadowIdentifier;
+import org.openmrs.module.clientregistry.api.model.ShadowPatient;
+import org.openmrs.module.clientregistry.api.search.PatientSearchCriteriaBuilder;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CRShadowIndexTest {
+	
+	private static final String NATIONAL_ID = "urn:national-id";
+	
+	private static final String FACILITY_ID = "http://openmrs.org/facility";
+	
+	@Mock
+	private ShadowPatientDao shadowPatientDao;
+	
+	@Mock
+	private SyncCheckpointDao checkpointDao;
+	
+	@Mock
+	private PatientSearchCriteriaBuilder criteriaBuilder;
+	
+	@Mock
+	private ClientRegistryGuard guard;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private CRShadowIndex shadowIndex;
+	
+	private Bundle registryPatients;
+	
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		when(config.getSyncBatchSize()).thenReturn(50);
+		when(config.getShadowIndexInterval()).thenReturn(5);
+		when(config.getShadowIndexMaxAge()).thenReturn(15);
+		when(criteriaBuilder.buildCriteria(any(PatientSearchParams.class))).thenReturn(Collections.emptyList());
+		registryPatients = new Bundle();
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(registryPatients);
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void poll_shouldLoadAllPatientsOnFirstRunAndMoveTheWatermark() {
+		Patient golden = givenRegistryPatient("golden", null, "123");
+		golden.addName().setFamily("Doe").addGiven("John").addGiven("Paul");
+		givenRegistryPatient("facility", "golden", "123");
+		
+		assertThat(shadowIndex.poll(), equalTo(2));
+		
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(shadowPatientDao).savePatients(captor.capture());
+		List<ShadowPatient> saved = new ArrayList<>((Collection<ShadowPatient>) captor.getValue());
+		assertThat(saved.get(0).getGivenName(), equalTo("John Paul"));
+		assertThat(saved.get(0).getGoldenId(), nullValue());
+		assertThat(saved.get(1).getGoldenId(), equalTo("golden"));
+		verify(criteriaBuilder, never()).buildCriteria(any(PatientSearchParams.class));
+		verify(checkpointDao).saveCheckpoint(eq(CRShadowIndex.CHECKPOINT_WATERMARK), any(String.class));
+		assertThat(metrics.get(ClientRegistryMetrics.SHADOW_PATIENTS_INDEXED), equalTo(2L));
+	}
+	
+	@Test
+	public void getCrossReferencedPatients_shouldReturnThePatientsLinkedToTheSameGoldenRecord() {
+		shadowIndex.poll();
+		ShadowPatient source = shadowPatient("facility", "golden", NATIONAL_ID);
+		ShadowPatient other = shadowPatient("other", "golden", FACILITY_ID);
+		ShadowPatient golden = shadowPatient("golden", null, NATIONAL_ID);
+		when(shadowPatientDao.getPatientsByIdentifier(NATIONAL_ID, Collections.singleton("123")))
+		        .thenReturn(Collections.singletonList(source));
+		when(shadowPatientDao.getLinkedPatients(anyCollectionOf(String.class)))
+		        .thenReturn(Arrays.asList(golden, source, other));
+		
+		List<Patient> all = shadowIndex.getCrossReferencedPatients(NATIONAL_ID, "123", Collections.emptyList());
+		List<Patient> targeted = shadowIndex.getCrossReferencedPatients(NATIONAL_ID, "123",
+		    Collections.singletonList(FACILITY_ID));
+		
+		assertThat(ids(all), containsInAnyOrder("golden", "facility", "other"));
+		assertThat(ids(targeted), contains("other"));
+		assertThat(targeted.get(0).getMeta().getTag().get(0).getCode(), equalTo("SUBSETTED"));
+		assertThat(metrics.get(ClientRegistryMetrics.SHADOW_LOOKUPS_ANSWERED), equalTo(2L));
+	}
+	
+	@Test
+	public void getCrossReferencedPatients_shouldFallBackWhenTheIndexIsStale() {
+		when(config.getShadowIndexInterval()).thenReturn(0);
+		shadowIndex.poll();
+		
+		assertThat(shadowIndex.getCrossReferencedPatients(NATIONAL_ID, "123", Collections.emptyList()), nullValue());
+		
+		verify(shadowPatientDao, never()).getPatientsByIdentifier(any(String.class), anyCollectionOf(String.class));
+	}
+	
+	@Test
+	public void reset_shouldHaveTheNextPollForgetThePatientsAndTheWatermark() {
+		shadowIndex.poll();
+		
+		shadowIndex.reset();
+		
+		assertThat(shadowIndex.isFresh(), equalTo(false));
+		assertThat(shadowIndex.getPatientsByIdentifier(NATIONAL_ID, Collections.singleton("123")), nullValue());
+		verify(shadowPatientDao, never()).deleteAllPatients();
+		
+		shadowIndex.poll();
+		
+		verify(shadowPatientDao).deleteAllPatients();
+		verify(checkpointDao).deleteCheckpoint(CRShadowIndex.CHECKPOINT_WATERMARK);
+		assertThat(shadowIndex.isFresh(), equalTo(true));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void poll_shouldStopWithoutMovingTheWatermarkWhenResetWhilePolling() {
+		givenRegistryPatient("facility", null, "123");
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenAnswer(invocation -> {
+			shadowIndex.reset();
+			return registryPatients;
+		});
+		
+		assertThat(shadowIndex.poll(), equalTo(0));
+		
+		verify(shadowPatientDao, never()).savePatients(anyCollectionOf(ShadowPatient.class));
+		verify(checkpointDao, never()).saveCheckpoint(eq(CRShadowIndex.CHECKPOINT_WATERMARK), any(String.class));
+		assertThat(shadowIndex.isFresh(), equalTo(false));
+	}
+	
+	@Test
+	public void getPatientsByIdentifier_shouldFallBackWhenTheIdentifierIsNotIndexed() {
+		shadowIndex.poll();
+		when(shadowPatientDao.getPatientsByIdentifier(NATIONAL_ID, Collections.singleton("123")))
+		        .thenReturn(Collections.emptyList());
+		
+		assertThat(shadowIndex.getPatientsByIdentifier(NATIONAL_ID, Collections.singleton("123")), nullValue());
+		assertThat(metrics.get(ClientRegistryMetrics.SHADOW_LOOKUPS_FALLBACK), equalTo(1L));
+	}
+	
+	@Test
+	public void getFuzzyCandidates_shouldRankSoundAlikePatientsFromTheBlockingIndex() {
+		when(config.getFuzzySearchLimit()).thenReturn(10);
+		ShadowPatient smith = shadowPatient("smith", null, NATIONAL_ID);
+		smith.setFamilyName("Smith");
+		smith.setGivenName("John");
+		ShadowPatient smyth = shadowPatient("smyth", null, NATIONAL_ID);
+		smyth.setFamilyName("Smyth");
+		when(shadowPatientDao.getPatients(0, 50)).thenReturn(Arrays.asList(smyth, smith));
+		when(shadowPatientDao.getPatients(anyCollectionOf(String.class))).thenReturn(Arrays.asList(smyth, smith));
+		shadowIndex.poll();
+		
+		List<Patient> candidates = shadowIndex.getFuzzyCandidates("Smit", "Jon", 1980, null);
+		
+		assertThat(ids(candidates), contains("smith", "smyth"));
+		assertThat(candidates.get(0).getNameFirstRep().getFamily(), equalTo("Smith"));
+	}
+	
+	private Patient givenRegistryPatient(String id, String goldenId, String nationalId) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		patient.addIdentifier().setSystem(NATIONAL_ID).setValue(nationalId);
+		if (goldenId != null) {
+			patient.addLink().setType(Patient.LinkType.REFER).setOther(new Reference("Patient/" + goldenId));
+		}
+		registryPatients.addEntry().setResource(patient);
+		return patient;
+	}
+	
+	private static ShadowPatient shadowPatient(String crId, String goldenId, String system) {
+		ShadowPatient patient = new ShadowPatient();
+		patient.setCrId(crId);
+		patient.setGoldenId(goldenId);
+		patient.getIdentifiers().add(new ShadowIdentifier(system, crId));
+		return patient;
+	}
+	
+	private static List<String> ids(List<Patient> patients) {
+		return patients.stream().map(patient -> patient.getIdElement().getIdPart()).collect(Collectors.toList());
+	}
+}
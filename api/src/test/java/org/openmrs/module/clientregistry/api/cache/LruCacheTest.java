@@ -0,0 +1,71 @@
+package org.openmrs.module.clientregistry.api.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+
+public class LruCacheTest {
+	
+	@Test
+	public void put_shouldEvictLeastRecentlyUsedValueWhenFull() {
+		LruCache<String, String> cache = new LruCache<>(() -> 2);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.get("a");
+		
+		cache.put("c", "C");
+		
+		assertThat(cache.get("a"), notNullValue());
+		assertThat(cache.get("b"), nullValue());
+		assertThat(cache.get("c").getValue(), equalTo("C"));
+	}
+	
+	@Test
+	public void put_shouldEvictLeastRecentlyUsedValuesWhenTooHeavy() {
+		LruCache<String, String> cache = new LruCache<>(() -> 10, () -> 5, String::length);
+		cache.put("a", "AA");
+		cache.put("b", "BB");
+		cache.get("a");
+		
+		cache.put("c", "CC");
+		
+		assertThat(cache.get("a"), notNullValue());
+		assertThat(cache.get("b"), nullValue());
+		assertThat(cache.get("c"), notNullValue());
+	}
+	
+	@Test
+	public void put_shouldNotCacheAValueHeavierThanTheWholeCache() {
+		LruCache<String, String> cache = new LruCache<>(() -> 10, () -> 5, String::length);
+		cache.put("a", "A");
+		
+		cache.put("b", "BBBBBB");
+		
+		assertThat(cache.size(), equalTo(0));
+	}
+	
+	@Test
+	public void put_shouldNotCacheAnythingWhenDisabled() {
+		LruCache<String, String> cache = new LruCache<>(() -> 0);
+		
+		cache.put("a", "A");
+		
+		assertThat(cache.isEnabled(), equalTo(false));
+		assertThat(cache.size(), equalTo(0));
+	}
+	
+	@Test
+	public void removeIf_shouldRemoveMatchingValues() {
+		LruCache<String, String> cache = new LruCache<>(() -> 10);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		
+		cache.removeIf("A"::equals);
+		
+		assertThat(cache.get("a"), nullValue());
+		assertThat(cache.get("b"), notNullValue());
+	}
+}
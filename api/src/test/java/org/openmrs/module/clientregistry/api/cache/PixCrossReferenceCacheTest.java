@@ -0,0 +1,66 @@
+package org.openmrs.module.clientregistry.api.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hl7.fhir.r4.model.Identifier;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PixCrossReferenceCacheTest {
+	
+	private static final String SOURCE_SYSTEM = "http://openmrs.org/identifier/national-id";
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@InjectMocks
+	private PixCrossReferenceCache cache;
+	
+	@Before
+	public void setup() {
+		when(config.getPixCacheSize()).thenReturn(10);
+		when(config.getPixCacheTtl()).thenReturn(300);
+	}
+	
+	@Test
+	public void get_shouldFindCrossReferenceWhateverTheOrderOfTargetSystems() {
+		cache.put(SOURCE_SYSTEM, "123", Arrays.asList("a", "b"), Collections.singletonList("Patient/1"));
+		
+		assertThat(cache.get(SOURCE_SYSTEM, "123", Arrays.asList("b", "a")), contains("Patient/1"));
+	}
+	
+	@Test
+	public void get_shouldNotReturnExpiredCrossReferences() {
+		when(config.getPixCacheTtl()).thenReturn(-1);
+		cache.put(SOURCE_SYSTEM, "123", Collections.emptyList(), Collections.singletonList("Patient/1"));
+		
+		assertThat(cache.get(SOURCE_SYSTEM, "123", Collections.emptyList()), nullValue());
+	}
+	
+	@Test
+	public void invalidate_shouldDropCrossReferencesOfPushedIdentifiersForAllTargetSystems() {
+		cache.put(SOURCE_SYSTEM, "123", Collections.emptyList(), Collections.singletonList("Patient/1"));
+		cache.put(SOURCE_SYSTEM, "123", Collections.singletonList("a"), Collections.singletonList("Patient/1"));
+		cache.put(null, "123", Collections.emptyList(), Collections.singletonList("Patient/1"));
+		cache.put(SOURCE_SYSTEM, "456", Collections.emptyList(), Collections.singletonList("Patient/2"));
+		
+		cache.invalidate(Collections.singletonList(new Identifier().setSystem(SOURCE_SYSTEM).setValue("123")));
+		
+		assertThat(cache.get(SOURCE_SYSTEM, "123", Collections.emptyList()), nullValue());
+		assertThat(cache.get(SOURCE_SYSTEM, "123", Collections.singletonList("a")), nullValue());
+		assertThat(cache.get(null, "123", Collections.emptyList()), nullValue());
+		assertThat(cache.get(SOURCE_SYSTEM, "456", Collections.emptyList()), contains("Patient/2"));
+	}
+}
@@ -0,0 +1,103 @@
+package org.openmrs.module.clientregistry.api.db.hibernate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class HibernateSyncOutboxDaoTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	private static final String OTHER_PATIENT_UUID = "5946f880-b197-400b-9caa-a3c661d23041";
+	
+	@Autowired
+	private SyncOutboxDao outboxDao;
+	
+	@Test
+	public void getDueEntries_shouldLeaveOutTheEntriesBehindAnEarlierEntryWaitingForItsRetry() {
+		SyncOutboxEntry failed = givenEntry(PATIENT_UUID, inMinutes(10));
+		failed.setAttempts(1);
+		outboxDao.saveEntry(failed);
+		givenEntry(PATIENT_UUID, null);
+		SyncOutboxEntry other = givenEntry(OTHER_PATIENT_UUID, null);
+		
+		assertThat(outboxDao.getDueEntries(10), contains(other));
+	}
+	
+	@Test
+	public void getDueEntries_shouldLeaveOutTheEntriesBehindAnEarlierFailedEntryOnceItIsDue() {
+		SyncOutboxEntry failed = givenEntry(PATIENT_UUID, inMinutes(-1));
+		failed.setAttempts(1);
+		outboxDao.saveEntry(failed);
+		givenEntry(PATIENT_UUID, null);
+		
+		assertThat(outboxDao.getDueEntries(10), contains(failed));
+	}
+	
+	@Test
+	public void getDueEntries_shouldReturnTheEntriesBehindAnEarlierUnattemptedEntryOnceItIsDue() {
+		SyncOutboxEntry first = givenEntry(PATIENT_UUID, inMinutes(-1));
+		SyncOutboxEntry following = givenEntry(PATIENT_UUID, null);
+		
+		assertThat(outboxDao.getDueEntries(10), contains(first, following));
+	}
+	
+	@Test
+	public void getDueEntries_shouldNotHoldBackEntriesBehindDoneOrDeadEntries() {
+		SyncOutboxEntry done = givenEntry(PATIENT_UUID, inMinutes(10));
+		done.setStatus(SyncOutboxEntry.Status.DONE);
+		outboxDao.saveEntry(done);
+		SyncOutboxEntry dead = givenEntry(PATIENT_UUID, inMinutes(10));
+		dead.setStatus(SyncOutboxEntry.Status.DEAD);
+		outboxDao.saveEntry(dead);
+		SyncOutboxEntry following = givenEntry(PATIENT_UUID, null);
+		
+		assertThat(outboxDao.getDueEntries(10), contains(following));
+	}
+	
+	@Test
+	public void getDueEntries_shouldLeaveOutEntriesWaitingOutTheirQuietWindow() {
+		givenEntry(PATIENT_UUID, inMinutes(1));
+		
+		assertThat(outboxDao.getDueEntries(10), empty());
+	}
+	
+	@Test
+	public void purgeDoneEntries_shouldPurgeOnlyTheDoneEntriesProcessedBeforeTheGivenDate() {
+		SyncOutboxEntry old = givenEntry(PATIENT_UUID, null);
+		old.setStatus(SyncOutboxEntry.Status.DONE);
+		old.setDateProcessed(inMinutes(-120));
+		outboxDao.saveEntry(old);
+		SyncOutboxEntry recent = givenEntry(PATIENT_UUID, null);
+		recent.setStatus(SyncOutboxEntry.Status.DONE);
+		recent.setDateProcessed(inMinutes(-1));
+		outboxDao.saveEntry(recent);
+		SyncOutboxEntry dead = givenEntry(PATIENT_UUID, null);
+		dead.setStatus(SyncOutboxEntry.Status.DEAD);
+		dead.setDateProcessed(inMinutes(-120));
+		outboxDao.saveEntry(dead);
+		
+		assertThat(outboxDao.purgeDoneEntries(inMinutes(-60)), equalTo(1));
+	}
+	
+	private SyncOutboxEntry givenEntry(String patientUuid, Date nextAttempt) {
+		SyncOutboxEntry entry = new SyncOutboxEntry(patientUuid, Event.Action.UPDATED);
+		entry.setNextAttempt(nextAttempt);
+		return outboxDao.saveEntry(entry);
+	}
+	
+	private static Date inMinutes(int minutes) {
+		return new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes));
+	}
+}
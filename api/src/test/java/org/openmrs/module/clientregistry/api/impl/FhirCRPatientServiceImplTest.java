@@ -0,0 +1,271 @@
+package org.openmrs.module.clientregistry.api.impl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryManager;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.ClientRegistrySingleFlight;
+import org.openmrs.module.clientregistry.api.cache.CRPatientCache;
+import org.openmrs.module.clientregistry.api.cache.CRSearchCache;
+import org.openmrs.module.clientregistry.api.cache.CRShadowIndex;
+import org.openmrs.module.clientregistry.api.cache.PixCrossReferenceCache;
+import org.openmrs.module.clientregistry.api.search.CRSearchClient;
+import org.openmrs.module.clientregistry.api.search.PatientSearchCriteriaBuilder;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FhirCRPatientServiceImplTest {
+	
+	private static final String PATIENT_ID = "a1b2c3";
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	@Mock
+	private ClientRegistryGuard guard;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@InjectMocks
+	private CRPatientCache patientCache;
+	
+	@InjectMocks
+	private PixCrossReferenceCache pixCache;
+	
+	@InjectMocks
+	private CRSearchCache searchCache;
+	
+	@InjectMocks
+	private ClientRegistrySingleFlight singleFlight;
+	
+	@Mock(answer = Answers.RETURNS_DEEP_STUBS)
+	private IGenericClient fhirClient;
+	
+	@Mock
+	private PatientSearchCriteriaBuilder criteriaBuilder;
+	
+	@Mock
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	@Mock
+	private ClientRegistryManager clientRegistryManager;
+	
+	@Mock
+	private CRShadowIndex shadowIndex;
+	
+	@Mock
+	private CRSearchClient searchClient;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private FhirCRPatientServiceImpl service;
+	
+	private Patient patient;
+	
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		when(config.getPatientCacheSize()).thenReturn(10);
+		when(config.getPatientCacheTtl()).thenReturn(60);
+		when(config.getPixCacheSize()).thenReturn(10);
+		when(config.getPixCacheTtl()).thenReturn(300);
+		when(config.getSearchCacheSize()).thenReturn(10);
+		when(config.getSearchCacheTtl()).thenReturn(30);
+		when(config.getBatchReadChunkSize()).thenReturn(2);
+		when(clientRegistryManager.supplyAsync(any(Supplier.class)))
+		        .thenAnswer(invocation -> CompletableFuture.completedFuture(((Supplier<?>) invocation.getArguments()[0]).get()));
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE), any(Integer.class)))
+		        .thenReturn(10);
+		// the shadow index has nothing unless a test says otherwise
+		when(shadowIndex.getCrossReferencedPatients(any(), any(), any())).thenReturn(null);
+		when(shadowIndex.getPatientsByIdentifier(any(), any())).thenReturn(null);
+		when(shadowIndex.getFuzzyCandidates(any(), any(), any(Integer.class), any())).thenReturn(null);
+		when(config.getClientRegistryIdentifierRoot()).thenReturn("http://openmrs.org/facility");
+		patient = new Patient();
+		patient.setId(PATIENT_ID);
+		patient.getMeta().setVersionId("1");
+		patient.addIdentifier().setSystem(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM)
+		        .setValue("http://openmrs.org/facility/" + PATIENT_UUID);
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(patient);
+		service.setPatientCache(patientCache);
+		service.setPixCache(pixCache);
+		service.setSearchCache(searchCache);
+		service.setSingleFlight(singleFlight);
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientById_shouldServeFreshPatientsFromTheCache() {
+		service.getPatientById(PATIENT_ID);
+		Patient cached = service.getPatientById(PATIENT_ID);
+		
+		assertThat(cached.getIdElement().getIdPart(), equalTo(PATIENT_ID));
+		verify(guard, times(1)).execute(anyBoolean(), any(Supplier.class));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PATIENT_MISSES), equalTo(1L));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PATIENT_HITS), equalTo(1L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientById_shouldRevalidateStalePatients() {
+		when(config.getPatientCacheTtl()).thenReturn(-1);
+		service.getPatientById(PATIENT_ID);
+		// a 304 response is returned as null by the client
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(null);
+		
+		Patient revalidated = service.getPatientById(PATIENT_ID);
+		
+		assertThat(revalidated.getMeta().getVersionId(), equalTo("1"));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PATIENT_REVALIDATED), equalTo(1L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientById_shouldReadPatientsAgainOncePushedBySync() {
+		service.getPatientById(PATIENT_ID);
+		
+		patientCache.invalidatePatients(Collections.singleton(PATIENT_UUID));
+		service.getPatientById(PATIENT_ID);
+		
+		verify(guard, times(2)).execute(anyBoolean(), any(Supplier.class));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PATIENT_MISSES), equalTo(2L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientsByPIX_shouldSkipCrossReferenceLookupWhenCached() {
+		pixCache.put("urn:national-id", "123", Collections.emptyList(), Collections.singletonList("Patient/" + PATIENT_ID));
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(patient);
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(bundle);
+		
+		IBundleProvider results = service.getPatientsByPIX("123", "urn:national-id", Collections.emptyList());
+		
+		assertThat(results.getResources(0, 10).size(), equalTo(1));
+		// only the search for the cross-referenced patients reaches the client registry
+		verify(guard, times(1)).execute(anyBoolean(), any(Supplier.class));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PIX_HITS), equalTo(1L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientsByPIX_shouldAnswerFromTheShadowIndexWhenFresh() {
+		when(shadowIndex.getCrossReferencedPatients("urn:national-id", "123", Collections.emptyList()))
+		        .thenReturn(Collections.singletonList(patient));
+		
+		IBundleProvider results = service.getPatientsByPIX("123", "urn:national-id", Collections.emptyList());
+		
+		assertThat(results.getResources(0, 10).size(), equalTo(1));
+		verify(guard, never()).execute(anyBoolean(), any(Supplier.class));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void searchPatients_shouldAnswerIdentifierSearchesFromTheShadowIndex() {
+		when(criteriaBuilder.buildCriteria(any(PatientSearchParams.class))).thenReturn(Collections.singletonList(
+		    Patient.IDENTIFIER.exactly().systemAndValues("urn:national-id", Arrays.asList("123", "456"))));
+		when(shadowIndex.getPatientsByIdentifier("urn:national-id", Arrays.asList("123", "456")))
+		        .thenReturn(Collections.singletonList(patient));
+		
+		IBundleProvider results = service.searchPatients(new PatientSearchParams());
+		
+		assertThat(results.getResources(0, 10).size(), equalTo(1));
+		verify(guard, never()).execute(anyBoolean(), any(Supplier.class));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void searchPatients_shouldServeSearchesWithTheSameCanonicalKeyFromTheCache() {
+		when(criteriaBuilder.getCanonicalKey(any(List.class), any())).thenReturn("family=doe&gender=male");
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(patient);
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(bundle);
+		
+		IBundleProvider first = service.searchPatients(new PatientSearchParams());
+		IBundleProvider second = service.searchPatients(new PatientSearchParams());
+		
+		assertThat(second, sameInstance(first));
+		verify(guard, times(1)).execute(anyBoolean(), any(Supplier.class));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_SEARCH_HITS), equalTo(1L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void searchPatients_shouldSearchAgainOnceAPatientWasUpdated() {
+		when(criteriaBuilder.getCanonicalKey(any(List.class), any())).thenReturn("family=doe");
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(new Bundle(),
+		    new MethodOutcome().setResource(patient), new Bundle());
+		service.searchPatients(new PatientSearchParams());
+		
+		service.updatePatient(patient);
+		service.searchPatients(new PatientSearchParams());
+		
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_SEARCH_MISSES), equalTo(2L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientsByIds_shouldServeCachedPatientsAndFetchTheOthersInChunks() {
+		patientCache.put(PATIENT_ID, patient);
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(bundleOf("b", "c"), bundleOf("e"));
+		
+		Bundle results = service.getPatientsByIds(Arrays.asList("b", PATIENT_ID, "c", "d", "e"));
+		
+		assertThat(results.getType(), equalTo(Bundle.BundleType.BATCHRESPONSE));
+		assertThat(results.getEntry().stream().map(entry -> entry.getResponse().getStatus()).collect(Collectors.toList()),
+		    contains("200 OK", "200 OK", "200 OK", "404 Not Found", "200 OK"));
+		assertThat(results.getEntry().get(1).getResource().getIdElement().getIdPart(), equalTo(PATIENT_ID));
+		assertThat(results.getEntry().get(3).getResource(), nullValue());
+		// b and c, then d and e
+		verify(guard, times(2)).execute(anyBoolean(), any(Supplier.class));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PATIENT_HITS), equalTo(1L));
+		assertThat(metrics.get(ClientRegistryMetrics.CACHE_PATIENT_MISSES), equalTo(4L));
+	}
+	
+	private static Bundle bundleOf(String... ids) {
+		Bundle bundle = new Bundle();
+		for (String id : ids) {
+			bundle.addEntry().setResource(new Patient().setId(id));
+		}
+		return bundle;
+	}
+}
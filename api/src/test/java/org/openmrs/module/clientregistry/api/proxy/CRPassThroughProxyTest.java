@@ -0,0 +1,67 @@
+package org.openmrs.module.clientregistry.api.proxy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.api.search.CRSearchClient;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CRPassThroughProxyTest {
+	
+	private static final String CR_BASE = "http://cr:3000/fhir";
+	
+	private static final String PAGE_BASE = "http://openmrs/ws/fhir2/R4/Patient/$cr-search-proxy?_crpage=";
+	
+	@Mock
+	private CRSearchClient searchClient;
+	
+	@Mock
+	private HttpServletResponse response;
+	
+	@InjectMocks
+	private CRPassThroughProxy proxy;
+	
+	@Before
+	public void setup() {
+		when(searchClient.getBaseUrl()).thenReturn(CR_BASE);
+	}
+	
+	@Test
+	public void copyRewritingLinks_shouldOnlyRewriteThePagingLinksOfTheBundle() throws Exception {
+		String bundle = "{\"resourceType\":\"Bundle\",\"total\":12,\"link\":["
+		        + "{\"relation\":\"self\",\"url\":\"" + CR_BASE + "/Patient?family=doe\"},"
+		        + "{\"relation\":\"next\",\"url\":\"" + CR_BASE + "?_getpages=abc&_getpagesoffset=10\"}],"
+		        + "\"entry\":[{\"fullUrl\":\"" + CR_BASE + "/Patient/1\",\"resource\":{\"resourceType\":\"Patient\","
+		        + "\"id\":\"1\",\"link\":[{\"url\":\"" + CR_BASE + "/Patient?x\"}],\"active\":true}}]}";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		proxy.copyRewritingLinks(new ByteArrayInputStream(bundle.getBytes(StandardCharsets.UTF_8)), out, CR_BASE,
+		    PAGE_BASE);
+		
+		String expected = bundle
+		        .replace(CR_BASE + "/Patient?family=doe\"}", PAGE_BASE + "Patient%3Ffamily%3Ddoe\"}")
+		        .replace(CR_BASE + "?_getpages=abc&_getpagesoffset=10", PAGE_BASE + "%3F_getpages%3Dabc%26_getpagesoffset%3D10");
+		assertThat(out.toString(StandardCharsets.UTF_8.name()), equalTo(expected));
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void search_shouldRejectPagesOutsideTheClientRegistrySearch() throws Exception {
+		proxy.search(Collections.singletonMap(CRPassThroughProxy.PAGE_PARAMETER, new String[] { "/../admin?x" }),
+		    "http://openmrs/ws/fhir2/R4", response);
+	}
+}
@@ -0,0 +1,77 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+public class CRBundleReaderTest {
+	
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+	
+	private static final String BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":3,"
+	        + "\"link\":[{\"relation\":\"self\",\"url\":\"http://cr/fhir/Patient?name=smith\"},"
+	        + "{\"relation\":\"next\",\"url\":\"http://cr/fhir?_getpages=abc&_getpagesoffset=2\"}],"
+	        + "\"entry\":[{\"fullUrl\":\"http://cr/fhir/Patient/a\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"a\","
+	        + "\"name\":[{\"family\":\"Smith\",\"given\":[\"John\"]}]},\"search\":{\"mode\":\"match\"}},"
+	        + "{\"resource\":{\"id\":\"x\",\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"warning\","
+	        + "\"code\":\"incomplete\",\"details\":{\"text\":\"{\\\"resourceType\\\":\\\"Patient\\\"}\"}}]},"
+	        + "\"search\":{\"mode\":\"outcome\"}},"
+	        + "{\"resource\":{\"resourceType\":\"Organization\",\"id\":\"o\",\"name\":\"Clinic\"},\"search\":{\"mode\":\"include\"}},"
+	        + "{\"search\":{\"mode\":\"match\"},\"resource\":{\"id\":\"b\",\"resourceType\":\"Patient\",\"gender\":\"female\"}}]}";
+	
+	@Test
+	public void read_shouldYieldOnlyThePatientEntries() throws IOException {
+		List<Patient> patients = new ArrayList<>();
+		new CRBundleReader(FHIR_CONTEXT, 0).read(toStream(BUNDLE), patients::add);
+		
+		assertThat(patients.stream().map(patient -> patient.getIdElement().getIdPart()).collect(Collectors.toList()),
+		    contains("a", "b"));
+		assertThat(patients.get(0).getNameFirstRep().getFamily(), equalTo("Smith"));
+		assertThat(patients.get(1).getGender(), equalTo(Enumerations.AdministrativeGender.FEMALE));
+	}
+	
+	@Test
+	public void read_shouldReturnTheTypeTotalAndLinksOfTheBundle() throws IOException {
+		Bundle bundle = new CRBundleReader(FHIR_CONTEXT, 0).read(toStream(BUNDLE), patient -> {});
+		
+		assertThat(bundle.getType(), equalTo(Bundle.BundleType.SEARCHSET));
+		assertThat(bundle.getTotal(), equalTo(3));
+		assertThat(bundle.getLink(), hasSize(2));
+		assertThat(bundle.getLink(Bundle.LINK_NEXT).getUrl(), equalTo("http://cr/fhir?_getpages=abc&_getpagesoffset=2"));
+		assertThat(bundle.getEntry(), hasSize(0));
+	}
+	
+	@Test(expected = InternalErrorException.class)
+	public void read_shouldFailWhenThePatientsExceedTheMaximumNumberOfBytes() throws IOException {
+		new CRBundleReader(FHIR_CONTEXT, 100).read(toStream(BUNDLE), patient -> {});
+	}
+	
+	@Test
+	public void read_shouldNotCountSkippedEntriesAgainstTheMaximumNumberOfBytes() throws IOException {
+		List<Patient> patients = new ArrayList<>();
+		new CRBundleReader(FHIR_CONTEXT, 200).read(toStream(BUNDLE), patients::add);
+		
+		assertThat(patients, hasSize(2));
+	}
+	
+	private static InputStream toStream(String json) {
+		return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,114 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+public class CRSearchBundleProviderTest {
+	
+	private static final String BASE_URL = "http://cr/fhir?_getpages=abc&_count=2&_getpagesoffset=";
+	
+	private final List<String> loadedUrls = new ArrayList<>();
+	
+	@Test
+	public void size_shouldReportTheClientRegistryTotal() {
+		Bundle firstPage = page(5, null, "a", "b");
+		
+		CRSearchBundleProvider provider = new CRSearchBundleProvider(firstPage, 2, url -> null);
+		
+		assertThat(provider.size(), equalTo(5));
+		assertThat(provider.preferredPageSize(), equalTo(2));
+	}
+	
+	@Test
+	public void size_shouldBeUnknownWhenMorePagesAndNoTotal() {
+		Bundle firstPage = page(null, "http://cr/fhir?_getpages=abc", "a", "b");
+		
+		CRSearchBundleProvider provider = new CRSearchBundleProvider(firstPage, 2, url -> null);
+		
+		assertThat(provider.size(), nullValue());
+	}
+	
+	@Test
+	public void getResources_shouldLoadFurtherPagesOnlyWhenRequested() {
+		Map<String, Bundle> pages = new HashMap<>();
+		pages.put("http://cr/fhir?page=2", page(null, "http://cr/fhir?page=3", "c", "d"));
+		pages.put("http://cr/fhir?page=3", page(null, null, "e"));
+		CRSearchBundleProvider provider = new CRSearchBundleProvider(page(null, "http://cr/fhir?page=2", "a", "b"), 2,
+		        load(pages));
+		
+		assertThat(ids(provider.getResources(0, 2)), contains("a", "b"));
+		assertThat(loadedUrls, empty());
+		
+		assertThat(ids(provider.getResources(3, 10)), contains("d", "e"));
+		assertThat(loadedUrls, contains("http://cr/fhir?page=2", "http://cr/fhir?page=3"));
+		
+		assertThat(ids(provider.getResources(2, 4)), contains("c", "d"));
+		assertThat(loadedUrls.size(), equalTo(2));
+	}
+	
+	@Test
+	public void getResources_shouldJumpToAPageByItsOffset() {
+		Map<String, Bundle> pages = new HashMap<>();
+		pages.put(BASE_URL + "6", page(7, null, "g"));
+		CRSearchBundleProvider provider = new CRSearchBundleProvider(page(7, BASE_URL + "2", "a", "b"), 2,
+		        load(pages));
+		
+		assertThat(ids(provider.getResources(6, 8)), contains("g"));
+		assertThat(loadedUrls, contains(BASE_URL + "6"));
+	}
+	
+	@Test
+	public void getResources_shouldLocatePagesByTheRequestedCountWhenTheFirstPageHasOtherResources() {
+		String baseUrl = "http://cr/fhir?_getpages=abc&_count=3&_getpagesoffset=";
+		Map<String, Bundle> pages = new HashMap<>();
+		pages.put(baseUrl + "3", page(6, null, "d", "e", "f"));
+		Bundle firstPage = page(6, baseUrl + "3", "a", "b");
+		firstPage.addEntry().setResource(new OperationOutcome());
+		CRSearchBundleProvider provider = new CRSearchBundleProvider(firstPage, 3, load(pages));
+		
+		assertThat(ids(provider.getResources(3, 5)), contains("d", "e"));
+		assertThat(loadedUrls, contains(baseUrl + "3"));
+		assertThat(provider.preferredPageSize(), equalTo(3));
+	}
+	
+	private Function<String, Bundle> load(Map<String, Bundle> pages) {
+		return url -> {
+			loadedUrls.add(url);
+			return pages.get(url);
+		};
+	}
+	
+	private static Bundle page(Integer total, String nextUrl, String... ids) {
+		Bundle bundle = new Bundle();
+		if (total != null) {
+			bundle.setTotal(total);
+		}
+		if (nextUrl != null) {
+			bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(nextUrl);
+		}
+		for (String id : ids) {
+			bundle.addEntry().setResource(new Patient().setId(id));
+		}
+		return bundle;
+	}
+	
+	private static List<String> ids(List<IBaseResource> resources) {
+		return resources.stream().map(resource -> resource.getIdElement().getIdPart()).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,125 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.clientregistry.api.CRPatientService;
+import org.openmrs.module.clientregistry.api.ClientRegistryManager;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.FhirPatientService;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FederatedPatientSearchTest {
+	
+	private static final String IDENTIFIER_ROOT = "http://openmrs.org/facility";
+	
+	private static final String LOCAL_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	@Mock
+	private FhirPatientService localPatientService;
+	
+	@Mock
+	private CRPatientService crService;
+	
+	@Mock
+	private ClientRegistryManager clientRegistryManager;
+	
+	@Mock
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private FederatedPatientSearch federatedSearch;
+	
+	private PatientSearchParams searchParams = new PatientSearchParams();
+	
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		when(config.getFederatedSearchTimeout()).thenReturn(50);
+		when(config.getClientRegistryIdentifierRoot()).thenReturn(IDENTIFIER_ROOT);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.OPENMRS_FHIR_DEFAULT_PAGE_SIZE), any(Integer.class)))
+		        .thenReturn(10);
+		when(clientRegistryManager.supplyAsync(any(Supplier.class)))
+		        .thenAnswer(invocation -> CompletableFuture.completedFuture(((Supplier<?>) invocation.getArguments()[0]).get()));
+		Patient local = new Patient();
+		local.setId(LOCAL_UUID);
+		when(localPatientService.searchForPatients(searchParams))
+		        .thenReturn(new CRSearchBundleProvider(Collections.singletonList(local)));
+	}
+	
+	@Test
+	public void search_shouldLeaveOutClientRegistryPatientsThatAreTheSameAsOthers() {
+		Patient pushed = crPatient("pushed", "golden-1");
+		pushed.addIdentifier().setSystem(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM)
+		        .setValue(IDENTIFIER_ROOT + "/" + LOCAL_UUID);
+		when(crService.searchPatients(searchParams)).thenReturn(new CRSearchBundleProvider(Arrays.asList(
+		    crPatient("elsewhere", "golden-1"), pushed, crPatient("other", "golden-2"), crPatient("other-too", "golden-2"))));
+		
+		Bundle bundle = federatedSearch.search(searchParams);
+		
+		assertThat(ids(bundle), contains(LOCAL_UUID, "other"));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void search_shouldReturnLocalPatientsFlaggedAsPartialWhenTheClientRegistryIsSlow() {
+		CompletableFuture<Object> crSearch = new CompletableFuture<>();
+		doReturn(crSearch).when(clientRegistryManager).supplyAsync(any(Supplier.class));
+		
+		Bundle bundle = federatedSearch.search(searchParams);
+		
+		assertThat(bundle.getEntry().size(), equalTo(2));
+		assertThat(bundle.getEntry().get(0).getResource().getIdElement().getIdPart(), equalTo(LOCAL_UUID));
+		assertThat(bundle.getEntry().get(1).getResource(), instanceOf(OperationOutcome.class));
+		assertThat(bundle.getEntry().get(1).getSearch().getMode(), equalTo(Bundle.SearchEntryMode.OUTCOME));
+		assertThat(metrics.get(ClientRegistryMetrics.FEDERATED_SEARCH_PARTIAL), equalTo(1L));
+		assertThat(crSearch.isCancelled(), equalTo(true));
+	}
+	
+	private static Patient crPatient(String id, String goldenId) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		patient.addLink().setType(Patient.LinkType.REFER).setOther(new Reference("Patient/" + goldenId));
+		return patient;
+	}
+	
+	private static List<String> ids(Bundle bundle) {
+		return bundle.getEntry().stream().map(entry -> entry.getResource().getIdElement().getIdPart())
+		        .collect(Collectors.toList());
+	}
+}
@@ -1,6 +1,7 @@
 package org.openmrs.module.clientregistry.api.search;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.List;
 
 import ca.uhn.fhir.rest.param.DateRangeParam;
@@ -14,7 +15,11 @@ import org.junit.Test;
 import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
 
 import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.StringClientParam;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import org.hl7.fhir.r4.model.Patient;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -201,6 +206,34 @@ public class PatientSearchCriteriaBuilderTest {
 		assertEquals("Washington", value);
 	}
 	
+	@Test
+	public void getCanonicalKey_shouldIgnoreOrderCaseAndWhitespaceOfCriteria() {
+		List<ICriterion<?>> criteria = Arrays.asList(new StringClientParam("family").matches().value(" Doe "),
+		    new TokenClientParam("birthdate").exactly().code("eq1990-01-01"),
+		    new TokenClientParam("gender").exactly().code("male"));
+		List<ICriterion<?>> sameCriteria = Arrays.asList(new TokenClientParam("gender").exactly().code("male"),
+		    new TokenClientParam("birthdate").exactly().code("1990-01-01"),
+		    new StringClientParam("family").matches().value("doe"));
+		
+		String key = builder.getCanonicalKey(criteria, null);
+		
+		assertEquals("birthdate=1990-01-01&family=doe&gender=male", key);
+		assertEquals(key, builder.getCanonicalKey(sameCriteria, null));
+	}
+	
+	@Test
+	public void getCanonicalKey_shouldKeepCaseOfCaseSensitiveCriteria() {
+		List<ICriterion<?>> criteria = Arrays.asList(Patient.IDENTIFIER.exactly().codes("AB12", "CD34"),
+		    new StringClientParam("family").matchesExactly().value("Doe"));
+		List<ICriterion<?>> lowerCaseCriteria = Arrays.asList(Patient.IDENTIFIER.exactly().codes("ab12", "cd34"),
+		    new StringClientParam("family").matchesExactly().value("doe"));
+		
+		String key = builder.getCanonicalKey(criteria, null);
+		
+		assertEquals("family:exact=Doe&identifier=AB12,CD34", key);
+		assertNotEquals(key, builder.getCanonicalKey(lowerCaseCriteria, null));
+	}
+	
 	private StringAndListParam createStringParam(String paramValue) {
 		return new StringAndListParam().addAnd(new StringOrListParam().add(new StringParam(paramValue)));
 	}
@@ -0,0 +1,66 @@
+package org.openmrs.module.clientregistry.api.search;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PhoneticBlockingIndexTest {
+	
+	private PhoneticBlockingIndex index;
+	
+	@Before
+	public void setup() {
+		index = new PhoneticBlockingIndex();
+		index.add("smith-1980", "Smith", "John", born(1980), "male");
+		index.add("smyth-1981", "Smyth", "Peter", born(1981), "male");
+		index.add("smith-1990", "Smith", "John", born(1990), "male");
+		index.add("jon-unknown", "Okello", "Jon", null, null);
+		index.add("smith-female", "Smith", "Joan", born(1980), "female");
+	}
+	
+	@Test
+	public void findCandidates_shouldRankPatientsMatchingMoreOfTheSearch() {
+		assertThat(index.findCandidates("Smithe", "Jonn", 1980, "male", 10),
+		    contains("smith-1980", "smyth-1981", "jon-unknown"));
+	}
+	
+	@Test
+	public void findCandidates_shouldOnlyReturnTheBestCandidatesUpToTheLimit() {
+		assertThat(index.findCandidates("Smith", "John", 1980, null, 2), contains("smith-1980", "smith-female"));
+	}
+	
+	@Test
+	public void add_shouldReplaceWhatWasIndexedForThePatientBefore() {
+		index.add("smith-1980", "Mwangi", "John", born(1980), "male");
+		
+		assertThat(index.findCandidates("Smith", null, 1980, "male", 10), contains("smyth-1981"));
+		assertThat(index.findCandidates("Mwangi", null, 1980, null, 10), contains("smith-1980"));
+		assertThat(index.size(), equalTo(5));
+	}
+	
+	@Test
+	public void needsCompaction_shouldBeTrueOnceManyPatientsWereIndexedAgain() {
+		index.add("smith-1980", "Smith", "John", born(1980), "male");
+		assertThat(index.needsCompaction(), equalTo(false));
+		
+		index.add("smith-1990", "Smith", "John", born(1990), "male");
+		assertThat(index.needsCompaction(), equalTo(true));
+	}
+	
+	@Test
+	public void findCandidates_shouldFindNothingForNamesWithoutLetters() {
+		assertThat(index.findCandidates("123", null, 1980, null, 10), empty());
+	}
+	
+	private static Date born(int year) {
+		return new GregorianCalendar(year, Calendar.JUNE, 1).getTime();
+	}
+}
@@ -0,0 +1,223 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.PersonName;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirPatientIdentifierSystemService;
+import org.openmrs.module.fhir2.api.translators.BirthDateTranslator;
+import org.openmrs.module.fhir2.api.translators.PersonAddressTranslator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CRPatientProjectionTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	private static final String PHONE_ATTRIBUTE_TYPE_UUID = "14d4f066-15f5-102d-96e4-000c29c2a5d7";
+	
+	private static final String BIRTHPLACE_ATTRIBUTE_TYPE_UUID = "8d8718c2-c2cc-11de-8d13-0010c6dffd0f";
+	
+	private static final String MOTHERS_NAME_ATTRIBUTE_TYPE_UUID = "8d871d18-c2cc-11de-8d13-0010c6dffd0f";
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Mock
+	private FhirPatientIdentifierSystemService identifierSystemService;
+	
+	@Mock
+	private PersonAddressTranslator addressTranslator;
+	
+	@Mock
+	private BirthDateTranslator birthDateTranslator;
+	
+	@Spy
+	private FhirContext fhirContext = FhirContext.forR4();
+	
+	@InjectMocks
+	private CRPatientProjection projection;
+	
+	private org.openmrs.Patient openmrsPatient;
+	
+	@Before
+	public void setup() {
+		Map<String, String> extensionUrls = new LinkedHashMap<>();
+		extensionUrls.put(BIRTHPLACE_ATTRIBUTE_TYPE_UUID, "http://example.org/birthplace");
+		extensionUrls.put(MOTHERS_NAME_ATTRIBUTE_TYPE_UUID, "http://example.org/mothersName");
+		when(config.getExtensionUrlsByAttributeTypeUuid()).thenReturn(extensionUrls);
+		when(config.getContactPointAttributeTypeUuid()).thenReturn(PHONE_ATTRIBUTE_TYPE_UUID);
+		when(config.getClientRegistryIdentifierRoot()).thenReturn("http://openmrs.org/facility");
+		when(identifierSystemService.getUrlByPatientIdentifierType(any(PatientIdentifierType.class)))
+		        .thenReturn("http://openmrs.org/openmrs-id");
+		
+		openmrsPatient = new org.openmrs.Patient();
+		openmrsPatient.setUuid(PATIENT_UUID);
+		openmrsPatient.setGender("F");
+		openmrsPatient.addName(new PersonName("Jane", "Mary", "Doe"));
+		
+		PatientIdentifierType identifierType = new PatientIdentifierType();
+		identifierType.setName("OpenMRS ID");
+		PatientIdentifier identifier = new PatientIdentifier("1000X1", identifierType, null);
+		identifier.setPreferred(true);
+		openmrsPatient.addIdentifier(identifier);
+		
+		openmrsPatient.addAttribute(new PersonAttribute(attributeType(PHONE_ATTRIBUTE_TYPE_UUID), "+254700000000"));
+		openmrsPatient.addAttribute(new PersonAttribute(attributeType(BIRTHPLACE_ATTRIBUTE_TYPE_UUID), "Kisumu"));
+	}
+	
+	@Test
+	public void toCRPatient_shouldMapDemographicsAndIdentifiers() {
+		Patient patient = projection.toCRPatient(openmrsPatient);
+		
+		assertThat(patient.getIdElement().getIdPart(), equalTo(PATIENT_UUID));
+		assertThat(patient.getGender(), equalTo(Enumerations.AdministrativeGender.FEMALE));
+		
+		HumanName name = patient.getNameFirstRep();
+		assertThat(name.getUse(), equalTo(HumanName.NameUse.OFFICIAL));
+		assertThat(name.getFamily(), equalTo("Doe"));
+		assertThat(name.getGiven().stream().map(PrimitiveType::getValue).collect(Collectors.toList()),
+		    contains("Jane", "Mary"));
+		
+		assertThat(patient.getIdentifier(), hasSize(2));
+		Identifier identifier = patient.getIdentifier().get(0);
+		assertThat(identifier.getSystem(), equalTo("http://openmrs.org/openmrs-id"));
+		assertThat(identifier.getValue(), equalTo("1000X1"));
+		assertThat(identifier.getUse(), equalTo(Identifier.IdentifierUse.OFFICIAL));
+		Identifier internalId = patient.getIdentifier().get(1);
+		assertThat(internalId.getSystem(), equalTo(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM));
+		assertThat(internalId.getValue(), equalTo("http://openmrs.org/facility/" + PATIENT_UUID));
+		
+		ContactPoint telecom = patient.getTelecomFirstRep();
+		assertThat(telecom.getValue(), equalTo("+254700000000"));
+		assertThat(telecom.getSystem(), equalTo(ContactPoint.ContactPointSystem.PHONE));
+		assertThat(telecom.getUse(), equalTo(ContactPoint.ContactPointUse.MOBILE));
+	}
+	
+	@Test
+	public void toCRPatient_shouldAddAnExtensionPerConfiguredAttributeType() {
+		Patient patient = projection.toCRPatient(openmrsPatient);
+		
+		assertThat(patient.getExtension(), hasSize(2));
+		assertThat(patient.getExtensionByUrl("http://example.org/birthplace").getValue().primitiveValue(),
+		    equalTo("Kisumu"));
+		assertThat(patient.getExtensionByUrl("http://example.org/mothersName").getValue(), nullValue());
+	}
+	
+	@Test
+	public void toCRPatient_shouldMapAddressesAndTheBirthDateAsTheFhir2TranslatorsDo() {
+		PersonAddress address = new PersonAddress();
+		address.setCityVillage("Kisumu");
+		openmrsPatient.addAddress(address);
+		Address fhirAddress = new Address().setCity("Kisumu");
+		fhirAddress.addExtension().setUrl(FhirConstants.OPENMRS_FHIR_EXT_ADDRESS);
+		when(addressTranslator.toFhirResource(address)).thenReturn(fhirAddress);
+		openmrsPatient.setBirthdate(new Date());
+		openmrsPatient.setBirthdateEstimated(true);
+		DateType birthDate = new DateType(openmrsPatient.getBirthdate(), TemporalPrecisionEnum.YEAR);
+		when(birthDateTranslator.toFhirResource(openmrsPatient)).thenReturn(birthDate);
+		
+		Patient patient = projection.toCRPatient(openmrsPatient);
+		
+		assertThat(patient.getAddress(), contains(fhirAddress));
+		assertThat(patient.getAddressFirstRep().getExtensionByUrl(FhirConstants.OPENMRS_FHIR_EXT_ADDRESS),
+		    notNullValue());
+		assertThat(patient.getBirthDateElement().getPrecision(), equalTo(TemporalPrecisionEnum.YEAR));
+	}
+	
+	@Test
+	public void getIdentifierSystems_shouldLookUpEachIdentifierTypeOnce() {
+		PatientIdentifierType identifierType = openmrsPatient.getActiveIdentifiers().get(0).getIdentifierType();
+		org.openmrs.Patient otherPatient = new org.openmrs.Patient();
+		otherPatient.addIdentifier(new PatientIdentifier("1000X2", identifierType, null));
+		
+		Map<String, String> identifierSystems = projection
+		        .getIdentifierSystems(Arrays.asList(openmrsPatient, otherPatient));
+		
+		assertThat(identifierSystems, hasEntry(identifierType.getUuid(), "http://openmrs.org/openmrs-id"));
+		verify(identifierSystemService, times(1)).getUrlByPatientIdentifierType(identifierType);
+		assertThat(projection.toCRPatient(otherPatient, identifierSystems).getIdentifierFirstRep().getSystem(),
+		    equalTo("http://openmrs.org/openmrs-id"));
+	}
+	
+	@Test
+	public void fingerprint_shouldOnlyChangeWhenThePushedContentChanges() {
+		String fingerprint = projection.fingerprint(projection.encode(projection.toCRPatient(openmrsPatient)));
+		
+		openmrsPatient.setDateChanged(new Date());
+		assertThat(projection.fingerprint(projection.encode(projection.toCRPatient(openmrsPatient))), equalTo(fingerprint));
+		
+		openmrsPatient.setGender("M");
+		assertThat(projection.fingerprint(projection.encode(projection.toCRPatient(openmrsPatient))), not(equalTo(fingerprint)));
+	}
+	
+	@Test
+	public void toProjectedElements_shouldLeaveOutWhatTheClientRegistryAdds() {
+		String openmrsId = "http://openmrs.org/facility/" + PATIENT_UUID;
+		String pushed = projection.encode(projection.toCRPatient(openmrsPatient));
+		Patient stored = fhirContext.newJsonParser().parseResource(Patient.class, pushed);
+		stored.setId("Patient/cr-1");
+		stored.getMeta().setVersionId("2").setLastUpdated(new Date());
+		stored.addLink().setOther(new Reference("Patient/golden")).setType(Patient.LinkType.REFER);
+		stored.addIdentifier().setSystem("http://clientregistry.org/golden").setValue("G-1");
+		stored.addIdentifier().setSystem(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM)
+		        .setValue("http://openmrs.org/other-facility/1234");
+		stored.addExtension("http://clientregistry.org/matchScore", new StringType("0.98"));
+		
+		Patient projected = projection.toProjectedElements(stored, openmrsId);
+		
+		assertThat(projection.fingerprint(projection.encode(projected)), equalTo(projection.fingerprint(pushed)));
+		
+		stored.getNameFirstRep().setFamily("Smith");
+		assertThat(projection.fingerprint(projection.encode(projection.toProjectedElements(stored, openmrsId))),
+		    not(equalTo(projection.fingerprint(pushed))));
+	}
+	
+	private PersonAttributeType attributeType(String uuid) {
+		PersonAttributeType attributeType = new PersonAttributeType();
+		attributeType.setUuid(uuid);
+		return attributeType;
+	}
+}
@@ -0,0 +1,64 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+
+public class JsonPatchDiffTest {
+	
+	@Test
+	public void diff_shouldReplaceAddAndRemoveChangedTopLevelElements() throws Exception {
+		String base = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"male\",\"birthDate\":\"1990-01-01\","
+		        + "\"telecom\":[{\"value\":\"0700\"}]}";
+		String target = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"male\",\"telecom\":[{\"value\":\"0711\"}],"
+		        + "\"active\":true}";
+		
+		assertThat(JsonPatchDiff.diff(base, target),
+		    equalTo("[{\"op\":\"remove\",\"path\":\"/birthDate\"},"
+		            + "{\"op\":\"replace\",\"path\":\"/telecom\",\"value\":[{\"value\":\"0711\"}]},"
+		            + "{\"op\":\"add\",\"path\":\"/active\",\"value\":true}]"));
+	}
+	
+	@Test
+	public void diff_shouldReplaceOnlyTheChangedArrayElementWithTheSameId() throws Exception {
+		String base = "{\"resourceType\":\"Patient\",\"name\":[{\"id\":\"n1\",\"family\":\"Smith\",\"given\":[\"John\"]},"
+		        + "{\"id\":\"n2\",\"family\":\"Doe\",\"given\":[\"Jane\"]}]}";
+		String target = "{\"resourceType\":\"Patient\",\"name\":[{\"id\":\"n1\",\"family\":\"Smith\",\"given\":[\"John\"]},"
+		        + "{\"id\":\"n2\",\"family\":\"Dole\",\"given\":[\"Jane\"]}]}";
+		
+		assertThat(JsonPatchDiff.diff(base, target), equalTo(
+		    "[{\"op\":\"replace\",\"path\":\"/name/1\",\"value\":{\"id\":\"n2\",\"family\":\"Dole\",\"given\":[\"Jane\"]}}]"));
+	}
+	
+	@Test
+	public void diff_shouldRemoveMoveAndAddArrayElementsMatchedUpById() throws Exception {
+		String base = "{\"resourceType\":\"Patient\",\"address\":[{\"id\":\"a1\",\"city\":\"Kampala\",\"district\":\"Central\"},"
+		        + "{\"id\":\"a2\",\"city\":\"Gulu\",\"district\":\"Northern\"},"
+		        + "{\"id\":\"a3\",\"city\":\"Mbarara\",\"district\":\"Western\"}]}";
+		String target = "{\"resourceType\":\"Patient\",\"address\":[{\"id\":\"a3\",\"city\":\"Mbarara\",\"district\":\"Western\"},"
+		        + "{\"id\":\"a1\",\"city\":\"Kampala\",\"district\":\"Central\"},{\"id\":\"a4\",\"city\":\"Jinja\"}]}";
+		
+		assertThat(JsonPatchDiff.diff(base, target),
+		    equalTo("[{\"op\":\"remove\",\"path\":\"/address/1\"},"
+		            + "{\"op\":\"move\",\"from\":\"/address/1\",\"path\":\"/address/0\"},"
+		            + "{\"op\":\"add\",\"path\":\"/address/2\",\"value\":{\"id\":\"a4\",\"city\":\"Jinja\"}}]"));
+	}
+	
+	@Test
+	public void diff_shouldReplaceTheWholeArrayWhenItsElementsCannotBeMatchedUp() throws Exception {
+		String base = "{\"resourceType\":\"Patient\",\"name\":[{\"id\":\"n1\",\"family\":\"Smith\"}]}";
+		String target = "{\"resourceType\":\"Patient\",\"name\":[{\"id\":\"n1\",\"family\":\"Smith\"},"
+		        + "{\"id\":\"n1\",\"family\":\"Doe\"}]}";
+		
+		assertThat(JsonPatchDiff.diff(base, target), equalTo("[{\"op\":\"replace\",\"path\":\"/name\",\"value\":"
+		        + "[{\"id\":\"n1\",\"family\":\"Smith\"},{\"id\":\"n1\",\"family\":\"Doe\"}]}]"));
+	}
+	
+	@Test
+	public void diff_shouldReturnNullForSameContent() throws Exception {
+		assertThat(JsonPatchDiff.diff("{\"resourceType\":\"Patient\",\"id\":\"1\",\"gender\":\"male\"}",
+		    "{\"resourceType\":\"Patient\",\"id\":\"2\",\"gender\":\"male\"}"), nullValue());
+	}
+}
@@ -0,0 +1,119 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PatientBackfillTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	private static final String OTHER_PATIENT_UUID = "417312c1-cx56-b3ab-aeb7-41070b401d1p";
+	
+	@Mock
+	private SyncPatientDao patientDao;
+	
+	@Mock
+	private SyncCheckpointDao checkpointDao;
+	
+	@Mock
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Mock
+	private SyncOutboxDao outboxDao;
+	
+	@Mock
+	private PatientSyncProcessor processor;
+	
+	@Mock
+	private PatientSyncWorker syncWorker;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@InjectMocks
+	private PatientBackfill backfill;
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void push_shouldCreatePatientsNeverPushedAndUpdateTheOthers() throws Exception {
+		when(fingerprintDao.getFingerprints(anyCollectionOf(String.class))).thenReturn(
+		    Collections.singletonMap(PATIENT_UUID, new SyncFingerprint(PATIENT_UUID, "fingerprint", null)));
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class))).thenReturn(Collections.emptyMap());
+		PatientBackfill.Run run = new PatientBackfill.Run(0, 2);
+		PatientBackfill.Page page = new PatientBackfill.Page(Arrays.asList(PATIENT_UUID, OTHER_PATIENT_UUID), 2);
+		run.add(page);
+		
+		backfill.push(run, page);
+		
+		ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+		verify(processor).processBatch(captor.capture());
+		assertThat(captor.getValue().get(PATIENT_UUID), equalTo(Event.Action.UPDATED));
+		assertThat(captor.getValue().get(OTHER_PATIENT_UUID), equalTo(Event.Action.CREATED));
+		verify(checkpointDao).saveCheckpoint(PatientBackfill.CHECKPOINT_LAST_PATIENT_ID, "2");
+		verify(outboxDao, never()).saveEntry(any(SyncOutboxEntry.class));
+	}
+	
+	@Test
+	public void push_shouldLeavePatientsRejectedByTheClientRegistryToTheOutbox() throws Exception {
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class)))
+		        .thenReturn(Collections.singletonMap(OTHER_PATIENT_UUID, "Unprocessable entity"));
+		PatientBackfill.Run run = new PatientBackfill.Run(0, 2);
+		PatientBackfill.Page page = new PatientBackfill.Page(Arrays.asList(PATIENT_UUID, OTHER_PATIENT_UUID), 2);
+		run.add(page);
+		
+		backfill.push(run, page);
+		
+		ArgumentCaptor<SyncOutboxEntry> captor = ArgumentCaptor.forClass(SyncOutboxEntry.class);
+		verify(outboxDao).saveEntry(captor.capture());
+		assertThat(captor.getValue().getPatientUuid(), equalTo(OTHER_PATIENT_UUID));
+		assertThat(captor.getValue().getEventAction(), equalTo(Event.Action.CREATED));
+		verify(syncWorker).wakeUp();
+	}
+	
+	@Test
+	public void push_shouldOnlyMoveCheckpointPastPagesDoneWithAllPagesBeforeThem() throws Exception {
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class))).thenReturn(Collections.emptyMap());
+		PatientBackfill.Run run = new PatientBackfill.Run(0, 2);
+		PatientBackfill.Page first = new PatientBackfill.Page(Collections.singletonList(PATIENT_UUID), 10);
+		PatientBackfill.Page second = new PatientBackfill.Page(Collections.singletonList(OTHER_PATIENT_UUID), 20);
+		run.add(first);
+		run.add(second);
+		
+		backfill.push(run, second);
+		verify(checkpointDao, never()).saveCheckpoint(eq(PatientBackfill.CHECKPOINT_LAST_PATIENT_ID), anyString());
+		
+		backfill.push(run, first);
+		ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+		verify(checkpointDao).saveCheckpoint(eq(PatientBackfill.CHECKPOINT_LAST_PATIENT_ID), captor.capture());
+		assertThat(captor.getAllValues(), contains("20"));
+	}
+}
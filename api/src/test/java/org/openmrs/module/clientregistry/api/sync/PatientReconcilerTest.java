@@ -0,0 +1,218 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.ClientRegistryConstants;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.db.SyncCheckpointDao;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+import org.openmrs.module.clientregistry.api.search.PatientSearchCriteriaBuilder;
+import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PatientReconcilerTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	private static final String OTHER_PATIENT_UUID = "417312c1-cx56-b3ab-aeb7-41070b401d1p";
+	
+	private static final String IDENTIFIER_ROOT = "http://openmrs.org/facility";
+	
+	private static final long WATERMARK = System.currentTimeMillis() - 3600000;
+	
+	@Mock
+	private SyncPatientDao patientDao;
+	
+	@Mock
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Mock
+	private SyncCheckpointDao checkpointDao;
+	
+	@Mock
+	private SyncOutboxDao outboxDao;
+	
+	@Mock
+	private CRPatientProjection projection;
+	
+	@Mock
+	private PatientSyncWorker syncWorker;
+	
+	@Mock
+	private PatientSearchCriteriaBuilder criteriaBuilder;
+	
+	@Mock
+	private ClientRegistryGuard guard;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private PatientReconciler reconciler;
+	
+	private Bundle registryChanges;
+	
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		when(config.getSyncBatchSize()).thenReturn(50);
+		when(config.getClientRegistryIdentifierRoot()).thenReturn(IDENTIFIER_ROOT);
+		when(checkpointDao.getCheckpoint(PatientReconciler.CHECKPOINT_WATERMARK)).thenReturn(String.valueOf(WATERMARK));
+		when(criteriaBuilder.buildCriteria(any(PatientSearchParams.class))).thenReturn(Collections.emptyList());
+		when(patientDao.getPatientIdsChangedSince(any(Date.class))).thenReturn(new TreeSet<>());
+		registryChanges = new Bundle();
+		when(guard.execute(anyBoolean(), any(Supplier.class))).thenReturn(registryChanges);
+	}
+	
+	@Test
+	public void reconcile_shouldOnlySetWatermarkOnFirstRun() {
+		when(checkpointDao.getCheckpoint(PatientReconciler.CHECKPOINT_WATERMARK)).thenReturn(null);
+		
+		assertThat(reconciler.reconcile(), equalTo(0));
+		
+		verify(checkpointDao).saveCheckpoint(eq(PatientReconciler.CHECKPOINT_WATERMARK), any(String.class));
+		verify(patientDao, never()).getPatientIdsChangedSince(any(Date.class));
+	}
+	
+	@Test
+	public void reconcile_shouldEnqueueLocallyChangedPatientsThatDifferFromLastPush() {
+		org.openmrs.Patient changed = givenLocalPatient(PATIENT_UUID, "changed");
+		org.openmrs.Patient unchanged = givenLocalPatient(OTHER_PATIENT_UUID, "unchanged");
+		Map<Integer, String> uuids = new LinkedHashMap<>();
+		uuids.put(1, PATIENT_UUID);
+		uuids.put(2, OTHER_PATIENT_UUID);
+		when(patientDao.getPatientIdsChangedSince(any(Date.class))).thenReturn(new TreeSet<>(uuids.keySet()));
+		when(patientDao.getPatientUuids(Arrays.asList(1, 2))).thenReturn(uuids);
+		when(patientDao.getPatientsForSync(anyCollectionOf(String.class))).thenReturn(Arrays.asList(changed, unchanged));
+		Map<String, SyncFingerprint> fingerprints = new LinkedHashMap<>();
+		fingerprints.put(PATIENT_UUID, new SyncFingerprint(PATIENT_UUID, "outdated", null));
+		fingerprints.put(OTHER_PATIENT_UUID, new SyncFingerprint(OTHER_PATIENT_UUID, "unchanged", null));
+		when(fingerprintDao.getFingerprints(anyCollectionOf(String.class))).thenReturn(fingerprints);
+		
+		assertThat(reconciler.reconcile(), equalTo(1));
+		
+		SyncOutboxEntry entry = getEnqueuedEntry();
+		assertThat(entry.getPatientUuid(), equalTo(PATIENT_UUID));
+		assertThat(entry.getEventAction(), equalTo(Event.Action.UPDATED));
+		verify(syncWorker).wakeUp();
+	}
+	
+	@Test
+	public void reconcile_shouldRecordPushedPatientsNoLongerSyncableToBeDeleted() {
+		Map<Integer, String> uuids = new LinkedHashMap<>();
+		uuids.put(1, PATIENT_UUID);
+		uuids.put(2, OTHER_PATIENT_UUID);
+		when(patientDao.getPatientIdsChangedSince(any(Date.class))).thenReturn(new TreeSet<>(uuids.keySet()));
+		when(patientDao.getPatientUuids(Arrays.asList(1, 2))).thenReturn(uuids);
+		// both patients were voided, only the first one was ever pushed
+		when(patientDao.getPatientsForSync(anyCollectionOf(String.class))).thenReturn(Collections.emptyList());
+		when(fingerprintDao.getFingerprints(anyCollectionOf(String.class)))
+		        .thenReturn(Collections.singletonMap(PATIENT_UUID, new SyncFingerprint(PATIENT_UUID, "pushed", null)));
+		
+		assertThat(reconciler.reconcile(), equalTo(1));
+		
+		SyncOutboxEntry entry = getEnqueuedEntry();
+		assertThat(entry.getPatientUuid(), equalTo(PATIENT_UUID));
+		assertThat(entry.getEventAction(), equalTo(Event.Action.PURGED));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void reconcile_shouldResyncPatientsEditedInTheClientRegistry() {
+		Patient stored = givenRegistryPatient(PATIENT_UUID, new Date());
+		Patient projected = new Patient();
+		when(projection.toProjectedElements(stored, IDENTIFIER_ROOT + "/" + PATIENT_UUID)).thenReturn(projected);
+		when(projection.encode(projected)).thenReturn("edited");
+		when(projection.fingerprint("edited")).thenReturn("edited");
+		SyncFingerprint last = new SyncFingerprint(PATIENT_UUID, "pushed", null);
+		last.setDateSent(new Date(WATERMARK));
+		when(fingerprintDao.getFingerprints(anyCollectionOf(String.class)))
+		        .thenReturn(Collections.singletonMap(PATIENT_UUID, last));
+		
+		assertThat(reconciler.reconcile(), equalTo(1));
+		
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(fingerprintDao).deleteFingerprints(captor.capture());
+		assertThat((Collection<String>) captor.getValue(), contains(PATIENT_UUID));
+		assertThat(getEnqueuedEntry().getEventAction(), equalTo(Event.Action.UPDATED));
+	}
+	
+	@Test
+	public void reconcile_shouldIgnoreRegistryChangesMadeByTheModulesOwnPush() {
+		Date pushed = new Date();
+		givenRegistryPatient(PATIENT_UUID, pushed);
+		SyncFingerprint last = new SyncFingerprint(PATIENT_UUID, "pushed", null);
+		last.setDateSent(pushed);
+		when(fingerprintDao.getFingerprints(anyCollectionOf(String.class)))
+		        .thenReturn(Collections.singletonMap(PATIENT_UUID, last));
+		
+		assertThat(reconciler.reconcile(), equalTo(0));
+		
+		verify(outboxDao, never()).saveEntry(any(SyncOutboxEntry.class));
+	}
+	
+	private org.openmrs.Patient givenLocalPatient(String uuid, String fingerprint) {
+		org.openmrs.Patient patient = new org.openmrs.Patient();
+		patient.setUuid(uuid);
+		Patient crPatient = new Patient();
+		when(projection.toCRPatient(eq(patient), anyMapOf(String.class, String.class))).thenReturn(crPatient);
+		when(projection.encode(crPatient)).thenReturn(uuid);
+		when(projection.fingerprint(uuid)).thenReturn(fingerprint);
+		return patient;
+	}
+	
+	private Patient givenRegistryPatient(String uuid, Date lastUpdated) {
+		Patient patient = new Patient();
+		patient.setId("Patient/1");
+		patient.getMeta().setLastUpdated(lastUpdated);
+		patient.addIdentifier().setSystem(ClientRegistryConstants.CLIENT_REGISTRY_INTERNAL_ID_SYSTEM)
+		        .setValue(IDENTIFIER_ROOT + "/" + uuid);
+		registryChanges.addEntry().setResource(patient);
+		return patient;
+	}
+	
+	private SyncOutboxEntry getEnqueuedEntry() {
+		ArgumentCaptor<SyncOutboxEntry> captor = ArgumentCaptor.forClass(SyncOutboxEntry.class);
+		verify(outboxDao).saveEntry(captor.capture());
+		return captor.getValue();
+	}
+}
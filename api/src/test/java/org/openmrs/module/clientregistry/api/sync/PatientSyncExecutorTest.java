@@ -0,0 +1,180 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PatientSyncExecutorTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private PatientSyncExecutor executor = new PatientSyncExecutor() {
+		
+		@Override
+		Thread startWorker(Runnable worker, DaemonToken daemonToken) {
+			Thread thread = new Thread(worker);
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+	};
+	
+	private final CountDownLatch blockerStarted = new CountDownLatch(1);
+	
+	private final CountDownLatch blockerReleased = new CountDownLatch(1);
+	
+	@Before
+	public void setup() {
+		when(config.getSyncWorkerCount()).thenReturn(2);
+		when(config.getSyncQueueCapacity()).thenReturn(1);
+	}
+	
+	@After
+	public void tearDown() {
+		blockerReleased.countDown();
+		executor.stop();
+	}
+	
+	@Test
+	public void getLane_shouldAssignAPatientTheSameLaneUntilStopped() {
+		assertThat(executor.getLane(PATIENT_UUID), equalTo(-1));
+		
+		executor.start(null);
+		
+		int lane = executor.getLane(PATIENT_UUID);
+		assertThat(lane, equalTo(Math.floorMod(PATIENT_UUID.hashCode(), 2)));
+		assertThat(executor.getLane(PATIENT_UUID), equalTo(lane));
+		
+		executor.stop();
+		assertThat(executor.getLane(PATIENT_UUID), equalTo(-1));
+	}
+	
+	@Test
+	public void submit_shouldRunTheTasksOfALaneInTheOrderTheyWereSubmitted() throws InterruptedException {
+		when(config.getSyncOverflowPolicy()).thenReturn(SyncOverflowPolicy.BLOCK);
+		executor.start(null);
+		int lane = executor.getLane(PATIENT_UUID);
+		List<Integer> pushed = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(20);
+		
+		for (int i = 0; i < 20; i++) {
+			int task = i;
+			executor.submit(lane, () -> {
+				pushed.add(task);
+				done.countDown();
+			});
+		}
+		
+		assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+		assertThat(pushed, equalTo(IntStream.range(0, 20).boxed().collect(Collectors.toList())));
+	}
+	
+	@Test
+	public void submit_shouldSpillTasksWhenTheLaneIsFull() throws InterruptedException {
+		when(config.getSyncOverflowPolicy()).thenReturn(SyncOverflowPolicy.SPILL);
+		executor.start(null);
+		int lane = executor.getLane(PATIENT_UUID);
+		List<String> pushed = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(1);
+		givenBusyLane(lane);
+		
+		assertThat(executor.submit(lane, () -> {
+			pushed.add("queued");
+			done.countDown();
+		}), equalTo(true));
+		assertThat(executor.submit(lane, () -> pushed.add("spilled")), equalTo(false));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_TASKS_SPILLED), equalTo(1L));
+		
+		blockerReleased.countDown();
+		assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+		assertThat(pushed, contains("queued"));
+	}
+	
+	@Test
+	public void submit_shouldWaitForRoomWhenTheLaneIsFull() throws InterruptedException {
+		when(config.getSyncOverflowPolicy()).thenReturn(SyncOverflowPolicy.BLOCK);
+		executor.start(null);
+		int lane = executor.getLane(PATIENT_UUID);
+		List<String> pushed = Collections.synchronizedList(new ArrayList<>());
+		givenBusyLane(lane);
+		assertThat(executor.submit(lane, () -> pushed.add("queued")), equalTo(true));
+		
+		AtomicBoolean released = new AtomicBoolean(false);
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			released.set(true);
+			blockerReleased.countDown();
+		});
+		releaser.start();
+		CountDownLatch done = new CountDownLatch(1);
+		
+		assertThat(executor.submit(lane, () -> {
+			pushed.add("waited");
+			done.countDown();
+		}), equalTo(true));
+		assertThat(released.get(), equalTo(true));
+		assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+		assertThat(pushed, contains("queued", "waited"));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_TASKS_SPILLED), equalTo(0L));
+	}
+	
+	@Test
+	public void submit_shouldRefuseTasksOnceStopped() throws InterruptedException {
+		executor.start(null);
+		int lane = executor.getLane(PATIENT_UUID);
+		executor.stop();
+		
+		assertThat(executor.submit(lane, () -> {}), equalTo(false));
+	}
+	
+	/**
+	 * Keeps the worker of a lane busy until the blocker is released, so that the lane's queue fills up.
+	 */
+	private void givenBusyLane(int lane) throws InterruptedException {
+		executor.submit(lane, () -> {
+			blockerStarted.countDown();
+			try {
+				blockerReleased.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertThat(blockerStarted.await(10, TimeUnit.SECONDS), equalTo(true));
+	}
+}
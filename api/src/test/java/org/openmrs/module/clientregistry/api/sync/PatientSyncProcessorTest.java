@@ -0,0 +1,484 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICreateTyped;
+import ca.uhn.fhir.rest.gclient.IFetchConformanceTyped;
+import ca.uhn.fhir.rest.gclient.IFetchConformanceUntyped;
+import ca.uhn.fhir.rest.gclient.IPatch;
+import ca.uhn.fhir.rest.gclient.IPatchExecutable;
+import ca.uhn.fhir.rest.gclient.IPatchWithBody;
+import ca.uhn.fhir.rest.gclient.ITransaction;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+import ca.uhn.fhir.rest.gclient.IUpdateExecutable;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.cache.CRPatientCache;
+import org.openmrs.module.clientregistry.api.cache.CRSearchCache;
+import org.openmrs.module.clientregistry.api.cache.PixCrossReferenceCache;
+import org.openmrs.module.clientregistry.api.db.SyncFingerprintDao;
+import org.openmrs.module.clientregistry.api.db.SyncPatientDao;
+import org.openmrs.module.clientregistry.api.model.SyncFingerprint;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PatientSyncProcessorTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	private static final String OTHER_PATIENT_UUID = "5946f880-b197-400b-9caa-a3c661d23041";
+	
+	private static final String THIRD_PATIENT_UUID = "8d8718c2-c2cc-11de-8d13-0010c6dffd0f";
+	
+	private static final String ENCODED_PATIENT = "{\"resourceType\":\"Patient\",\"gender\":\"female\"}";
+	
+	private static final String FINGERPRINT = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+	
+	private static final String DEMOGRAPHICS_FINGERPRINT = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+	
+	@Mock
+	private SyncPatientDao patientDao;
+	
+	@Mock
+	private CRPatientProjection projection;
+	
+	@Mock
+	private SyncFingerprintDao fingerprintDao;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Mock(answer = Answers.RETURNS_DEEP_STUBS)
+	private IGenericClient client;
+	
+	@Mock
+	private IFetchConformanceUntyped fetchCapabilities;
+	
+	@Mock
+	private IFetchConformanceTyped<CapabilityStatement> fetchCapabilityStatement;
+	
+	@Mock
+	private IPatch patchOperation;
+	
+	@Mock
+	private IPatchWithBody patchWithBody;
+	
+	@Mock
+	private IPatchExecutable patchExecutable;
+	
+	@Mock
+	private ITransaction transaction;
+	
+	@Mock
+	private ITransactionTyped<Bundle> transactionBundle;
+	
+	@Mock
+	private ClientRegistryGuard guard;
+	
+	@Mock
+	private CRPatientCache patientCache;
+	
+	@Mock
+	private PixCrossReferenceCache pixCache;
+	
+	@Mock
+	private CRSearchCache searchCache;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private PatientSyncProcessor processor;
+	
+	private Patient patient;
+	
+	private List<org.openmrs.Patient> openmrsPatients = new ArrayList<>();
+	
+	@Before
+	public void setup() {
+		org.openmrs.Patient openmrsPatient = new org.openmrs.Patient();
+		openmrsPatient.setUuid(PATIENT_UUID);
+		openmrsPatients.add(openmrsPatient);
+		patient = new Patient();
+		patient.setId(PATIENT_UUID);
+		when(patientDao.getPatientsForSync(anyCollectionOf(String.class))).thenReturn(openmrsPatients);
+		when(projection.toCRPatient(eq(openmrsPatient), anyMapOf(String.class, String.class))).thenReturn(patient);
+		when(projection.toCRPatient(openmrsPatient)).thenReturn(patient);
+		when(projection.encode(patient)).thenReturn(ENCODED_PATIENT);
+		when(projection.fingerprint(ENCODED_PATIENT)).thenReturn(FINGERPRINT);
+		when(projection.fingerprintDemographics(patient)).thenReturn(DEMOGRAPHICS_FINGERPRINT);
+		when(guard.execute(anyBoolean(), any(Supplier.class)))
+		        .thenAnswer(invocation -> ((Supplier<?>) invocation.getArguments()[1]).get());
+		doAnswer(invocation -> {
+			((Runnable) invocation.getArguments()[1]).run();
+			return null;
+		}).when(guard).run(anyBoolean(), any(Runnable.class));
+	}
+	
+	@Test
+	public void process_shouldSkipPatientUnchangedSinceLastPush() {
+		givenLastPush(FINGERPRINT, null);
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verifyZeroInteractions(client);
+		verify(fingerprintDao, never()).saveFingerprints(anyCollectionOf(SyncFingerprint.class));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_UNCHANGED), equalTo(1L));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_REQUESTS), equalTo(0L));
+	}
+	
+	@Test
+	public void process_shouldPushChangedPatientAndRecordItsFingerprint() {
+		givenLastPush("outdated", null);
+		givenUpdateOutcome();
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verify(client.update().resource(patient)).execute();
+		verify(patientCache).invalidatePatients(Collections.singleton(PATIENT_UUID));
+		verify(searchCache).invalidatePatients(patient.getIdentifier());
+		verify(searchCache, never()).invalidateAll();
+		SyncFingerprint saved = getSavedFingerprint();
+		assertThat(saved.getFingerprint(), equalTo(FINGERPRINT));
+		assertThat(saved.getPayload(), nullValue());
+		assertThat(saved.getVersionId(), equalTo("2"));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED), equalTo(1L));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_UNCHANGED), equalTo(0L));
+	}
+	
+	@Test
+	public void process_shouldDropEveryCachedSearchWhenTheDemographicsChanged() {
+		givenLastPush("outdated", null);
+		givenUpdateOutcome();
+		when(projection.fingerprintDemographics(patient)).thenReturn("changed");
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verify(searchCache).invalidateAll();
+		verify(searchCache, never()).invalidatePatients(anyCollectionOf(Identifier.class));
+		assertThat(getSavedFingerprint().getDemographicsFingerprint(), equalTo("changed"));
+	}
+	
+	@Test
+	public void process_shouldDropEveryCachedSearchWhenCreatingAPatient() {
+		ICreateTyped create = client.create().resource(patient);
+		doReturn(new MethodOutcome(new IdType("Patient", PATIENT_UUID, "1"))).when(create).execute();
+		
+		processor.process(PATIENT_UUID, Event.Action.CREATED);
+		
+		verify(client.create().resource(patient)).execute();
+		verify(searchCache).invalidateAll();
+		verify(searchCache, never()).invalidatePatients(anyCollectionOf(Identifier.class));
+	}
+	
+	@Test
+	public void process_shouldPatchChangedElementsWhenClientRegistrySupportsPatch() {
+		when(config.isSyncPatchUpdates()).thenReturn(true);
+		givenLastPush("outdated", "{\"resourceType\":\"Patient\",\"gender\":\"male\"}");
+		givenPatchSupport(true);
+		givenPatchOutcome();
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verify(client.patch()).withBody("[{\"op\":\"replace\",\"path\":\"/gender\",\"value\":\"female\"}]");
+		verify(patchExecutable).withAdditionalHeader("If-Match", "W/\"1\"");
+		verify(client, never()).update();
+		assertThat(getSavedFingerprint().getPayload(), equalTo(ENCODED_PATIENT));
+		assertThat(getSavedFingerprint().getVersionId(), equalTo("2"));
+	}
+	
+	@Test
+	public void process_shouldSendFullUpdateWhenThePatientChangedInTheClientRegistrySinceItsLastPush() {
+		when(config.isSyncPatchUpdates()).thenReturn(true);
+		givenLastPush("outdated", "{\"resourceType\":\"Patient\",\"gender\":\"male\"}");
+		givenPatchSupport(true);
+		givenPatchOutcome();
+		when(patchExecutable.execute()).thenThrow(new PreconditionFailedException("HTTP 412 Precondition Failed"));
+		givenUpdateOutcome();
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verify(client.update().resource(patient)).execute();
+		assertThat(getSavedFingerprint().getVersionId(), equalTo("2"));
+	}
+	
+	@Test
+	public void process_shouldSendFullUpdateWhenTheVersionOfTheLastPushIsUnknown() {
+		when(config.isSyncPatchUpdates()).thenReturn(true);
+		SyncFingerprint last = new SyncFingerprint(PATIENT_UUID, "outdated", "{\"resourceType\":\"Patient\"}");
+		when(fingerprintDao.getFingerprints(Collections.singleton(PATIENT_UUID)))
+		        .thenReturn(Collections.singletonMap(PATIENT_UUID, last));
+		givenUpdateOutcome();
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verify(client.update().resource(patient)).execute();
+		verify(client, never()).patch();
+	}
+	
+	@Test
+	public void process_shouldSendFullUpdateWhenClientRegistryDoesNotAdvertisePatch() {
+		when(config.isSyncPatchUpdates()).thenReturn(true);
+		givenLastPush("outdated", "{\"resourceType\":\"Patient\",\"gender\":\"male\"}");
+		givenPatchSupport(false);
+		givenUpdateOutcome();
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verify(client.update().resource(patient)).execute();
+		verify(client.patch(), never()).withBody(anyString());
+	}
+	
+	@Test
+	public void process_shouldDeletePushedPatientThatIsNoLongerSyncable() {
+		openmrsPatients.clear();
+		givenLastPush(FINGERPRINT, null);
+		
+		processor.process(PATIENT_UUID, Event.Action.PURGED);
+		
+		verify(client.delete().resourceById("Patient", PATIENT_UUID)).execute();
+		verify(fingerprintDao).deleteFingerprints(Collections.singleton(PATIENT_UUID));
+		verify(searchCache).invalidateAll();
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED), equalTo(1L));
+	}
+	
+	@Test
+	public void process_shouldSkipPatientNoLongerSyncableThatWasNeverPushed() {
+		openmrsPatients.clear();
+		
+		processor.process(PATIENT_UUID, Event.Action.UPDATED);
+		
+		verifyZeroInteractions(client);
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_REQUESTS), equalTo(0L));
+	}
+	
+	@Test
+	public void processBatch_shouldDeletePushedPatientsThatAreNoLongerSyncable() {
+		openmrsPatients.clear();
+		givenLastPush(FINGERPRINT, null);
+		Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().getResponse().setStatus("204 No Content");
+		givenTransaction();
+		when(transactionBundle.execute()).thenReturn(response);
+		
+		Map<String, String> failures = processor.processBatch(Collections.singletonMap(PATIENT_UUID, Event.Action.PURGED));
+		
+		assertThat(failures.isEmpty(), equalTo(true));
+		ArgumentCaptor<Bundle> bundle = ArgumentCaptor.forClass(Bundle.class);
+		verify(transaction).withBundle(bundle.capture());
+		Bundle.BundleEntryRequestComponent request = bundle.getValue().getEntryFirstRep().getRequest();
+		assertThat(request.getMethod(), equalTo(Bundle.HTTPVerb.DELETE));
+		assertThat(request.getUrl(), equalTo("Patient/" + PATIENT_UUID));
+		verify(fingerprintDao).deleteFingerprints(Collections.singleton(PATIENT_UUID));
+		verify(searchCache).invalidateAll();
+	}
+	
+	@Test
+	public void processBatch_shouldMapEveryResponseEntryToThePatientOfItsRequestEntry() {
+		Patient otherPatient = givenPatient(OTHER_PATIENT_UUID, "other");
+		Patient thirdPatient = givenPatient(THIRD_PATIENT_UUID, "third");
+		Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().getResponse().setStatus("201 Created");
+		response.addEntry().getResponse().setStatus("400 Bad Request");
+		// the client registry left out the response entry of the third patient
+		givenTransaction();
+		when(transactionBundle.execute()).thenReturn(response);
+		
+		Map<String, String> failures = processor.processBatch(givenBatch());
+		
+		assertThat(failures.keySet(), contains(OTHER_PATIENT_UUID, THIRD_PATIENT_UUID));
+		assertThat(failures.get(OTHER_PATIENT_UUID), containsString("400 Bad Request"));
+		assertThat(failures.get(THIRD_PATIENT_UUID), containsString("'null'"));
+		ArgumentCaptor<Bundle> bundle = ArgumentCaptor.forClass(Bundle.class);
+		verify(transaction).withBundle(bundle.capture());
+		assertThat(bundle.getValue().getEntry().stream().map(Bundle.BundleEntryComponent::getResource)
+		        .collect(Collectors.toList()), contains(patient, otherPatient, thirdPatient));
+		assertThat(getSavedFingerprint().getPatientUuid(), equalTo(PATIENT_UUID));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED), equalTo(1L));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PUSHES_FAILED), equalTo(2L));
+	}
+	
+	@Test
+	public void processBatch_shouldOnlyDropTheCachedSearchesOfUpdatesLeavingTheDemographicsAsTheyWere() {
+		givenLastPush("outdated", null);
+		Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().getResponse().setStatus("200 OK");
+		givenTransaction();
+		when(transactionBundle.execute()).thenReturn(response);
+		
+		processor.processBatch(Collections.singletonMap(PATIENT_UUID, Event.Action.UPDATED));
+		
+		verify(searchCache).invalidatePatients(patient.getIdentifier());
+		verify(searchCache, never()).invalidateAll();
+	}
+	
+	@Test
+	public void processBatch_shouldDropEveryCachedSearchWhenCreatingPatients() {
+		givenPatient(OTHER_PATIENT_UUID, "other");
+		givenPatient(THIRD_PATIENT_UUID, "third");
+		givenTransaction();
+		when(transactionBundle.execute()).thenReturn(new Bundle().setType(Bundle.BundleType.BATCHRESPONSE));
+		
+		processor.processBatch(givenBatch());
+		
+		verify(searchCache).invalidateAll();
+		verify(searchCache, never()).invalidatePatients(anyCollectionOf(Identifier.class));
+	}
+	
+	@Test
+	public void processBatch_shouldUpdateInFullThePatientsWhosePatchIsRejected() {
+		when(config.isSyncPatchUpdates()).thenReturn(true);
+		givenLastPush("outdated", "{\"resourceType\":\"Patient\",\"gender\":\"male\"}");
+		givenPatchSupport(true);
+		Bundle patchResponse = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		patchResponse.addEntry().getResponse().setStatus("405 Method Not Allowed");
+		Bundle updateResponse = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		updateResponse.addEntry().getResponse().setStatus("200 OK").setEtag("W/\"3\"");
+		givenTransaction();
+		when(transactionBundle.execute()).thenReturn(patchResponse, updateResponse);
+		
+		Map<String, String> failures = processor.processBatch(Collections.singletonMap(PATIENT_UUID, Event.Action.UPDATED));
+		
+		assertThat(failures.isEmpty(), equalTo(true));
+		ArgumentCaptor<Bundle> bundles = ArgumentCaptor.forClass(Bundle.class);
+		verify(transaction, times(2)).withBundle(bundles.capture());
+		Bundle.BundleEntryRequestComponent patch = bundles.getAllValues().get(0).getEntryFirstRep().getRequest();
+		assertThat(patch.getMethod(), equalTo(Bundle.HTTPVerb.PATCH));
+		assertThat(patch.getIfMatch(), equalTo("W/\"1\""));
+		Bundle.BundleEntryComponent update = bundles.getAllValues().get(1).getEntryFirstRep();
+		assertThat(update.getRequest().getMethod(), equalTo(Bundle.HTTPVerb.PUT));
+		assertThat(update.getResource(), equalTo(patient));
+		assertThat(getSavedFingerprint().getVersionId(), equalTo("3"));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED), equalTo(1L));
+	}
+	
+	@Test
+	public void processBatch_shouldFailEveryPatientWhenTheWholeBundleFails() {
+		givenPatient(OTHER_PATIENT_UUID, "other");
+		givenPatient(THIRD_PATIENT_UUID, "third");
+		givenTransaction();
+		when(transactionBundle.execute()).thenThrow(new InternalErrorException("HTTP 500 Internal Server Error"));
+		
+		Map<String, String> failures = processor.processBatch(givenBatch());
+		
+		assertThat(failures.keySet(), contains(PATIENT_UUID, OTHER_PATIENT_UUID, THIRD_PATIENT_UUID));
+		assertThat(failures.get(PATIENT_UUID), containsString("HTTP 500"));
+		verify(fingerprintDao, never()).saveFingerprints(anyCollectionOf(SyncFingerprint.class));
+		verify(patientCache).invalidatePatients(Arrays.asList(PATIENT_UUID, OTHER_PATIENT_UUID, THIRD_PATIENT_UUID));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PATIENTS_PUSHED), equalTo(0L));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_PUSHES_FAILED), equalTo(3L));
+	}
+	
+	private Patient givenPatient(String uuid, String encoded) {
+		org.openmrs.Patient openmrsPatient = new org.openmrs.Patient();
+		openmrsPatient.setUuid(uuid);
+		openmrsPatients.add(openmrsPatient);
+		Patient crPatient = new Patient();
+		crPatient.setId(uuid);
+		when(projection.toCRPatient(eq(openmrsPatient), anyMapOf(String.class, String.class))).thenReturn(crPatient);
+		when(projection.encode(crPatient)).thenReturn(encoded);
+		when(projection.fingerprint(encoded)).thenReturn(encoded);
+		return crPatient;
+	}
+	
+	private void givenTransaction() {
+		when(client.transaction()).thenReturn(transaction);
+		when(transaction.withBundle(any(Bundle.class))).thenReturn(transactionBundle);
+	}
+	
+	private Map<String, Event.Action> givenBatch() {
+		Map<String, Event.Action> batch = new LinkedHashMap<>();
+		batch.put(PATIENT_UUID, Event.Action.CREATED);
+		batch.put(OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		batch.put(THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		return batch;
+	}
+	
+	private void givenLastPush(String fingerprint, String payload) {
+		SyncFingerprint last = new SyncFingerprint(PATIENT_UUID, fingerprint, payload);
+		last.setDemographicsFingerprint(DEMOGRAPHICS_FINGERPRINT);
+		last.setVersionId("1");
+		when(fingerprintDao.getFingerprints(Collections.singleton(PATIENT_UUID)))
+		        .thenReturn(Collections.singletonMap(PATIENT_UUID, last));
+	}
+	
+	private void givenUpdateOutcome() {
+		IUpdateExecutable update = client.update().resource(patient);
+		doReturn(new MethodOutcome(new IdType("Patient", PATIENT_UUID, "2"))).when(update).execute();
+	}
+	
+	private void givenPatchOutcome() {
+		when(client.patch()).thenReturn(patchOperation);
+		when(patchOperation.withBody(anyString())).thenReturn(patchWithBody);
+		when(patchWithBody.withId(any(IIdType.class))).thenReturn(patchExecutable);
+		when(patchExecutable.withAdditionalHeader(anyString(), anyString())).thenReturn(patchExecutable);
+		when(patchExecutable.execute()).thenReturn(new MethodOutcome(new IdType("Patient", PATIENT_UUID, "2")));
+	}
+	
+	private void givenPatchSupport(boolean supported) {
+		CapabilityStatement capabilities = new CapabilityStatement();
+		CapabilityStatement.CapabilityStatementRestResourceComponent resource = capabilities.addRest().addResource()
+		        .setType("Patient");
+		resource.addInteraction().setCode(CapabilityStatement.TypeRestfulInteraction.UPDATE);
+		if (supported) {
+			resource.addInteraction().setCode(CapabilityStatement.TypeRestfulInteraction.PATCH);
+		}
+		when(client.capabilities()).thenReturn(fetchCapabilities);
+		when(fetchCapabilities.ofType(CapabilityStatement.class)).thenReturn(fetchCapabilityStatement);
+		when(fetchCapabilityStatement.execute()).thenReturn(capabilities);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SyncFingerprint getSavedFingerprint() {
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(fingerprintDao).saveFingerprints(captor.capture());
+		return (SyncFingerprint) captor.getValue().iterator().next();
+	}
+}
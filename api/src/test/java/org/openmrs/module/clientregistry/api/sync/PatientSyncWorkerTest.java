@@ -0,0 +1,324 @@
+package org.openmrs.module.clientregistry.api.sync;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.event.Event;
+import org.openmrs.module.clientregistry.ClientRegistryConfig;
+import org.openmrs.module.clientregistry.api.ClientRegistryGuard;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
+import org.openmrs.module.clientregistry.api.ClientRegistryUnavailableException;
+import org.openmrs.module.clientregistry.api.db.SyncOutboxDao;
+import org.openmrs.module.clientregistry.api.model.SyncOutboxEntry;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PatientSyncWorkerTest {
+	
+	private static final String PATIENT_UUID = "01v312b1-cfv6-43ab-ae87-24070c801d1b";
+	
+	private static final String OTHER_PATIENT_UUID = "5946f880-b197-400b-9caa-a3c661d23041";
+	
+	private static final String THIRD_PATIENT_UUID = "8d8718c2-c2cc-11de-8d13-0010c6dffd0f";
+	
+	private static final String FOURTH_PATIENT_UUID = "8d871d18-c2cc-11de-8d13-0010c6dffd0f";
+	
+	@Mock
+	private SyncOutboxDao outboxDao;
+	
+	@Mock
+	private PatientSyncProcessor processor;
+	
+	@Mock
+	private PatientSyncExecutor executor;
+	
+	@Mock
+	private ClientRegistryConfig config;
+	
+	@Mock
+	private ClientRegistryGuard guard;
+	
+	@Spy
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
+	@InjectMocks
+	private PatientSyncWorker worker;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		when(config.getSyncBatchSize()).thenReturn(10);
+		when(config.getSyncWorkerCount()).thenReturn(1);
+		when(config.getSyncMaxAttempts()).thenReturn(5);
+		when(config.getSyncRetryInterval()).thenReturn(60);
+		when(executor.getLane(anyString())).thenReturn(0);
+		// the pushes run right away rather than on a lane thread
+		when(executor.submit(anyInt(), any(Runnable.class))).thenAnswer(invocation -> {
+			((Runnable) invocation.getArguments()[1]).run();
+			return true;
+		});
+	}
+	
+	@Test
+	public void drain_shouldCompleteTheEntriesTheBundleAcceptedAndFailTheOthers() throws InterruptedException {
+		SyncOutboxEntry created = givenEntry(1, PATIENT_UUID, Event.Action.CREATED);
+		SyncOutboxEntry rejected = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry updated = givenEntry(3, THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(created, rejected, updated));
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class))).thenReturn(
+		    Collections.singletonMap(OTHER_PATIENT_UUID, "Client registry responded with status '400 Bad Request'"));
+		
+		assertThat(worker.drain(), equalTo(3));
+		
+		Map<String, Event.Action> batch = new LinkedHashMap<>();
+		batch.put(PATIENT_UUID, Event.Action.CREATED);
+		batch.put(OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		batch.put(THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		verify(processor).processBatch(batch);
+		assertThat(created.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+		assertThat(updated.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+		assertThat(rejected.getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		assertThat(rejected.getAttempts(), equalTo(1));
+		assertThat(rejected.getLastError(), containsString("400 Bad Request"));
+		assertThat(rejected.getNextAttempt(), notNullValue());
+		verify(outboxDao).saveEntry(created);
+		verify(outboxDao).saveEntry(rejected);
+		verify(outboxDao).saveEntry(updated);
+	}
+	
+	@Test
+	public void drain_shouldRetryFailedEntriesOneAtATime() throws InterruptedException {
+		SyncOutboxEntry first = givenEntry(1, PATIENT_UUID, Event.Action.UPDATED);
+		first.setAttempts(1);
+		SyncOutboxEntry second = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.CREATED);
+		second.setAttempts(2);
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(first, second));
+		
+		assertThat(worker.drain(), equalTo(2));
+		
+		verify(executor, times(2)).submit(anyInt(), any(Runnable.class));
+		verify(processor, never()).processBatch(anyMapOf(String.class, Event.Action.class));
+		verify(processor).process(PATIENT_UUID, Event.Action.UPDATED);
+		verify(processor).process(OTHER_PATIENT_UUID, Event.Action.CREATED);
+		assertThat(first.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+		assertThat(second.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+	}
+	
+	@Test
+	public void drain_shouldRetryEveryPatientOfAFailedBundleOnItsOwn() throws InterruptedException {
+		SyncOutboxEntry first = givenEntry(1, PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry second = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(first, second));
+		Map<String, String> failures = new LinkedHashMap<>();
+		failures.put(PATIENT_UUID, "HTTP 500 Internal Server Error");
+		failures.put(OTHER_PATIENT_UUID, "HTTP 500 Internal Server Error");
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class))).thenReturn(failures);
+		
+		worker.drain();
+		
+		assertThat(first.getAttempts(), equalTo(1));
+		assertThat(second.getAttempts(), equalTo(1));
+		assertThat(first.getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		assertThat(second.getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		
+		worker.drain();
+		
+		verify(processor, times(1)).processBatch(anyMapOf(String.class, Event.Action.class));
+		verify(processor).process(PATIENT_UUID, Event.Action.UPDATED);
+		verify(processor).process(OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		assertThat(first.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+		assertThat(second.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+	}
+	
+	@Test
+	public void drain_shouldLeaveTheEntriesPendingWhenTheClientRegistryIsUnavailable() throws InterruptedException {
+		SyncOutboxEntry first = givenEntry(1, PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry second = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(first, second));
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class)))
+		        .thenThrow(new ClientRegistryUnavailableException("Client registry is unavailable"));
+		
+		worker.drain();
+		
+		assertThat(first.getAttempts(), equalTo(0));
+		assertThat(second.getAttempts(), equalTo(0));
+		verify(outboxDao, never()).saveEntry(any(SyncOutboxEntry.class));
+	}
+	
+	@Test
+	public void drain_shouldPushTheEntriesBehindAFailedEntryOfTheSamePatientAlongWithItsRetry()
+	        throws InterruptedException {
+		SyncOutboxEntry failed = givenEntry(1, PATIENT_UUID, Event.Action.CREATED);
+		SyncOutboxEntry other = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry following = givenEntry(3, PATIENT_UUID, Event.Action.UPDATED);
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(failed, other, following));
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class)))
+		        .thenReturn(Collections.singletonMap(PATIENT_UUID, "HTTP 500 Internal Server Error"));
+		
+		worker.drain();
+		
+		assertThat(failed.getAttempts(), equalTo(1));
+		assertThat(following.getAttempts(), equalTo(0));
+		assertThat(following.getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		verify(outboxDao, never()).saveEntry(following);
+		
+		// the outbox holds the following entry back until the failed one is due again
+		when(outboxDao.getDueEntries(10)).thenReturn(Collections.singletonList(failed));
+		when(outboxDao.getUnattemptedEntries(Collections.singleton(PATIENT_UUID)))
+		        .thenReturn(Collections.singletonList(following));
+		worker.drain();
+		
+		verify(processor, times(1)).process(PATIENT_UUID, Event.Action.CREATED);
+		assertThat(failed.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+		assertThat(following.getStatus(), equalTo(SyncOutboxEntry.Status.DONE));
+		assertThat(metrics.get(ClientRegistryMetrics.SYNC_EVENTS_COALESCED), equalTo(1L));
+	}
+	
+	@Test
+	public void drain_shouldLeaveTheEntriesBehindAFailedRetryPending() throws InterruptedException {
+		SyncOutboxEntry failed = givenEntry(1, PATIENT_UUID, Event.Action.CREATED);
+		failed.setAttempts(1);
+		SyncOutboxEntry following = givenEntry(2, PATIENT_UUID, Event.Action.UPDATED);
+		when(outboxDao.getDueEntries(10)).thenReturn(Collections.singletonList(failed));
+		when(outboxDao.getUnattemptedEntries(Collections.singleton(PATIENT_UUID)))
+		        .thenReturn(Collections.singletonList(following));
+		doThrow(new RuntimeException("HTTP 500 Internal Server Error")).when(processor).process(PATIENT_UUID,
+		    Event.Action.CREATED);
+		
+		worker.drain();
+		
+		assertThat(failed.getAttempts(), equalTo(2));
+		assertThat(following.getStatus(), equalTo(SyncOutboxEntry.Status.PENDING));
+		verify(processor, never()).process(PATIENT_UUID, Event.Action.UPDATED);
+		verify(outboxDao, never()).saveEntry(following);
+	}
+	
+	@Test
+	public void drain_shouldHoldBackTheEntriesBehindAnEntryStillBeingPushed() throws InterruptedException {
+		SyncOutboxEntry first = givenEntry(1, PATIENT_UUID, Event.Action.CREATED);
+		SyncOutboxEntry following = givenEntry(2, PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry other = givenEntry(3, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		// the push of the first entry is left waiting in its lane
+		doReturn(true).when(executor).submit(anyInt(), any(Runnable.class));
+		when(outboxDao.getDueEntries(10)).thenReturn(Collections.singletonList(first));
+		worker.drain();
+		
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(first, following, other));
+		
+		assertThat(worker.drain(), equalTo(1));
+	}
+	
+	@Test
+	public void drain_shouldBundleUpToTheBatchSizeAndRetryFailedPatientsInTasksOfTheirOwn() throws InterruptedException {
+		when(config.getSyncBatchSize()).thenReturn(2);
+		SyncOutboxEntry first = givenEntry(1, PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry second = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		SyncOutboxEntry retried = givenEntry(3, THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		retried.setAttempts(1);
+		SyncOutboxEntry fourth = givenEntry(4, FOURTH_PATIENT_UUID, Event.Action.CREATED);
+		when(outboxDao.getDueEntries(2)).thenReturn(Arrays.asList(first, second, retried, fourth));
+		when(processor.processBatch(anyMapOf(String.class, Event.Action.class))).thenReturn(Collections.emptyMap());
+		
+		assertThat(worker.drain(), equalTo(4));
+		
+		InOrder inOrder = inOrder(processor);
+		Map<String, Event.Action> bundle = new LinkedHashMap<>();
+		bundle.put(PATIENT_UUID, Event.Action.UPDATED);
+		bundle.put(OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		inOrder.verify(processor).processBatch(bundle);
+		inOrder.verify(processor).process(THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		inOrder.verify(processor).process(FOURTH_PATIENT_UUID, Event.Action.CREATED);
+		verify(executor, times(3)).submit(anyInt(), any(Runnable.class));
+	}
+	
+	@Test
+	public void drain_shouldSubmitEveryPatientToItsLaneAndSkipTheRestOfAFullLane() throws InterruptedException {
+		SyncOutboxEntry first = givenEntry(1, PATIENT_UUID, Event.Action.UPDATED);
+		first.setAttempts(1);
+		SyncOutboxEntry second = givenEntry(2, OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		second.setAttempts(1);
+		SyncOutboxEntry third = givenEntry(3, THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		third.setAttempts(1);
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(first, second, third));
+		when(executor.getLane(PATIENT_UUID)).thenReturn(0);
+		when(executor.getLane(OTHER_PATIENT_UUID)).thenReturn(0);
+		when(executor.getLane(THIRD_PATIENT_UUID)).thenReturn(1);
+		doReturn(false).when(executor).submit(eq(0), any(Runnable.class));
+		
+		assertThat(worker.drain(), equalTo(1));
+		
+		verify(executor, times(1)).submit(eq(0), any(Runnable.class));
+		verify(processor).process(THIRD_PATIENT_UUID, Event.Action.UPDATED);
+		verify(processor, never()).process(PATIENT_UUID, Event.Action.UPDATED);
+		verify(processor, never()).process(OTHER_PATIENT_UUID, Event.Action.UPDATED);
+		
+		// the entries of the full lane are not in flight, the next cycle hands them over again
+		doAnswer(invocation -> {
+			((Runnable) invocation.getArguments()[1]).run();
+			return true;
+		}).when(executor).submit(eq(0), any(Runnable.class));
+		when(outboxDao.getDueEntries(10)).thenReturn(Arrays.asList(first, second));
+		assertThat(worker.drain(), equalTo(2));
+	}
+	
+	@Test
+	public void purgeDoneEntries_shouldPurgeTheEntriesPushedBeforeTheRetentionAtMostOnceAnHour() {
+		when(config.getSyncOutboxRetention()).thenReturn(7);
+		long before = System.currentTimeMillis();
+		
+		worker.purgeDoneEntries();
+		worker.purgeDoneEntries();
+		
+		ArgumentCaptor<Date> processedBefore = ArgumentCaptor.forClass(Date.class);
+		verify(outboxDao, times(1)).purgeDoneEntries(processedBefore.capture());
+		assertThat(processedBefore.getValue().getTime(),
+		    greaterThanOrEqualTo(before - TimeUnit.DAYS.toMillis(7)));
+		assertThat(processedBefore.getValue().getTime(), lessThan(before - TimeUnit.DAYS.toMillis(6)));
+	}
+	
+	@Test
+	public void purgeDoneEntries_shouldKeepTheEntriesWhenTheRetentionIsZero() {
+		when(config.getSyncOutboxRetention()).thenReturn(0);
+		
+		worker.purgeDoneEntries();
+		
+		verify(outboxDao, never()).purgeDoneEntries(any(Date.class));
+	}
+	
+	private SyncOutboxEntry givenEntry(int id, String patientUuid, Event.Action action) {
+		SyncOutboxEntry entry = new SyncOutboxEntry(patientUuid, action);
+		entry.setId(id);
+		return entry;
+	}
+}
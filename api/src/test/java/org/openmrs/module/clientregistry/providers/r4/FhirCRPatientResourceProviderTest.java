@@ -18,7 +18,9 @@ import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.DecimalType;
 import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
 import org.junit.Before;
 import org.junit.Test;
@@ -26,6 +28,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.openmrs.module.clientregistry.api.CRPatientService;
+import org.openmrs.module.clientregistry.api.ClientRegistryMetrics;
 import org.openmrs.module.fhir2.FhirConstants;
 import org.openmrs.module.fhir2.api.search.param.PatientSearchParams;
 
@@ -73,6 +76,8 @@ public class FhirCRPatientResourceProviderTest {
 	@Mock
 	private CRPatientService crService;
 	
+	private ClientRegistryMetrics metrics = new ClientRegistryMetrics();
+	
 	private FhirCRPatientResourceProvider resourceProvider;
 	
 	private Patient patient;
@@ -81,6 +86,7 @@ public class FhirCRPatientResourceProviderTest {
 	public void setup() {
 		resourceProvider = new FhirCRPatientResourceProvider();
 		resourceProvider.setCrService(crService);
+		resourceProvider.setMetrics(metrics);
 		
 		// init patient
 		HumanName name = new HumanName();
@@ -327,6 +333,18 @@ public class FhirCRPatientResourceProviderTest {
 		assertThat(resources.get(0).getIdElement().getIdPart(), is(PATIENT_UUID));
 	}
 	
+	@Test
+	public void getMetrics_shouldReturnModuleCounters() {
+		metrics.add(ClientRegistryMetrics.SYNC_EVENTS_RECEIVED, 5);
+		metrics.add(ClientRegistryMetrics.SYNC_EVENTS_COALESCED, 3);
+		
+		Parameters result = resourceProvider.getMetrics();
+		
+		assertThat(result.getParameter(), hasSize(equalTo(2)));
+		assertThat(((DecimalType) result.getParameter(ClientRegistryMetrics.SYNC_EVENTS_COALESCED)).getValueAsInteger(),
+		    equalTo(3));
+	}
+	
 	private StringAndListParam createStringParam(String paramValue) {
 		return new StringAndListParam().addAnd(new StringOrListParam().add(new StringParam(paramValue)));
 	}